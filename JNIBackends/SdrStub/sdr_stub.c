@@ -0,0 +1,208 @@
+/*
+ * Stub SDR driver - Plugin to RDS Surveyor, for testing without hardware
+ * Copyright (c) 2016 the RDS Surveyor contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Implements the native interface of SdrGroupReader without any radio. Instead of demodulated
+ * FM, it delivers the samples of a file, or a test tone, in blocks like the rtl2832u driver.
+ *
+ * Environment variables:
+ *   RDS_SDR_STUB_FILE    raw 16-bit little-endian mono samples at the rate of SdrGroupReader,
+ *                        played in a loop (default: 57 kHz tone)
+ *   RDS_SDR_STUB_FAST    if set, deliver samples as fast as they are consumed rather than in
+ *                        real time
+ *   RDS_SDR_STUB_LEGACY  if set, write samples to the tunerOut stream like older drivers,
+ *                        rather than calling onSamples
+ */
+
+#include <jni.h>
+#include <math.h>
+#include <pthread.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#define BLOCK_LENGTH 16384
+
+struct stub_state
+{
+	JavaVM    *jvm;
+	jobject   self;
+	pthread_t thread;
+	int       rate;
+	int       freq;
+
+	int16_t   *samples;    /* file contents, or one period of the test tone */
+	long      sample_count;
+	long      pos;
+
+	int16_t   block[BLOCK_LENGTH];
+};
+
+static struct stub_state stub;
+
+static void load_samples(struct stub_state *s)
+{
+	const char *name = getenv("RDS_SDR_STUB_FILE");
+	if (name) {
+		FILE *f = fopen(name, "rb");
+		if (f) {
+			fseek(f, 0, SEEK_END);
+			long bytes = ftell(f);
+			fseek(f, 0, SEEK_SET);
+			s->sample_count = bytes / 2;
+			s->samples = malloc(2 * s->sample_count);
+			uint8_t *b = (uint8_t *) s->samples;
+			s->sample_count = fread(b, 2, s->sample_count, f);
+			fclose(f);
+			/* the file is little-endian, samples are passed in native order */
+			for (long i = 0; i < s->sample_count; i++)
+				s->samples[i] = (int16_t) (b[2*i] | (b[2*i+1] << 8));
+			if (s->sample_count > 0)
+				return;
+		}
+		fprintf(stderr, "SDR stub: cannot read %s, using a test tone\n", name);
+	}
+
+	/* one second of a 57 kHz tone */
+	s->sample_count = s->rate;
+	s->samples = malloc(2 * s->sample_count);
+	for (long i = 0; i < s->sample_count; i++)
+		s->samples[i] = (int16_t) (8000 * sin(2 * M_PI * 57000.0 * i / s->rate));
+}
+
+static void fill_block(struct stub_state *s)
+{
+	for (int i = 0; i < BLOCK_LENGTH; i++) {
+		s->block[i] = s->samples[s->pos++];
+		if (s->pos == s->sample_count)
+			s->pos = 0;
+	}
+}
+
+static void *stub_thread_fn(void *arg)
+{
+	struct stub_state *s = arg;
+	JNIEnv *env;
+	int fast = getenv("RDS_SDR_STUB_FAST") != NULL;
+	int legacy = getenv("RDS_SDR_STUB_LEGACY") != NULL;
+
+	(*(s->jvm))->AttachCurrentThread(s->jvm, (void **)&env, NULL);
+	jclass clsSelf = (*env)->GetObjectClass(env, s->self);
+	jmethodID onRssiChanged = (*env)->GetMethodID(env, clsSelf, "onRssiChanged", "(F)V");
+	jmethodID onSamples = NULL;
+	jobject jblock = NULL;
+	jobject tunerOut = NULL;
+	jmethodID write = NULL;
+	jbyteArray jdata = NULL;
+
+	if (!legacy) {
+		onSamples = (*env)->GetMethodID(env, clsSelf, "onSamples", "(Ljava/nio/ByteBuffer;I)V");
+		(*env)->ExceptionClear(env);
+		if (onSamples)
+			jblock = (*env)->NewDirectByteBuffer(env, s->block, sizeof(s->block));
+	}
+	if (!jblock) {
+		jfieldID fTunerOut = (*env)->GetFieldID(env, clsSelf, "tunerOut", "Ljava/io/DataOutputStream;");
+		tunerOut = (*env)->GetObjectField(env, s->self, fTunerOut);
+		write = (*env)->GetMethodID(env, (*env)->GetObjectClass(env, tunerOut), "write", "([BII)V");
+		jdata = (*env)->NewByteArray(env, sizeof(s->block));
+	}
+
+	(*env)->CallVoidMethod(env, s->self, onRssiChanged, (jfloat) 0);
+
+	struct timespec next;
+	clock_gettime(CLOCK_MONOTONIC, &next);
+	long block_ns = (long) (1e9 * BLOCK_LENGTH / s->rate);
+
+	for (;;) {
+		fill_block(s);
+		if (jblock) {
+			(*env)->CallVoidMethod(env, s->self, onSamples, jblock, (jint) BLOCK_LENGTH);
+		} else {
+			/* little-endian bytes, as written by the rtl2832u driver on x86 */
+			(*env)->SetByteArrayRegion(env, jdata, 0, sizeof(s->block), (jbyte *) s->block);
+			(*env)->CallVoidMethod(env, tunerOut, write, jdata, 0, (jint) sizeof(s->block));
+		}
+		if ((*env)->ExceptionCheck(env)) {
+			(*env)->ExceptionDescribe(env);
+			break;
+		}
+
+		if (!fast) {
+			next.tv_nsec += block_ns;
+			while (next.tv_nsec >= 1000000000L) {
+				next.tv_nsec -= 1000000000L;
+				next.tv_sec++;
+			}
+			clock_nanosleep(CLOCK_MONOTONIC, TIMER_ABSTIME, &next, NULL);
+		}
+	}
+
+	(*(s->jvm))->DetachCurrentThread(s->jvm);
+	return 0;
+}
+
+static void notify_frequency(JNIEnv *env, jobject self, int freq)
+{
+	jclass clsSelf = (*env)->GetObjectClass(env, self);
+	jmethodID onFrequencyChanged = (*env)->GetMethodID(env, clsSelf, "onFrequencyChanged", "(I)V");
+	(*env)->CallVoidMethod(env, self, onFrequencyChanged, (jint) freq);
+}
+
+/*
+ * @return true for success, false for failure
+ */
+JNIEXPORT jboolean JNICALL Java_eu_jacquet80_rds_input_SdrGroupReader_open
+  (JNIEnv *env, jobject self) {
+	jclass clsSelf = (*env)->GetObjectClass(env, self);
+	jfieldID fSampleRate = (*env)->GetStaticFieldID(env, clsSelf, "sampleRate", "I");
+	stub.rate = (*env)->GetStaticIntField(env, clsSelf, fSampleRate);
+	stub.freq = 87500;
+
+	load_samples(&stub);
+
+	stub.self = (*env)->NewGlobalRef(env, self);
+	(*env)->GetJavaVM(env, &(stub.jvm));
+
+	return pthread_create(&stub.thread, NULL, stub_thread_fn, (void *)(&stub)) == 0;
+}
+
+JNIEXPORT jstring JNICALL Java_eu_jacquet80_rds_input_SdrGroupReader_getDeviceName
+  (JNIEnv *env, jobject self) {
+	(void) self;
+	return (*env)->NewStringUTF(env, "SDR stub");
+}
+
+JNIEXPORT jint JNICALL Java_eu_jacquet80_rds_input_SdrGroupReader_setFrequency
+  (JNIEnv *env, jobject self, jint freq) {
+	stub.freq = freq;
+	notify_frequency(env, self, freq);
+	return freq;
+}
+
+JNIEXPORT jboolean JNICALL Java_eu_jacquet80_rds_input_SdrGroupReader_seek
+  (JNIEnv *env, jobject self, jboolean up) {
+	int freq = stub.freq + (up ? 100 : -100);
+	if (freq > 108000) freq = 87500;
+	if (freq < 87500) freq = 108000;
+	stub.freq = freq;
+	notify_frequency(env, self, freq);
+	return JNI_TRUE;
+}
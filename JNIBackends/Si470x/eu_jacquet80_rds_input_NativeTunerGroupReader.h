@@ -39,6 +39,14 @@ JNIEXPORT jstring JNICALL Java_eu_jacquet80_rds_input_NativeTunerGroupReader_get
 JNIEXPORT jint JNICALL Java_eu_jacquet80_rds_input_NativeTunerGroupReader_readTuner
   (JNIEnv *, jobject);
 
+/*
+ * Class:     eu_jacquet80_rds_input_NativeTunerGroupReader
+ * Method:    readGroups
+ * Signature: (Ljava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_eu_jacquet80_rds_input_NativeTunerGroupReader_readGroups
+  (JNIEnv *, jobject, jobject);
+
 /*
  * Class:     eu_jacquet80_rds_input_NativeTunerGroupReader
  * Method:    open
@@ -380,8 +380,11 @@ static int si470x_get_all_registers(si470x_dev_t *radio)
 
 /*
  * si470x_get_rds_registers - read RDS registers
+ *
+ * Waits at most the given number of milliseconds for a report, or indefinitely if it is -1.
+ * Returns -EAGAIN if no report was available in time.
  */
-static int si470x_get_rds_registers(si470x_dev_t *radio)
+static int si470x_get_rds_registers(si470x_dev_t *radio, int milliseconds)
 {
 	unsigned char buf[RDS_REPORT_SIZE];
 	int retval;
@@ -389,7 +392,9 @@ static int si470x_get_rds_registers(si470x_dev_t *radio)
 
 	buf[0] = RDS_REPORT;
 
-	retval = hid_read(radio->devh, (void *) &buf, sizeof(buf));
+	retval = hid_read_timeout(radio->devh, (void *) &buf, sizeof(buf), milliseconds);
+
+	if (retval == 0 && milliseconds >= 0) return -EAGAIN;
 
 	if (retval >= 0) {
         if(retval != 1 + RDS_REGISTER_NUM * RADIO_REGISTER_SIZE) {
@@ -470,12 +475,20 @@ int si470x_get_scratch_page_versions(si470x_dev_t *radio)
  * si470x_read_rds - read RDS data, and other real-time RX information
  */
 int si470x_read_rds(si470x_dev_t *radio, si470x_tunerdata_t *data) {
+    return si470x_read_rds_timeout(radio, data, -1);
+}
+
+/*
+ * si470x_read_rds_timeout - same as si470x_read_rds, but waits at most the given number of
+ * milliseconds (-1 for no limit) for the device, and returns -EAGAIN if nothing was read
+ */
+int si470x_read_rds_timeout(si470x_dev_t *radio, si470x_tunerdata_t *data, int milliseconds) {
     int retval;
 	static int cleared = 0;
 	static int count = 0;
 	static uint16_t old_rds[4] = {0, 0, 0, 0};
     
-    retval = si470x_get_rds_registers(radio);
+    retval = si470x_get_rds_registers(radio, milliseconds);
     if(retval < 0) return retval;
 
     /* RDS data */    
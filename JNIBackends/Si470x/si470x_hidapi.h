@@ -74,6 +74,7 @@ typedef struct {
 int si470x_set_led_state(si470x_dev_t *radio, unsigned char led_state);
 int si470x_get_scratch_page_versions(si470x_dev_t *radio);
 int si470x_read_rds(si470x_dev_t *radio, si470x_tunerdata_t *data);
+int si470x_read_rds_timeout(si470x_dev_t *radio, si470x_tunerdata_t *data, int milliseconds);
 int si470x_open(si470x_dev_t **out_dev, uint32_t index);
 int si470x_start(si470x_dev_t *dev, uint8_t space, uint8_t band, uint8_t de);
 int si470x_get_freq(si470x_dev_t *radio, int *freq);
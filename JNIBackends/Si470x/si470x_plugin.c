@@ -20,7 +20,16 @@ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
 
 #include "eu_jacquet80_rds_input_NativeTunerGroupReader.h"
 #include "si470x_hidapi.h"
+#include <errno.h>
+#include <stdint.h>
 #include <stdio.h>
+#include <string.h>
+
+/* bulk transfer buffer layout, see BulkTunerData.java */
+#define BULK_HEADER_SIZE 12
+#define BULK_RECORD_SIZE 4
+#define BULK_FLAG_STEREO 1
+#define BULK_FLAG_SYNCHRONIZED 2
 
 static si470x_dev_t *dev;
 
@@ -72,6 +81,57 @@ JNIEXPORT jint JNICALL Java_eu_jacquet80_rds_input_NativeTunerGroupReader_readTu
     return res;
 }
 
+/*
+ * Waits for the next report from the device, then takes all the reports which are already
+ * queued, so that the groups received since the last call are returned in one call. Each group
+ * is stored as four block records, the tuner status is that of the last report.
+ */
+JNIEXPORT jint JNICALL Java_eu_jacquet80_rds_input_NativeTunerGroupReader_readGroups
+  (JNIEnv *env, jobject self, jobject buffer) {
+    unsigned char *buf = (*env)->GetDirectBufferAddress(env, buffer);
+    jlong capacity = (*env)->GetDirectBufferCapacity(env, buffer);
+    si470x_tunerdata_t tunerdata, last;
+    int32_t header[3];
+    int maxGroups, groups = 0, got = 0, timeout = -1;
+
+    if(buf == NULL || capacity < BULK_HEADER_SIZE) return -1;
+    maxGroups = (capacity - BULK_HEADER_SIZE) / (4 * BULK_RECORD_SIZE);
+
+    while(groups < maxGroups) {
+        int res = si470x_read_rds_timeout(dev, &tunerdata, timeout);
+        if(res == -EAGAIN) break;
+
+        /* -3 (not synchronized) and -5 (no new group) still provide the tuner status */
+        if(res < -5) {
+            if(! got) return res;
+            break;
+        }
+
+        last = tunerdata;
+        got = 1;
+        timeout = 0;
+
+        if(res == 0) {
+            for(int i=0; i<4; i++) {
+                unsigned char *rec = buf + BULK_HEADER_SIZE + BULK_RECORD_SIZE * (4*groups + i);
+                memcpy(rec, &tunerdata.block[i], 2);
+                rec[2] = i;
+                rec[3] = tunerdata.bler[i];
+            }
+            groups++;
+        }
+    }
+
+    if(! got) return -1;
+
+    header[0] = last.frequency;
+    header[1] = last.rssi * 873;
+    header[2] = (last.stereo ? BULK_FLAG_STEREO : 0) | (last.sync ? BULK_FLAG_SYNCHRONIZED : 0);
+    memcpy(buf, header, sizeof(header));
+
+    return 4 * groups;
+}
+
 JNIEXPORT jboolean JNICALL Java_eu_jacquet80_rds_input_NativeTunerGroupReader_open
   (JNIEnv *env, jobject self) {
     
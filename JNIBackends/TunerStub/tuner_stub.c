@@ -0,0 +1,253 @@
+/*
+ * Stub tuner driver - Plugin to RDS Surveyor, for testing without hardware
+ * Copyright (c) 2016 the RDS Surveyor contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Implements the native interface of NativeTunerGroupReader without any radio. The groups of a
+ * hex group file are received in a loop, at the RDS rate of one group every 87.6 ms, like an
+ * Si470x tuner would receive them.
+ *
+ * When compiled with -DNO_BULK, readGroups() is left out, like in older drivers.
+ *
+ * Environment variables:
+ *   RDS_TUNER_STUB_FILE  hex group file, one group per line, "----" for an erroneous block
+ *                        (default: a few groups of a test station)
+ *   RDS_TUNER_STUB_FAST  if set, groups are available as fast as they are read rather than
+ *                        in real time
+ */
+
+#include <jni.h>
+#include <ctype.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#define GROUP_NS 87578947L  /* 104 bits at 1187.5 bit/s */
+
+/* bulk transfer buffer layout, see BulkTunerData.java */
+#define BULK_HEADER_SIZE 12
+#define BULK_RECORD_SIZE 4
+#define BULK_FLAG_STEREO 1
+#define BULK_FLAG_SYNCHRONIZED 2
+
+struct stub_group
+{
+	uint16_t block[4];
+	uint16_t bler[4];
+};
+
+struct stub_state
+{
+	struct stub_group *groups;
+	long group_count;
+	long pos;
+
+	int  fast;
+	int  freq;
+	long received;         /* groups received since the start, i.e. due at the current time */
+	struct timespec start;
+};
+
+static struct stub_state stub;
+
+/* PI F201, PS "RDS STUB" */
+static const struct stub_group default_groups[] = {
+	{{0xF201, 0x0548, 0xE0CD, 0x5244}, {0, 0, 0, 0}},
+	{{0xF201, 0x0549, 0xE0CD, 0x5320}, {0, 0, 0, 0}},
+	{{0xF201, 0x054A, 0xE0CD, 0x5354}, {0, 0, 0, 0}},
+	{{0xF201, 0x054B, 0xE0CD, 0x5542}, {0, 0, 0, 0}},
+};
+
+static int parse_block(const char *s, uint16_t *block, uint16_t *bler)
+{
+	if (strncmp(s, "----", 4) == 0) {
+		*block = 0;
+		*bler = 3;
+		return 1;
+	}
+	for (int i = 0; i < 4; i++)
+		if (!isxdigit((unsigned char) s[i]))
+			return 0;
+	*block = (uint16_t) strtol(s, NULL, 16);
+	*bler = 0;
+	return 1;
+}
+
+static void load_groups(struct stub_state *s)
+{
+	const char *name = getenv("RDS_TUNER_STUB_FILE");
+	if (name) {
+		FILE *f = fopen(name, "r");
+		if (f) {
+			char line[256];
+			long size = 256;
+			s->groups = malloc(size * sizeof(struct stub_group));
+			while (fgets(line, sizeof(line), f)) {
+				struct stub_group g;
+				int ok = 1;
+				for (int i = 0; i < 4 && ok; i++)
+					ok = strlen(line) >= 5 * (size_t) i + 4 && parse_block(line + 5 * i, &g.block[i], &g.bler[i]);
+				if (!ok)
+					continue;
+				if (s->group_count == size) {
+					size *= 2;
+					s->groups = realloc(s->groups, size * sizeof(struct stub_group));
+				}
+				s->groups[s->group_count++] = g;
+			}
+			fclose(f);
+			if (s->group_count > 0)
+				return;
+		}
+		fprintf(stderr, "Tuner stub: cannot read groups from %s, using test groups\n", name);
+	}
+
+	s->group_count = sizeof(default_groups) / sizeof(default_groups[0]);
+	s->groups = malloc(sizeof(default_groups));
+	memcpy(s->groups, default_groups, sizeof(default_groups));
+}
+
+/*
+ * Returns the number of groups received but not read yet, waiting for the next group if
+ * there is none.
+ */
+static long wait_groups(struct stub_state *s)
+{
+	if (s->fast)
+		return s->group_count;
+
+	for (;;) {
+		struct timespec now;
+		clock_gettime(CLOCK_MONOTONIC, &now);
+		long long elapsed = (now.tv_sec - s->start.tv_sec) * 1000000000LL + (now.tv_nsec - s->start.tv_nsec);
+		long due = (long) (elapsed / GROUP_NS);
+		if (due > s->received)
+			return due - s->received;
+
+		long long next = (long long) (s->received + 1) * GROUP_NS - elapsed;
+		struct timespec delay = { (time_t) (next / 1000000000LL), (long) (next % 1000000000LL) };
+		nanosleep(&delay, NULL);
+	}
+}
+
+static const struct stub_group *next_group(struct stub_state *s)
+{
+	const struct stub_group *g = &s->groups[s->pos];
+	if (++s->pos == s->group_count)
+		s->pos = 0;
+	s->received++;
+	return g;
+}
+
+JNIEXPORT jboolean JNICALL Java_eu_jacquet80_rds_input_NativeTunerGroupReader_open
+  (JNIEnv *env, jobject self) {
+	(void) env;
+	(void) self;
+	stub.fast = getenv("RDS_TUNER_STUB_FAST") != NULL;
+	stub.freq = 87500;
+	load_groups(&stub);
+	clock_gettime(CLOCK_MONOTONIC, &stub.start);
+	return JNI_TRUE;
+}
+
+JNIEXPORT jstring JNICALL Java_eu_jacquet80_rds_input_NativeTunerGroupReader_getDeviceName
+  (JNIEnv *env, jobject self) {
+	(void) self;
+	return (*env)->NewStringUTF(env, "Tuner stub");
+}
+
+JNIEXPORT jint JNICALL Java_eu_jacquet80_rds_input_NativeTunerGroupReader_setFrequency
+  (JNIEnv *env, jobject self, jint freq) {
+	(void) env;
+	(void) self;
+	stub.freq = freq;
+	return freq;
+}
+
+JNIEXPORT jboolean JNICALL Java_eu_jacquet80_rds_input_NativeTunerGroupReader_seek
+  (JNIEnv *env, jobject self, jboolean up) {
+	(void) env;
+	(void) self;
+	int freq = stub.freq + (up ? 100 : -100);
+	if (freq > 108000) freq = 87500;
+	if (freq < 87500) freq = 108000;
+	stub.freq = freq;
+	return JNI_TRUE;
+}
+
+/*
+ * Reads one group, and copies it to the TunerData object of the reader, like the Si470x driver.
+ */
+JNIEXPORT jint JNICALL Java_eu_jacquet80_rds_input_NativeTunerGroupReader_readTuner
+  (JNIEnv *env, jobject self) {
+	wait_groups(&stub);
+	const struct stub_group *g = next_group(&stub);
+
+	jclass clsSelf = (*env)->GetObjectClass(env, self);
+	jfieldID fData = (*env)->GetFieldID(env, clsSelf, "data", "Leu/jacquet80/rds/input/TunerData;");
+	jobject data = (*env)->GetObjectField(env, self, fData);
+	jclass cls = (*env)->GetObjectClass(env, data);
+
+	jshortArray blockA = (*env)->GetObjectField(env, data, (*env)->GetFieldID(env, cls, "block", "[S"));
+	(*env)->SetShortArrayRegion(env, blockA, 0, 4, (const jshort *) g->block);
+	jshortArray errA = (*env)->GetObjectField(env, data, (*env)->GetFieldID(env, cls, "err", "[S"));
+	(*env)->SetShortArrayRegion(env, errA, 0, 4, (const jshort *) g->bler);
+
+	(*env)->SetBooleanField(env, data, (*env)->GetFieldID(env, cls, "groupReady", "Z"), JNI_TRUE);
+	(*env)->SetBooleanField(env, data, (*env)->GetFieldID(env, cls, "rdsSynchronized", "Z"), JNI_TRUE);
+	(*env)->SetBooleanField(env, data, (*env)->GetFieldID(env, cls, "stereo", "Z"), JNI_TRUE);
+	(*env)->SetIntField(env, data, (*env)->GetFieldID(env, cls, "rssi", "I"), 40000);
+	(*env)->SetIntField(env, data, (*env)->GetFieldID(env, cls, "frequency", "I"), stub.freq);
+
+	return 0;
+}
+
+#ifndef NO_BULK
+/*
+ * Returns all the groups received since the last call, as block records.
+ */
+JNIEXPORT jint JNICALL Java_eu_jacquet80_rds_input_NativeTunerGroupReader_readGroups
+  (JNIEnv *env, jobject self, jobject buffer) {
+	(void) self;
+	unsigned char *buf = (*env)->GetDirectBufferAddress(env, buffer);
+	jlong capacity = (*env)->GetDirectBufferCapacity(env, buffer);
+	if (buf == NULL || capacity < BULK_HEADER_SIZE)
+		return -1;
+
+	long count = wait_groups(&stub);
+	long max = (capacity - BULK_HEADER_SIZE) / (4 * BULK_RECORD_SIZE);
+	if (count > max)
+		count = max;
+
+	for (long n = 0; n < count; n++) {
+		const struct stub_group *g = next_group(&stub);
+		for (int i = 0; i < 4; i++) {
+			unsigned char *rec = buf + BULK_HEADER_SIZE + BULK_RECORD_SIZE * (4*n + i);
+			memcpy(rec, &g->block[i], 2);
+			rec[2] = i;
+			rec[3] = g->bler[i] != 0;
+		}
+	}
+
+	int32_t header[3] = { stub.freq, 40000, BULK_FLAG_STEREO | BULK_FLAG_SYNCHRONIZED };
+	memcpy(buf, header, sizeof(header));
+
+	return (jint) (4 * count);
+}
+#endif
@@ -95,6 +95,14 @@ JNIEXPORT jboolean JNICALL Java_eu_jacquet80_rds_input_V4LTunerGroupReader_hasRD
 JNIEXPORT jbyteArray JNICALL Java_eu_jacquet80_rds_input_V4LTunerGroupReader_getRDSData
   (JNIEnv *, jobject);
 
+/*
+ * Class:     eu_jacquet80_rds_input_V4LTunerGroupReader
+ * Method:    readGroups
+ * Signature: (Ljava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_eu_jacquet80_rds_input_V4LTunerGroupReader_readGroups
+  (JNIEnv *, jobject, jobject);
+
 #ifdef __cplusplus
 }
 #endif
@@ -34,6 +34,7 @@
 #include <sys/ioctl.h>
 #include <assert.h>
 #include <unistd.h>
+#include <stdint.h>
 
 #include <linux/videodev.h>
 
@@ -47,6 +48,13 @@ struct v4l2_hw_freq_seek v_seek;
 
 #define BUF_LEN 3
 
+/* bulk transfer buffer layout, see BulkTunerData.java */
+#define BULK_HEADER_SIZE	12
+#define BULK_RECORD_SIZE	4
+#define BULK_MAX_BLOCKS	256
+#define BULK_FLAG_STEREO	1
+#define BULK_FLAG_SYNCHRONIZED	2
+
 int radio_fd;
 int silent;
 char data_buf[BUF_LEN];
@@ -322,3 +330,61 @@ JNIEXPORT void JNICALL Java_eu_jacquet80_rds_input_V4LTunerGroupReader_hwSeek
 	ioctl(radio_fd, VIDIOC_S_HW_FREQ_SEEK, &v_seek);
 
 }
+
+/*
+ * Fills a direct buffer with the tuner status and all the RDS blocks which are available, so
+ * that a single call replaces one call to getFrequency() and four or more calls to getRDSData().
+ * Uses local structures rather than the global ones, because it is not synchronized and thus
+ * may run concurrently with the other methods.
+ */
+JNIEXPORT jint JNICALL Java_eu_jacquet80_rds_input_V4LTunerGroupReader_readGroups
+  (JNIEnv *env, jobject obj, jobject buffer) {
+	unsigned char *buf = (*env)->GetDirectBufferAddress(env, buffer);
+	jlong capacity = (*env)->GetDirectBufferCapacity(env, buffer);
+	unsigned char raw[BUF_LEN * BULK_MAX_BLOCKS];
+	struct v4l2_frequency freq;
+	struct v4l2_tuner tuner;
+	int32_t header[3];
+	int max_blocks, count = 0, i;
+
+	if (buf == NULL || capacity < BULK_HEADER_SIZE || radio_fd < 0)
+		return -1;
+
+	max_blocks = (capacity - BULK_HEADER_SIZE) / BULK_RECORD_SIZE;
+	if (max_blocks > BULK_MAX_BLOCKS)
+		max_blocks = BULK_MAX_BLOCKS;
+
+	// wait for RDS data like radio_get_rds_data(), then read all the blocks available at once
+	fd_set all_fds;
+	FD_ZERO(&all_fds);
+	FD_SET(radio_fd,&all_fds);
+	struct timeval timeout;
+	timeout.tv_sec = 2;
+	timeout.tv_usec = 0;
+	if (select(radio_fd+1,&all_fds,(fd_set *)0,(fd_set *)0,&timeout) > 0) {
+		int n_read = read(radio_fd, raw, BUF_LEN * max_blocks);
+		if (n_read > 0)
+			count = n_read / BUF_LEN;
+	}
+
+	for (i = 0; i < count; i++) {
+		unsigned char *rec = buf + BULK_HEADER_SIZE + BULK_RECORD_SIZE * i;
+		uint16_t block = raw[BUF_LEN*i] | (raw[BUF_LEN*i + 1] << 8);
+		memcpy(rec, &block, sizeof(block));
+		rec[2] = raw[BUF_LEN*i + 2] & 0x7;
+		rec[3] = (raw[BUF_LEN*i + 2] & 0xC0) != 0;
+	}
+
+	memset(&freq, 0, sizeof(freq));
+	header[0] = ioctl(radio_fd, VIDIOC_G_FREQUENCY, &freq) < 0 ? -1 : (int32_t) (freq.frequency / FREQ_FRAC);
+
+	memset(&tuner, 0, sizeof(tuner));
+	header[1] = ioctl(radio_fd, VIDIOC_G_TUNER, &tuner) < 0 ? 0 : tuner.signal;
+
+	header[2] = BULK_FLAG_SYNCHRONIZED;
+	if (radio_is_stereo() == 1)
+		header[2] |= BULK_FLAG_STEREO;
+
+	memcpy(buf, header, sizeof(header));
+	return count;
+}
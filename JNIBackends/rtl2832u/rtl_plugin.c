@@ -192,6 +192,8 @@ struct output_state
     jobject  tunerOut;
     jmethodID  write;
     jbyteArray jdata;
+    jmethodID  onSamples;  /* if non-NULL, used instead of tunerOut */
+    jobject  jresult;      /* direct buffer on result, passed to onSamples */
 
 	int16_t  result[MAXIMUM_BUF_LENGTH];
 	int      result_len;
@@ -912,6 +914,11 @@ static void *demod_thread_fn(void *arg)
 }
 
 static void write_output(struct output_state *s) {
+	if (s->onSamples) {
+		/* the samples are copied out of the direct buffer before the call returns */
+		(*(s->env))->CallVoidMethod(s->env, s->self, s->onSamples, s->jresult, (jint) s->result_len);
+		return;
+	}
 	int len = 2*s->result_len;
 	void *temp = (*(s->env))->GetPrimitiveArrayCritical(s->env, (jarray) s->jdata, 0);
 	memcpy(temp, &(s->result), len);
@@ -925,15 +932,28 @@ static void *output_thread_fn(void *arg)
 
 	(*(s->jvm))->AttachCurrentThread(s->jvm, (void **)&(s->env), NULL);
 	jclass clsSelf = (*(s->env))->GetObjectClass(s->env, s->self);
-	jfieldID fTunerOut = (*(s->env))->GetFieldID(s->env, clsSelf, "tunerOut", "Ljava/io/DataOutputStream;");
-	s->tunerOut = (*(s->env))->GetObjectField(s->env, s->self, fTunerOut);
-	jclass cls = (*(s->env))->GetObjectClass(s->env, s->tunerOut);
-	s->write = (*(s->env))->GetMethodID(s->env, cls, "write", "([BII)V");
-	s->jdata = (*(s->env))->NewByteArray(s->env, 2 * MAXIMUM_BUF_LENGTH);
-
-	if (!s->write || !cls || !s->tunerOut || !fTunerOut || !clsSelf) {
-		fprintf(stderr, "Could not get reference to output stream, exiting\n");
-		return 0;
+
+	/* preferred: hand the samples over in place, through a direct buffer */
+	s->onSamples = (*(s->env))->GetMethodID(s->env, clsSelf, "onSamples", "(Ljava/nio/ByteBuffer;I)V");
+	if (s->onSamples) {
+		s->jresult = (*(s->env))->NewDirectByteBuffer(s->env, s->result, sizeof(s->result));
+		if (!s->jresult)
+			s->onSamples = NULL;
+	}
+	(*(s->env))->ExceptionClear(s->env);
+
+	if (!s->onSamples) {
+		/* fallback for older versions of SdrGroupReader: write bytes to tunerOut */
+		jfieldID fTunerOut = (*(s->env))->GetFieldID(s->env, clsSelf, "tunerOut", "Ljava/io/DataOutputStream;");
+		s->tunerOut = fTunerOut ? (*(s->env))->GetObjectField(s->env, s->self, fTunerOut) : NULL;
+		jclass cls = s->tunerOut ? (*(s->env))->GetObjectClass(s->env, s->tunerOut) : NULL;
+		s->write = cls ? (*(s->env))->GetMethodID(s->env, cls, "write", "([BII)V") : NULL;
+		s->jdata = (*(s->env))->NewByteArray(s->env, 2 * MAXIMUM_BUF_LENGTH);
+
+		if (!s->write || !cls || !s->tunerOut || !fTunerOut || !clsSelf) {
+			fprintf(stderr, "Could not get reference to output stream, exiting\n");
+			return 0;
+		}
 	}
 
 	while (!do_exit) {
@@ -943,7 +963,10 @@ static void *output_thread_fn(void *arg)
 		write_output(s);
 		pthread_rwlock_unlock(&s->rw);
 	}
-	(*(s->env))->DeleteLocalRef(s->env, s->jdata);
+	if (s->jdata)
+		(*(s->env))->DeleteLocalRef(s->env, s->jdata);
+	if (s->jresult)
+		(*(s->env))->DeleteLocalRef(s->env, s->jresult);
 	(*(s->env))->DeleteGlobalRef(s->env, s->self);
 	(*(s->jvm))->DetachCurrentThread(s->jvm);
 	return 0;
@@ -33,8 +33,12 @@ import java.io.OutputStream;
 import java.io.PrintStream;
 import java.lang.reflect.Method;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.prefs.Preferences;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -43,9 +47,12 @@ import com.fazecast.jSerialComm.SerialPort;
 
 import eu.jacquet80.rds.app.oda.TDC;
 import eu.jacquet80.rds.app.oda.tmc.TMC;
+import eu.jacquet80.rds.core.BandScanner;
 import eu.jacquet80.rds.core.BitStreamSynchronizer;
 import eu.jacquet80.rds.core.BitStreamSynchronizer.BitInversion;
 import eu.jacquet80.rds.core.DecoderShell;
+import eu.jacquet80.rds.core.GroupLevelDecoder;
+import eu.jacquet80.rds.core.GroupStreamServer;
 import eu.jacquet80.rds.core.TunedStation;
 import eu.jacquet80.rds.img.Image;
 import eu.jacquet80.rds.input.AudioBitReader;
@@ -56,11 +63,18 @@ import eu.jacquet80.rds.input.BitReader;
 import eu.jacquet80.rds.input.FileFormatGuesser;
 import eu.jacquet80.rds.input.GnsGroupReader;
 import eu.jacquet80.rds.input.GroupReader;
+import eu.jacquet80.rds.input.GroupReader.EndOfStream;
 import eu.jacquet80.rds.input.HexFileGroupReader;
+import eu.jacquet80.rds.input.IqChannelizer;
+import eu.jacquet80.rds.input.IqFileBitReader;
 import eu.jacquet80.rds.input.LiveAudioBitReader;
 import eu.jacquet80.rds.input.NativeTunerGroupReader;
+import eu.jacquet80.rds.input.ParallelHexFileGroupReader;
+import eu.jacquet80.rds.input.RDSSignalGenerator;
 import eu.jacquet80.rds.input.SdrGroupReader;
+import eu.jacquet80.rds.input.SimulatedTunerGroupReader;
 import eu.jacquet80.rds.input.SyncBinaryFileBitReader;
+import eu.jacquet80.rds.input.TCPGroupAggregator;
 import eu.jacquet80.rds.input.TCPTunerGroupReader;
 import eu.jacquet80.rds.input.TeeBitReader;
 import eu.jacquet80.rds.input.TeeGroupReader;
@@ -68,6 +82,7 @@ import eu.jacquet80.rds.input.TunerGroupReader;
 import eu.jacquet80.rds.input.USBFMRadioGroupReader;
 import eu.jacquet80.rds.input.UnavailableInputMethod;
 import eu.jacquet80.rds.input.V4LTunerGroupReader;
+import eu.jacquet80.rds.log.Log;
 import eu.jacquet80.rds.ui.InputSelectionDialog;
 import eu.jacquet80.rds.ui.MainWindow;
 import eu.jacquet80.rds.ui.Overviewer;
@@ -99,6 +114,12 @@ public class RDSSurveyor {
 		tempDir = d;
 	}
 	
+	/** Maximum time spent on a station in scan mode (-scan), in ms */
+	private final static long SCAN_DWELL = 10000;
+	
+	/** Sample rate of synthetic RDS signals (-insynth) */
+	private final static int SYNTH_SAMPLE_RATE = 228000;
+	
 	static final private Pattern GROUP_AID = Pattern.compile("(\\d{1,2})([AB]):([0-9A-F]{4})");
 	
 	/**
@@ -118,6 +139,85 @@ public class RDSSurveyor {
 		return args[pos];
 	}
 	
+	/**
+	 * Decodes all stations found in a wideband I/Q recording, one worker per CPU.
+	 */
+	private static void decodeIqBand(File file, int rate, IqFileBitReader.Format format, int center) throws IOException {
+		IqChannelizer channelizer = new IqChannelizer(file, rate, format, center);
+		List<IqChannelizer.Channel> channels = channelizer.detectChannels(IqChannelizer.DEFAULT_MIN_SNR);
+		System.out.println("Found " + channels.size() + " station(s): " + channels);
+		
+		ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			for(IqChannelizer.Result r : channelizer.decode(channels, pool, new File(tempDir))) {
+				System.out.println(r);
+			}
+		} catch (InterruptedException e) {
+			System.err.println("Interrupted while decoding.");
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	/**
+	 * Collects groups from several remote tuners, given as {@code host[:port],...}. Each tuner
+	 * gets its own decoder, and its groups are logged to a file in the temp directory.
+	 */
+	private static void collect(String spec) throws IOException {
+		final TCPGroupAggregator aggregator = new TCPGroupAggregator();
+		final List<TCPGroupAggregator.Source> sources = new ArrayList<TCPGroupAggregator.Source>();
+		final List<GroupLevelDecoder> decoders = new ArrayList<GroupLevelDecoder>();
+		String date = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+		
+		for(String addr : spec.split(",")) {
+			addr = addr.trim();
+			if(addr.length() == 0) continue;
+			int colon = addr.lastIndexOf(':');
+			String host = colon < 0 ? addr : addr.substring(0, colon);
+			int port = colon < 0 ? 8750 : Integer.parseInt(addr.substring(colon + 1));
+			final TCPGroupAggregator.Source source = aggregator.addSource(host, port);
+			final GroupLevelDecoder decoder = new GroupLevelDecoder(new Log());
+			final TeeGroupReader tee = new TeeGroupReader(source, 
+					new File(tempDir, "rdslog_" + date + "_" + host + "_" + port + ".rds"));
+			sources.add(source);
+			decoders.add(decoder);
+			
+			Thread t = new Thread("Decoder " + source) {
+				public void run() {
+					try {
+						while(true) decoder.processOneGroup(tee.getGroup());
+					} catch(EndOfStream e) {
+						// source removed
+					} catch(IOException e) {
+						System.err.println(source + ": " + e);
+					}
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+		}
+		
+		System.out.println("Collecting from " + sources.size() + " tuner(s)");
+		while(true) {
+			try {
+				Thread.sleep(10000);
+			} catch(InterruptedException e) {
+				break;
+			}
+			for(int i=0; i<sources.size(); i++) {
+				TCPGroupAggregator.Source s = sources.get(i);
+				TunedStation station = decoders.get(i).getTunedStation();
+				System.out.printf("%-24s %s %6d kHz %8d groups %6d dropped  %s\n", 
+						s, s.isConnected() ? "up  " : "down", s.getFrequency(), 
+						s.getGroupCount(), s.getDroppedCount(),
+						s.isConnected() ? 
+								(station == null ? "" : String.format("%04X %s", station.getPI(), station.getStationName())) : 
+								(s.getLastError() == null ? "" : s.getLastError()));
+			}
+		}
+		aggregator.close();
+	}
+	
 	public static void main(String[] args) throws IOException, UnavailableInputMethod {
 		System.out.println("RDS Surveyor - (C) Christophe Jacquet and contributors, 2009-2014.");
 		
@@ -128,6 +228,7 @@ public class RDSSurveyor {
 		boolean liveGroupInput = false;
 		boolean scan = false;
 		boolean overview = false;
+		List<TunerGroupReader> overviewTuners = new ArrayList<TunerGroupReader>();
 		Segmenter segmenter = null;
 		File outBinFile = null;
 		File outGroupFile = null;
@@ -136,6 +237,15 @@ public class RDSSurveyor {
 		BitStreamSynchronizer bitStreamSynchronizer = null;
 		String inLtPath = null;
 		String dbUrl = "jdbc:hsqldb:mem:.";
+		File ltSnapshotDir = null;
+		File inIqFile = null;
+		int iqRate = -1;
+		int iqBandCenter = -1;
+		IqFileBitReader.Format iqFormat = null;
+		File inSynthFile = null;
+		double synthSnr = Double.POSITIVE_INFINITY;
+		String collectSpec = null;
+		int servePort = -1;
 		
 		// RDS Surveyor is non-localized for the time being
 		Locale.setDefault(Locale.US);
@@ -185,11 +295,19 @@ public class RDSSurveyor {
 				} else if("-inbinstrfile".equals(args[i])) {
 					reader = new BitStreamSynchronizer(console, new BinStringFileBitReader(new File(getParam("inbinstrfile", args, ++i))));
 				} else if("-ingrouphexfile".equals(args[i])) {
-					reader  = new HexFileGroupReader(new File(getParam("ingrouphexfile", args, ++i)));
+					File hexFile = new File(getParam("ingrouphexfile", args, ++i));
+					if(hexFile.length() >= ParallelHexFileGroupReader.MIN_FILE_SIZE)
+						reader = new ParallelHexFileGroupReader(hexFile);
+					else
+						reader = new HexFileGroupReader(hexFile);
 				} else if("-infile".equals(args[i])) {
 					reader = FileFormatGuesser.createReader(new File(getParam("infile", args, ++i)));
 				} else if("-intcp".equals(args[i])) {
 					reader = new TCPTunerGroupReader(getParam("intcp", args, ++i), 8750);
+				} else if("-insim".equals(args[i])) {
+					reader = new SimulatedTunerGroupReader(SimulatedTunerGroupReader.Band.parse(getParam("insim", args, ++i)));
+				} else if("-collect".equals(args[i])) {
+					collectSpec = getParam("collect", args, ++i);
 				} else if("-inusbkey".equals(args[i])) {
 					reader = new USBFMRadioGroupReader();
 					((USBFMRadioGroupReader)reader).init();
@@ -224,12 +342,33 @@ public class RDSSurveyor {
 					inversion = BitInversion.NOINVERT;
 				} else if("-inaudiofile".equals(args[i])) {
 					reader = new BitStreamSynchronizer(console, new AudioFileBitReader(new File(getParam("inaudiofile", args, ++i))));
+				} else if("-iniqfile".equals(args[i])) {
+					inIqFile = new File(getParam("iniqfile", args, ++i));
+				} else if("-iqrate".equals(args[i])) {
+					iqRate = Integer.parseInt(getParam("iqrate", args, ++i));
+				} else if("-iqband".equals(args[i])) {
+					iqBandCenter = Integer.parseInt(getParam("iqband", args, ++i));
+				} else if("-iqformat".equals(args[i])) {
+					String f = getParam("iqformat", args, ++i);
+					if("u8".equalsIgnoreCase(f)) iqFormat = IqFileBitReader.Format.U8;
+					else if("s16".equalsIgnoreCase(f)) iqFormat = IqFileBitReader.Format.S16LE;
+					else {
+						System.out.println("Unknown I/Q format: " + f);
+						System.exit(1);
+					}
+				} else if("-insynth".equals(args[i])) {
+					inSynthFile = new File(getParam("insynth", args, ++i));
+				} else if("-synthsnr".equals(args[i])) {
+					synthSnr = Double.parseDouble(getParam("synthsnr", args, ++i));
 				} else if("-outbinfile".equals(args[i])) {
 					outBinFile = new File(getParam("outbinfile", args, ++i));
 				} else if("-outgrouphexfile".equals(args[i])) {
 					outGroupFile = new File(getParam("outgrouphexfile", args, ++i));
 				} else if("-nogui".equals(args[i])) {
 					showGui = false;
+				} else if("-serve".equals(args[i])) {
+					servePort = Integer.parseInt(getParam("serve", args, ++i));
+					showGui = false;         // implies -nogui
 				} else if("-noconsole".equals(args[i])) {
 					console = null;
 				} else if("-segment".equals(args[i])) {
@@ -241,6 +380,17 @@ public class RDSSurveyor {
 				} else if("-overview".equals(args[i])) {
 					overview = true;
 					showGui = false;
+				} else if("-overviewtcp".equals(args[i])) {
+					for(String addr : getParam("overviewtcp", args, ++i).split(",")) {
+						addr = addr.trim();
+						if(addr.length() == 0) continue;
+						int colon = addr.lastIndexOf(':');
+						String host = colon < 0 ? addr : addr.substring(0, colon);
+						int port = colon < 0 ? 8750 : Integer.parseInt(addr.substring(colon + 1));
+						overviewTuners.add(new TCPTunerGroupReader(host, port));
+					}
+					overview = true;         // implies -overview
+					showGui = false;
 				} else if("-rds".equals(args[i])) {
 					preferences.putBoolean(PREF_RBDS, false);
 				} else if("-rbds".equals(args[i])) {
@@ -271,6 +421,8 @@ public class RDSSurveyor {
 					inLtPath = getParam("lt", args, ++i);
 				} else if("-ltdb".equals(args[i])) {
 					dbUrl = String.format("jdbc:hsqldb:file:%s", getParam("ltdb", args, ++i));
+				} else if("-ltsnapshots".equals(args[i])) {
+					ltSnapshotDir = new File(getParam("ltsnapshots", args, ++i));
 				} else {
 					System.out.println("Unknown argument: " + args[i]);
 					
@@ -281,8 +433,16 @@ public class RDSSurveyor {
 					System.out.println("  -insyncbinfile <file>    Use the given synchronized binary file as input");
 					System.out.println("  -inbinstrfile <file>     Use the given binary string file as input");
 					System.out.println("  -inaudiofile <file>      Use the given audio file as input");
+					System.out.println("  -iniqfile <file>         Use the given raw I/Q file (e.g. from rtl_sdr) as input");
+					System.out.println("  -iqrate <rate>           Sample rate of the I/Q file (default: from file name, or 2.4 MS/s)");
+					System.out.println("  -iqformat u8|s16         Sample format of the I/Q file (default: from file extension)");
+					System.out.println("  -insynth <file>          Decode a synthetic RDS signal generated from the given group file");
+					System.out.println("  -synthsnr <dB>           Signal-to-noise ratio of the synthetic signal (default: no noise)");
+					System.out.println("  -iqband <center>         Decode all stations of the I/Q file, centered on <center> kHz (0 if unknown)");
 					System.out.println("  -ingrouphexfile <file>   Use the given group-level file as input");
 					System.out.println("  -infile <file>           Use the given file as input (autodetect format)");
+					System.out.println("  -insim <stations>        Simulated tuner, stations given as <MHz>[@<rssi>]=<file>,...");
+					System.out.println("  -collect <hosts>         Collect groups from TCP tuners, given as host[:port],... (no GUI)");
 					System.out.println("  -inv4l <device>          Reads from Video4Linux device, e.g. /dev/radio");
 					System.out.println("  -intuner <driver>        Reads from a native tuner, specify driver (.so, .dll, .dylib)");
 					System.out.println("  -insdr <driver>          Reads from an SDR, specify driver (.so, .dll, .dylib)");
@@ -291,6 +451,9 @@ public class RDSSurveyor {
 					System.out.println("  -outbinfile <file>       Write bitstream to binary file (if applicable)");
 					System.out.println("  -outgrouphexfile <file>  Write groups to file (in hexadecimal)");
 					System.out.println("  -nogui                   Do not show the graphical user interface");
+					System.out.println("  -serve <port>            Serve groups and station state over TCP (implies -nogui)");
+					System.out.println("  -overviewtcp <hosts>     Survey the band with the input tuner and the given TCP tuners,");
+					System.out.println("                           given as host[:port],... (implies -overview)");
 					System.out.println("  -noconsole               No console analysis");
 					System.out.println("  -rds                     Force standard RDS mode (and save as a preference)");
 					System.out.println("  -rbds                    Force American RBDS mode (and save as a preference)");
@@ -298,11 +461,38 @@ public class RDSSurveyor {
 					System.out.println("  -force <group>:<aid>     Force to use a given ODA for the given group");
 					System.out.println("  -lt <path>               Read TMC location tables found at the given path (or subdirs)");
 					System.out.println("  -ltdb <path>             Use TMC location database at the given path");
+					System.out.println("  -ltsnapshots <dir>       Use memory-mapped snapshots of TMC location tables in the given folder,");
+					System.out.println("                           written there when location tables are read with -lt");
 					System.exit(1);
 				}
 			}
 		}
 
+		if(collectSpec != null) {
+			collect(collectSpec);
+			System.exit(0);
+		}
+		
+		if(inIqFile != null && iqBandCenter >= 0) {
+			decodeIqBand(inIqFile, 
+					iqRate > 0 ? iqRate : IqFileBitReader.guessSampleRate(inIqFile),
+					iqFormat != null ? iqFormat : IqFileBitReader.guessFormat(inIqFile),
+					iqBandCenter);
+			System.exit(0);
+		} else if(inIqFile != null) {
+			bitStreamSynchronizer = new BitStreamSynchronizer(console, new IqFileBitReader(inIqFile, 
+					iqRate > 0 ? iqRate : IqFileBitReader.guessSampleRate(inIqFile),
+					iqFormat != null ? iqFormat : IqFileBitReader.guessFormat(inIqFile)));
+			reader = bitStreamSynchronizer;
+		}
+
+		if(inSynthFile != null) {
+			RDSSignalGenerator generator = new RDSSignalGenerator(FileFormatGuesser.createReader(inSynthFile), SYNTH_SAMPLE_RATE);
+			generator.setSnr(synthSnr);
+			bitStreamSynchronizer = new BitStreamSynchronizer(console, new AudioBitReader(generator, SYNTH_SAMPLE_RATE));
+			reader = bitStreamSynchronizer;
+		}
+
 		if ((reader == null) && (inLtPath == null)) {
 			if(showGui) {
 				console = null;
@@ -323,9 +513,14 @@ public class RDSSurveyor {
 			System.out.println("Processing TMC location tables...");
 			TMC.readLocationTables(new File(inLtPath));
 			System.out.println("Done processing TMC location tables.");
+			if (ltSnapshotDir != null)
+				TMC.writeSnapshots(ltSnapshotDir);
 			if (reader == null)
 				System.exit(0);
 		}
+		
+		if (ltSnapshotDir != null)
+			TMC.loadSnapshots(ltSnapshotDir);
 				
 		if (outGroupFile == null)
 			teeReader = reader;
@@ -364,6 +559,12 @@ public class RDSSurveyor {
 		if(segmenter != null) {
 			segmenter.registerAtLog(DecoderShell.instance.getLog());
 		}
+		
+		if(servePort >= 0) {
+			GroupStreamServer server = new GroupStreamServer(servePort);
+			server.attach(DecoderShell.instance.getLog());
+			System.out.println("Serving groups on port " + server.getPort());
+		}
 
 		if(showGui) {
 			DecoderShell.instance.process(teeReader, liveGroupInput);
@@ -376,19 +577,17 @@ public class RDSSurveyor {
 		if(scan) {
 			if(reader instanceof TunerGroupReader) {
 				final TunerGroupReader tgr = (TunerGroupReader) reader;
+				final BandScanner.Probe probe = new BandScanner.Probe(DecoderShell.instance.getLog(), DecoderShell.instance.getGroupReader());
 				new Thread() {
 					public void run() {
 						while(true) {
-							int cnt = 0;
-							boolean rdsReceived = false;
-							do {
-								try {
-									sleep(2000);
-									if(rdsReceived) sleep(4000);
-								} catch (InterruptedException e) {}
-								cnt++;
-								rdsReceived = tgr.newGroups();
-							} while(cnt < 4 && rdsReceived);
+							// stay until the station is confirmed, or there is clearly no RDS
+							probe.restart();
+							try {
+								probe.dwell(tgr.getFrequency(), tgr.getSignalStrength(), SCAN_DWELL);
+							} catch (InterruptedException e) {
+								return;
+							}
 							fConsole.print("*** Tuning... ");
 							fConsole.flush();
 							tgr.seek(true);
@@ -404,7 +603,9 @@ public class RDSSurveyor {
 			if(reader instanceof TunerGroupReader) {
 				final TunerGroupReader tgr = (TunerGroupReader) reader;
 				DecoderShell.instance.setConsole(nullConsole);
-				new Overviewer(tgr, fConsole).start();
+				Overviewer overviewer = new Overviewer(tgr, fConsole);
+				for(TunerGroupReader t : overviewTuners) overviewer.addTuner(t);
+				overviewer.start();
 			} else {
 				console.println("Overview may be used only with a tuner (" + reader.getClass() + ")");
 				System.exit(1);
@@ -34,12 +34,19 @@ import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SimpleTimeZone;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
 import eu.jacquet80.rds.app.oda.tmc.SupplementaryInfo;
 import eu.jacquet80.rds.app.oda.tmc.TMC;
@@ -52,6 +59,8 @@ import eu.jacquet80.rds.app.oda.tmc.TMCPoint;
 import eu.jacquet80.rds.core.RDS;
 import eu.jacquet80.rds.core.TMCOtherNetwork;
 import eu.jacquet80.rds.log.RDSTime;
+import eu.jacquet80.rds.util.SpatialGrid;
+import eu.jacquet80.rds.util.TimerWheel;
 
 public class AlertC extends ODA {
 	public static final int AID = 0xCD46;
@@ -61,6 +70,24 @@ public class AlertC extends ODA {
 	private static int[] codesTw = {1, 2, 4, 8};
 	private static int[] codesGap = {3, 5, 8, 11};
 	
+	/** Size of the cells of the grid of messages by coordinates, in degrees. */
+	private static final float MESSAGE_GRID_CELL_SIZE = 0.1f;
+	
+	/** Number of threads which resolve message locations. */
+	private static final int RESOLVER_THREADS = 2;
+	
+	/**
+	 * Resolves the locations of messages, so that decoding never waits for the location database.
+	 * Message locations are resolved from this pool only.
+	 */
+	private static final ExecutorService locationResolver = Executors.newFixedThreadPool(RESOLVER_THREADS, new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread ret = new Thread(r, "TMC location resolver");
+			ret.setDaemon(true);
+			return ret;
+		}
+	});
+	
 	// provider name
 	private String[] providerName = {"????", "????"};
 	
@@ -75,8 +102,8 @@ public class AlertC extends ODA {
 	
 	private Map<Integer, TMCOtherNetwork> otherNetworks = Collections.synchronizedMap(new HashMap<Integer, TMCOtherNetwork>());
 	private MessageBuilder builder = new MessageBuilder();
-	private List<Message> messages = new ArrayList<Message>();
 	private Comparator<Message> messageComparator = new DefaultComparator();
+	private MessageStore messages = new MessageStore(messageComparator);
 	private Message currentMessage;
 	private boolean storeCancellationMessages = false;
 	private Bitstream multiGroupBits;
@@ -87,7 +114,12 @@ public class AlertC extends ODA {
 	
 	private Set<String> onInfo = new HashSet<String>();
 	
+	/** Serializes calls to change listeners, which fire on the decoder and resolver threads. */
+	private final Object listenerLock = new Object();
+	
 	public AlertC() {
+		// locations of received messages are resolved by resolveLocations(), off the decoder thread
+		builder.deferLocations = true;
 	}
 
 	@Override
@@ -101,6 +133,14 @@ public class AlertC extends ODA {
 		if (blocksOk[0])
 			cc = blocks[0] >> 12;
 		
+		// current time, used for received messages and to expire stored ones
+		Date date = station.getRealTimeForStreamTime(time);
+		if (date == null)
+			date = new Date();
+		synchronized (messages) {
+			messages.expire(date);
+		}
+		
 		if(type == 3 && version == 0) {
 			int var = (blocks[2]>>14) & 0x3;
 			console.print("Sys.Info v=" + var+ ", ");
@@ -141,9 +181,6 @@ public class AlertC extends ODA {
 			console.print("T=" + x4 + " ");
 			
 			if(x4 == 0) {
-				Date date = station.getRealTimeForStreamTime(time);
-				if (date == null)
-					date = new Date();
 				int single_group = (blocks[1] & 0x8)>>3;
 				if(single_group == 1) {
 					console.print("single-group: ");
@@ -365,33 +402,30 @@ public class AlertC extends ODA {
 		// if a message has just been completed, update the list of messages
 		// accordingly
 		if(messageJustCompleted) {
-			// 1) first we need to remove any message overriden by the current one
-			List<Message> messagesToRemove = new LinkedList<Message>();
-			int oldUpdate = 0;
-			for(Message m : messages) {
-				if(currentMessage.overrides(m)) {
-					messagesToRemove.add(m);
+			// the future must be set before the message is visible to other threads
+			FutureTask<TMCLocation> locationTask = createLocationTask(currentMessage);
+			synchronized (messages) {
+				// 1) first we need to remove any message overriden by the current one
+				int oldUpdate = 0;
+				for(Message m : messages.getOverridden(currentMessage)) {
+					messages.remove(m);
 					oldUpdate = m.updateCount;
 				}
+				
+				// 2) second we just need to add the current message
+				// (unless it is a cancellation message)
+				if(storeCancellationMessages || !currentMessage.isCancellation()) {
+					messages.add(currentMessage);
+				}
+				
+				currentMessage.updateCount = oldUpdate + 1;
 			}
 			
-			for(Message msgToRemove : messagesToRemove) {
-				messages.remove(msgToRemove);
-			}
-			
-			// 2) second we just need to add the current message
-			// (unless it is a cancellation message)
-			if(storeCancellationMessages || !currentMessage.isCancellation()) {
-				messages.add(currentMessage);
-				Collections.sort(messages, messageComparator);
-			}
-			
-			currentMessage.updateCount = oldUpdate + 1;
-			
 			//System.out.println("*** Current TMC messages: ");
 			//for(Message m : messages) System.out.println("\t" + m);
 			
-			// 3) display it
+			// 3) display it (its locations are resolved in the background)
+			resolveLocations(currentMessage, locationTask);
 			console.println();
 			console.print(currentMessage);
 		}
@@ -399,6 +433,53 @@ public class AlertC extends ODA {
 		fireChangeListeners();
 	}
 
+	/**
+	 * @brief Creates the task which resolves the locations of a message, and sets it as the
+	 * location future of the message.
+	 * 
+	 * Once the locations are resolved, the message is moved to its new position in the sorted
+	 * list of messages (if it is still stored) and registered change listeners fire, on the
+	 * resolver thread.
+	 * 
+	 * @param message The message, which must not have been stored yet
+	 * @return The task, to be passed to {@link #resolveLocations(Message, FutureTask)}
+	 */
+	private FutureTask<TMCLocation> createLocationTask(final Message message) {
+		FutureTask<TMCLocation> task = new FutureTask<TMCLocation>(new Callable<TMCLocation>() {
+			public TMCLocation call() {
+				TMCLocation location = message.resolveLocations();
+				if (location == null)
+					return null;
+				synchronized (messages) {
+					// the location is part of the sort key, thus remove the message first
+					boolean stored = messages.remove(message);
+					message.location = location;
+					if (stored)
+						messages.add(message);
+				}
+				fireChangeListeners();
+				return location;
+			}
+		});
+		message.locationFuture = task;
+		return task;
+	}
+	
+	/**
+	 * @brief Resolves the locations of a message in the background.
+	 * 
+	 * The message is published before its locations are resolved.
+	 * 
+	 * @param message The message
+	 * @param task The task created for the message by {@link #createLocationTask(Message)}
+	 */
+	private void resolveLocations(Message message, FutureTask<TMCLocation> task) {
+		if (message.isEncrypted || (message.fcc < 0))
+			task.run();
+		else
+			locationResolver.execute(task);
+	}
+	
 	public static String decodeMGS(int mgs) {
 		if(mgs < 0) return "";
 		return
@@ -408,8 +489,53 @@ public class AlertC extends ODA {
 			((mgs&1) != 0 ? "U" : "");
 	}
 	
+	/**
+	 * @brief Returns the current messages, sorted by the comparator.
+	 * 
+	 * Messages are changed by the decoder thread and by the threads which resolve their
+	 * locations. The list returned is a copy, which does not reflect subsequent changes, so that
+	 * it can be used on any thread.
+	 */
 	public List<Message> getMessages() {
-		return messages;
+		synchronized (messages) {
+			return new ArrayList<Message>(messages.getList());
+		}
+	}
+	
+	/**
+	 * @brief Returns the current messages which cover a location inside a bounding box.
+	 * 
+	 * A message covers its primary location and all locations up to its secondary location. It
+	 * is returned if the coordinates of any of these locations lie inside the box. Messages whose
+	 * locations have not been resolved yet, or have no coordinates, are not returned.
+	 * 
+	 * Coordinates are in degrees. The bounds are inclusive.
+	 * 
+	 * @param minX The western bound
+	 * @param minY The southern bound
+	 * @param maxX The eastern bound
+	 * @param maxY The northern bound
+	 * @return The messages, sorted by the comparator. As with {@link #getMessages()}, the list is
+	 * a copy, which does not reflect subsequent changes.
+	 */
+	public List<Message> getMessages(float minX, float minY, float maxX, float maxY) {
+		synchronized (messages) {
+			return messages.getMessages(minX, minY, maxX, maxY);
+		}
+	}
+
+	/**
+	 * @brief Calls the registered change listeners.
+	 * 
+	 * Listeners are called on the decoder thread, and on a resolver thread when the locations of
+	 * a message have been resolved (see {@link Message#getLocationFuture()}). Calls never
+	 * overlap, but listeners which update a user interface must hand over to its thread.
+	 */
+	@Override
+	protected void fireChangeListeners() {
+		synchronized (listenerLock) {
+			super.fireChangeListeners();
+		}
 	}
 
 	@Override
@@ -474,6 +600,28 @@ public class AlertC extends ODA {
 		return storeCancellationMessages;
 	}
 	
+	/**
+	 * @brief Removes all messages which have expired by the given time.
+	 * 
+	 * Messages expire at the time returned by {@link Message#getPersistence()}. Expired messages
+	 * are also removed whenever a group is received, using the time of the group. This method
+	 * allows expired messages to be removed when no groups are being received.
+	 * 
+	 * Registered change listeners fire once if any messages were removed.
+	 * 
+	 * @param now The current time, either the system time or the time of the stream
+	 * @return The number of messages removed
+	 */
+	public int removeExpiredMessages(Date now) {
+		int res;
+		synchronized (messages) {
+			res = messages.expire(now).size();
+		}
+		if (res > 0)
+			fireChangeListeners();
+		return res;
+	}
+	
 	/**
 	 * @brief Sets a new comparator, which will be used to sort the list of messages.
 	 * 
@@ -485,7 +633,9 @@ public class AlertC extends ODA {
 	public void setComparator(Comparator<Message> comparator) {
 		if (comparator != messageComparator) {
 			messageComparator = comparator;
-			Collections.sort(messages, messageComparator);
+			synchronized (messages) {
+				messages.setComparator(messageComparator);
+			}
 			fireChangeListeners();
 		}
 	}
@@ -545,6 +695,236 @@ public class AlertC extends ODA {
 		}
 	}
 	
+	/**
+	 * @brief Stores the messages of a service.
+	 * 
+	 * Messages are indexed by their location, i.e. country code, location table number, location
+	 * code and direction. This allows the messages overridden by a new message to be found
+	 * without examining each stored message. Within a location, update classes are matched by
+	 * comparing bit masks.
+	 * 
+	 * In addition, the store maintains a list of all messages sorted by a comparator. Messages are
+	 * inserted at and removed from their position in the list, rather than sorting the whole list
+	 * after each change.
+	 * 
+	 * Messages are scheduled for expiration at their persistence time in a timer wheel, so that
+	 * expired messages can be found without examining all messages.
+	 */
+	private static class MessageStore {
+		/** Messages by location key, see {@link #key(int, int, int, int)}. */
+		private final Map<Long, List<Message>> index = new HashMap<Long, List<Message>>();
+		/** The location key under which each message was stored. */
+		private final Map<Message, Long> keys = new IdentityHashMap<Message, Long>();
+		/** All messages, sorted by {@link #comparator}. */
+		private final List<Message> sorted = new ArrayList<Message>();
+		/** Read-only view of {@link #sorted}. */
+		private final List<Message> view = Collections.unmodifiableList(sorted);
+		/** Messages by expiration time, with a resolution of one second. */
+		private final TimerWheel<Message> expiry = new TimerWheel<Message>(1000);
+		/** Resolved messages by the coordinates of the locations they cover. */
+		private final SpatialGrid<Message> area = new SpatialGrid<Message>(MESSAGE_GRID_CELL_SIZE);
+		/**
+		 * Sequence numbers, which order messages comparing equal as in {@link #sorted}. Messages
+		 * are numbered as they are added, and renumbered when the list is sorted anew.
+		 */
+		private final Map<Message, Long> sequence = new IdentityHashMap<Message, Long>();
+		private long nextSequence = 0;
+		private Comparator<Message> comparator;
+		
+		public MessageStore(Comparator<Message> comparator) {
+			this.comparator = comparator;
+		}
+		
+		/**
+		 * @brief Returns the location key for a message.
+		 * 
+		 * Negative values for CC and LTN (not yet received) are all mapped to -1. Distinct
+		 * locations may share a key, thus callers must still compare the messages themselves.
+		 */
+		private static long key(int fcc, int fltn, int lcid, int direction) {
+			return ((long) (Math.max(fcc, -1) + 1) << 40)
+					| ((long) ((Math.max(fltn, -1) + 1) & 0xFFFF) << 24)
+					| ((long) ((Math.max(lcid, -1) + 1) & 0x1FFFF) << 1)
+					| (direction & 1);
+		}
+		
+		/**
+		 * @brief Adds a message.
+		 * 
+		 * The message is inserted into the sorted list after all messages which compare equal to
+		 * it, as sorting the list after appending the message would do.
+		 */
+		public void add(Message message) {
+			Long key = key(message.fcc, message.fltn, message.lcid, message.direction);
+			List<Message> bucket = index.get(key);
+			if (bucket == null) {
+				bucket = new ArrayList<Message>(2);
+				index.put(key, bucket);
+			}
+			bucket.add(message);
+			keys.put(message, key);
+			sequence.put(message, nextSequence++);
+			Date persistence = message.getPersistence();
+			if (persistence != null)
+				expiry.schedule(message, persistence.getTime());
+			float[] coveredCoords = message.coveredCoords;
+			if (coveredCoords != null)
+				area.add(message, coveredCoords);
+			
+			int low = 0;
+			int high = sorted.size();
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (comparator.compare(sorted.get(mid), message) <= 0)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			sorted.add(low, message);
+		}
+		
+		/**
+		 * @brief Removes all messages which have expired by the given time.
+		 * 
+		 * @param now The current time
+		 * @return The messages removed
+		 */
+		public List<Message> expire(Date now) {
+			List<Message> res = expiry.advance(now.getTime());
+			for (Message m : res)
+				remove(m);
+			return res;
+		}
+		
+		/**
+		 * @brief Returns all stored messages which are overridden by a message.
+		 * 
+		 * Only messages stored under a matching location key are examined, except for messages
+		 * with {@link Message#LOCATION_INDEPENDENT}, which may override messages at any location.
+		 * 
+		 * The messages are returned in the order of the sorted list.
+		 * 
+		 * @see Message#overrides(Message)
+		 */
+		public List<Message> getOverridden(Message message) {
+			List<Message> res = new ArrayList<Message>();
+			if (message.lcid == Message.LOCATION_INDEPENDENT) {
+				for (Message m : sorted)
+					if (message.overrides(m))
+						res.add(m);
+				return res;
+			}
+			/*
+			 * Stored messages with a CC or LTN of -1 may match (see Message#hasLocationMatching),
+			 * or their LTN may have been set since they were stored.
+			 */
+			int[] fccs = (message.fcc < 0) ? new int[] {-1} : new int[] {message.fcc, -1};
+			int[] fltns = (message.fltn < 0) ? new int[] {-1} : new int[] {message.fltn, -1};
+			for (int fcc : fccs)
+				for (int fltn : fltns) {
+					List<Message> bucket = index.get(key(fcc, fltn, message.lcid, message.direction));
+					if (bucket != null)
+						for (Message m : bucket)
+							if (message.overrides(m))
+								res.add(m);
+				}
+			if (res.size() > 1)
+				Collections.sort(res, comparator);
+			return res;
+		}
+		
+		/**
+		 * @brief Returns all messages which cover a location inside a bounding box.
+		 * 
+		 * @return The messages, in the order of the sorted list.
+		 */
+		public List<Message> getMessages(float minX, float minY, float maxX, float maxY) {
+			List<Message> res = area.query(minX, minY, maxX, maxY);
+			if (res.size() <= 1)
+				return res;
+			if (res.size() * 16 >= sorted.size()) {
+				/* picking the messages from the sorted list is cheaper than sorting them */
+				Set<Message> found = Collections.newSetFromMap(new IdentityHashMap<Message, Boolean>());
+				found.addAll(res);
+				res.clear();
+				for (Message m : sorted)
+					if (found.contains(m))
+						res.add(m);
+			} else
+				Collections.sort(res, new Comparator<Message>() {
+					public int compare(Message m1, Message m2) {
+						int res = comparator.compare(m1, m2);
+						if (res != 0)
+							return res;
+						return sequence.get(m1).compareTo(sequence.get(m2));
+					}
+				});
+			return res;
+		}
+		
+		/**
+		 * @brief Returns a read-only view of all messages, sorted by the comparator.
+		 */
+		public List<Message> getList() {
+			return view;
+		}
+		
+		/**
+		 * @brief Removes a message.
+		 * 
+		 * @return True if the message was stored, false if not.
+		 */
+		public boolean remove(Message message) {
+			Long key = keys.remove(message);
+			if (key == null)
+				return false;
+			expiry.cancel(message);
+			area.remove(message);
+			sequence.remove(message);
+			List<Message> bucket = index.get(key);
+			for (int i = 0; i < bucket.size(); i++)
+				if (bucket.get(i) == message) {
+					bucket.remove(i);
+					break;
+				}
+			if (bucket.isEmpty())
+				index.remove(key);
+			
+			int low = 0;
+			int high = sorted.size();
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (comparator.compare(sorted.get(mid), message) < 0)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			for (int i = low; (i < sorted.size()) && (comparator.compare(sorted.get(i), message) == 0); i++)
+				if (sorted.get(i) == message) {
+					sorted.remove(i);
+					return true;
+				}
+			/* comparator is inconsistent, fall back to searching the whole list */
+			for (int i = 0; i < sorted.size(); i++)
+				if (sorted.get(i) == message) {
+					sorted.remove(i);
+					break;
+				}
+			return true;
+		}
+		
+		/**
+		 * @brief Sets a new comparator and sorts the list of messages accordingly.
+		 */
+		public void setComparator(Comparator<Message> comparator) {
+			this.comparator = comparator;
+			Collections.sort(sorted, comparator);
+			for (int i = 0; i < sorted.size(); i++)
+				sequence.put(sorted.get(i), (long) i);
+			nextSequence = sorted.size();
+		}
+	}
+	
 	/**
 	 * @brief Represents a TMC message.
 	 * 
@@ -612,8 +992,16 @@ public class AlertC extends ODA {
 		 * 
 		 * The primary location is the location of the disruption, or the location at which the
 		 * driver would exit from the affected stretch of road.
+		 * 
+		 * Messages received by {@link AlertC} are published before their locations are resolved,
+		 * which happens in the background. Until then, this field is null. Use
+		 * {@link #getLocationFuture()} to wait for the location. Messages created by
+		 * {@link MessageBuilder#build()} have their locations resolved when they are built.
 		 */
-		public final TMCLocation location;
+		public volatile TMCLocation location = null;
+		
+		/** Completes when {@link #location} has been resolved. */
+		private volatile Future<TMCLocation> locationFuture = null;
 
 		/** Whether the message affects both directions.
 		 * 
@@ -625,6 +1013,10 @@ public class AlertC extends ODA {
 		private float[] coords = null;
 		/** The auxiliary coordinates of the event. */
 		private float[] auxCoords = null;
+		/** The primary location and the secondary location determined for it, if any. */
+		private volatile TMCLocation[] secondary = null;
+		/** The coordinates of all locations covered by the message, once they have been resolved. */
+		private volatile float[] coveredCoords = null;
 
 		/**
 		 * Duration type for the entire message.
@@ -664,6 +1056,15 @@ public class AlertC extends ODA {
 		
 		private int updateCount = 0;
 		
+		/** Update classes of all events in the message, as a bit mask (bit n for class n). */
+		private final long updateClasses;
+		
+		/** Whether the message contains event 2047 (null message). */
+		private final boolean hasNullEvent;
+		
+		/** Bit mask for the forecast update classes (32 to 39). */
+		private static final long FORECAST_CLASSES = 0xFFL << 32;
+		
 		public final static int[] labelSizes = {3, 3, 5, 5, 5, 8, 8, 8, 8, 11, 16, 16, 16, 16, 0, 0};
 		
 		private String formatTime(int time) {
@@ -701,10 +1102,6 @@ public class AlertC extends ODA {
 			this.informationBlocks = informationBlocks;
 			this.interroad = interroad;
 			this.lcid = location;
-			if (!this.isEncrypted)
-				this.location = TMC.getLocation(String.format("%X", this.fcc), this.fltn, location);
-			else
-				this.location = null;
 			this.ltn = ltn;
 			this.nature = nature;
 			this.sid = sid;
@@ -713,6 +1110,15 @@ public class AlertC extends ODA {
 			this.stopTime = stopTime;
 			this.timeZone = tz;
 			this.updateCount = updateCount;
+			long updateClasses = 0;
+			boolean hasNullEvent = false;
+			for (InformationBlock ib : informationBlocks)
+				for (Event e : ib.events) {
+					updateClasses |= 1L << e.tmcEvent.updateClass;
+					hasNullEvent |= (e.tmcEvent.code == 2047);
+				}
+			this.updateClasses = updateClasses;
+			this.hasNullEvent = hasNullEvent;
 		}
 
 		/**
@@ -790,20 +1196,7 @@ public class AlertC extends ODA {
 		 * @return
 		 */
 		private boolean hasAnEventFromTheSameUpdateClassAs(Message m) {
-			for(InformationBlock ib : this.informationBlocks) {
-				for(Event e : ib.events) {
-					if (e.tmcEvent.code == 2047)
-						return true;
-					for(InformationBlock mib : m.informationBlocks) {
-						for(Event me : mib.events) {
-							if(me.tmcEvent.updateClass == e.tmcEvent.updateClass) {
-								return true;
-							}
-						}
-					}
-				}
-			}
-			return false;
+			return hasNullEvent || ((updateClasses & m.updateClasses) != 0);
 		}
 		
 		/**
@@ -839,13 +1232,7 @@ public class AlertC extends ODA {
 		 * @return
 		 */
 		private boolean isForecastMessage() {
-			for(InformationBlock ib : informationBlocks) {
-				for(Event e : ib.events) {
-					int c = e.tmcEvent.updateClass;
-					if(c >= 32 && c <= 39) return true;
-				}
-			}
-			return false;
+			return (updateClasses & FORECAST_CLASSES) != 0;
 		}
 		
 		/**
@@ -879,7 +1266,7 @@ public class AlertC extends ODA {
 						tmp = name;
 					res.append(name);
 				}
-				TMCLocation secondary = location.getOffset(this.extent, this.direction);
+				TMCLocation secondary = getSecondaryLocation(location);
 				name = location.getDetailedDisplayName(secondary, "at %s", "between %s and %s");
 				if (name != null) {
 					if (tmp != null)
@@ -944,7 +1331,7 @@ public class AlertC extends ODA {
 			}
 			if (location != null) {
 				res.append("-------------\n").append(location).append("\n");
-				TMCLocation secondary = location.getOffset(this.extent, this.direction);
+				TMCLocation secondary = getSecondaryLocation(location);
 				if (secondary != location)
 					res.append("-------------\nExtent:\n").append(secondary);
 			}
@@ -967,7 +1354,7 @@ public class AlertC extends ODA {
 						tmp = name;
 					res.append(name);
 				}
-				TMCLocation secondary = location.getOffset(this.extent, this.direction);
+				TMCLocation secondary = getSecondaryLocation(location);
 				name = location.getDetailedDisplayName(secondary, "at %s", "between %s and %s");
 				if (name != null) {
 					if (tmp != null)
@@ -1054,7 +1441,7 @@ public class AlertC extends ODA {
 			}
 			if (location != null) {
 				res.append("<hr>").append(location.html());
-				TMCLocation secondary = location.getOffset(this.extent, this.direction);
+				TMCLocation secondary = getSecondaryLocation(location);
 				if (secondary != location)
 					res.append("<hr>Extent:<br>").append(secondary.html());
 			}
@@ -1157,33 +1544,12 @@ public class AlertC extends ODA {
 		 * @return The coordinates of the message location (see description).
 		 */
 		public float[] getCoordinates() {
-			float[] c1, c2;
 			// TODO do we need to deal with extent changes?
+			TMCLocation location = this.location;
 			if (location == null)
 				return null;
-			if (coords == null) {
-				if (direction == 0)
-					c1 = location.getFirstCoordinates();
-				else
-					c1 = location.getLastCoordinates();
-				if ((c1 == null) || (c1.length < 2))
-					coords = new float[] {};
-				else {
-					TMCLocation secondary = location.getOffset(this.extent, this.direction);
-					if ((location.equals(secondary)) && (location instanceof TMCPoint))
-						coords = c1;
-					else {
-						if (direction == 0)
-							c2 = secondary.getLastCoordinates();
-						else
-							c2 = secondary.getFirstCoordinates();
-						if ((c2 == null) || (c2.length < 2))
-							coords = c1;
-						else
-							coords = new float[] {c1[0], c1[1], c2[0], c2[1]};
-					}
-				}
-			}
+			if (coords == null)
+				coords = getCoordinates(location);
 			if ((coords == null) || (coords.length == 0))
 				return null;
 			else
@@ -1204,7 +1570,7 @@ public class AlertC extends ODA {
 		public String getDisplayName() {
 			if (location == null)
 				return null;
-			TMCLocation secondary = location.getOffset(this.extent, this.direction);
+			TMCLocation secondary = getSecondaryLocation(location);
 			return location.getDisplayName(secondary, this.direction, this.isBidirectional);
 		}
 		
@@ -1281,6 +1647,32 @@ public class AlertC extends ODA {
 			return null;
 		}
 		
+		/**
+		 * @brief Determines the coordinates of the message for a given primary location.
+		 * 
+		 * @return The coordinates as described for {@link #getCoordinates()}, or an empty array
+		 * instead of null.
+		 */
+		private float[] getCoordinates(TMCLocation location) {
+			float[] c1, c2;
+			if (direction == 0)
+				c1 = location.getFirstCoordinates();
+			else
+				c1 = location.getLastCoordinates();
+			if ((c1 == null) || (c1.length < 2))
+				return new float[] {};
+			TMCLocation secondary = getSecondaryLocation(location);
+			if ((location.equals(secondary)) && (location instanceof TMCPoint))
+				return c1;
+			if (direction == 0)
+				c2 = secondary.getLastCoordinates();
+			else
+				c2 = secondary.getFirstCoordinates();
+			if ((c2 == null) || (c2.length < 2))
+				return c1;
+			return new float[] {c1[0], c1[1], c2[0], c2[1]};
+		}
+		
 		/**
 		 * @brief Returns the junction number of the primary location, if any.
 		 * 
@@ -1339,7 +1731,7 @@ public class AlertC extends ODA {
 		public String getSecondaryJunctionNumber() {
 			if (location == null)
 				return null;
-			TMCLocation secondary = location.getOffset(this.extent, this.direction);
+			TMCLocation secondary = getSecondaryLocation(location);
 			if ((secondary == null) || (location.equals(secondary)))
 				return null;
 			if (!(secondary instanceof TMCPoint))
@@ -1361,7 +1753,7 @@ public class AlertC extends ODA {
 		public String getSecondaryName() {
 			if (location == null)
 				return null;
-			TMCLocation secondary = location.getOffset(this.extent, this.direction);
+			TMCLocation secondary = getSecondaryLocation(location);
 			if ((secondary == null) || (location.equals(secondary)))
 				return null;
 			if (!(secondary instanceof TMCPoint))
@@ -1463,15 +1855,136 @@ public class AlertC extends ODA {
 		 * primary location.
 		 */
 		public TMCLocation getSecondaryLocation() {
-			if (extent <= 0)
+			TMCLocation location = this.location;
+			if ((extent <= 0) || (location == null))
 				return location;
-			return location.getOffset(this.extent, this.direction);
+			return getSecondaryLocation(location);
+		}
+		
+		/**
+		 * @brief Returns the secondary location for a given primary location.
+		 * 
+		 * The result is kept, so that methods which need the secondary location do not look it
+		 * up over and over again.
+		 * 
+		 * @param location The primary location
+		 */
+		private TMCLocation getSecondaryLocation(TMCLocation location) {
+			TMCLocation[] secondary = this.secondary;
+			if ((secondary != null) && (secondary[0] == location))
+				return secondary[1];
+			TMCLocation ret = location.getOffset(this.extent, this.direction);
+			this.secondary = new TMCLocation[] {location, ret};
+			return ret;
+		}
+		
+		/**
+		 * @brief Returns all locations covered by the message.
+		 * 
+		 * These are the locations from the primary location up to the secondary location, in the
+		 * order in which they are listed in the location table from the primary location.
+		 * 
+		 * @return The locations, or an empty list if the location of the message has not been
+		 * resolved.
+		 */
+		public List<? extends TMCLocation> getCoveredLocations() {
+			TMCLocation location = this.location;
+			if (location == null)
+				return Collections.emptyList();
+			return location.getOffsets(this.extent, this.direction);
+		}
+		
+		/**
+		 * @brief Returns the coordinates of all locations covered by the message.
+		 * 
+		 * For points, these are the coordinates of each point from the primary to the secondary
+		 * location. Other locations have no coordinates of their own, and looking up those of
+		 * their end points is expensive, thus the coordinates of the message are used instead.
+		 * 
+		 * Points without coordinates have coordinates of 0, both in the database and in
+		 * snapshots. Such pairs are replaced with NaN, which {@link SpatialGrid} ignores.
+		 * 
+		 * @param location The primary location
+		 * @param coords The coordinates of the message, see {@link #getCoordinates(TMCLocation)}
+		 * @return The coordinates as longitude and latitude pairs, or a copy of {@code coords} if
+		 * the primary location is not a point.
+		 */
+		private float[] getCoveredCoordinates(TMCLocation location, float[] coords) {
+			float[] res;
+			if (!(location instanceof TMCPoint)) {
+				if (coords == null)
+					return null;
+				res = coords.clone();
+			} else {
+				List<? extends TMCLocation> covered = location.getOffsets(this.extent, this.direction);
+				res = new float[covered.size() * 2];
+				int count = 0;
+				for (TMCLocation point : covered) {
+					res[count++] = ((TMCPoint) point).xCoord;
+					res[count++] = ((TMCPoint) point).yCoord;
+				}
+			}
+			for (int i = 0; i + 1 < res.length; i += 2)
+				if ((res[i] == 0) && (res[i + 1] == 0))
+					res[i] = res[i + 1] = Float.NaN;
+			return res;
 		}
 
 		public int getUpdateCount() {
 			return updateCount;
 		}
 		
+		/**
+		 * @brief Returns a future for the primary location of the message.
+		 * 
+		 * The future completes when the locations of the message, including destinations and
+		 * diversion routes, have been resolved. Its result is the primary location, or null if it
+		 * could not be resolved. For messages created by {@link MessageBuilder#build()}, the
+		 * future has already completed.
+		 * 
+		 * @return The future
+		 */
+		public Future<TMCLocation> getLocationFuture() {
+			return locationFuture;
+		}
+		
+		/**
+		 * @brief Looks up all locations of the message in the location database.
+		 * 
+		 * Destinations and diversion routes of information blocks are set. The primary location
+		 * is returned but not set, as it determines the position of the message in sorted lists.
+		 * The secondary location and the coordinates of the message are determined as well, so
+		 * that the methods of the message find them in the cache.
+		 * 
+		 * This method queries the database, hence {@link AlertC} calls it off the decoder thread.
+		 * 
+		 * @return The primary location, or null if it cannot be resolved.
+		 */
+		private TMCLocation resolveLocations() {
+			if (isEncrypted || (fcc < 0))
+				return null;
+			String cc = String.format("%X", fcc);
+			List<Integer> lcids = new ArrayList<Integer>();
+			lcids.add(lcid);
+			for (InformationBlock ib : informationBlocks) {
+				if (ib.destinationLcid != -1)
+					lcids.add(ib.destinationLcid);
+				lcids.addAll(ib.diversionLcids);
+			}
+			TMC.prefetchLocations(cc, fltn, lcids);
+			
+			for (InformationBlock ib : informationBlocks)
+				ib.resolveLocations();
+			
+			TMCLocation location = TMC.getLocation(cc, fltn, lcid);
+			if (location != null) {
+				getSecondaryLocation(location);
+				coords = getCoordinates(location);
+				coveredCoords = getCoveredCoordinates(location, coords);
+			}
+			return location;
+		}
+		
 		/**
 		 * @brief Whether the message has a secondary location.
 		 * 
@@ -1492,7 +2005,7 @@ public class AlertC extends ODA {
 				return false;
 			if (!checkValidity)
 				return true;
-			TMCLocation secondary = location.getOffset(this.extent, this.direction);
+			TMCLocation secondary = getSecondaryLocation(location);
 			if ((secondary == null) || (location.equals(secondary)))
 				return false;
 			return true;
@@ -1698,13 +2211,20 @@ public class AlertC extends ODA {
 
 		/**
 		 * The location for the destination (null if no destination is specified or if the location
-		 * code cannot be resolved).
+		 * code cannot be resolved). Like {@link Message#location}, it is null until the locations
+		 * of the message have been resolved.
 		 */
-		public final TMCLocation destination;
+		public volatile TMCLocation destination = null;
 
 		private final List<Event> events;
 		
 		private final List<Integer> diversionLcids;
+		
+		/**
+		 * Resolved locations of the diversion route (null elements for unknown location codes), or
+		 * null if the locations of the message have not been resolved.
+		 */
+		private volatile TMCLocation[] diversion = null;
 
 		/**
 		 * @brief Constructs an information block with the given parameters.
@@ -1717,7 +2237,6 @@ public class AlertC extends ODA {
 			this.cc = cc;
 			this.ltn = ltn;
 			this.destinationLcid = destinationLcid;
-			this.destination = TMC.getLocation(String.format("%X", this.cc), this.ltn, destinationLcid);
 			this.diversionLcids = diversionLcids;
 			this.length = length;
 			this.speed = speed;
@@ -1750,15 +2269,35 @@ public class AlertC extends ODA {
 		 * if one or more location codes cannot be resolved.
 		 */
 		public List<TMCLocation> getDiversion() {
+			TMCLocation[] diversion = this.diversion;
 			List<TMCLocation> res = new LinkedList<TMCLocation>();
-			for (int lcid : diversionLcids) {
-				TMCLocation location = TMC.getLocation(String.format("%X", cc), ltn, lcid);
+			for (int i = 0; i < diversionLcids.size(); i++) {
+				TMCLocation location;
+				if (diversion != null)
+					location = diversion[i];
+				else
+					location = TMC.getLocation(String.format("%X", cc), ltn, diversionLcids.get(i));
 				if (location == null)
 					return new LinkedList<TMCLocation>();
 				res.add(location);
 			}
 			return res;
 		}
+		
+		/**
+		 * @brief Looks up the destination and diversion route in the location database.
+		 * 
+		 * @see Message#resolveLocations()
+		 */
+		private void resolveLocations() {
+			String cc = String.format("%X", this.cc);
+			if (destinationLcid != -1)
+				destination = TMC.getLocation(cc, ltn, destinationLcid);
+			TMCLocation[] diversion = new TMCLocation[diversionLcids.size()];
+			for (int i = 0; i < diversion.length; i++)
+				diversion[i] = TMC.getLocation(cc, ltn, diversionLcids.get(i));
+			this.diversion = diversion;
+		}
 
 		/**
 		 * @brief Returns the location codes which make up the diversion route.
@@ -1814,11 +2353,11 @@ public class AlertC extends ODA {
 			if(diversionLcids.size() > 0) res.append("Diversion route: " + diversionLcids).append('\n');
 			if (diversionLcids.size() > 0) {
 				res.append("Diversion route: " + diversionLcids).append("\n");
-				for (int lcid : diversionLcids) {
-					res.append("#").append(lcid);
-					TMCLocation location = TMC.getLocation(String.format("%X", cc), ltn, lcid);
-					if (location != null)
-						res.append(location).append("\n");
+				TMCLocation[] diversion = this.diversion;
+				for (int i = 0; i < diversionLcids.size(); i++) {
+					res.append("#").append(diversionLcids.get(i));
+					if ((diversion != null) && (diversion[i] != null))
+						res.append(diversion[i]).append("\n");
 				}
 			}
 			
@@ -1849,11 +2388,11 @@ public class AlertC extends ODA {
 			
 			if (diversionLcids.size() > 0) {
 				res.append("Diversion route: " + diversionLcids).append("<br><ul>");
-				for (int lcid : diversionLcids) {
-					res.append("<li>").append(lcid);
-					TMCLocation location = TMC.getLocation(String.format("%X", cc), ltn, lcid);
-					if (location != null)
-						res.append("<blockquote>").append(location.html()).append("</blockquote>");
+				TMCLocation[] diversion = this.diversion;
+				for (int i = 0; i < diversionLcids.size(); i++) {
+					res.append("<li>").append(diversionLcids.get(i));
+					if ((diversion != null) && (diversion[i] != null))
+						res.append("<blockquote>").append(diversion[i].html()).append("</blockquote>");
 				}
 				res.append("</ul>");
 			}
@@ -2130,6 +2669,12 @@ public class AlertC extends ODA {
 		/** The urgency of the message. */
 		private EventUrgency urgency;
 
+		/**
+		 * Whether {@link #build()} leaves the locations of the message unresolved, for the caller
+		 * to resolve them in the background. Used by {@link AlertC} only.
+		 */
+		private boolean deferLocations = false;
+
 		/**
 		 * @brief Instantiates a new message builder.
 		 */
@@ -2301,6 +2846,9 @@ public class AlertC extends ODA {
 		 * {@link #setServiceInfo(int, int, int, TimeZone, boolean)}) and a new message can be
 		 * built.
 		 * 
+		 * The locations of the message are looked up in the location database before it is
+		 * returned.
+		 * 
 		 * @return The new message
 		 */
 		public Message build() throws IllegalStateException {
@@ -2356,6 +2904,16 @@ public class AlertC extends ODA {
 					this.urgency, this.spoken, this.informationBlocks, this.updateCount);
 
 			reset();
+			if (!deferLocations) {
+				final Message message = res;
+				FutureTask<TMCLocation> task = new FutureTask<TMCLocation>(new Callable<TMCLocation>() {
+					public TMCLocation call() {
+						return message.location = message.resolveLocations();
+					}
+				});
+				res.locationFuture = task;
+				task.run();
+			}
 			return res;
 		}
 
@@ -36,4 +36,20 @@ public class Country {
 		if (rset.wasNull())
 			this.country = "unknown#" + this.cid;
 	}
+
+	/**
+	 * @brief Creates a new {@code Country} from the country record of a location snapshot.
+	 * 
+	 * @param snapshot The snapshot
+	 */
+	Country(LocationSnapshot snapshot) {
+		this.cid = snapshot.cid;
+		this.ecc = snapshot.getEcc();
+		if (this.ecc == null)
+			this.ecc = "";
+		this.ccd = snapshot.getCcd();
+		this.country = snapshot.getCountryName();
+		if (this.country == null)
+			this.country = "unknown#" + this.cid;
+	}
 }
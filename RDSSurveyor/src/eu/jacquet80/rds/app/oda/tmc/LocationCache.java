@@ -0,0 +1,292 @@
+package eu.jacquet80.rds.app.oda.tmc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @brief A cache of TMC objects, keyed by a packed {@code long}.
+ *
+ * The cache is an open-addressing hash table with linear probing. Keys are built with
+ * {@link #key(int, int, int)} from up to three integers, such as CID, TABCD and LCD, so that
+ * lookups neither build strings nor box integers.
+ *
+ * Lookups do not lock and can be done from any number of threads while another thread adds or
+ * removes entries. Entries are immutable, so a lookup never returns the value of another key.
+ * However, while an entry is being added, moved or evicted, a concurrent lookup may miss it; callers
+ * must then fall back to the database, as for any other cache miss. Changes are synchronized.
+ *
+ * The number of entries is limited according to the {@link Eviction} policy.
+ */
+public class LocationCache<V> {
+	/** Eviction policies. */
+	public static enum Eviction {
+		/** Entries are never evicted, the capacity is only the initial size of the cache. */
+		NONE,
+		/**
+		 * When the cache holds as many entries as its capacity, an entry which has not been
+		 * used since the last sweep of the "clock" hand is evicted. This approximates LRU.
+		 */
+		CLOCK
+	}
+
+	/** A condition on cache entries, see {@link LocationCache#removeAll(Filter)}. */
+	public static interface Filter<V> {
+		/**
+		 * @brief Whether an entry matches.
+		 *
+		 * @param key The key of the entry
+		 * @param value The value of the entry
+		 */
+		boolean accept(long key, V value);
+	}
+
+	private static final class Entry<V> {
+		final long key;
+		final V value;
+		/** Set on each hit and cleared by the clock hand; races are harmless. */
+		boolean used;
+
+		Entry(long key, V value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	/** The table, whose size is a power of 2 and which always has free slots. */
+	private volatile Entry<V>[] table;
+	private int size = 0;
+	private int capacity;
+	private Eviction eviction;
+	/** Position of the clock hand. */
+	private int hand = 0;
+
+	/**
+	 * @brief Creates a new cache.
+	 *
+	 * @param capacity The maximum number of entries, or with {@link Eviction#NONE}, the number of
+	 * entries for which space is allocated initially
+	 * @param eviction The eviction policy
+	 */
+	public LocationCache(int capacity, Eviction eviction) {
+		setCapacity(capacity, eviction);
+	}
+
+	/**
+	 * @brief Packs three integers into a key.
+	 *
+	 * {@code a} may use up to 24 bits and {@code b} up to 8 bits; {@code c} is used in full.
+	 * Typical arguments are CID, TABCD and LCD, or CID, LID and NID.
+	 */
+	public static long key(int a, int b, int c) {
+		return ((long) a << 40) | ((long) (b & 0xFF) << 32) | (c & 0xFFFFFFFFL);
+	}
+
+	private static int index(long key, int mask) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static <V> Entry<V>[] newTable(int length) {
+		return new Entry[length];
+	}
+
+	/**
+	 * @brief Returns the value for a key, or {@code null} if it is not in the cache.
+	 */
+	public V get(long key) {
+		Entry<V>[] t = table;
+		int mask = t.length - 1;
+		for (int i = index(key, mask); ; i = (i + 1) & mask) {
+			Entry<V> e = t[i];
+			if (e == null)
+				return null;
+			if (e.key == key) {
+				if (!e.used)
+					e.used = true;
+				return e.value;
+			}
+		}
+	}
+
+	/**
+	 * @brief Adds or replaces the value for a key, evicting another entry if the cache is full.
+	 */
+	public synchronized void put(long key, V value) {
+		Entry<V>[] t = table;
+		int mask = t.length - 1;
+		int i;
+		for (i = index(key, mask); t[i] != null; i = (i + 1) & mask)
+			if (t[i].key == key) {
+				t[i] = new Entry<V>(key, value);
+				return;
+			}
+
+		if (eviction == Eviction.NONE) {
+			if (2 * (size + 1) > t.length) {
+				resize(2 * t.length);
+				put(key, value);
+				return;
+			}
+		} else if (size >= capacity) {
+			evict();
+			// entries may have moved, look for the free slot again
+			for (i = index(key, mask); t[i] != null; i = (i + 1) & mask);
+		}
+
+		t[i] = new Entry<V>(key, value);
+		size++;
+	}
+
+	/**
+	 * @brief Removes the entry for a key, if any.
+	 *
+	 * @return The value which was removed, or {@code null}
+	 */
+	public synchronized V remove(long key) {
+		Entry<V>[] t = table;
+		int mask = t.length - 1;
+		for (int i = index(key, mask); t[i] != null; i = (i + 1) & mask)
+			if (t[i].key == key) {
+				V ret = t[i].value;
+				delete(t, i);
+				return ret;
+			}
+		return null;
+	}
+
+	/**
+	 * @brief Returns all values in the cache.
+	 */
+	public synchronized List<V> values() {
+		List<V> ret = new ArrayList<V>(size);
+		for (Entry<V> e : table)
+			if (e != null)
+				ret.add(e.value);
+		return ret;
+	}
+
+	/**
+	 * @brief Removes all entries which match a filter.
+	 *
+	 * The filter is called once for each entry, while the cache is locked.
+	 *
+	 * @return The number of entries which were removed
+	 */
+	public synchronized int removeAll(Filter<? super V> filter) {
+		long[] keys = new long[16];
+		int n = 0;
+		for (Entry<V> e : table)
+			if ((e != null) && filter.accept(e.key, e.value)) {
+				if (n == keys.length)
+					keys = Arrays.copyOf(keys, 2 * n);
+				keys[n++] = e.key;
+			}
+		// entries move when others are removed, hence remove them by key
+		for (int i = 0; i < n; i++)
+			remove(keys[i]);
+		return n;
+	}
+
+	/**
+	 * @brief Removes all entries.
+	 */
+	public synchronized void clear() {
+		table = newTable(table.length);
+		size = 0;
+	}
+
+	/**
+	 * @brief Returns the number of entries.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @brief Changes the capacity and eviction policy.
+	 *
+	 * If the cache holds more entries than the new capacity allows, the excess entries are dropped.
+	 *
+	 * @param capacity The maximum number of entries, or with {@link Eviction#NONE}, the number of
+	 * entries for which space is allocated
+	 * @param eviction The eviction policy
+	 */
+	public synchronized void setCapacity(int capacity, Eviction eviction) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Cache capacity must be positive: " + capacity);
+		this.capacity = capacity;
+		this.eviction = eviction;
+		// at most half of the slots are used, which keeps probe sequences short
+		int length = Integer.highestOneBit(capacity) << 2;
+		if ((table == null) || (eviction != Eviction.NONE) || (length > table.length))
+			resize(length);
+	}
+
+	/**
+	 * @brief Moves all entries to a new table, dropping those which exceed the capacity.
+	 */
+	private void resize(int length) {
+		Entry<V>[] old = table;
+		Entry<V>[] t = newTable(length);
+		int mask = length - 1;
+		int n = 0;
+		if (old != null)
+			for (Entry<V> e : old)
+				if ((e != null) && ((eviction == Eviction.NONE) || (n < capacity))) {
+					int i;
+					for (i = index(e.key, mask); t[i] != null; i = (i + 1) & mask);
+					t[i] = e;
+					n++;
+				}
+		size = n;
+		hand = 0;
+		table = t;
+	}
+
+	/**
+	 * @brief Evicts one entry according to the clock policy.
+	 */
+	private void evict() {
+		Entry<V>[] t = table;
+		int mask = t.length - 1;
+		for (;;) {
+			hand = (hand + 1) & mask;
+			Entry<V> e = t[hand];
+			if (e == null)
+				continue;
+			if (e.used) {
+				e.used = false;
+				continue;
+			}
+			delete(t, hand);
+			return;
+		}
+	}
+
+	/**
+	 * @brief Deletes the entry at a given slot.
+	 *
+	 * Subsequent entries of the probe sequence are shifted back, so that no lookup is interrupted
+	 * by the free slot.
+	 */
+	private void delete(Entry<V>[] t, int i) {
+		int mask = t.length - 1;
+		int j = i;
+		for (;;) {
+			j = (j + 1) & mask;
+			Entry<V> e = t[j];
+			if (e == null)
+				break;
+			int k = index(e.key, mask);
+			// leave e in place if its home slot k lies cyclically in (i, j]
+			if ((i <= j) ? ((i < k) && (k <= j)) : ((i < k) || (k <= j)))
+				continue;
+			t[i] = e;
+			i = j;
+		}
+		t[i] = null;
+		size--;
+	}
+}
@@ -35,4 +35,19 @@ public class LocationDataset {
 		if (rset.wasNull())
 			this.versionDescription = "";
 	}
+	
+	/**
+	 * @brief Creates a new {@code LocationDataset} from the dataset record of a location snapshot.
+	 * 
+	 * @param snapshot The snapshot
+	 */
+	LocationDataset(LocationSnapshot snapshot) {
+		this.cid = snapshot.cid;
+		this.tabcd = snapshot.tabcd;
+		this.version = snapshot.getVersion();
+		this.dComment = snapshot.getDatasetComment();
+		this.versionDescription = snapshot.getVersionDescription();
+		if (this.versionDescription == null)
+			this.versionDescription = "";
+	}
 }
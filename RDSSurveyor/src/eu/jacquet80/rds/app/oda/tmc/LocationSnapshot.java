@@ -0,0 +1,908 @@
+package eu.jacquet80.rds.app.oda.tmc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import eu.jacquet80.rds.app.oda.tmc.TMCLocation.LocationClass;
+
+/**
+ * @brief A compact, read-only copy of one location dataset.
+ *
+ * A snapshot holds the parts of a location table which are needed to decode TMC locations:
+ * areas, roads, segments, points, their offsets and names, plus the country and dataset records.
+ * Data is stored in columns of primitive values, sorted by LCD (names by NID and LID), with all
+ * strings interned into a single string table. The whole snapshot is a single buffer, which is
+ * laid out exactly like the snapshot file, so that a file can be memory-mapped at startup and
+ * used without reading or parsing it.
+ *
+ * Snapshots are created from the database (see {@link TMC#createSnapshot(int, int)}) or from a
+ * location table in exchange format (see {@link #readExchangeFiles(File)}). Once added with
+ * {@link TMC#addSnapshot(LocationSnapshot)}, locations of the dataset are created from the
+ * snapshot rather than queried from the database.
+ *
+ * File layout (all values big-endian, {@code n} locations, {@code m} names, {@code s} strings):
+ * <pre>
+ * header            16 ints: MAGIC, FORMAT_VERSION, CID, TABCD, n, m, s, string bytes,
+ *                   then string indices of ECC, CCD, CNAME, VERSION, DCOMMENT,
+ *                   VERSIONDESCRIPTION and two reserved ints
+ * int columns       n each: RNID, N1ID, N2ID, XCOORD, YCOORD, ROADNUMBER or
+ *                   JUNCTIONNUMBER, DIVERSIONPOS, DIVERSIONNEG
+ * name columns      m ints each: NID, LID, NAME, NCOMMENT
+ * string offsets    s + 1 ints
+ * char columns      n each: LCD, POL_LCD, OTH_LCD, ROA_LCD, SEG_LCD, NEG_OFF_LCD,
+ *                   POS_OFF_LCD, INTERRUPTSROAD
+ * byte columns      n each: kind, CLASS, TCD, STCD, PES_LEV, flags
+ * strings           UTF-8
+ * </pre>
+ * Empty name IDs and strings are stored as -1, empty LCDs as {@link #NO_LCD}.
+ */
+public class LocationSnapshot {
+	/** Identifies a snapshot file. */
+	public static final int MAGIC = 0x524C5453;
+	/** Version of the file layout, incremented for each incompatible change. */
+	public static final int FORMAT_VERSION = 1;
+	/** File name extension of snapshot files. */
+	public static final String EXTENSION = ".lts";
+
+	/* Kinds of locations, in the order in which TMC.getLocation() looks for them. */
+	static final int ADMINISTRATIVE_AREA = 0;
+	static final int OTHER_AREA = 1;
+	static final int ROAD = 2;
+	static final int SEGMENT = 3;
+	static final int POINT = 4;
+
+	/** Value of an empty column in a {@link Row}. */
+	static final int NULL = Integer.MIN_VALUE;
+
+	/** Value of an empty LCD column; location codes range from 1 to 63487. */
+	static final int NO_LCD = 0xFFFF;
+
+	private static final int FLAG_URBAN = 1;
+	private static final int FLAG_OFFSETS = 2;
+
+	private static final int HEADER_INTS = 16;
+
+	/* Column indices within each group of columns */
+	private static final int RNID = 0, N1ID = 1, N2ID = 2, XCOORD = 3, YCOORD = 4, NUMBER = 5,
+			DIVERSIONPOS = 6, DIVERSIONNEG = 7, INT_COLUMNS = 8;
+	private static final int NAME_NID = 0, NAME_LID = 1, NAME_NAME = 2, NAME_COMMENT = 3,
+			NAME_COLUMNS = 4;
+	private static final int LCD = 0, POL_LCD = 1, OTH_LCD = 2, ROA_LCD = 3, SEG_LCD = 4,
+			NEG_OFF_LCD = 5, POS_OFF_LCD = 6, INTERRUPTSROAD = 7, CHAR_COLUMNS = 8;
+	private static final int KIND = 0, CLASS = 1, TCD = 2, STCD = 3, PES_LEV = 4, FLAGS = 5,
+			BYTE_COLUMNS = 6;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** The country ID. */
+	public final int cid;
+	/** The location table number. */
+	public final int tabcd;
+
+	private final ByteBuffer buf;
+	/** The file the snapshot is mapped from, or {@code null} if it is only in memory. */
+	private final File file;
+	private final int locationCount;
+	private final int nameCount;
+	private final int stringCount;
+
+	/* Byte offsets of the sections */
+	private final int intColumns;
+	private final int nameColumns;
+	private final int stringOffsets;
+	private final int charColumns;
+	private final int byteColumns;
+	private final int strings;
+
+	/**
+	 * The row of the first and last segment and point of each road and segment, by LCD, as
+	 * returned by {@link #findEnd(int, int, boolean)}, or {@link #NO_LCD} if there is none. Built
+	 * on first use, so that mapping a snapshot does not read all of it.
+	 */
+	private volatile char[][] ends = null;
+
+	/**
+	 * @brief Wraps a buffer holding a snapshot.
+	 *
+	 * @param file The file the buffer is mapped from, or {@code null}
+	 * @throws IOException if the buffer does not hold a valid snapshot
+	 */
+	private LocationSnapshot(ByteBuffer buf, File file) throws IOException {
+		this.buf = buf;
+		this.file = file;
+		if ((buf.capacity() < 4 * HEADER_INTS) || (buf.getInt(0) != MAGIC))
+			throw new IOException("Not a location snapshot");
+		if (buf.getInt(4) != FORMAT_VERSION)
+			throw new IOException("Unsupported location snapshot version: " + buf.getInt(4));
+		this.cid = buf.getInt(8);
+		this.tabcd = buf.getInt(12);
+		this.locationCount = buf.getInt(16);
+		this.nameCount = buf.getInt(20);
+		this.stringCount = buf.getInt(24);
+		int stringBytes = buf.getInt(28);
+
+		this.intColumns = 4 * HEADER_INTS;
+		this.nameColumns = intColumns + 4 * INT_COLUMNS * locationCount;
+		this.stringOffsets = nameColumns + 4 * NAME_COLUMNS * nameCount;
+		this.charColumns = stringOffsets + 4 * (stringCount + 1);
+		this.byteColumns = charColumns + 2 * CHAR_COLUMNS * locationCount;
+		this.strings = byteColumns + BYTE_COLUMNS * locationCount;
+		if (buf.capacity() != strings + stringBytes)
+			throw new IOException("Location snapshot is truncated or corrupt");
+	}
+
+	/**
+	 * @brief Maps a snapshot file into memory.
+	 *
+	 * The file is not read: pages are loaded by the operating system as they are accessed, and
+	 * can be shared between processes.
+	 *
+	 * @param file The snapshot file
+	 * @return The snapshot
+	 * @throws IOException if the file cannot be read or is not a valid snapshot
+	 */
+	public static LocationSnapshot map(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			return new LocationSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), file);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @brief Writes the snapshot to a file.
+	 *
+	 * The snapshot is written to a temporary file first, which then replaces {@code file}. Thus a
+	 * previous snapshot in {@code file} which is still mapped remains valid.
+	 *
+	 * @param file The file to write to; it is replaced if it exists.
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			ByteBuffer src = buf.duplicate();
+			src.clear();
+			FileChannel channel = out.getChannel();
+			while (src.hasRemaining())
+				channel.write(src);
+		} finally {
+			out.close();
+		}
+		// renaming fails on some platforms if the target exists
+		if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+			tmp.delete();
+			throw new IOException("Cannot replace " + file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * @brief Returns the file the snapshot is mapped from, or {@code null} if it was created in
+	 * memory.
+	 */
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * @brief Returns the name of the file in which the snapshot for a dataset is stored by default.
+	 */
+	public static String getFileName(int cid, int tabcd) {
+		return String.format("LT_%d_%d%s", cid, tabcd, EXTENSION);
+	}
+
+	/**
+	 * @brief Returns the number of locations in the snapshot.
+	 */
+	public int size() {
+		return locationCount;
+	}
+
+	/**
+	 * @brief Returns the size of the snapshot in bytes.
+	 */
+	public int getByteSize() {
+		return buf.capacity();
+	}
+
+	/* Country and dataset records */
+
+	String getEcc() {
+		return getString(buf.getInt(32));
+	}
+
+	String getCcd() {
+		return getString(buf.getInt(36));
+	}
+
+	String getCountryName() {
+		return getString(buf.getInt(40));
+	}
+
+	/**
+	 * @brief Returns the version of the location table.
+	 */
+	public String getVersion() {
+		return getString(buf.getInt(44));
+	}
+
+	String getDatasetComment() {
+		return getString(buf.getInt(48));
+	}
+
+	String getVersionDescription() {
+		return getString(buf.getInt(52));
+	}
+
+	/* Locations */
+
+	/**
+	 * @brief Returns the row of a location, or -1 if it is not in the snapshot.
+	 */
+	int find(int lcd) {
+		int lo = 0;
+		int hi = locationCount - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int v = getChar(LCD, mid);
+			if (v < lcd)
+				lo = mid + 1;
+			else if (v > lcd)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * @brief Returns the row of a location of a given kind, or -1 if there is none.
+	 *
+	 * @param lcd The location code
+	 * @param minKind The lowest matching kind
+	 * @param maxKind The highest matching kind
+	 */
+	int find(int lcd, int minKind, int maxKind) {
+		int row = find(lcd);
+		if (row == -1)
+			return -1;
+		int kind = getKind(row);
+		return ((kind >= minKind) && (kind <= maxKind)) ? row : -1;
+	}
+
+	/**
+	 * @brief Returns the row of the first or last sub-location of a road or segment.
+	 *
+	 * This matches the queries used by {@link TMC#getFirstSegment(int, int, int)} and similar
+	 * methods: the sub-location must refer to {@code lcd} as its road or segment and have no
+	 * offset in the given direction. Points which border on a road interruption are skipped.
+	 *
+	 * @param kind {@link #SEGMENT} or {@link #POINT}
+	 * @param lcd The location code of the road or segment
+	 * @param last Whether to return the last rather than the first sub-location
+	 * @return The row, or -1 if not found.
+	 */
+	int findEnd(int kind, int lcd, boolean last) {
+		if ((kind != SEGMENT) && (kind != POINT))
+			return -1;
+		char[][] e = ends;
+		if (e == null)
+			ends = e = buildEnds();
+		char[] rows = e[endIndex(kind, last)];
+		if ((lcd < 0) || (lcd >= rows.length) || (rows[lcd] == NO_LCD))
+			return -1;
+		return rows[lcd];
+	}
+
+	private static int endIndex(int kind, boolean last) {
+		return ((kind == POINT) ? 2 : 0) + (last ? 1 : 0);
+	}
+
+	/**
+	 * @brief Builds {@link #ends} in a single pass over all locations.
+	 *
+	 * Each end is registered for both its segment and its road. Rows are visited in ascending
+	 * order and the first one is kept, as a scan of all locations would return it.
+	 */
+	private char[][] buildEnds() {
+		int maxLcd = 0;
+		for (int row = 0; row < locationCount; row++)
+			maxLcd = Math.max(maxLcd, getChar(LCD, row));
+		char[][] res = new char[4][maxLcd + 1];
+		for (char[] rows : res)
+			Arrays.fill(rows, (char) NO_LCD);
+		for (int row = 0; row < locationCount; row++) {
+			int kind = getKind(row);
+			if ((kind != SEGMENT) && (kind != POINT))
+				continue;
+			if ((kind == POINT) && (getChar(INTERRUPTSROAD, row) != NO_LCD)
+					&& (getChar(INTERRUPTSROAD, row) != 0))
+				continue;
+			for (int i = 0; i < 2; i++) {
+				boolean last = (i == 1);
+				if (getChar(last ? POS_OFF_LCD : NEG_OFF_LCD, row) != NO_LCD)
+					continue;
+				char[] rows = res[endIndex(kind, last)];
+				setEnd(rows, getChar(SEG_LCD, row), row);
+				setEnd(rows, getChar(ROA_LCD, row), row);
+			}
+		}
+		return res;
+	}
+
+	private static void setEnd(char[] rows, int lcd, int row) {
+		if ((lcd < rows.length) && (rows[lcd] == NO_LCD))
+			rows[lcd] = (char) row;
+	}
+
+	int getKind(int row) {
+		return getByte(KIND, row);
+	}
+
+	int getLcd(int row) {
+		return getChar(LCD, row);
+	}
+
+	LocationClass getCategory(int row) {
+		return LocationClass.forCode(String.valueOf((char) getByte(CLASS, row)));
+	}
+
+	int getTcd(int row) {
+		return getByte(TCD, row);
+	}
+
+	int getStcd(int row) {
+		return getByte(STCD, row);
+	}
+
+	/** Returns the road name ID, or -1 if empty. */
+	int getRnid(int row) {
+		return getInt(RNID, row);
+	}
+
+	/** Returns the first name ID, or -1 if empty. */
+	int getN1id(int row) {
+		return getInt(N1ID, row);
+	}
+
+	/** Returns the second name ID, or -1 if empty. */
+	int getN2id(int row) {
+		return getInt(N2ID, row);
+	}
+
+	/** Returns the LCD of the administrative area, or -1 if empty. */
+	int getPolLcd(int row) {
+		return getLcdColumn(POL_LCD, row);
+	}
+
+	/** Returns the LCD of the other area, or -1 if empty. */
+	int getOthLcd(int row) {
+		return getLcdColumn(OTH_LCD, row);
+	}
+
+	/** Returns the LCD of the road, or -1 if empty. */
+	int getRoaLcd(int row) {
+		return getLcdColumn(ROA_LCD, row);
+	}
+
+	/** Returns the LCD of the segment, or -1 if empty. */
+	int getSegLcd(int row) {
+		return getLcdColumn(SEG_LCD, row);
+	}
+
+	/** Returns the LCD of the point on the other side of a road interruption, or -1 if empty. */
+	int getInterruptsRoad(int row) {
+		return getLcdColumn(INTERRUPTSROAD, row);
+	}
+
+	/** Whether the location has an offsets record. */
+	boolean hasOffsets(int row) {
+		return (getByte(FLAGS, row) & FLAG_OFFSETS) != 0;
+	}
+
+	/** Returns the negative offset, or 0 if empty, like {@code ResultSet.getInt()}. */
+	int getNegOffLcd(int row) {
+		int v = getChar(NEG_OFF_LCD, row);
+		return (v == NO_LCD) ? 0 : v;
+	}
+
+	/** Returns the positive offset, or 0 if empty, like {@code ResultSet.getInt()}. */
+	int getPosOffLcd(int row) {
+		int v = getChar(POS_OFF_LCD, row);
+		return (v == NO_LCD) ? 0 : v;
+	}
+
+	int getPesLev(int row) {
+		return getByte(PES_LEV, row);
+	}
+
+	/** Returns the road number of a road or segment, or the junction number of a point. */
+	String getNumber(int row) {
+		return getString(getInt(NUMBER, row));
+	}
+
+	String getDiversionPos(int row) {
+		return getString(getInt(DIVERSIONPOS, row));
+	}
+
+	String getDiversionNeg(int row) {
+		return getString(getInt(DIVERSIONNEG, row));
+	}
+
+	float getXCoord(int row) {
+		return getInt(XCOORD, row) / 100000.0f;
+	}
+
+	float getYCoord(int row) {
+		return getInt(YCOORD, row) / 100000.0f;
+	}
+
+	boolean isUrban(int row) {
+		return (getByte(FLAGS, row) & FLAG_URBAN) != 0;
+	}
+
+	/* Names */
+
+	/**
+	 * @brief Returns the row of a name in the language with the lowest ID, or -1 if not found.
+	 */
+	int findName(int nid) {
+		int lo = 0;
+		int hi = nameCount - 1;
+		int ret = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int v = getNameColumn(NAME_NID, mid);
+			if (v < nid)
+				lo = mid + 1;
+			else {
+				if (v == nid)
+					ret = mid;
+				hi = mid - 1;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @brief Returns the row of a name in a given language, or -1 if not found.
+	 */
+	int findName(int lid, int nid) {
+		for (int row = findName(nid); (row >= 0) && (row < nameCount) && (getNameColumn(NAME_NID, row) == nid); row++)
+			if (getNameColumn(NAME_LID, row) == lid)
+				return row;
+		return -1;
+	}
+
+	int getNameNid(int row) {
+		return getNameColumn(NAME_NID, row);
+	}
+
+	int getNameLid(int row) {
+		return getNameColumn(NAME_LID, row);
+	}
+
+	String getName(int row) {
+		return getString(getNameColumn(NAME_NAME, row));
+	}
+
+	String getNameComment(int row) {
+		return getString(getNameColumn(NAME_COMMENT, row));
+	}
+
+	/* Raw access */
+
+	private int getInt(int column, int row) {
+		return buf.getInt(intColumns + 4 * (column * locationCount + row));
+	}
+
+	private int getNameColumn(int column, int row) {
+		return buf.getInt(nameColumns + 4 * (column * nameCount + row));
+	}
+
+	private int getChar(int column, int row) {
+		return buf.getChar(charColumns + 2 * (column * locationCount + row));
+	}
+
+	private int getLcdColumn(int column, int row) {
+		int v = getChar(column, row);
+		return (v == NO_LCD) ? -1 : v;
+	}
+
+	private int getByte(int column, int row) {
+		return buf.get(byteColumns + column * locationCount + row) & 0xFF;
+	}
+
+	private String getString(int index) {
+		if (index < 0)
+			return null;
+		int start = buf.getInt(stringOffsets + 4 * index);
+		int end = buf.getInt(stringOffsets + 4 * (index + 1));
+		byte[] bytes = new byte[end - start];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = buf.get(strings + start + i);
+		return new String(bytes, UTF_8);
+	}
+
+	/**
+	 * @brief Reads a location dataset in exchange format.
+	 *
+	 * The folder must contain the files of exactly one dataset, as for
+	 * {@link TMC#readLocationTablesFromDir(File)}. The database is not used.
+	 *
+	 * @param path The folder holding the location table files
+	 * @return The snapshot
+	 * @throws IOException if the files cannot be read or are invalid
+	 */
+	public static LocationSnapshot readExchangeFiles(File path) throws IOException {
+		Builder builder = null;
+		try {
+			for (Row row : new FileRows(new File(path, "LOCATIONDATASETS.DAT")))
+				if (builder == null) {
+					builder = new Builder(row.getInt("CID"), row.getInt("TABCD"));
+					builder.setDataset(row);
+				}
+			if (builder == null)
+				throw new IOException("No location dataset in " + path.getAbsolutePath());
+			for (Row row : new FileRows(new File(path, "COUNTRIES.DAT")))
+				if (row.getInt("CID") == builder.cid)
+					builder.setCountry(row);
+			for (Row row : new FileRows(new File(path, "NAMES.DAT")))
+				builder.addName(row);
+			String[] files = {"ADMINISTRATIVEAREA.DAT", "OTHERAREAS.DAT", "ROADS.DAT", "SEGMENTS.DAT", "POINTS.DAT"};
+			for (int kind = ADMINISTRATIVE_AREA; kind <= POINT; kind++)
+				for (Row row : new FileRows(new File(path, files[kind])))
+					builder.addLocation(kind, row);
+			for (Row row : new FileRows(new File(path, "SOFFSETS.DAT")))
+				builder.addOffsets(SEGMENT, row);
+			for (Row row : new FileRows(new File(path, "POFFSETS.DAT")))
+				builder.addOffsets(POINT, row);
+		} catch (SQLException e) {
+			// not thrown by file rows
+			throw new IOException(e);
+		} catch (RuntimeException e) {
+			throw new IOException("Invalid location table in " + path.getAbsolutePath(), e);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * @brief A record of a location table, read from the database or from an exchange file.
+	 */
+	interface Row {
+		/** Returns the value of an integer column, or {@link LocationSnapshot#NULL} if empty. */
+		int getInt(String column) throws SQLException;
+
+		/** Returns the value of a string column, or {@code null} if empty. */
+		String getString(String column) throws SQLException;
+
+		/** Returns a coordinate in units of 1/100000 degree, or 0 if empty. */
+		int getCoordinate(String column) throws SQLException;
+
+		boolean getBoolean(String column) throws SQLException;
+	}
+
+	/**
+	 * @brief Returns a row for the current record of a result set.
+	 */
+	static Row row(final ResultSet rset) {
+		return new Row() {
+			public int getInt(String column) throws SQLException {
+				int ret = rset.getInt(column);
+				return rset.wasNull() ? NULL : ret;
+			}
+
+			public String getString(String column) throws SQLException {
+				return rset.getString(column);
+			}
+
+			public int getCoordinate(String column) throws SQLException {
+				return (int) Math.round(rset.getDouble(column) * 100000);
+			}
+
+			public boolean getBoolean(String column) throws SQLException {
+				return rset.getBoolean(column);
+			}
+		};
+	}
+
+	/**
+	 * @brief The records of a location table file, which is empty if the file does not exist.
+	 */
+	private static class FileRows implements Iterable<Row> {
+		private final List<Row> rows = new ArrayList<Row>();
+
+		FileRows(File file) throws IOException {
+			if (!file.exists())
+				return;
+			BufferedReader br = TMC.openLTFile(file);
+			try {
+				String line = br.readLine();
+				if (line == null)
+					return;
+				final Map<String, Integer> fields = new HashMap<String, Integer>();
+				String[] names = TMC.getFields(line);
+				for (int i = 0; i < names.length; i++)
+					fields.put(names[i], i);
+				while ((line = br.readLine()) != null)
+					if (line.length() > 0) {
+						final String[] values = TMC.colonPattern.split(line);
+						rows.add(new Row() {
+							public String getString(String column) {
+								Integer i = fields.get(column);
+								if ((i == null) || (i >= values.length) || values[i].isEmpty())
+									return null;
+								return values[i];
+							}
+
+							public int getInt(String column) {
+								String value = getString(column);
+								return (value == null) ? NULL : Integer.parseInt(value);
+							}
+
+							public int getCoordinate(String column) {
+								String value = getString(column);
+								return (value == null) ? 0 : Integer.parseInt(value);
+							}
+
+							public boolean getBoolean(String column) {
+								// same conversion as LocationTableImport
+								return Boolean.parseBoolean(getString(column));
+							}
+						});
+					}
+			} finally {
+				br.close();
+			}
+		}
+
+		public java.util.Iterator<Row> iterator() {
+			return rows.iterator();
+		}
+	}
+
+	/**
+	 * @brief Collects the records of a dataset and lays them out as a snapshot.
+	 */
+	static class Builder {
+		private static class Location {
+			int kind, lcd, category, tcd, stcd, pesLev, flags;
+			int rnid = -1, n1id = -1, n2id = -1;
+			int polLcd = NO_LCD, othLcd = NO_LCD, roaLcd = NO_LCD, segLcd = NO_LCD;
+			int negOffLcd = NO_LCD, posOffLcd = NO_LCD, interruptsRoad = NO_LCD;
+			int xCoord, yCoord;
+			int number = -1, diversionPos = -1, diversionNeg = -1;
+		}
+
+		private static class Name {
+			int nid, lid, name, comment;
+		}
+
+		final int cid;
+		final int tabcd;
+		private final int[] header = new int[HEADER_INTS];
+		private final List<Location> locations = new ArrayList<Location>();
+		private final List<Name> names = new ArrayList<Name>();
+		private final Map<Integer, int[]> segmentOffsets = new HashMap<Integer, int[]>();
+		private final Map<Integer, int[]> pointOffsets = new HashMap<Integer, int[]>();
+		private final Map<String, Integer> stringIndex = new HashMap<String, Integer>();
+		private final List<byte[]> stringList = new ArrayList<byte[]>();
+		private int stringBytes = 0;
+
+		Builder(int cid, int tabcd) {
+			this.cid = cid;
+			this.tabcd = tabcd;
+			for (int i = 8; i < 14; i++)
+				header[i] = -1;
+		}
+
+		/** Returns the index of a string in the string table, adding it if needed. */
+		private int intern(String s) {
+			if (s == null)
+				return -1;
+			Integer ret = stringIndex.get(s);
+			if (ret == null) {
+				byte[] bytes = s.getBytes(UTF_8);
+				ret = stringList.size();
+				stringList.add(bytes);
+				stringIndex.put(s, ret);
+				stringBytes += bytes.length;
+			}
+			return ret;
+		}
+
+		private static int nid(int value) {
+			return (value == NULL) ? -1 : value;
+		}
+
+		private static int lcd(int value) {
+			if (value == NULL)
+				return NO_LCD;
+			if ((value < 0) || (value >= NO_LCD))
+				throw new IllegalArgumentException("Invalid location code: " + value);
+			return value;
+		}
+
+		/** Sets the country from a record of the {@code Countries} table. */
+		void setCountry(Row row) throws SQLException {
+			header[8] = intern(row.getString("ECC"));
+			header[9] = intern(row.getString("CCD"));
+			header[10] = intern(row.getString("CNAME"));
+		}
+
+		/** Sets the dataset from a record of the {@code LocationDataSets} table. */
+		void setDataset(Row row) throws SQLException {
+			header[11] = intern(row.getString("VERSION"));
+			header[12] = intern(row.getString("DCOMMENT"));
+			header[13] = intern(row.getString("VERSIONDESCRIPTION"));
+		}
+
+		/** Adds a record of the {@code Names} table. */
+		void addName(Row row) throws SQLException {
+			Name name = new Name();
+			name.nid = row.getInt("NID");
+			name.lid = row.getInt("LID");
+			name.name = intern(row.getString("NAME"));
+			name.comment = intern(row.getString("NCOMMENT"));
+			names.add(name);
+		}
+
+		/**
+		 * @brief Adds a record of one of the location tables.
+		 *
+		 * @param kind The kind of location, which determines the table
+		 * @param row The record
+		 */
+		void addLocation(int kind, Row row) throws SQLException {
+			Location l = new Location();
+			l.kind = kind;
+			l.lcd = lcd(row.getInt("LCD"));
+			String category = row.getString("CLASS");
+			l.category = ((category == null) || category.isEmpty()) ? 'P' : category.charAt(0);
+			l.tcd = row.getInt("TCD");
+			l.stcd = row.getInt("STCD");
+			if (kind <= OTHER_AREA) {
+				l.n1id = nid(row.getInt("NID"));
+				l.polLcd = lcd(row.getInt("POL_LCD"));
+			} else {
+				l.rnid = nid(row.getInt("RNID"));
+				l.n1id = nid(row.getInt("N1ID"));
+				l.n2id = nid(row.getInt("N2ID"));
+				l.polLcd = lcd(row.getInt("POL_LCD"));
+			}
+			if (kind == ROAD) {
+				l.number = intern(row.getString("ROADNUMBER"));
+				int pesLev = row.getInt("PES_LEV");
+				l.pesLev = (pesLev == NULL) ? 0 : pesLev;
+			} else if (kind == SEGMENT) {
+				l.number = intern(row.getString("ROADNUMBER"));
+				l.roaLcd = lcd(row.getInt("ROA_LCD"));
+				l.segLcd = lcd(row.getInt("SEG_LCD"));
+			} else if (kind == POINT) {
+				l.number = intern(row.getString("JUNCTIONNUMBER"));
+				l.othLcd = lcd(row.getInt("OTH_LCD"));
+				l.roaLcd = lcd(row.getInt("ROA_LCD"));
+				l.segLcd = lcd(row.getInt("SEG_LCD"));
+				l.diversionPos = intern(row.getString("DIVERSIONPOS"));
+				l.diversionNeg = intern(row.getString("DIVERSIONNEG"));
+				l.xCoord = row.getCoordinate("XCOORD");
+				l.yCoord = row.getCoordinate("YCOORD");
+				l.interruptsRoad = lcd(row.getInt("INTERRUPTSROAD"));
+				if (row.getBoolean("URBAN"))
+					l.flags |= FLAG_URBAN;
+			}
+			locations.add(l);
+		}
+
+		/**
+		 * @brief Adds a record of the {@code Soffsets} or {@code Poffsets} table.
+		 *
+		 * @param kind {@link LocationSnapshot#SEGMENT} or {@link LocationSnapshot#POINT}
+		 * @param row The record
+		 */
+		void addOffsets(int kind, Row row) throws SQLException {
+			int[] offsets = {lcd(row.getInt("NEG_OFF_LCD")), lcd(row.getInt("POS_OFF_LCD"))};
+			((kind == SEGMENT) ? segmentOffsets : pointOffsets).put(row.getInt("LCD"), offsets);
+		}
+
+		/**
+		 * @brief Lays out the snapshot in a heap buffer.
+		 */
+		LocationSnapshot build() throws IOException {
+			Collections.sort(locations, new Comparator<Location>() {
+				public int compare(Location a, Location b) {
+					if (a.lcd != b.lcd)
+						return (a.lcd < b.lcd) ? -1 : 1;
+					return a.kind - b.kind;
+				}
+			});
+			// a location code is unique within a dataset; if not, keep the first kind found
+			List<Location> locs = new ArrayList<Location>(locations.size());
+			for (Location l : locations)
+				if (locs.isEmpty() || (locs.get(locs.size() - 1).lcd != l.lcd))
+					locs.add(l);
+			for (Location l : locs) {
+				int[] offsets = (l.kind == SEGMENT) ? segmentOffsets.get(l.lcd)
+						: (l.kind == POINT) ? pointOffsets.get(l.lcd) : null;
+				if (offsets != null) {
+					l.flags |= FLAG_OFFSETS;
+					l.negOffLcd = offsets[0];
+					l.posOffLcd = offsets[1];
+				}
+			}
+			Collections.sort(names, new Comparator<Name>() {
+				public int compare(Name a, Name b) {
+					if (a.nid != b.nid)
+						return (a.nid < b.nid) ? -1 : 1;
+					return (a.lid < b.lid) ? -1 : (a.lid > b.lid) ? 1 : 0;
+				}
+			});
+
+			int n = locs.size();
+			int m = names.size();
+			int s = stringList.size();
+			header[0] = MAGIC;
+			header[1] = FORMAT_VERSION;
+			header[2] = cid;
+			header[3] = tabcd;
+			header[4] = n;
+			header[5] = m;
+			header[6] = s;
+			header[7] = stringBytes;
+			int size = 4 * HEADER_INTS + 4 * INT_COLUMNS * n + 4 * NAME_COLUMNS * m + 4 * (s + 1)
+					+ 2 * CHAR_COLUMNS * n + BYTE_COLUMNS * n + stringBytes;
+			ByteBuffer buf = ByteBuffer.allocate(size);
+
+			for (int v : header)
+				buf.putInt(v);
+			for (int column = 0; column < INT_COLUMNS; column++)
+				for (Location l : locs)
+					buf.putInt((column == RNID) ? l.rnid : (column == N1ID) ? l.n1id
+							: (column == N2ID) ? l.n2id : (column == XCOORD) ? l.xCoord
+							: (column == YCOORD) ? l.yCoord : (column == NUMBER) ? l.number
+							: (column == DIVERSIONPOS) ? l.diversionPos : l.diversionNeg);
+			for (int column = 0; column < NAME_COLUMNS; column++)
+				for (Name name : names)
+					buf.putInt((column == NAME_NID) ? name.nid : (column == NAME_LID) ? name.lid
+							: (column == NAME_NAME) ? name.name : name.comment);
+			int offset = 0;
+			for (byte[] bytes : stringList) {
+				buf.putInt(offset);
+				offset += bytes.length;
+			}
+			buf.putInt(offset);
+			for (int column = 0; column < CHAR_COLUMNS; column++)
+				for (Location l : locs)
+					buf.putChar((char) ((column == LCD) ? l.lcd : (column == POL_LCD) ? l.polLcd
+							: (column == OTH_LCD) ? l.othLcd : (column == ROA_LCD) ? l.roaLcd
+							: (column == SEG_LCD) ? l.segLcd : (column == NEG_OFF_LCD) ? l.negOffLcd
+							: (column == POS_OFF_LCD) ? l.posOffLcd : l.interruptsRoad));
+			for (int column = 0; column < BYTE_COLUMNS; column++)
+				for (Location l : locs)
+					buf.put((byte) ((column == KIND) ? l.kind : (column == CLASS) ? l.category
+							: (column == TCD) ? l.tcd : (column == STCD) ? l.stcd
+							: (column == PES_LEV) ? l.pesLev : l.flags));
+			for (byte[] bytes : stringList)
+				buf.put(bytes);
+			return new LocationSnapshot(buf, null);
+		}
+	}
+}
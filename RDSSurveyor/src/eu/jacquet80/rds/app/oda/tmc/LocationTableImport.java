@@ -0,0 +1,800 @@
+package eu.jacquet80.rds.app.oda.tmc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * @brief Imports location data sets in exchange format into the database.
+ *
+ * Location table files are read and parsed by a pool of worker threads, while the importing
+ * thread inserts the parsed records into the database, using JDBC batches and a single commit per
+ * table. Parsing runs one data set ahead of insertion, which keeps the workers busy while memory
+ * use stays bounded.
+ *
+ * Within a data set, a table is only inserted once all the tables it references have been
+ * inserted (see {@link #TABLES}). Among the tables which are ready, the first one to be parsed is
+ * inserted first.
+ *
+ * Data sets which are already in the database are updated rather than replaced: only records
+ * which differ from the files are written (see {@link #update(Records, int, int, boolean, Set)}),
+ * and only the cached data which depends on them is discarded. The data set remains available
+ * throughout.
+ */
+class LocationTableImport {
+	/**
+	 * @brief A table of a location data set.
+	 */
+	static class Table {
+		/** The name of the database table. */
+		final String name;
+		/** The name of the file in exchange format. */
+		final String fileName;
+		/** The columns of the primary key, all of which are integers. */
+		final String[] keys;
+		/** The tables which this table references, and which must be inserted before it. */
+		final String[] dependencies;
+
+		Table(String name, String fileName, String[] keys, String... dependencies) {
+			this.name = name;
+			this.fileName = fileName;
+			this.keys = keys;
+			this.dependencies = dependencies;
+		}
+	}
+
+	private static final String[] COUNTRY_KEY = {"CID"};
+	private static final String[] DATA_SET_KEY = {"CID", "TABCD"};
+	private static final String[] NAME_KEY = {"CID", "NID"};
+	private static final String[] LOCATION_KEY = {"CID", "TABCD", "LCD"};
+
+	/** The tables which are imported, in the order in which they are listed in the specification. */
+	static final Table[] TABLES = {
+		// 1 - COUNTRIES.DAT;
+		new Table("Countries", "COUNTRIES.DAT", COUNTRY_KEY),
+		// 2 - LOCATIONDATASETS.DAT;
+		new Table("LocationDataSets", "LOCATIONDATASETS.DAT", DATA_SET_KEY),
+		// 3 - LOCATIONCODES.DAT; skipped for now
+		// 4 - CLASSES.DAT; skipped for now
+		// 5 - TYPES.DAT; skipped for now
+		// 6 - SUBTYPES.DAT; skipped for now
+		// 7 - LANGUAGES.DAT; skipped for now
+		// 8 - EUROROADNO-DAT; skipped for now;
+		// 9 - NAMES.DAT;
+		new Table("Names", "NAMES.DAT", NAME_KEY, "Countries"),
+		// 10 - NAMETRANSLATIONS.DAT; skipped for now
+		// 11 - SUBTYPETRANSLATIONS.DAT; skipped for now
+		// 12 - ERNO_BELONGS_TO_CO.DAT; skipped for now
+		// 13 - ADMINISTRATIVEAREA.DAT;
+		new Table("AdministrativeAreas", "ADMINISTRATIVEAREA.DAT", LOCATION_KEY, "LocationDataSets"),
+		// 14 - OTHERAREAS.DAT;
+		new Table("OtherAreas", "OTHERAREAS.DAT", LOCATION_KEY, "LocationDataSets"),
+		// 15 - ROADS.DAT;
+		new Table("Roads", "ROADS.DAT", LOCATION_KEY, "LocationDataSets"),
+		// 16 - ROAD_NETWORK_LEVEL_TYPES.DAT; skipped for now
+		// 17 - SEGMENTS.DAT;
+		new Table("Segments", "SEGMENTS.DAT", LOCATION_KEY, "LocationDataSets"),
+		// 18 - SOFFSETS.DAT
+		new Table("Soffsets", "SOFFSETS.DAT", LOCATION_KEY, "LocationDataSets"),
+		// 19 - SEG_HAS_ERNO.DAT; skipped for now
+		// 20 - POINTS.DAT;
+		new Table("Points", "POINTS.DAT", LOCATION_KEY, "LocationDataSets"),
+		// 21 - POFFSETS.DAT
+		new Table("Poffsets", "POFFSETS.DAT", LOCATION_KEY, "LocationDataSets"),
+		// 22 - INTERSECTIONS.DAT; skipped for now
+	};
+
+	/**
+	 * @brief The records of a location table file, parsed and ready to be inserted.
+	 */
+	static class Records {
+		final Table table;
+		final File file;
+		final String[] fields;
+		/** The SQL type of each field, {@link Types#NULL} for unknown fields. */
+		final int[] types;
+		/** One array of values per record, holding {@code null} for empty values. */
+		final List<Object[]> rows = new ArrayList<Object[]>();
+
+		Records(Table table, File file, String[] fields, int[] types) {
+			this.table = table;
+			this.file = file;
+			this.fields = fields;
+			this.types = types;
+		}
+	}
+
+	/**
+	 * @brief A table of a data set, which is parsed by a worker and then inserted.
+	 */
+	private static class Job {
+		final Table table;
+		final File file;
+		Future<Records> future;
+
+		Job(Table table, File path) {
+			this.table = table;
+			this.file = new File(path.getAbsolutePath() + File.separator + table.fileName);
+		}
+	}
+
+	private final Connection connection;
+	private final int batchSize;
+	private final int threads;
+	/** Number of records inserted, updated and deleted in the current data set. */
+	private int inserted, updated, deleted;
+	/** Whether records have been skipped due to integrity constraint violations in the current table. */
+	private boolean hasConstraintViolations;
+	/** Column types of each table, by table name and column name. */
+	private final Map<String, Map<String, Integer>> columnTypes = new HashMap<String, Map<String, Integer>>();
+
+	/**
+	 * @brief Creates a new import.
+	 *
+	 * @param connection The database connection, whose tables must exist
+	 * @param batchSize The maximum number of records per JDBC batch
+	 * @param threads The number of threads which parse location table files
+	 * @throws SQLException if the table columns cannot be determined
+	 */
+	LocationTableImport(Connection connection, int batchSize, int threads) throws SQLException {
+		this.connection = connection;
+		this.batchSize = batchSize;
+		this.threads = threads;
+		DatabaseMetaData meta = connection.getMetaData();
+		for (Table table : TABLES) {
+			Map<String, Integer> types = new HashMap<String, Integer>();
+			ResultSet rset = meta.getColumns(null, null, table.name.toUpperCase(), null);
+			while (rset.next())
+				types.put(rset.getString("COLUMN_NAME"), rset.getInt("DATA_TYPE"));
+			rset.close();
+			columnTypes.put(table.name, types);
+		}
+	}
+
+	/**
+	 * @brief Imports the location data sets in the given folders.
+	 *
+	 * Each folder holds one data set. Data sets are imported in the order of {@code paths}, and
+	 * only if {@link TMC#checkDataSetUpdate(File)} says so.
+	 *
+	 * @param paths The folders to import
+	 */
+	void importDataSets(List<File> paths) {
+		long start = System.currentTimeMillis();
+		int dataSets = 0;
+		int total = 0;
+
+		List<List<Job>> jobs = new ArrayList<List<Job>>();
+		for (File path : paths) {
+			List<Job> dataSetJobs = new ArrayList<Job>();
+			for (Table table : TABLES)
+				dataSetJobs.add(new Job(table, path));
+			jobs.add(dataSetJobs);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread ret = new Thread(r, "LT import");
+				ret.setDaemon(true);
+				return ret;
+			}
+		});
+		try {
+			int submitted = 0;
+			for (int i = 0; i < paths.size(); i++) {
+				// parse this data set and the next one
+				for (; (submitted <= i + 1) && (submitted < paths.size()); submitted++)
+					for (Job job : jobs.get(submitted))
+						job.future = executor.submit(parser(job));
+
+				// release the records once the data set is done
+				List<Job> dataSetJobs = jobs.set(i, null);
+				TMC.DataSetUpdate update = TMC.checkDataSetUpdate(paths.get(i));
+				if (update == TMC.DataSetUpdate.SKIP) {
+					for (Job job : dataSetJobs)
+						job.future.cancel(false);
+					continue;
+				}
+
+				long dataSetStart = System.currentTimeMillis();
+				inserted = updated = deleted = 0;
+				int records = importDataSet(paths.get(i), dataSetJobs, update);
+				long millis = System.currentTimeMillis() - dataSetStart;
+				if (update == TMC.DataSetUpdate.INSERT)
+					System.out.println(String.format("Imported %d records from %s in %d ms (%d records/s)",
+							records, paths.get(i).getAbsolutePath(), millis, 1000L * records / Math.max(millis, 1)));
+				else
+					System.out.println(String.format("Updated %d records from %s in %d ms (%d records/s): %d inserted, %d updated, %d deleted",
+							records, paths.get(i).getAbsolutePath(), millis, 1000L * records / Math.max(millis, 1),
+							inserted, updated, deleted));
+				dataSets++;
+				total += records;
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		long millis = System.currentTimeMillis() - start;
+		System.out.println(String.format("Processed %d records from %d location data sets in %d ms (%d records/s)",
+				total, dataSets, millis, 1000L * total / Math.max(millis, 1)));
+	}
+
+	/**
+	 * @brief Inserts or updates the tables of a data set, in the order of their dependencies.
+	 *
+	 * After an update, cached data which depends on changed records is discarded.
+	 *
+	 * @param path The folder which holds the data set
+	 * @param jobs The tables of the data set, which have all been submitted for parsing
+	 * @param update Whether the data set is inserted or updated
+	 * @return The number of records read
+	 */
+	private int importDataSet(File path, List<Job> jobs, TMC.DataSetUpdate update) {
+		int cid = -1;
+		int tabcd = -1;
+		boolean deleteNames = false;
+		if (update == TMC.DataSetUpdate.UPDATE)
+			try {
+				String[] record = TMC.readDataSetRecord(path);
+				cid = Integer.parseInt(record[0]);
+				tabcd = Integer.parseInt(record[1]);
+				// names are shared by all data sets of a country
+				deleteNames = !hasOtherDataSets(cid, tabcd);
+			} catch (Exception e) {
+				e.printStackTrace(System.err);
+				return 0;
+			}
+		Set<Integer> lcds = new HashSet<Integer>();
+		Set<Integer> nids = new HashSet<Integer>();
+		Set<Integer> dataSetKeys = new HashSet<Integer>();
+
+		int ret = 0;
+		List<Job> pending = new ArrayList<Job>(jobs);
+		Set<String> done = new HashSet<String>();
+		while (!pending.isEmpty()) {
+			Job next = null;
+			for (Job job : pending)
+				if (isReady(job, done)) {
+					if (next == null)
+						next = job;
+					if (job.future.isDone()) {
+						next = job;
+						break;
+					}
+				}
+			pending.remove(next);
+
+			System.out.println(String.format("Processing table %s from file %s", next.table.name, next.file.getAbsolutePath()));
+			Records records = null;
+			try {
+				records = next.future.get();
+			} catch (ExecutionException e) {
+				e.getCause().printStackTrace(System.err);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			if (records != null) {
+				if (update == TMC.DataSetUpdate.INSERT)
+					insert(records);
+				else if ("Names".equals(next.table.name))
+					update(records, cid, tabcd, deleteNames, nids);
+				else if (next.table.keys == LOCATION_KEY)
+					update(records, cid, tabcd, true, lcds);
+				else
+					update(records, cid, tabcd, true, dataSetKeys);
+				ret += records.rows.size();
+			}
+			// a table which could not be imported does not hold up the others
+			done.add(next.table.name);
+		}
+
+		if (update == TMC.DataSetUpdate.UPDATE)
+			TMC.invalidate(cid, tabcd, lcds, nids, !dataSetKeys.isEmpty());
+		return ret;
+	}
+
+	/**
+	 * @brief Whether the database holds data sets of a country other than the given one.
+	 */
+	private boolean hasOtherDataSets(int cid, int tabcd) throws SQLException {
+		PreparedStatement stmt = connection.prepareStatement("select count(*) from LocationDataSets where CID = ? and TABCD <> ?;");
+		try {
+			stmt.setInt(1, cid);
+			stmt.setInt(2, tabcd);
+			ResultSet rset = stmt.executeQuery();
+			return rset.next() && (rset.getInt(1) > 0);
+		} finally {
+			stmt.close();
+		}
+	}
+
+	private static boolean isReady(Job job, Set<String> done) {
+		for (String dependency : job.table.dependencies)
+			if (!done.contains(dependency))
+				return false;
+		return true;
+	}
+
+	private Callable<Records> parser(final Job job) {
+		final Map<String, Integer> types = columnTypes.get(job.table.name);
+		return new Callable<Records>() {
+			public Records call() throws IOException {
+				return parse(job.table, job.file, types);
+			}
+		};
+	}
+
+	/**
+	 * @brief Reads and parses a location table file.
+	 *
+	 * @param table The table to which the file belongs
+	 * @param file The file to read
+	 * @param columnTypes The SQL types of the table columns, by column name
+	 * @return The records, or {@code null} if the file does not exist
+	 * @throws IOException
+	 */
+	static Records parse(Table table, File file, Map<String, Integer> columnTypes) throws IOException {
+		if (!file.exists())
+			return null;
+		BufferedReader br = TMC.openLTFile(file);
+		try {
+			String line = br.readLine();
+			if (line == null)
+				return null;
+			String[] fields = TMC.getFields(line);
+			int[] types = new int[fields.length];
+			for (int i = 0; i < fields.length; i++) {
+				Integer type = columnTypes.get(fields[i].toUpperCase());
+				if (type == null) {
+					System.err.println(String.format("Could not determine type for column %s", fields[i]));
+					types[i] = Types.NULL;
+				} else
+					types[i] = type;
+			}
+
+			Records ret = new Records(table, file, fields, types);
+			String[] values = new String[fields.length];
+			while ((line = br.readLine()) != null)
+				if (line.length() > 0) {
+					split(line, values);
+					Object[] row = new Object[fields.length];
+					for (int i = 0; i < fields.length; i++)
+						if (values[i] != null)
+							row[i] = parseValue(values[i], types[i]);
+					ret.rows.add(row);
+				}
+			return ret;
+		} finally {
+			br.close();
+		}
+	}
+
+	/**
+	 * @brief Splits a line at semicolons.
+	 *
+	 * Unlike {@code TMC.colonPattern.split()}, this does not use a regular expression.
+	 *
+	 * @param line The line to split
+	 * @param values Receives the values, with {@code null} for empty or missing values; values
+	 * which do not fit are ignored
+	 */
+	static void split(String line, String[] values) {
+		int start = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (start > line.length()) {
+				values[i] = null;
+				continue;
+			}
+			int end = line.indexOf(';', start);
+			if (end < 0)
+				end = line.length();
+			values[i] = (end > start) ? line.substring(start, end) : null;
+			start = end + 1;
+		}
+	}
+
+	private static Object parseValue(String value, int type) {
+		switch (type) {
+			case Types.BOOLEAN:
+				return Boolean.parseBoolean(value);
+			case Types.DECIMAL:
+				/* Special case: this is the only type which requires conversion.
+				 * DECIMAL is currently used only for two columns, Points.XCOORD and Points.YCOORD.
+				 * Both are represented as 1/100000s of a degree in the source files and are
+				 * converted to degrees on import.
+				 * If further DECIMAL columns are introduced in the DB at a later stage, extra
+				 * logic may be needed here.
+				 */
+				return BigDecimal.valueOf(Integer.parseInt(value), 5);
+			case Types.INTEGER:
+				return Integer.parseInt(value);
+			default:
+				return value;
+		}
+	}
+
+	/**
+	 * @brief Inserts the records of a table and commits them.
+	 *
+	 * Records which violate integrity constraints are skipped. If any other error occurs, the
+	 * table is rolled back.
+	 *
+	 * @param records The records to insert
+	 */
+	void insert(Records records) {
+		PreparedStatement stmt = null;
+		hasConstraintViolations = false;
+		try {
+			stmt = connection.prepareStatement(getInsertSql(records));
+			inserted += execute(stmt, records, records.rows, all(records));
+			connection.commit();
+		} catch (SQLException e) {
+			rollback(stmt, e);
+		} finally {
+			close(stmt);
+		}
+		if (hasConstraintViolations)
+			System.err.println(String.format("Some records from %s were skipped due to integrity constraint violations.", records.file.getAbsolutePath()));
+	}
+
+	/**
+	 * @brief Updates the records of a data set in a table to match a location table file, and
+	 * commits the changes.
+	 *
+	 * The records of the file and those in the database are both sorted by primary key and then
+	 * merged. Records which are only in the file are inserted, records whose values differ are
+	 * updated, and records which are only in the database are deleted. All other records are left
+	 * alone, so that updating a data set to a version with few changes writes few records.
+	 *
+	 * Only the columns found in the file are compared and updated. Records which violate
+	 * integrity constraints are skipped. If any other error occurs, the table is rolled back.
+	 *
+	 * @param records The records of the file
+	 * @param cid The CID of the data set
+	 * @param tabcd The TABCD of the data set, unless the table is shared by all data sets of the
+	 * country
+	 * @param delete Whether to delete records which are not in the file
+	 * @param changes Receives the last primary key column (LCD, NID, TABCD or CID) of each
+	 * record which is inserted, updated or deleted
+	 */
+	void update(Records records, int cid, int tabcd, boolean delete, Set<Integer> changes) {
+		final String[] keys = records.table.keys;
+		final int[] keyColumns = new int[keys.length];
+		List<Integer> valueList = new ArrayList<Integer>();
+		for (int i = 0; i < keys.length; i++)
+			keyColumns[i] = -1;
+		for (int i = 0; i < records.fields.length; i++) {
+			int k = Arrays.asList(keys).indexOf(records.fields[i].toUpperCase());
+			if (k >= 0)
+				keyColumns[k] = i;
+			else
+				valueList.add(i);
+		}
+		for (int i = 0; i < keys.length; i++)
+			if (keyColumns[i] == -1) {
+				System.err.println(String.format("Column %s is missing in %s, skipping", keys[i], records.file.getAbsolutePath()));
+				return;
+			}
+		int[] valueColumns = new int[valueList.size()];
+		for (int i = 0; i < valueColumns.length; i++)
+			valueColumns[i] = valueList.get(i);
+		int[] updateColumns = Arrays.copyOf(valueColumns, valueColumns.length + keyColumns.length);
+		System.arraycopy(keyColumns, 0, updateColumns, valueColumns.length, keyColumns.length);
+		boolean hasTabcd = Arrays.asList(keys).contains("TABCD");
+
+		// sort records of the file by key, dropping those whose key is incomplete
+		hasConstraintViolations = false;
+		List<Object[]> rows = new ArrayList<Object[]>(records.rows.size());
+		for (Object[] row : records.rows) {
+			boolean valid = true;
+			for (int column : keyColumns)
+				valid &= (row[column] != null);
+			if (valid)
+				rows.add(row);
+			else
+				hasConstraintViolations = true;
+		}
+		Comparator<Object[]> byKey = new Comparator<Object[]>() {
+			public int compare(Object[] r1, Object[] r2) {
+				for (int column : keyColumns) {
+					int ret = ((Integer) r1[column]).compareTo((Integer) r2[column]);
+					if (ret != 0)
+						return ret;
+				}
+				return 0;
+			}
+		};
+		Collections.sort(rows, byKey);
+
+		StringBuilder query = new StringBuilder("select ");
+		for (int i = 0; i < records.fields.length; i++) {
+			if (i > 0)
+				query.append(", ");
+			query.append(records.fields[i]);
+		}
+		query.append(" from ").append(records.table.name).append(" where CID = ?");
+		if (hasTabcd)
+			query.append(" and TABCD = ?");
+		query.append(" order by ");
+		for (int i = 0; i < keys.length; i++) {
+			if (i > 0)
+				query.append(", ");
+			query.append(keys[i]);
+		}
+		query.append(";");
+
+		StringBuilder updateSql = new StringBuilder("update ").append(records.table.name).append(" set ");
+		for (int i = 0; i < valueColumns.length; i++) {
+			if (i > 0)
+				updateSql.append(", ");
+			updateSql.append(records.fields[valueColumns[i]]).append(" = ?");
+		}
+		StringBuilder deleteSql = new StringBuilder("delete from ").append(records.table.name);
+		for (int i = 0; i < keys.length; i++) {
+			String condition = String.format(" %s %s = ?", (i == 0) ? "where" : "and", keys[i]);
+			updateSql.append(condition);
+			deleteSql.append(condition);
+		}
+
+		List<Object[]> inserts = new ArrayList<Object[]>();
+		List<Object[]> updates = new ArrayList<Object[]>();
+		List<Object[]> deletes = new ArrayList<Object[]>();
+		PreparedStatement stmt = null;
+		try {
+			stmt = connection.prepareStatement(query.toString());
+			stmt.setInt(1, cid);
+			if (hasTabcd)
+				stmt.setInt(2, tabcd);
+			ResultSet rset = stmt.executeQuery();
+			Object[] old = next(rset, records);
+			Object[] previous = null;
+			for (int i = 0; (i < rows.size()) || (old != null); ) {
+				Object[] row = (i < rows.size()) ? rows.get(i) : null;
+				if ((row != null) && (previous != null) && (byKey.compare(row, previous) == 0)) {
+					// duplicate key in the file, the first record wins as for an insert
+					hasConstraintViolations = true;
+					i++;
+					continue;
+				}
+				int cmp = (row == null) ? 1 : (old == null) ? -1 : byKey.compare(row, old);
+				if (cmp < 0) {
+					inserts.add(row);
+					previous = row;
+					i++;
+				} else if (cmp > 0) {
+					if (delete)
+						deletes.add(old);
+					old = next(rset, records);
+				} else {
+					for (int column : valueColumns)
+						if (!equals(row[column], old[column])) {
+							updates.add(row);
+							break;
+						}
+					previous = row;
+					i++;
+					old = next(rset, records);
+				}
+			}
+			stmt.close();
+
+			if (!deletes.isEmpty()) {
+				stmt = connection.prepareStatement(deleteSql.toString());
+				deleted += execute(stmt, records, deletes, keyColumns);
+				stmt.close();
+			}
+			if (!updates.isEmpty()) {
+				stmt = connection.prepareStatement(updateSql.toString());
+				updated += execute(stmt, records, updates, updateColumns);
+				stmt.close();
+			}
+			if (!inserts.isEmpty()) {
+				stmt = connection.prepareStatement(getInsertSql(records));
+				inserted += execute(stmt, records, inserts, all(records));
+				stmt.close();
+			}
+			connection.commit();
+		} catch (SQLException e) {
+			rollback(stmt, e);
+			return;
+		} finally {
+			close(stmt);
+		}
+
+		int key = keyColumns[keyColumns.length - 1];
+		for (List<Object[]> list : Arrays.asList(inserts, updates, deletes))
+			for (Object[] row : list)
+				changes.add((Integer) row[key]);
+		if (hasConstraintViolations)
+			System.err.println(String.format("Some records from %s were skipped due to integrity constraint violations.", records.file.getAbsolutePath()));
+	}
+
+	/**
+	 * @brief Reads the next record of a result set whose columns are the fields of a file.
+	 *
+	 * @return The values, in the same representation as parsed values, or {@code null} if there
+	 * are no more records.
+	 */
+	private static Object[] next(ResultSet rset, Records records) throws SQLException {
+		if (!rset.next())
+			return null;
+		Object[] ret = new Object[records.fields.length];
+		for (int i = 0; i < ret.length; i++) {
+			switch (records.types[i]) {
+				case Types.BOOLEAN:
+					ret[i] = rset.getBoolean(i + 1);
+					break;
+				case Types.DECIMAL:
+					ret[i] = rset.getBigDecimal(i + 1);
+					break;
+				case Types.INTEGER:
+					ret[i] = rset.getInt(i + 1);
+					break;
+				default:
+					ret[i] = rset.getString(i + 1);
+			}
+			if (rset.wasNull())
+				ret[i] = null;
+		}
+		return ret;
+	}
+
+	private static boolean equals(Object v1, Object v2) {
+		if ((v1 == null) || (v2 == null))
+			return (v1 == v2);
+		if (v1 instanceof BigDecimal)
+			return (((BigDecimal) v1).compareTo((BigDecimal) v2) == 0);
+		return v1.equals(v2);
+	}
+
+	private static String getInsertSql(Records records) {
+		StringBuilder stmtBuilder = new StringBuilder("insert into ");
+		stmtBuilder.append(records.table.name);
+		stmtBuilder.append(" (");
+		for (int i = 0; i < records.fields.length; i++) {
+			if (i > 0)
+				stmtBuilder.append(", ");
+			stmtBuilder.append(records.fields[i]);
+		}
+		stmtBuilder.append(") VALUES (");
+		for (int i = 0; i < records.fields.length; i++) {
+			if (i > 0)
+				stmtBuilder.append(", ");
+			stmtBuilder.append("?");
+		}
+		stmtBuilder.append(");");
+		return stmtBuilder.toString();
+	}
+
+	/**
+	 * @brief Returns the indices of all fields of a file.
+	 */
+	private static int[] all(Records records) {
+		int[] ret = new int[records.fields.length];
+		for (int i = 0; i < ret.length; i++)
+			ret[i] = i;
+		return ret;
+	}
+
+	/**
+	 * @brief Executes a statement for a number of records, in batches.
+	 *
+	 * Records which violate integrity constraints are skipped and
+	 * {@link #hasConstraintViolations} is set.
+	 *
+	 * @param stmt The statement
+	 * @param records The records of the file
+	 * @param rows The records for which to execute the statement
+	 * @param columns The fields of the records which are bound to the statement parameters, in
+	 * the order of the parameters
+	 * @return The number of records for which the statement was executed successfully
+	 * @throws SQLException if an error other than a constraint violation occurs
+	 */
+	private int execute(PreparedStatement stmt, Records records, List<Object[]> rows, int[] columns) throws SQLException {
+		int ret = 0;
+		for (int start = 0; start < rows.size(); start += batchSize) {
+			int end = Math.min(start + batchSize, rows.size());
+			for (int i = start; i < end; i++) {
+				setValues(stmt, records, rows.get(i), columns);
+				stmt.addBatch();
+			}
+			try {
+				stmt.executeBatch();
+				ret += end - start;
+			} catch (BatchUpdateException e) {
+				if ((e.getSQLState() == null) || !e.getSQLState().startsWith("23"))
+					throw e;
+				/*
+				 * The batch stops at the first record which violates a constraint. Skip that
+				 * record and execute the rest of the batch one by one.
+				 */
+				hasConstraintViolations = true;
+				stmt.clearBatch();
+				int failed = start + e.getUpdateCounts().length;
+				ret += failed - start;
+				for (int i = failed + 1; i < end; i++) {
+					setValues(stmt, records, rows.get(i), columns);
+					try {
+						stmt.executeUpdate();
+						ret++;
+					} catch (SQLIntegrityConstraintViolationException f) {
+						// skip record
+					}
+				}
+			}
+		}
+		return ret;
+	}
+
+	private void rollback(PreparedStatement stmt, SQLException e) {
+		if (stmt != null)
+			System.err.println(String.format("Error executing: %s", stmt.toString()));
+		e.printStackTrace(System.err);
+		try {
+			connection.rollback();
+		} catch (SQLException f) {
+			f.printStackTrace(System.err);
+		}
+	}
+
+	private static void close(PreparedStatement stmt) {
+		if (stmt != null)
+			try {
+				stmt.close();
+			} catch (SQLException e) {
+				// NOP
+			}
+	}
+
+	private static void setValues(PreparedStatement stmt, Records records, Object[] row, int[] columns) throws SQLException {
+		for (int j = 0; j < columns.length; j++) {
+			int i = columns[j];
+			Object value = row[i];
+			if (value == null)
+				stmt.setNull(j + 1, records.types[i]);
+			else
+				switch (records.types[i]) {
+					case Types.BOOLEAN:
+						stmt.setBoolean(j + 1, (Boolean) value);
+						break;
+					case Types.DECIMAL:
+						stmt.setBigDecimal(j + 1, (BigDecimal) value);
+						break;
+					case Types.INTEGER:
+						stmt.setInt(j + 1, (Integer) value);
+						break;
+					case Types.VARCHAR:
+						stmt.setString(j + 1, (String) value);
+						break;
+					default:
+						System.err.println(String.format("Unknown type for parameter %d (%s.%s), type %d", i, records.table.name, records.fields[i], records.types[i]));
+						stmt.setNull(j + 1, records.types[i]);
+				}
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package eu.jacquet80.rds.app.oda.tmc;
+
+import java.util.Arrays;
+
+/**
+ * @brief The offset chains of all points or all segments of a location table.
+ *
+ * Offsets link locations into chains, each location referring to its neighbors in negative and
+ * positive direction. This class stores each chain as a contiguous run of location codes in
+ * positive order, so that the location at any offset, or all locations up to that offset, are
+ * found by index rather than by following one offset after the other.
+ *
+ * Chains are built from the offsets of all locations of one kind in a location table. A link is
+ * only followed if it points to a location of the same kind, as {@link TMCPoint#getPosOffset()}
+ * and similar methods would. Locations whose chain has a one-sided link (A refers to B in one
+ * direction, but B does not refer to A in the other) or a loop are not stored; callers must
+ * follow their offsets one by one, which gives the same results as before.
+ */
+final class OffsetChains {
+	/** Location codes of all chains, each chain in positive order. */
+	private final int[] lcds;
+	/** Index of the first location of the chain, for each index in {@link #lcds}. */
+	private final int[] starts;
+	/** Index of the last location of the chain, for each index in {@link #lcds}. */
+	private final int[] ends;
+	/** Index in {@link #lcds} for each location code, or -1 if the location is not in a chain. */
+	private final int[] index;
+
+	/**
+	 * @brief Builds the offset chains for a set of locations.
+	 *
+	 * @param count The number of locations
+	 * @param lcds The location codes; only the first {@code count} elements are used
+	 * @param negOffLcds The negative offset of each location, -1 or any unknown location code if
+	 * there is none
+	 * @param posOffLcds The positive offset of each location, -1 or any unknown location code if
+	 * there is none
+	 */
+	OffsetChains(int count, int[] lcds, int[] negOffLcds, int[] posOffLcds) {
+		int maxLcd = -1;
+		for (int i = 0; i < count; i++)
+			maxLcd = Math.max(maxLcd, lcds[i]);
+		/* Offsets by location code, -1 if empty or not a location of this kind */
+		int[] neg = new int[maxLcd + 1];
+		int[] pos = new int[maxLcd + 1];
+		boolean[] exists = new boolean[maxLcd + 1];
+		Arrays.fill(neg, -1);
+		Arrays.fill(pos, -1);
+		for (int i = 0; i < count; i++)
+			exists[lcds[i]] = true;
+		for (int i = 0; i < count; i++) {
+			int n = negOffLcds[i];
+			int p = posOffLcds[i];
+			if ((n >= 0) && (n <= maxLcd) && exists[n])
+				neg[lcds[i]] = n;
+			if ((p >= 0) && (p <= maxLcd) && exists[p])
+				pos[lcds[i]] = p;
+		}
+
+		this.lcds = new int[count];
+		this.starts = new int[count];
+		this.ends = new int[count];
+		this.index = new int[maxLcd + 1];
+		Arrays.fill(index, -1);
+		int size = 0;
+		for (int i = 0; i < count; i++) {
+			int head = lcds[i];
+			if (neg[head] != -1)
+				continue;
+			/* Walk the chain from its head, stopping at the end, at a one-sided link or a loop */
+			int start = size;
+			boolean valid = true;
+			int lcd = head;
+			while (true) {
+				if (index[lcd] != -1) {
+					valid = false;
+					break;
+				}
+				index[lcd] = size;
+				this.lcds[size++] = lcd;
+				int next = pos[lcd];
+				if (next == -1)
+					break;
+				if (neg[next] != lcd) {
+					valid = false;
+					break;
+				}
+				lcd = next;
+			}
+			if (valid)
+				for (int j = start; j < size; j++) {
+					starts[j] = start;
+					ends[j] = size - 1;
+				}
+			else {
+				/* the whole chain is discarded; offsets will be followed one by one */
+				for (int j = start; j < size; j++)
+					index[this.lcds[j]] = -2;
+				size = start;
+			}
+		}
+		for (int i = 0; i < index.length; i++)
+			if (index[i] == -2)
+				index[i] = -1;
+	}
+
+	/**
+	 * @brief Returns the index of a location in {@link #lcds}, or -1 if it is not in a chain.
+	 */
+	private int indexOf(int lcd) {
+		return ((lcd >= 0) && (lcd < index.length)) ? index[lcd] : -1;
+	}
+
+	/**
+	 * @brief Returns the location code at the given offset from a location.
+	 *
+	 * As with {@link TMCPoint#getOffset(int, int)}, the last location of the chain is returned
+	 * if the extent goes beyond it.
+	 *
+	 * @param lcd The location code
+	 * @param extent The number of steps
+	 * @param direction 0 for positive, 1 for negative
+	 * @return The location code, or -1 if the location is not in a chain.
+	 */
+	int getOffset(int lcd, int extent, int direction) {
+		int i = indexOf(lcd);
+		if (i == -1)
+			return -1;
+		if (direction == 0)
+			return lcds[Math.min(i + Math.max(extent, 0), ends[i])];
+		else
+			return lcds[Math.max(i - Math.max(extent, 0), starts[i])];
+	}
+
+	/**
+	 * @brief Returns the location codes from a location up to the location at the given offset.
+	 *
+	 * @param lcd The location code
+	 * @param extent The number of steps
+	 * @param direction 0 for positive, 1 for negative
+	 * @return The location codes, starting with {@code lcd} and ending with the result of
+	 * {@link #getOffset(int, int, int)}, or null if the location is not in a chain.
+	 */
+	int[] getOffsets(int lcd, int extent, int direction) {
+		int i = indexOf(lcd);
+		if (i == -1)
+			return null;
+		int[] res;
+		if (direction == 0) {
+			res = Arrays.copyOfRange(lcds, i, Math.min(i + Math.max(extent, 0), ends[i]) + 1);
+		} else {
+			int first = Math.max(i - Math.max(extent, 0), starts[i]);
+			res = new int[i - first + 1];
+			for (int j = 0; j < res.length; j++)
+				res[j] = lcds[i - j];
+		}
+		return res;
+	}
+}
@@ -55,6 +55,38 @@ public class Road extends TMCLocation {
 		this.pesLev = rset.getInt("PES_LEV");
 	}
 	
+	/**
+	 * @brief Creates a new {@code Road} from a row of a location snapshot.
+	 * 
+	 * The result is the same as for a {@code Road} created from the record in the database
+	 * from which the snapshot was made.
+	 * 
+	 * @param snapshot The snapshot
+	 * @param row The row, as returned by {@link LocationSnapshot#find(int)}
+	 */
+	Road(LocationSnapshot snapshot, int row) {
+		this.cid = snapshot.cid;
+		this.tabcd = snapshot.tabcd;
+		this.lcd = snapshot.getLcd(row);
+		this.category = snapshot.getCategory(row);
+		this.tcd = snapshot.getTcd(row);
+		this.stcd = snapshot.getStcd(row);
+		this.roadNumber = snapshot.getNumber(row);
+		this.rnid = snapshot.getRnid(row);
+		if (this.rnid != -1)
+			this.roadName = TMC.getName(this.cid, this.rnid);
+		this.n1id = snapshot.getN1id(row);
+		if (this.n1id != -1)
+			this.name1 = TMC.getName(this.cid, this.n1id);
+		this.n2id = snapshot.getN2id(row);
+		if (this.n2id != -1)
+			this.name2 = TMC.getName(this.cid, this.n2id);
+		this.polLcd = snapshot.getPolLcd(row);
+		if (this.polLcd != -1)
+			this.area = TMC.getArea(this.cid, this.tabcd, this.polLcd);
+		this.pesLev = snapshot.getPesLev(row);
+	}
+	
 	@Override
 	public String toString() {
 		StringBuilder res = new StringBuilder(super.toString());
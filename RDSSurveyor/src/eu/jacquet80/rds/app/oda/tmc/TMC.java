@@ -11,14 +11,21 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.SQLIntegrityConstraintViolationException;
-import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
+import eu.jacquet80.rds.util.SpatialGrid;
+
 public class TMC {
 	private static final String[] initStmts = {
 		// 1 - Countries - COUNTRIES.DAT;
@@ -62,6 +69,8 @@ public class TMC {
 	};
 	private static String dbUrl = null;
 	private static Connection dbConnection = null;
+	private static int importBatchSize = 1000;
+	private static int importThreads = Runtime.getRuntime().availableProcessors();
 	
 	static BufferedReader openTMCFile(String name) throws IOException {
 		BufferedReader br = new BufferedReader(new InputStreamReader(TMC.class.getResourceAsStream(name)));
@@ -135,6 +144,7 @@ public class TMC {
 	 * @param dbUrl the dbUrl to set
 	 */
 	public static void setDbUrl(String dbUrl) {
+		closeStatements();
 		if (dbConnection != null)
 			try {
 				if (!dbConnection.isClosed())
@@ -222,16 +232,126 @@ public class TMC {
 		return r;
 	}
 	
-	private static Map<String, Country> COUNTRIES = new HashMap<String, Country>();
+	private static final String SQL_COUNTRY_BY_CCD = "select * from Countries where CCD = ? and CID in (select CID from LocationDataSets where TABCD = ?);";
+	private static final String SQL_COUNTRY_BY_CID = "select * from Countries where CID = ?";
+	private static final String SQL_COUNTRY_BY_ECC = "select * from Countries where ECC = ?";
+	private static final String SQL_LOCATION_DATASET = "select * from LocationDataSets where CID = ? AND TABCD = ?";
+	private static final String SQL_LOCATION_DATASETS = "select CID, TABCD from LocationDataSets";
+	private static final String SQL_NAME = "select * from Names where CID = ? AND NID = ? ORDER BY LID";
+	private static final String SQL_NAME_LID = "select * from Names where CID = ? AND LID = ? AND NID = ?";
+	private static final String SQL_NAMES = "select Names.* from unnest(cast(? as integer array)) as Nids(NID) join Names on Names.CID = ? AND Names.NID = Nids.NID ORDER BY Names.NID, Names.LID";
+	private static final String SQL_ADMINISTRATIVE_AREA = "select * from AdministrativeAreas where CID = ? AND TABCD = ? AND LCD = ?";
+	private static final String SQL_OTHER_AREA = "select * from OtherAreas where CID = ? AND TABCD = ? AND LCD = ?";
+	private static final String SQL_ROAD = "select * from Roads where CID = ? AND TABCD = ? AND LCD = ?";
+	/* Segments and points are joined with their offsets; OFF_LCD is null if there are none. */
+	private static final String SQL_SEGMENT = "select Segments.*, Soffsets.NEG_OFF_LCD, Soffsets.POS_OFF_LCD, Soffsets.LCD as OFF_LCD from Segments left join Soffsets on Soffsets.CID = Segments.CID AND Soffsets.TABCD = Segments.TABCD AND Soffsets.LCD = Segments.LCD where Segments.CID = ? AND Segments.TABCD = ? AND Segments.LCD = ?";
+	private static final String SQL_POINT = "select Points.*, Poffsets.NEG_OFF_LCD, Poffsets.POS_OFF_LCD, Poffsets.LCD as OFF_LCD from Points left join Poffsets on Poffsets.CID = Points.CID AND Poffsets.TABCD = Points.TABCD AND Poffsets.LCD = Points.LCD where Points.CID = ? AND Points.TABCD = ? AND Points.LCD = ?";
+	private static final String SQL_FIRST_SEGMENT = "select LCD from Segments where CID = ? AND TABCD = ? AND (SEG_LCD = ? OR ROA_LCD = ?) AND NOT EXISTS (SELECT * FROM Soffsets WHERE Soffsets.CID = Segments.CID AND Soffsets.TABCD = Segments.TABCD AND Soffsets.LCD = Segments.LCD AND Soffsets.NEG_OFF_LCD IS NOT NULL)";
+	private static final String SQL_LAST_SEGMENT = "select LCD from Segments where CID = ? AND TABCD = ? AND (SEG_LCD = ? OR ROA_LCD = ?) AND NOT EXISTS (SELECT * FROM Soffsets WHERE Soffsets.CID = Segments.CID AND Soffsets.TABCD = Segments.TABCD AND Soffsets.LCD = Segments.LCD AND Soffsets.POS_OFF_LCD IS NOT NULL)";
+	private static final String SQL_FIRST_POINT = "select LCD from Points where CID = ? AND TABCD = ? AND (SEG_LCD = ? OR ROA_LCD = ?) AND NOT EXISTS (SELECT * FROM Poffsets WHERE Poffsets.CID = Points.CID AND Poffsets.TABCD = Points.TABCD AND Poffsets.LCD = Points.LCD AND Poffsets.NEG_OFF_LCD IS NOT NULL) AND (INTERRUPTSROAD IS NULL OR INTERRUPTSROAD = 0)";
+	private static final String SQL_LAST_POINT = "select LCD from Points where CID = ? AND TABCD = ? AND (SEG_LCD = ? OR ROA_LCD = ?) AND NOT EXISTS (SELECT * FROM Poffsets WHERE Poffsets.CID = Points.CID AND Poffsets.TABCD = Points.TABCD AND Poffsets.LCD = Points.LCD AND Poffsets.POS_OFF_LCD IS NOT NULL) AND (INTERRUPTSROAD IS NULL OR INTERRUPTSROAD = 0)";
+	private static final String SQL_SEGMENT_OFFSETS = "select Segments.LCD, Soffsets.NEG_OFF_LCD, Soffsets.POS_OFF_LCD from Segments left join Soffsets on Soffsets.CID = Segments.CID AND Soffsets.TABCD = Segments.TABCD AND Soffsets.LCD = Segments.LCD where Segments.CID = ? AND Segments.TABCD = ?";
+	private static final String SQL_POINT_OFFSETS = "select Points.LCD, Poffsets.NEG_OFF_LCD, Poffsets.POS_OFF_LCD from Points left join Poffsets on Poffsets.CID = Points.CID AND Poffsets.TABCD = Points.TABCD AND Poffsets.LCD = Points.LCD where Points.CID = ? AND Points.TABCD = ?";
+	private static final String SQL_POINT_COORDS = "select LCD, XCOORD, YCOORD from Points where CID = ? AND TABCD = ?";
+
+	/** Idle prepared statements for {@link #dbConnection}, by SQL text. */
+	private static final Map<String, List<PreparedStatement>> STATEMENTS = new HashMap<String, List<PreparedStatement>>();
+
+	/**
+	 * @brief Returns a prepared statement for the given SQL.
+	 *
+	 * Statements are reused: after use, the statement must be handed back with
+	 * {@link #release(String, PreparedStatement, ResultSet)}. Each statement is used by one
+	 * caller at a time. If all statements for {@code sql} are in use, e.g. by an enclosing lookup
+	 * which is still reading its result set, a new one is prepared.
+	 *
+	 * @param sql The SQL statement
+	 * @param scrollable Whether result sets must be scrollable. A given statement must always
+	 * be requested with the same value.
+	 */
+	private static PreparedStatement prepare(String sql, boolean scrollable) throws SQLException {
+		synchronized (STATEMENTS) {
+			List<PreparedStatement> idle = STATEMENTS.get(sql);
+			if ((idle != null) && !idle.isEmpty())
+				return idle.remove(idle.size() - 1);
+		}
+		if (scrollable)
+			return dbConnection.prepareStatement(sql, ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+		return dbConnection.prepareStatement(sql);
+	}
+
+	private static PreparedStatement prepare(String sql) throws SQLException {
+		return prepare(sql, false);
+	}
+
+	/**
+	 * @brief Closes a result set and returns its statement to the cache.
+	 *
+	 * Both arguments may be {@code null}. Statements of a connection which has been replaced
+	 * in the meantime are closed.
+	 */
+	private static void release(String sql, PreparedStatement stmt, ResultSet rset) {
+		try {
+			if (rset != null)
+				rset.close();
+			if (stmt == null)
+				return;
+			if (stmt.getConnection() != dbConnection) {
+				stmt.close();
+				return;
+			}
+			stmt.clearParameters();
+		} catch (SQLException e) {
+			return;
+		}
+		synchronized (STATEMENTS) {
+			List<PreparedStatement> idle = STATEMENTS.get(sql);
+			if (idle == null) {
+				idle = new ArrayList<PreparedStatement>();
+				STATEMENTS.put(sql, idle);
+			}
+			idle.add(stmt);
+		}
+	}
+
+	/**
+	 * @brief Closes all cached statements.
+	 */
+	private static void closeStatements() {
+		synchronized (STATEMENTS) {
+			for (List<PreparedStatement> idle : STATEMENTS.values())
+				for (PreparedStatement stmt : idle)
+					try {
+						stmt.close();
+					} catch (SQLException e) {
+						// NOP
+					}
+			STATEMENTS.clear();
+		}
+	}
+
+	/* Written by the decoder and location resolver threads, and by the import thread when data
+	 * sets change */
+	private static final Map<String, Country> COUNTRIES = new ConcurrentHashMap<String, Country>();
 
 	public static Country getCountry(String cc, int ltn) {
 		Country ret = COUNTRIES.get("ccd=" + cc + ";tabcd=" + ltn);
-		if (ret == null) 
+		if (ret == null) {
+			for (LocationSnapshot snapshot : SNAPSHOTS)
+				if ((snapshot.tabcd == ltn) && cc.equals(snapshot.getCcd())) {
+					Country country = new Country(snapshot);
+					putCountry(cc, ltn, country);
+					putCountry(country.cid, country);
+					putCountry(country.ecc, country);
+					return country;
+				}
+			PreparedStatement stmt = null;
+			ResultSet rset = null;
 			try {
-				PreparedStatement stmt = dbConnection.prepareStatement("select * from Countries where CCD = ? and CID in (select CID from LocationDataSets where TABCD = ?);");
+				stmt = prepare(SQL_COUNTRY_BY_CCD);
 				stmt.setString(1, cc);
 				stmt.setInt(2, ltn);
-				ResultSet rset = stmt.executeQuery();
+				rset = stmt.executeQuery();
 				if (rset.next()) {
 					Country country = new Country(rset);
 					putCountry(cc, ltn, country);
@@ -243,17 +363,29 @@ public class TMC {
 			} catch (SQLException e) {
 				e.printStackTrace(System.err);
 				return null;
+			} finally {
+				release(SQL_COUNTRY_BY_CCD, stmt, rset);
 			}
+		}
 		return ret;
 	}
-	
+
 	public static Country getCountry(int cid) {
 		Country ret = COUNTRIES.get("cid=" + cid);
-		if (ret == null) 
+		if (ret == null) {
+			LocationSnapshot snapshot = getSnapshot(cid);
+			if (snapshot != null) {
+				Country country = new Country(snapshot);
+				putCountry(cid, country);
+				putCountry(country.ecc, country);
+				return country;
+			}
+			PreparedStatement stmt = null;
+			ResultSet rset = null;
 			try {
-				PreparedStatement stmt = dbConnection.prepareStatement("select * from Countries where CID = ?");
+				stmt = prepare(SQL_COUNTRY_BY_CID);
 				stmt.setInt(1, cid);
-				ResultSet rset = stmt.executeQuery();
+				rset = stmt.executeQuery();
 				if (rset.next()) {
 					Country country = new Country(rset);
 					putCountry(cid, country);
@@ -264,17 +396,29 @@ public class TMC {
 			} catch (SQLException e) {
 				e.printStackTrace(System.err);
 				return null;
+			} finally {
+				release(SQL_COUNTRY_BY_CID, stmt, rset);
 			}
+		}
 		return ret;
 	}
-	
+
 	public static Country getCountry(String ecc) {
 		Country ret = COUNTRIES.get("ecc=" + ecc);
-		if (ret == null) 
+		if (ret == null) {
+			for (LocationSnapshot snapshot : SNAPSHOTS)
+				if (ecc.equals(snapshot.getEcc())) {
+					Country country = new Country(snapshot);
+					putCountry(ecc, country);
+					putCountry(country.cid, country);
+					return country;
+				}
+			PreparedStatement stmt = null;
+			ResultSet rset = null;
 			try {
-				PreparedStatement stmt = dbConnection.prepareStatement("select * from Countries where ECC = ?");
+				stmt = prepare(SQL_COUNTRY_BY_ECC);
 				stmt.setString(1, ecc);
-				ResultSet rset = stmt.executeQuery();
+				rset = stmt.executeQuery();
 				if (rset.next()) {
 					Country country = new Country(rset);
 					putCountry(ecc, country);
@@ -285,32 +429,245 @@ public class TMC {
 			} catch (SQLException e) {
 				e.printStackTrace(System.err);
 				return null;
+			} finally {
+				release(SQL_COUNTRY_BY_ECC, stmt, rset);
 			}
+		}
 		return ret;
 	}
-	
+
 	public static void putCountry(String cc, int ltn, Country country) {
 		COUNTRIES.put("ccd=" + cc + ";tabcd=" + ltn, country);
 	}
-	
+
 	public static void putCountry(int cid, Country country) {
 		COUNTRIES.put("cid=" + cid, country);
 	}
-	
+
 	public static void putCountry(String ecc, Country country) {
 		COUNTRIES.put("ecc=" + ecc, country);
 	}
+
+	/** Initial capacity of each location and name cache. */
+	private static final int DEFAULT_CACHE_CAPACITY = 1024;
+	
+	/** Language ID in name cache keys for names which are looked up in any language. */
+	private static final int ANY_LANGUAGE = -1;
+	
+	/** All location and name caches, so that they can be configured together. */
+	private static final List<LocationCache<?>> CACHES = new ArrayList<LocationCache<?>>();
+	
+	private static <T> LocationCache<T> newCache() {
+		LocationCache<T> ret = new LocationCache<T>(DEFAULT_CACHE_CAPACITY, LocationCache.Eviction.NONE);
+		CACHES.add(ret);
+		return ret;
+	}
+	
+	/**
+	 * @brief Sets the capacity and eviction policy of each location and name cache.
+	 * 
+	 * By default, caches grow without limit, so that each location and name is read from the
+	 * database only once.
+	 * 
+	 * @param capacity The maximum number of entries of each cache, or with
+	 * {@link LocationCache.Eviction#NONE}, the number of entries for which space is allocated
+	 * @param eviction The eviction policy
+	 */
+	public static void setCacheCapacity(int capacity, LocationCache.Eviction eviction) {
+		for (LocationCache<?> cache : CACHES)
+			cache.setCapacity(capacity, eviction);
+	}
+	
+	/** Location snapshots, which take precedence over the database for their datasets. */
+	private static volatile LocationSnapshot[] SNAPSHOTS = new LocationSnapshot[0];
+	
+	/* Queries for createSnapshot(), see there for the order */
+	private static final String[] SQL_SNAPSHOT = {
+		SQL_LOCATION_DATASET,
+		SQL_COUNTRY_BY_CID,
+		"select * from Names where CID = ?",
+		"select * from AdministrativeAreas where CID = ? AND TABCD = ?",
+		"select * from OtherAreas where CID = ? AND TABCD = ?",
+		"select * from Roads where CID = ? AND TABCD = ?",
+		"select * from Segments where CID = ? AND TABCD = ?",
+		"select * from Points where CID = ? AND TABCD = ?",
+		"select * from Soffsets where CID = ? AND TABCD = ?",
+		"select * from Poffsets where CID = ? AND TABCD = ?",
+	};
+	
+	/**
+	 * @brief Returns the snapshot for a location dataset, or {@code null} if there is none.
+	 */
+	private static LocationSnapshot getSnapshot(int cid, int tabcd) {
+		for (LocationSnapshot snapshot : SNAPSHOTS)
+			if ((snapshot.cid == cid) && (snapshot.tabcd == tabcd))
+				return snapshot;
+		return null;
+	}
+	
+	/**
+	 * @brief Returns a snapshot for a country, or {@code null} if there is none.
+	 * 
+	 * All datasets of a country share the same names, hence any of its snapshots can be used to
+	 * look up names.
+	 */
+	private static LocationSnapshot getSnapshot(int cid) {
+		for (LocationSnapshot snapshot : SNAPSHOTS)
+			if (snapshot.cid == cid)
+				return snapshot;
+		return null;
+	}
+	
+	/**
+	 * @brief Adds a location snapshot.
+	 * 
+	 * From then on, locations, names, the country and the dataset record of the snapshot's dataset
+	 * are created from the snapshot, without querying the database. A previous snapshot for the
+	 * same dataset is replaced.
+	 * 
+	 * @param snapshot The snapshot
+	 */
+	public static synchronized void addSnapshot(LocationSnapshot snapshot) {
+		List<LocationSnapshot> snapshots = new ArrayList<LocationSnapshot>(Arrays.asList(SNAPSHOTS));
+		for (int i = snapshots.size() - 1; i >= 0; i--)
+			if ((snapshots.get(i).cid == snapshot.cid) && (snapshots.get(i).tabcd == snapshot.tabcd))
+				snapshots.remove(i);
+		snapshots.add(snapshot);
+		SNAPSHOTS = snapshots.toArray(new LocationSnapshot[snapshots.size()]);
+	}
+	
+	/**
+	 * @brief Creates a snapshot of a location dataset in the database.
+	 * 
+	 * @param cid The country ID
+	 * @param tabcd The location table number
+	 * @return The snapshot, or {@code null} if the dataset is not in the database or cannot be read.
+	 */
+	public static LocationSnapshot createSnapshot(int cid, int tabcd) {
+		LocationSnapshot.Builder builder = new LocationSnapshot.Builder(cid, tabcd);
+		for (int step = 0; step < SQL_SNAPSHOT.length; step++) {
+			String sql = SQL_SNAPSHOT[step];
+			PreparedStatement stmt = null;
+			ResultSet rset = null;
+			try {
+				stmt = prepare(sql);
+				stmt.setInt(1, cid);
+				if (stmt.getParameterMetaData().getParameterCount() > 1)
+					stmt.setInt(2, tabcd);
+				rset = stmt.executeQuery();
+				boolean found = false;
+				while (rset.next()) {
+					LocationSnapshot.Row row = LocationSnapshot.row(rset);
+					found = true;
+					if (step == 0)
+						builder.setDataset(row);
+					else if (step == 1)
+						builder.setCountry(row);
+					else if (step == 2)
+						builder.addName(row);
+					else if (step == 8)
+						builder.addOffsets(LocationSnapshot.SEGMENT, row);
+					else if (step == 9)
+						builder.addOffsets(LocationSnapshot.POINT, row);
+					else
+						// steps 3 to 7 are location tables, in the order of location kinds
+						builder.addLocation(step - 3, row);
+				}
+				if ((step == 0) && !found)
+					return null;
+			} catch (SQLException e) {
+				e.printStackTrace(System.err);
+				return null;
+			} finally {
+				release(sql, stmt, rset);
+			}
+		}
+		try {
+			return builder.build();
+		} catch (IOException e) {
+			e.printStackTrace(System.err);
+			return null;
+		}
+	}
+	
+	/**
+	 * @brief Writes a snapshot of each location dataset in the database to a folder.
+	 * 
+	 * Snapshot files are named as per {@link LocationSnapshot#getFileName(int, int)}, existing
+	 * files are replaced.
+	 * 
+	 * @param dir The folder
+	 */
+	public static void writeSnapshots(File dir) {
+		List<int[]> datasets = new ArrayList<int[]>();
+		PreparedStatement stmt = null;
+		ResultSet rset = null;
+		try {
+			stmt = prepare(SQL_LOCATION_DATASETS);
+			rset = stmt.executeQuery();
+			while (rset.next())
+				datasets.add(new int[] {rset.getInt("CID"), rset.getInt("TABCD")});
+		} catch (SQLException e) {
+			e.printStackTrace(System.err);
+			return;
+		} finally {
+			release(SQL_LOCATION_DATASETS, stmt, rset);
+		}
+		dir.mkdirs();
+		for (int[] dataset : datasets) {
+			LocationSnapshot snapshot = createSnapshot(dataset[0], dataset[1]);
+			if (snapshot == null)
+				continue;
+			File file = new File(dir, LocationSnapshot.getFileName(dataset[0], dataset[1]));
+			try {
+				snapshot.write(file);
+				System.out.println(String.format("Wrote snapshot of location dataset %d/%d (%d locations) to %s",
+						dataset[0], dataset[1], snapshot.size(), file.getAbsolutePath()));
+			} catch (IOException e) {
+				e.printStackTrace(System.err);
+			}
+		}
+	}
 	
-	private static Map<String, LocationDataset> LOCATION_DATASETS = new HashMap<String, LocationDataset>();
+	/**
+	 * @brief Maps all location snapshots in a folder into memory and adds them.
+	 * 
+	 * Files which are not valid snapshots, e.g. because they were written with a different format
+	 * version, are skipped.
+	 * 
+	 * @param dir The folder
+	 */
+	public static void loadSnapshots(File dir) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (File file : files)
+			if (file.isFile() && file.getName().endsWith(LocationSnapshot.EXTENSION))
+				try {
+					addSnapshot(LocationSnapshot.map(file));
+				} catch (IOException e) {
+					System.err.println(String.format("Skipping location snapshot %s: %s", file.getAbsolutePath(), e.getMessage()));
+				}
+	}
+	
+	private static final Map<String, LocationDataset> LOCATION_DATASETS = new ConcurrentHashMap<String, LocationDataset>();
 
 	public static LocationDataset getLocationDataset(int cid, int tabcd) {
 		LocationDataset ret = LOCATION_DATASETS.get(cid + ";" + tabcd);
-		if (ret == null) 
+		if (ret == null) {
+			LocationSnapshot snapshot = getSnapshot(cid, tabcd);
+			if (snapshot != null) {
+				LocationDataset lds = new LocationDataset(snapshot);
+				putLocationDataset(cid, tabcd, lds);
+				return lds;
+			}
+			PreparedStatement stmt = null;
+			ResultSet rset = null;
 			try {
-				PreparedStatement stmt = dbConnection.prepareStatement("select * from LocationDataSets where CID = ? AND TABCD = ?");
+				stmt = prepare(SQL_LOCATION_DATASET);
 				stmt.setInt(1, cid);
 				stmt.setInt(2, tabcd);
-				ResultSet rset = stmt.executeQuery();
+				rset = stmt.executeQuery();
 				if (rset.next()) {
 					LocationDataset lds = new LocationDataset(rset);
 					putLocationDataset(cid, tabcd, lds);
@@ -320,7 +677,10 @@ public class TMC {
 			} catch (SQLException e) {
 				e.printStackTrace(System.err);
 				return null;
+			} finally {
+				release(SQL_LOCATION_DATASET, stmt, rset);
 			}
+		}
 		return ret;
 	}
 	
@@ -328,16 +688,30 @@ public class TMC {
 		LOCATION_DATASETS.put(cid + ";" + tabcd, locationDataset);
 	}
 	
-	private static Map<String, TMCName> NAMES = new HashMap<String, TMCName>();
+	private static final LocationCache<TMCName> NAMES = newCache();
 
 	public static TMCName getName(int cid, int nid) {
-		TMCName ret = NAMES.get(cid + ";" + nid);
-		if (ret == null) 
+		TMCName ret = NAMES.get(LocationCache.key(cid, ANY_LANGUAGE, nid));
+		if (ret == null) {
+			LocationSnapshot snapshot = getSnapshot(cid);
+			if (snapshot != null) {
+				int row = snapshot.findName(nid);
+				if (row == -1)
+					return null;
+				TMCName name = NAMES.get(LocationCache.key(cid, snapshot.getNameLid(row), nid));
+				if (name == null)
+					name = new TMCName(snapshot, row);
+				putName(cid, nid, name);
+				putName(cid, name.lid, nid, name);
+				return name;
+			}
+			PreparedStatement stmt = null;
+			ResultSet rset = null;
 			try {
-				PreparedStatement stmt = dbConnection.prepareStatement("select * from Names where CID = ? AND NID = ? ORDER BY LID");
+				stmt = prepare(SQL_NAME);
 				stmt.setInt(1, cid);
 				stmt.setInt(2, nid);
-				ResultSet rset = stmt.executeQuery();
+				rset = stmt.executeQuery();
 				if (rset.next()) {
 					TMCName name = getName(rset.getInt("CID"), rset.getInt("LID"), rset.getInt("NID"));
 					if (name == null)
@@ -350,19 +724,33 @@ public class TMC {
 			} catch (SQLException e) {
 				e.printStackTrace(System.err);
 				return null;
+			} finally {
+				release(SQL_NAME, stmt, rset);
 			}
+		}
 		return ret;
 	}
 
 	public static TMCName getName(int cid, int lid, int nid) {
-		TMCName ret = NAMES.get(cid + ";" + lid + ";" + nid);
-		if (ret == null) 
+		TMCName ret = NAMES.get(LocationCache.key(cid, lid, nid));
+		if (ret == null) {
+			LocationSnapshot snapshot = getSnapshot(cid);
+			if (snapshot != null) {
+				int row = snapshot.findName(lid, nid);
+				if (row == -1)
+					return null;
+				TMCName name = new TMCName(snapshot, row);
+				putName(cid, lid, nid, name);
+				return name;
+			}
+			PreparedStatement stmt = null;
+			ResultSet rset = null;
 			try {
-				PreparedStatement stmt = dbConnection.prepareStatement("select * from Names where CID = ? AND LID = ? AND NID = ?");
+				stmt = prepare(SQL_NAME_LID);
 				stmt.setInt(1, cid);
 				stmt.setInt(2, lid);
 				stmt.setInt(3, nid);
-				ResultSet rset = stmt.executeQuery();
+				rset = stmt.executeQuery();
 				if (rset.next()) {
 					TMCName name = new TMCName(rset);
 					putName(cid, lid, nid, name);
@@ -372,22 +760,207 @@ public class TMC {
 			} catch (SQLException e) {
 				e.printStackTrace(System.err);
 				return null;
+			} finally {
+				release(SQL_NAME_LID, stmt, rset);
 			}
+		}
 		return ret;
 	}
 	
 	public static void putName(int cid, int nid, TMCName name) {
-		NAMES.put(cid + ";" + nid, name);
+		NAMES.put(LocationCache.key(cid, ANY_LANGUAGE, nid), name);
 	}
 	
 	public static void putName(int cid, int lid, int nid, TMCName name) {
-		NAMES.put(cid + ";" + lid + ";" + nid, name);
+		NAMES.put(LocationCache.key(cid, lid, nid), name);
+	}
+	
+	/**
+	 * @brief Reads names which are not in the cache yet with a single query.
+	 * 
+	 * Each name is cached in the same way as by {@link #getName(int, int)}.
+	 * 
+	 * @param cid The country ID
+	 * @param nids The name IDs
+	 */
+	private static void prefetchNames(int cid, Set<Integer> nids) {
+		List<Integer> missing = new ArrayList<Integer>();
+		for (Integer nid : nids)
+			if (NAMES.get(LocationCache.key(cid, ANY_LANGUAGE, nid)) == null)
+				missing.add(nid);
+		if (missing.isEmpty())
+			return;
+		PreparedStatement stmt = null;
+		ResultSet rset = null;
+		try {
+			stmt = prepare(SQL_NAMES);
+			stmt.setArray(1, dbConnection.createArrayOf("INTEGER", missing.toArray()));
+			stmt.setInt(2, cid);
+			rset = stmt.executeQuery();
+			int lastNid = -1;
+			while (rset.next()) {
+				TMCName name = new TMCName(rset);
+				putName(cid, name.lid, name.nid, name);
+				// rows are ordered by LID, as for getName(cid, nid)
+				if (name.nid != lastNid)
+					putName(cid, name.nid, name);
+				lastNid = name.nid;
+			}
+		} catch (SQLException e) {
+			e.printStackTrace(System.err);
+		} finally {
+			release(SQL_NAMES, stmt, rset);
+		}
+	}
+	
+	/** Columns holding name IDs, and columns holding LCDs of other locations, by table. */
+	private static final String[] AREA_NAME_COLUMNS = {"NID"};
+	private static final String[] AREA_LCD_COLUMNS = {"POL_LCD"};
+	private static final String[] ROAD_NAME_COLUMNS = {"RNID", "N1ID", "N2ID"};
+	private static final String[] ROAD_LCD_COLUMNS = {"POL_LCD"};
+	private static final String[] SEGMENT_LCD_COLUMNS = {"ROA_LCD", "SEG_LCD", "POL_LCD"};
+	private static final String[] POINT_LCD_COLUMNS = {"POL_LCD", "OTH_LCD", "ROA_LCD", "SEG_LCD"};
+	
+	/*
+	 * Batch queries take an array of codes as their first argument. They join with the array,
+	 * rather than using "LCD in (unnest(?))", so that HSQLDB looks up each code in the index.
+	 */
+	private static final String SQL_ADMINISTRATIVE_AREAS = "select AdministrativeAreas.* from unnest(cast(? as integer array)) as Lcds(LCD) join AdministrativeAreas on AdministrativeAreas.CID = ? AND AdministrativeAreas.TABCD = ? AND AdministrativeAreas.LCD = Lcds.LCD";
+	private static final String SQL_OTHER_AREAS = "select OtherAreas.* from unnest(cast(? as integer array)) as Lcds(LCD) join OtherAreas on OtherAreas.CID = ? AND OtherAreas.TABCD = ? AND OtherAreas.LCD = Lcds.LCD";
+	private static final String SQL_ROADS = "select Roads.* from unnest(cast(? as integer array)) as Lcds(LCD) join Roads on Roads.CID = ? AND Roads.TABCD = ? AND Roads.LCD = Lcds.LCD";
+	private static final String SQL_SEGMENTS = "select Segments.*, Soffsets.NEG_OFF_LCD, Soffsets.POS_OFF_LCD, Soffsets.LCD as OFF_LCD from unnest(cast(? as integer array)) as Lcds(LCD) join Segments on Segments.CID = ? AND Segments.TABCD = ? AND Segments.LCD = Lcds.LCD left join Soffsets on Soffsets.CID = Segments.CID AND Soffsets.TABCD = Segments.TABCD AND Soffsets.LCD = Segments.LCD";
+	private static final String SQL_POINTS = "select Points.*, Poffsets.NEG_OFF_LCD, Poffsets.POS_OFF_LCD, Poffsets.LCD as OFF_LCD from unnest(cast(? as integer array)) as Lcds(LCD) join Points on Points.CID = ? AND Points.TABCD = ? AND Points.LCD = Lcds.LCD left join Poffsets on Poffsets.CID = Points.CID AND Poffsets.TABCD = Points.TABCD AND Poffsets.LCD = Points.LCD";
+	
+	/**
+	 * @brief Reads a number of locations into the cache with as few queries as possible.
+	 * 
+	 * Resolving a location one by one takes several queries: one for each table in which the
+	 * location might be, plus one for each name and each location it refers to, recursively.
+	 * This method reads all locations not in the cache yet with one query per table, then all of
+	 * the names and locations they refer to in the same manner, level by level. Afterwards,
+	 * {@link #getLocation(int, int, int)} returns these locations from the cache.
+	 * 
+	 * Calling this method is never required, it just saves time when several locations are
+	 * needed at once, e.g. for a message with an extent or diversion routes.
+	 * 
+	 * @param cid The country ID
+	 * @param tabcd The location table number
+	 * @param lcds The location codes
+	 */
+	public static void prefetchLocations(int cid, int tabcd, Collection<Integer> lcds) {
+		if (getSnapshot(cid, tabcd) != null)
+			return;
+		Set<Integer> missing = new HashSet<Integer>();
+		for (Integer lcd : lcds)
+			if (LOCATIONS.get(LocationCache.key(cid, tabcd, lcd)) == null)
+				missing.add(lcd);
+		if (!missing.isEmpty())
+			prefetchLocations(cid, tabcd, missing, new HashSet<Integer>());
+	}
+	
+	/**
+	 * @brief Reads a number of locations into the cache with as few queries as possible.
+	 * 
+	 * @param cc The country code
+	 * @param tabcd The location table number
+	 * @param lcds The location codes
+	 * 
+	 * @see #prefetchLocations(int, int, Collection)
+	 */
+	public static void prefetchLocations(String cc, int tabcd, Collection<Integer> lcds) {
+		Country country = getCountry(cc, tabcd);
+		if (country != null)
+			prefetchLocations(country.cid, tabcd, lcds);
+	}
+	
+	/**
+	 * @brief Reads locations and, before them, the names and locations they refer to.
+	 * 
+	 * The result sets are read twice: first to collect references, which are then prefetched
+	 * recursively, and then to create the locations, which find everything they refer to in the
+	 * cache at that point.
+	 * 
+	 * @param cid The country ID
+	 * @param tabcd The location table number
+	 * @param lcds The location codes, none of which is in the cache
+	 * @param seen All location codes requested so far, to stop at circular references
+	 */
+	private static void prefetchLocations(int cid, int tabcd, Set<Integer> lcds, Set<Integer> seen) {
+		seen.addAll(lcds);
+		String[] sqls = {SQL_ADMINISTRATIVE_AREAS, SQL_OTHER_AREAS, SQL_ROADS, SQL_SEGMENTS, SQL_POINTS};
+		String[][] nameColumns = {AREA_NAME_COLUMNS, AREA_NAME_COLUMNS, ROAD_NAME_COLUMNS, ROAD_NAME_COLUMNS, ROAD_NAME_COLUMNS};
+		String[][] lcdColumns = {AREA_LCD_COLUMNS, AREA_LCD_COLUMNS, ROAD_LCD_COLUMNS, SEGMENT_LCD_COLUMNS, POINT_LCD_COLUMNS};
+		PreparedStatement[] stmts = new PreparedStatement[sqls.length];
+		ResultSet[] rsets = new ResultSet[sqls.length];
+		try {
+			Set<Integer> nids = new HashSet<Integer>();
+			Set<Integer> refs = new HashSet<Integer>();
+			Object[] array = lcds.toArray();
+			for (int i = 0; i < sqls.length; i++) {
+				stmts[i] = prepare(sqls[i], true);
+				stmts[i].setArray(1, dbConnection.createArrayOf("INTEGER", array));
+				stmts[i].setInt(2, cid);
+				stmts[i].setInt(3, tabcd);
+				rsets[i] = stmts[i].executeQuery();
+				while (rsets[i].next()) {
+					for (String column : nameColumns[i]) {
+						int nid = rsets[i].getInt(column);
+						if (!rsets[i].wasNull())
+							nids.add(nid);
+					}
+					for (String column : lcdColumns[i]) {
+						int lcd = rsets[i].getInt(column);
+						if (!rsets[i].wasNull() && !seen.contains(lcd)
+								&& (LOCATIONS.get(LocationCache.key(cid, tabcd, lcd)) == null))
+							refs.add(lcd);
+					}
+				}
+			}
+			
+			prefetchNames(cid, nids);
+			if (!refs.isEmpty())
+				prefetchLocations(cid, tabcd, refs, seen);
+			
+			for (int i = 0; i < sqls.length; i++) {
+				ResultSet rset = rsets[i];
+				rset.beforeFirst();
+				while (rset.next()) {
+					int lcd = rset.getInt("LCD");
+					TMCLocation location;
+					if (sqls[i] == SQL_ROADS) {
+						Road road = new Road(rset);
+						putRoad(cid, tabcd, lcd, road);
+						location = road;
+					} else if (sqls[i] == SQL_SEGMENTS) {
+						rset.getInt("OFF_LCD");
+						Segment segment = new Segment(rset, rset.wasNull() ? null : rset);
+						putSegment(cid, tabcd, lcd, segment);
+						location = segment;
+					} else if (sqls[i] == SQL_POINTS) {
+						rset.getInt("OFF_LCD");
+						TMCPoint point = new TMCPoint(rset, rset.wasNull() ? null : rset);
+						putPoint(cid, tabcd, lcd, point);
+						location = point;
+					} else {
+						TMCArea area = new TMCArea(rset);
+						putArea(cid, tabcd, lcd, area);
+						location = area;
+					}
+					putLocation(cid, tabcd, lcd, location);
+				}
+			}
+		} catch (SQLException e) {
+			e.printStackTrace(System.err);
+		} finally {
+			for (int i = 0; i < sqls.length; i++)
+				release(sqls[i], stmts[i], rsets[i]);
+		}
 	}
 	
-	private static Map<String, TMCLocation> LOCATIONS = new HashMap<String, TMCLocation>();
+	private static final LocationCache<TMCLocation> LOCATIONS = newCache();
 
 	public static TMCLocation getLocation(int cid, int tabcd, int lcd) {
-		TMCLocation ret = LOCATIONS.get(cid + ";" + tabcd + ";" + lcd);
+		TMCLocation ret = LOCATIONS.get(LocationCache.key(cid, tabcd, lcd));
 		if (ret == null) {
 			ret = getArea(cid, tabcd, lcd);
 			if (ret == null)
@@ -411,61 +984,85 @@ public class TMC {
 	}
 	
 	public static void putLocation(int cid, int tabcd, int lcd, TMCLocation location) {
-		LOCATIONS.put(cid + ";" + tabcd + ";" + lcd, location);
+		LOCATIONS.put(LocationCache.key(cid, tabcd, lcd), location);
 	}
 	
-	private static Map<String, TMCArea> AREAS = new HashMap<String, TMCArea>();
+	private static final LocationCache<TMCArea> AREAS = newCache();
 
 	public static TMCArea getArea(int cid, int tabcd, int lcd) {
-		TMCArea ret = AREAS.get(cid + ";" + tabcd + ";" + lcd);
-		if (ret == null) 
-			try {
-				PreparedStatement stmt = dbConnection.prepareStatement("select * from AdministrativeAreas where CID = ? AND TABCD = ? AND LCD = ?");
-				stmt.setInt(1, cid);
-				stmt.setInt(2, tabcd);
-				stmt.setInt(3, lcd);
-				ResultSet rset = stmt.executeQuery();
-				if (rset.next()) {
-					TMCArea area = new TMCArea(rset);
-					putArea(cid, tabcd, lcd, area);
-					putLocation(cid, tabcd, lcd, area);
-					return area;
-				} else {
-					stmt = dbConnection.prepareStatement("select * from OtherAreas where CID = ? AND TABCD = ? AND LCD = ?");
-					stmt.setInt(1, cid);
-					stmt.setInt(2, tabcd);
-					stmt.setInt(3, lcd);
-					rset = stmt.executeQuery();
-					if (rset.next()) {
-						TMCArea area = new TMCArea(rset);
-						putArea(cid, tabcd, lcd, area);
-						putLocation(cid, tabcd, lcd, area);
-						return area;
-					} else
-						return null;
-				}
-			} catch (SQLException e) {
-				e.printStackTrace(System.err);
-				return null;
+		TMCArea ret = AREAS.get(LocationCache.key(cid, tabcd, lcd));
+		if (ret == null) {
+			LocationSnapshot snapshot = getSnapshot(cid, tabcd);
+			if (snapshot != null) {
+				int row = snapshot.find(lcd, LocationSnapshot.ADMINISTRATIVE_AREA, LocationSnapshot.OTHER_AREA);
+				if (row == -1)
+					return null;
+				TMCArea area = new TMCArea(snapshot, row);
+				putArea(cid, tabcd, lcd, area);
+				putLocation(cid, tabcd, lcd, area);
+				return area;
 			}
+			ret = getArea(SQL_ADMINISTRATIVE_AREA, cid, tabcd, lcd);
+			if (ret == null)
+				ret = getArea(SQL_OTHER_AREA, cid, tabcd, lcd);
+		}
 		return ret;
 	}
 	
+	/**
+	 * @brief Reads an area from the table queried by {@code sql} and caches it.
+	 */
+	private static TMCArea getArea(String sql, int cid, int tabcd, int lcd) {
+		PreparedStatement stmt = null;
+		ResultSet rset = null;
+		try {
+			stmt = prepare(sql);
+			stmt.setInt(1, cid);
+			stmt.setInt(2, tabcd);
+			stmt.setInt(3, lcd);
+			rset = stmt.executeQuery();
+			if (rset.next()) {
+				TMCArea area = new TMCArea(rset);
+				putArea(cid, tabcd, lcd, area);
+				putLocation(cid, tabcd, lcd, area);
+				return area;
+			} else
+				return null;
+		} catch (SQLException e) {
+			e.printStackTrace(System.err);
+			return null;
+		} finally {
+			release(sql, stmt, rset);
+		}
+	}
+	
 	public static void putArea(int cid, int tabcd, int lcd, TMCArea area) {
-		AREAS.put(cid + ";" + tabcd + ";" + lcd, area);
+		AREAS.put(LocationCache.key(cid, tabcd, lcd), area);
 	}
 
-	private static Map<String, Road> ROADS = new HashMap<String, Road>();
+	private static final LocationCache<Road> ROADS = newCache();
 
 	public static Road getRoad(int cid, int tabcd, int lcd) {
-		Road ret = ROADS.get(cid + ";" + tabcd + ";" + lcd);
-		if (ret == null) 
+		Road ret = ROADS.get(LocationCache.key(cid, tabcd, lcd));
+		if (ret == null) {
+			LocationSnapshot snapshot = getSnapshot(cid, tabcd);
+			if (snapshot != null) {
+				int row = snapshot.find(lcd, LocationSnapshot.ROAD, LocationSnapshot.ROAD);
+				if (row == -1)
+					return null;
+				Road road = new Road(snapshot, row);
+				putRoad(cid, tabcd, lcd, road);
+				putLocation(cid, tabcd, lcd, road);
+				return road;
+			}
+			PreparedStatement stmt = null;
+			ResultSet rset = null;
 			try {
-				PreparedStatement stmt = dbConnection.prepareStatement("select * from Roads where CID = ? AND TABCD = ? AND LCD = ?");
+				stmt = prepare(SQL_ROAD);
 				stmt.setInt(1, cid);
 				stmt.setInt(2, tabcd);
 				stmt.setInt(3, lcd);
-				ResultSet rset = stmt.executeQuery();
+				rset = stmt.executeQuery();
 				if (rset.next()) {
 					Road road = new Road(rset);
 					putRoad(cid, tabcd, lcd, road);
@@ -476,36 +1073,43 @@ public class TMC {
 			} catch (SQLException e) {
 				e.printStackTrace(System.err);
 				return null;
+			} finally {
+				release(SQL_ROAD, stmt, rset);
 			}
+		}
 		return ret;
 	}
 	
 	public static void putRoad(int cid, int tabcd, int lcd, Road road) {
-		ROADS.put(cid + ";" + tabcd + ";" + lcd, road);
+		ROADS.put(LocationCache.key(cid, tabcd, lcd), road);
 	}
 	
-	private static Map<String, Segment> SEGMENTS = new HashMap<String, Segment>();
+	private static final LocationCache<Segment> SEGMENTS = newCache();
 
 	public static Segment getSegment(int cid, int tabcd, int lcd) {
-		Segment ret = SEGMENTS.get(cid + ";" + tabcd + ";" + lcd);
-		if (ret == null) 
+		Segment ret = SEGMENTS.get(LocationCache.key(cid, tabcd, lcd));
+		if (ret == null) {
+			LocationSnapshot snapshot = getSnapshot(cid, tabcd);
+			if (snapshot != null) {
+				int row = snapshot.find(lcd, LocationSnapshot.SEGMENT, LocationSnapshot.SEGMENT);
+				if (row == -1)
+					return null;
+				Segment segment = new Segment(snapshot, row);
+				putSegment(cid, tabcd, lcd, segment);
+				putLocation(cid, tabcd, lcd, segment);
+				return segment;
+			}
+			PreparedStatement stmt = null;
+			ResultSet rset = null;
 			try {
-				PreparedStatement stmt = dbConnection.prepareStatement("select * from Segments where CID = ? AND TABCD = ? AND LCD = ?");
+				stmt = prepare(SQL_SEGMENT);
 				stmt.setInt(1, cid);
 				stmt.setInt(2, tabcd);
 				stmt.setInt(3, lcd);
-				ResultSet rset = stmt.executeQuery();
+				rset = stmt.executeQuery();
 				if (rset.next()) {
-					stmt = dbConnection.prepareStatement("select * from Soffsets where CID = ? AND TABCD = ? AND LCD = ?");
-					stmt.setInt(1, cid);
-					stmt.setInt(2, tabcd);
-					stmt.setInt(3, lcd);
-					ResultSet offsets = stmt.executeQuery();
-					Segment segment;
-					if (offsets.next())
-						segment = new Segment(rset, offsets);
-					else
-						segment = new Segment(rset, null);
+					rset.getInt("OFF_LCD");
+					Segment segment = new Segment(rset, rset.wasNull() ? null : rset);
 					putSegment(cid, tabcd, lcd, segment);
 					putLocation(cid, tabcd, lcd, segment);
 					// TODO add to FIRST_SEGMENTS, LAST_SEGMENTS if conditions are met
@@ -515,15 +1119,52 @@ public class TMC {
 			} catch (SQLException e) {
 				e.printStackTrace(System.err);
 				return null;
+			} finally {
+				release(SQL_SEGMENT, stmt, rset);
 			}
+		}
 		return ret;
 	}
 	
 	public static void putSegment(int cid, int tabcd, int lcd, Segment segment) {
-		SEGMENTS.put(cid + ";" + tabcd + ";" + lcd, segment);
+		SEGMENTS.put(LocationCache.key(cid, tabcd, lcd), segment);
+	}
+	
+	/**
+	 * @brief Returns the LCD found by a query for the first or last sub-location of a location.
+	 * 
+	 * @param sql One of the {@code SQL_FIRST_*} or {@code SQL_LAST_*} queries
+	 * @param kind The kind of location which the query returns, {@link LocationSnapshot#SEGMENT}
+	 * or {@link LocationSnapshot#POINT}
+	 * @param last Whether the query is for the last rather than the first location
+	 * 
+	 * @return The LCD, or -1 if not found.
+	 */
+	private static int getEndLcd(String sql, int kind, boolean last, int cid, int tabcd, int lcd) throws SQLException {
+		LocationSnapshot snapshot = getSnapshot(cid, tabcd);
+		if (snapshot != null) {
+			int row = snapshot.findEnd(kind, lcd, last);
+			return (row == -1) ? -1 : snapshot.getLcd(row);
+		}
+		PreparedStatement stmt = null;
+		ResultSet rset = null;
+		try {
+			stmt = prepare(sql);
+			stmt.setInt(1, cid);
+			stmt.setInt(2, tabcd);
+			stmt.setInt(3, lcd);
+			stmt.setInt(4, lcd);
+			rset = stmt.executeQuery();
+			if (rset.next())
+				return rset.getInt("LCD");
+			else
+				return -1;
+		} finally {
+			release(sql, stmt, rset);
+		}
 	}
 	
-	private static Map<String, Segment> FIRST_SEGMENTS = new HashMap<String, Segment>();
+	private static final LocationCache<Segment> FIRST_SEGMENTS = newCache();
 
 	/**
 	 * @brief Gets the first segment of the location specified by the arguments.
@@ -535,40 +1176,17 @@ public class TMC {
 	 * @return The first segment, or {@code null} if not found.
 	 */
 	public static Segment getFirstSegment(int cid, int tabcd, int lcd) {
-		Segment ret = FIRST_SEGMENTS.get(cid + ";" + tabcd + ";" + lcd);
+		Segment ret = FIRST_SEGMENTS.get(LocationCache.key(cid, tabcd, lcd));
 		if (ret == null)
 			try {
-				PreparedStatement stmt = dbConnection.prepareStatement("select * from Segments where CID = ? AND TABCD = ? AND (SEG_LCD = ? OR ROA_LCD = ?) AND NOT EXISTS (SELECT * FROM Soffsets WHERE Soffsets.CID = Segments.CID AND Soffsets.TABCD = Segments.TABCD AND Soffsets.LCD = Segments.LCD AND Soffsets.NEG_OFF_LCD IS NOT NULL)");
-				stmt.setInt(1, cid);
-				stmt.setInt(2, tabcd);
-				stmt.setInt(3, lcd);
-				stmt.setInt(4, lcd);
-				ResultSet rset = stmt.executeQuery();
-				Segment segment = null;
-				if (rset.next()) {
-					try {
-						segment = getSegment(cid, tabcd, rset.getInt("LCD"));
-					} catch (SQLException e) {
-						segment = null;
-					}
-					if (segment == null) {
-						stmt = dbConnection.prepareStatement("select * from Soffsets where CID = ? AND TABCD = ? AND LCD = ?");
-						stmt.setInt(1, cid);
-						stmt.setInt(2, tabcd);
-						stmt.setInt(3, lcd);
-						ResultSet offsets = stmt.executeQuery();
-						if (offsets.next())
-							segment = new Segment(rset, offsets);
-						else
-							segment = new Segment(rset, null);
-						putSegment(cid, tabcd, segment.lcd, segment);
-						putLocation(cid, tabcd, segment.lcd, segment);
-					}
-					putFirstSegment(cid, tabcd, lcd, segment);
-					// TODO populate LAST_SEGMENTS if available
-					return segment;
-				} else
+				int segLcd = getEndLcd(SQL_FIRST_SEGMENT, LocationSnapshot.SEGMENT, false, cid, tabcd, lcd);
+				if (segLcd == -1)
 					return null;
+				Segment segment = getSegment(cid, tabcd, segLcd);
+				if (segment != null)
+					putFirstSegment(cid, tabcd, lcd, segment);
+				// TODO populate LAST_SEGMENTS if available
+				return segment;
 			} catch (SQLException e) {
 				e.printStackTrace(System.err);
 				return null;
@@ -577,10 +1195,10 @@ public class TMC {
 	}
 	
 	public static void putFirstSegment(int cid, int tabcd, int lcd, Segment segment) {
-		FIRST_SEGMENTS.put(cid + ";" + tabcd + ";" + lcd, segment);
+		FIRST_SEGMENTS.put(LocationCache.key(cid, tabcd, lcd), segment);
 	}
 	
-	private static Map<String, Segment> LAST_SEGMENTS = new HashMap<String, Segment>();
+	private static final LocationCache<Segment> LAST_SEGMENTS = newCache();
 
 	/**
 	 * @brief Gets the last segment of the location specified by the arguments.
@@ -592,40 +1210,17 @@ public class TMC {
 	 * @return The last segment, or {@code null} if not found.
 	 */
 	public static Segment getLastSegment(int cid, int tabcd, int lcd) {
-		Segment ret = LAST_SEGMENTS.get(cid + ";" + tabcd + ";" + lcd);
+		Segment ret = LAST_SEGMENTS.get(LocationCache.key(cid, tabcd, lcd));
 		if (ret == null)
 			try {
-				PreparedStatement stmt = dbConnection.prepareStatement("select * from Segments where CID = ? AND TABCD = ? AND (SEG_LCD = ? OR ROA_LCD = ?) AND NOT EXISTS (SELECT * FROM Soffsets WHERE Soffsets.CID = Segments.CID AND Soffsets.TABCD = Segments.TABCD AND Soffsets.LCD = Segments.LCD AND Soffsets.POS_OFF_LCD IS NOT NULL)");
-				stmt.setInt(1, cid);
-				stmt.setInt(2, tabcd);
-				stmt.setInt(3, lcd);
-				stmt.setInt(4, lcd);
-				ResultSet rset = stmt.executeQuery();
-				Segment segment = null;
-				if (rset.next()) {
-					try {
-						segment = getSegment(cid, tabcd, rset.getInt("LCD"));
-					} catch (SQLException e) {
-						segment = null;
-					}
-					if (segment == null) {
-						stmt = dbConnection.prepareStatement("select * from Soffsets where CID = ? AND TABCD = ? AND LCD = ?");
-						stmt.setInt(1, cid);
-						stmt.setInt(2, tabcd);
-						stmt.setInt(3, lcd);
-						ResultSet offsets = stmt.executeQuery();
-						if (offsets.next())
-							segment = new Segment(rset, offsets);
-						else
-							segment = new Segment(rset, null);
-						putSegment(cid, tabcd, segment.lcd, segment);
-						putLocation(cid, tabcd, segment.lcd, segment);
-					}
-					putLastSegment(cid, tabcd, lcd, segment);
-					// TODO populate FIRST_SEGMENTS if available
-					return segment;
-				} else
+				int segLcd = getEndLcd(SQL_LAST_SEGMENT, LocationSnapshot.SEGMENT, true, cid, tabcd, lcd);
+				if (segLcd == -1)
 					return null;
+				Segment segment = getSegment(cid, tabcd, segLcd);
+				if (segment != null)
+					putLastSegment(cid, tabcd, lcd, segment);
+				// TODO populate FIRST_SEGMENTS if available
+				return segment;
 			} catch (SQLException e) {
 				e.printStackTrace(System.err);
 				return null;
@@ -634,31 +1229,35 @@ public class TMC {
 	}
 	
 	public static void putLastSegment(int cid, int tabcd, int lcd, Segment segment) {
-		LAST_SEGMENTS.put(cid + ";" + tabcd + ";" + lcd, segment);
+		LAST_SEGMENTS.put(LocationCache.key(cid, tabcd, lcd), segment);
 	}
 	
-	private static Map<String, TMCPoint> POINTS = new HashMap<String, TMCPoint>();
+	private static final LocationCache<TMCPoint> POINTS = newCache();
 
 	public static TMCPoint getPoint(int cid, int tabcd, int lcd) {
-		TMCPoint ret = POINTS.get(cid + ";" + tabcd + ";" + lcd);
-		if (ret == null) 
+		TMCPoint ret = POINTS.get(LocationCache.key(cid, tabcd, lcd));
+		if (ret == null) {
+			LocationSnapshot snapshot = getSnapshot(cid, tabcd);
+			if (snapshot != null) {
+				int row = snapshot.find(lcd, LocationSnapshot.POINT, LocationSnapshot.POINT);
+				if (row == -1)
+					return null;
+				TMCPoint point = new TMCPoint(snapshot, row);
+				putPoint(cid, tabcd, lcd, point);
+				putLocation(cid, tabcd, lcd, point);
+				return point;
+			}
+			PreparedStatement stmt = null;
+			ResultSet rset = null;
 			try {
-				PreparedStatement stmt = dbConnection.prepareStatement("select * from Points where CID = ? AND TABCD = ? AND LCD = ?");
+				stmt = prepare(SQL_POINT);
 				stmt.setInt(1, cid);
 				stmt.setInt(2, tabcd);
 				stmt.setInt(3, lcd);
-				ResultSet rset = stmt.executeQuery();
-				TMCPoint point;
+				rset = stmt.executeQuery();
 				if (rset.next()) {
-					stmt = dbConnection.prepareStatement("select * from Poffsets where CID = ? AND TABCD = ? AND LCD = ?");
-					stmt.setInt(1, cid);
-					stmt.setInt(2, tabcd);
-					stmt.setInt(3, lcd);
-					ResultSet offsets = stmt.executeQuery();
-					if (offsets.next())
-						point = new TMCPoint(rset, offsets);
-					else
-						point = new TMCPoint(rset, null);
+					rset.getInt("OFF_LCD");
+					TMCPoint point = new TMCPoint(rset, rset.wasNull() ? null : rset);
 					putPoint(cid, tabcd, lcd, point);
 					putLocation(cid, tabcd, lcd, point);
 					// TODO add to FIRST_POINTS, LAST_POINTS if conditions are met
@@ -668,15 +1267,18 @@ public class TMC {
 			} catch (SQLException e) {
 				e.printStackTrace(System.err);
 				return null;
+			} finally {
+				release(SQL_POINT, stmt, rset);
 			}
+		}
 		return ret;
 	}
 	
 	public static void putPoint(int cid, int tabcd, int lcd, TMCPoint point) {
-		POINTS.put(cid + ";" + tabcd + ";" + lcd, point);
+		POINTS.put(LocationCache.key(cid, tabcd, lcd), point);
 	}
 	
-	private static Map<String, TMCPoint> FIRST_POINTS = new HashMap<String, TMCPoint>();
+	private static final LocationCache<TMCPoint> FIRST_POINTS = newCache();
 
 	/**
 	 * @brief Gets the first point of the location specified by the arguments.
@@ -688,40 +1290,17 @@ public class TMC {
 	 * @return The first point, or {@code null} if not found.
 	 */
 	public static TMCPoint getFirstPoint(int cid, int tabcd, int lcd) {
-		TMCPoint ret = FIRST_POINTS.get(cid + ";" + tabcd + ";" + lcd);
+		TMCPoint ret = FIRST_POINTS.get(LocationCache.key(cid, tabcd, lcd));
 		if (ret == null)
 			try {
-				PreparedStatement stmt = dbConnection.prepareStatement("select * from Points where CID = ? AND TABCD = ? AND (SEG_LCD = ? OR ROA_LCD = ?) AND NOT EXISTS (SELECT * FROM Poffsets WHERE Poffsets.CID = Points.CID AND Poffsets.TABCD = Points.TABCD AND Poffsets.LCD = Points.LCD AND Poffsets.NEG_OFF_LCD IS NOT NULL) AND (INTERRUPTSROAD IS NULL OR INTERRUPTSROAD = 0)");
-				stmt.setInt(1, cid);
-				stmt.setInt(2, tabcd);
-				stmt.setInt(3, lcd);
-				stmt.setInt(4, lcd);
-				ResultSet rset = stmt.executeQuery();
-				TMCPoint point = null;
-				if (rset.next()) {
-					try {
-						point = getPoint(cid, tabcd, rset.getInt("LCD"));
-					} catch (SQLException e) {
-						point = null;
-					}
-					if (point == null) {
-						stmt = dbConnection.prepareStatement("select * from Poffsets where CID = ? AND TABCD = ? AND LCD = ?");
-						stmt.setInt(1, cid);
-						stmt.setInt(2, tabcd);
-						stmt.setInt(3, lcd);
-						ResultSet offsets = stmt.executeQuery();
-						if (offsets.next())
-							point = new TMCPoint(rset, offsets);
-						else
-							point = new TMCPoint(rset, null);
-						putPoint(cid, tabcd, point.lcd, point);
-						putLocation(cid, tabcd, point.lcd, point);
-					}
-					putFirstPoint(cid, tabcd, lcd, point);
-					// TODO populate LAST_POINTS if applicable
-					return point;
-				} else
+				int pointLcd = getEndLcd(SQL_FIRST_POINT, LocationSnapshot.POINT, false, cid, tabcd, lcd);
+				if (pointLcd == -1)
 					return null;
+				TMCPoint point = getPoint(cid, tabcd, pointLcd);
+				if (point != null)
+					putFirstPoint(cid, tabcd, lcd, point);
+				// TODO populate LAST_POINTS if applicable
+				return point;
 			} catch (SQLException e) {
 				e.printStackTrace(System.err);
 				return null;
@@ -730,10 +1309,10 @@ public class TMC {
 	}
 	
 	public static void putFirstPoint(int cid, int tabcd, int lcd, TMCPoint point) {
-		FIRST_POINTS.put(cid + ";" + tabcd + ";" + lcd, point);
+		FIRST_POINTS.put(LocationCache.key(cid, tabcd, lcd), point);
 	}
 	
-	private static Map<String, TMCPoint> LAST_POINTS = new HashMap<String, TMCPoint>();
+	private static final LocationCache<TMCPoint> LAST_POINTS = newCache();
 
 	/**
 	 * @brief Gets the last point of the location specified by the arguments.
@@ -745,49 +1324,436 @@ public class TMC {
 	 * @return The last point, or {@code null} if not found.
 	 */
 	public static TMCPoint getLastPoint(int cid, int tabcd, int lcd) {
-		TMCPoint ret = LAST_POINTS.get(cid + ";" + tabcd + ";" + lcd);
+		TMCPoint ret = LAST_POINTS.get(LocationCache.key(cid, tabcd, lcd));
 		if (ret == null)
 			try {
-				PreparedStatement stmt = dbConnection.prepareStatement("select * from Points where CID = ? AND TABCD = ? AND (SEG_LCD = ? OR ROA_LCD = ?) AND NOT EXISTS (SELECT * FROM Poffsets WHERE Poffsets.CID = Points.CID AND Poffsets.TABCD = Points.TABCD AND Poffsets.LCD = Points.LCD AND Poffsets.POS_OFF_LCD IS NOT NULL) AND (INTERRUPTSROAD IS NULL OR INTERRUPTSROAD = 0)");
+				int pointLcd = getEndLcd(SQL_LAST_POINT, LocationSnapshot.POINT, true, cid, tabcd, lcd);
+				if (pointLcd == -1)
+					return null;
+				TMCPoint point = getPoint(cid, tabcd, pointLcd);
+				if (point != null)
+					putLastPoint(cid, tabcd, lcd, point);
+				// TODO populate FIRST_POINTS if applicable
+				return point;
+			} catch (SQLException e) {
+				e.printStackTrace(System.err);
+				return null;
+			}
+		return ret;
+	}
+	
+	public static void putLastPoint(int cid, int tabcd, int lcd, TMCPoint point) {
+		LAST_POINTS.put(LocationCache.key(cid, tabcd, lcd), point);
+	}
+	
+	/**
+	 * Locks for the data derived from a whole data set, by {@link LocationCache#key(int, int, int)}
+	 * with an LCD of 0. Offset chains and point grids are built and discarded while holding the
+	 * lock of their data set, so that a build which started before the data set changed cannot
+	 * store its result after {@link #invalidate(int, int, Set, Set, boolean)} has discarded it.
+	 */
+	private static final ConcurrentHashMap<Long, Object> DATA_SET_LOCKS = new ConcurrentHashMap<Long, Object>();
+	
+	private static Object getDataSetLock(long key) {
+		Object ret = DATA_SET_LOCKS.get(key);
+		if (ret == null) {
+			Object lock = new Object();
+			ret = DATA_SET_LOCKS.putIfAbsent(key, lock);
+			if (ret == null)
+				ret = lock;
+		}
+		return ret;
+	}
+	
+	/** Offset chains of segments, by {@link LocationCache#key(int, int, int)} with an LCD of 0. */
+	private static final Map<Long, OffsetChains> SEGMENT_CHAINS = Collections.synchronizedMap(new HashMap<Long, OffsetChains>());
+	
+	/** Offset chains of points, by {@link LocationCache#key(int, int, int)} with an LCD of 0. */
+	private static final Map<Long, OffsetChains> POINT_CHAINS = Collections.synchronizedMap(new HashMap<Long, OffsetChains>());
+	
+	/**
+	 * @brief Returns the offset chains of all segments of a location data set.
+	 * 
+	 * @return The chains, or {@code null} if they cannot be read.
+	 */
+	static OffsetChains getSegmentChains(int cid, int tabcd) {
+		return getOffsetChains(SEGMENT_CHAINS, SQL_SEGMENT_OFFSETS, LocationSnapshot.SEGMENT, cid, tabcd);
+	}
+	
+	/**
+	 * @brief Returns the offset chains of all points of a location data set.
+	 * 
+	 * @return The chains, or {@code null} if they cannot be read.
+	 */
+	static OffsetChains getPointChains(int cid, int tabcd) {
+		return getOffsetChains(POINT_CHAINS, SQL_POINT_OFFSETS, LocationSnapshot.POINT, cid, tabcd);
+	}
+	
+	/**
+	 * @brief Returns the offset chains of all locations of one kind in a location data set.
+	 * 
+	 * Chains are built on first use, from the snapshot of the data set if there is one, else
+	 * with a single query, and kept until locations of the data set change.
+	 * 
+	 * @param chains The map which holds the chains for {@code kind}
+	 * @param sql The query for the LCD and offsets of all locations of {@code kind}
+	 * @param kind The kind of location, {@link LocationSnapshot#SEGMENT} or {@link LocationSnapshot#POINT}
+	 * 
+	 * @return The chains, or {@code null} if they cannot be read.
+	 */
+	private static OffsetChains getOffsetChains(Map<Long, OffsetChains> chains, String sql, int kind, int cid, int tabcd) {
+		long key = LocationCache.key(cid, tabcd, 0);
+		OffsetChains ret = chains.get(key);
+		if (ret != null)
+			return ret;
+		synchronized (getDataSetLock(key)) {
+			ret = chains.get(key);
+			if (ret != null)
+				return ret;
+			ret = buildOffsetChains(sql, kind, cid, tabcd);
+			if (ret != null)
+				chains.put(key, ret);
+			return ret;
+		}
+	}
+	
+	/**
+	 * @brief Builds the offset chains of all locations of one kind in a location data set.
+	 * 
+	 * @see #getOffsetChains(Map, String, int, int, int)
+	 */
+	private static OffsetChains buildOffsetChains(String sql, int kind, int cid, int tabcd) {
+		int count = 0;
+		int[] lcds, negOffLcds, posOffLcds;
+		LocationSnapshot snapshot = getSnapshot(cid, tabcd);
+		if (snapshot != null) {
+			lcds = new int[snapshot.size()];
+			negOffLcds = new int[lcds.length];
+			posOffLcds = new int[lcds.length];
+			for (int row = 0; row < snapshot.size(); row++)
+				if (snapshot.getKind(row) == kind) {
+					lcds[count] = snapshot.getLcd(row);
+					negOffLcds[count] = snapshot.hasOffsets(row) ? snapshot.getNegOffLcd(row) : -1;
+					posOffLcds[count] = snapshot.hasOffsets(row) ? snapshot.getPosOffLcd(row) : -1;
+					count++;
+				}
+		} else {
+			lcds = new int[256];
+			negOffLcds = new int[lcds.length];
+			posOffLcds = new int[lcds.length];
+			PreparedStatement stmt = null;
+			ResultSet rset = null;
+			try {
+				stmt = prepare(sql);
 				stmt.setInt(1, cid);
 				stmt.setInt(2, tabcd);
-				stmt.setInt(3, lcd);
-				stmt.setInt(4, lcd);
-				ResultSet rset = stmt.executeQuery();
-				TMCPoint point = null;
-				if (rset.next()) {
-					try {
-						point = getPoint(cid, tabcd, rset.getInt("LCD"));
-					} catch (SQLException e) {
-						point = null;
-					}
-					if (point == null) {
-						stmt = dbConnection.prepareStatement("select * from Poffsets where CID = ? AND TABCD = ? AND LCD = ?");
-						stmt.setInt(1, cid);
-						stmt.setInt(2, tabcd);
-						stmt.setInt(3, lcd);
-						ResultSet offsets = stmt.executeQuery();
-						if (offsets.next())
-							point = new TMCPoint(rset, offsets);
-						else
-							point = new TMCPoint(rset, null);
-						putPoint(cid, tabcd, point.lcd, point);
-						putLocation(cid, tabcd, point.lcd, point);
+				rset = stmt.executeQuery();
+				while (rset.next()) {
+					if (count == lcds.length) {
+						lcds = Arrays.copyOf(lcds, count * 2);
+						negOffLcds = Arrays.copyOf(negOffLcds, count * 2);
+						posOffLcds = Arrays.copyOf(posOffLcds, count * 2);
 					}
-					putLastPoint(cid, tabcd, lcd, point);
-					// TODO populate FIRST_POINTS if applicable
-					return point;
-				} else
-					return null;
+					lcds[count] = rset.getInt("LCD");
+					negOffLcds[count] = rset.getInt("NEG_OFF_LCD");
+					if (rset.wasNull())
+						negOffLcds[count] = -1;
+					posOffLcds[count] = rset.getInt("POS_OFF_LCD");
+					if (rset.wasNull())
+						posOffLcds[count] = -1;
+					count++;
+				}
+			} catch (SQLException e) {
+				e.printStackTrace(System.err);
+				return null;
+			} finally {
+				release(sql, stmt, rset);
+			}
+		}
+		return new OffsetChains(count, lcds, negOffLcds, posOffLcds);
+	}
+	
+	/** Size of the cells of {@link #POINT_GRIDS} in degrees. */
+	private static final float POINT_GRID_CELL_SIZE = 0.05f;
+	
+	/** Location codes of points by their coordinates, by {@link LocationCache#key(int, int, int)} with an LCD of 0. */
+	private static final Map<Long, SpatialGrid<Integer>> POINT_GRIDS = Collections.synchronizedMap(new HashMap<Long, SpatialGrid<Integer>>());
+	
+	/**
+	 * @brief Returns a grid of the location codes of all points of a location data set.
+	 * 
+	 * The grid is built on first use, from the snapshot of the data set if there is one, else
+	 * with a single query, and kept until locations of the data set change. Points without
+	 * coordinates are left out. The grid must not be modified.
+	 * 
+	 * @return The grid, or {@code null} if the points cannot be read.
+	 */
+	private static SpatialGrid<Integer> getPointGrid(int cid, int tabcd) {
+		long key = LocationCache.key(cid, tabcd, 0);
+		SpatialGrid<Integer> ret = POINT_GRIDS.get(key);
+		if (ret != null)
+			return ret;
+		synchronized (getDataSetLock(key)) {
+			ret = POINT_GRIDS.get(key);
+			if (ret != null)
+				return ret;
+			ret = buildPointGrid(cid, tabcd);
+			if (ret != null)
+				POINT_GRIDS.put(key, ret);
+			return ret;
+		}
+	}
+	
+	/**
+	 * @brief Builds a grid of the location codes of all points of a location data set.
+	 * 
+	 * @see #getPointGrid(int, int)
+	 */
+	private static SpatialGrid<Integer> buildPointGrid(int cid, int tabcd) {
+		SpatialGrid<Integer> ret = new SpatialGrid<Integer>(POINT_GRID_CELL_SIZE);
+		LocationSnapshot snapshot = getSnapshot(cid, tabcd);
+		if (snapshot != null) {
+			for (int row = 0; row < snapshot.size(); row++)
+				// snapshots store missing coordinates as 0
+				if ((snapshot.getKind(row) == LocationSnapshot.POINT)
+						&& ((snapshot.getXCoord(row) != 0) || (snapshot.getYCoord(row) != 0)))
+					ret.add(snapshot.getLcd(row), snapshot.getXCoord(row), snapshot.getYCoord(row));
+		} else {
+			PreparedStatement stmt = null;
+			ResultSet rset = null;
+			try {
+				stmt = prepare(SQL_POINT_COORDS);
+				stmt.setInt(1, cid);
+				stmt.setInt(2, tabcd);
+				rset = stmt.executeQuery();
+				while (rset.next()) {
+					float x = rset.getFloat("XCOORD");
+					if (rset.wasNull())
+						continue;
+					float y = rset.getFloat("YCOORD");
+					if (rset.wasNull())
+						continue;
+					ret.add(rset.getInt("LCD"), x, y);
+				}
 			} catch (SQLException e) {
 				e.printStackTrace(System.err);
 				return null;
+			} finally {
+				release(SQL_POINT_COORDS, stmt, rset);
 			}
+		}
 		return ret;
 	}
 	
-	public static void putLastPoint(int cid, int tabcd, int lcd, TMCPoint point) {
-		LAST_POINTS.put(cid + ";" + tabcd + ";" + lcd, point);
+	/**
+	 * @brief Returns all points of a location data set inside a bounding box.
+	 * 
+	 * Coordinates are in degrees, as in {@link TMCPoint#xCoord} and {@link TMCPoint#yCoord}.
+	 * The bounds are inclusive.
+	 * 
+	 * @param cid The country ID
+	 * @param tabcd The location table number
+	 * @param minX The western bound
+	 * @param minY The southern bound
+	 * @param maxX The eastern bound
+	 * @param maxY The northern bound
+	 * 
+	 * @return The points in no particular order, or an empty list if there are none.
+	 */
+	public static List<TMCPoint> getPoints(int cid, int tabcd, float minX, float minY, float maxX, float maxY) {
+		List<TMCPoint> ret = new ArrayList<TMCPoint>();
+		SpatialGrid<Integer> grid = getPointGrid(cid, tabcd);
+		if (grid == null)
+			return ret;
+		List<Integer> lcds = grid.query(minX, minY, maxX, maxY);
+		prefetchLocations(cid, tabcd, lcds);
+		for (int lcd : lcds) {
+			TMCPoint point = getPoint(cid, tabcd, lcd);
+			if (point != null)
+				ret.add(point);
+		}
+		return ret;
+	}
+	
+	/**
+	 * @brief Returns the point of a location data set which is nearest to the given coordinates.
+	 * 
+	 * @param cid The country ID
+	 * @param tabcd The location table number
+	 * @param x The longitude
+	 * @param y The latitude
+	 * 
+	 * @return The point, or {@code null} if the data set has no points.
+	 */
+	public static TMCPoint getNearestPoint(int cid, int tabcd, float x, float y) {
+		SpatialGrid<Integer> grid = getPointGrid(cid, tabcd);
+		if (grid == null)
+			return null;
+		Integer lcd = grid.nearest(x, y);
+		return (lcd == null) ? null : getPoint(cid, tabcd, lcd);
+	}
+	
+	/**
+	 * @brief Returns the road of a location data set which is nearest to the given coordinates.
+	 * 
+	 * Roads have no coordinates of their own, thus this is the road of the nearest point, either
+	 * directly or through its segment.
+	 * 
+	 * @param cid The country ID
+	 * @param tabcd The location table number
+	 * @param x The longitude
+	 * @param y The latitude
+	 * 
+	 * @return The road, or {@code null} if the data set has no points or the nearest point is
+	 * not on a road.
+	 */
+	public static Road getNearestRoad(int cid, int tabcd, float x, float y) {
+		TMCPoint point = getNearestPoint(cid, tabcd, x, y);
+		if (point == null)
+			return null;
+		if (point.road != null)
+			return point.road;
+		if (point.segment != null)
+			return point.segment.road;
+		return null;
+	}
+	
+	/**
+	 * @brief Discards cached data after location table records of a country have changed.
+	 * 
+	 * Snapshots of the data sets concerned are created anew from the database, before any cached
+	 * data is discarded. Snapshots mapped from a file are written back to that file, so that they
+	 * are not outdated when loaded again. Cached locations
+	 * and names which were read from changed records are removed, as well as cached locations which
+	 * refer to them, directly or through other locations. First and last segments and points, as well as
+	 * offset chains and point grids, are discarded for the whole data set if any location has changed, since they
+	 * depend on the offsets of other locations.
+	 * 
+	 * @param cid The country ID
+	 * @param tabcd The location table number of the data set in which locations have changed
+	 * @param lcds The location codes of changed locations, including those with changed offsets
+	 * @param nids The IDs of changed names, which may be used by any data set of the country
+	 * @param dataSet Whether the country or the data set record has changed
+	 */
+	static void invalidate(final int cid, final int tabcd, Set<Integer> lcds, final Set<Integer> nids, boolean dataSet) {
+		if (lcds.isEmpty() && nids.isEmpty() && !dataSet)
+			return;
+		
+		for (LocationSnapshot snapshot : SNAPSHOTS)
+			if ((snapshot.cid == cid) && (!nids.isEmpty() || (snapshot.tabcd == tabcd))) {
+				// snapshots of data sets which are not in the database are kept
+				LocationSnapshot update = createSnapshot(snapshot.cid, snapshot.tabcd);
+				if (update == null)
+					continue;
+				File file = snapshot.getFile();
+				if (file != null)
+					try {
+						// the old snapshot remains valid, since the file is replaced rather than overwritten
+						update.write(file);
+						update = LocationSnapshot.map(file);
+					} catch (IOException e) {
+						e.printStackTrace(System.err);
+					}
+				addSnapshot(update);
+			}
+		
+		if (dataSet) {
+			LOCATION_DATASETS.remove(cid + ";" + tabcd);
+			for (Iterator<Country> it = COUNTRIES.values().iterator(); it.hasNext(); )
+				if (it.next().cid == cid)
+					it.remove();
+		}
+		
+		NAMES.removeAll(new LocationCache.Filter<TMCName>() {
+			public boolean accept(long key, TMCName value) {
+				return (value.cid == cid) && nids.contains(value.nid);
+			}
+		});
+		
+		/*
+		 * Find the cached locations of the country which refer to changed locations or names,
+		 * directly or through other cached locations.
+		 */
+		List<LocationCache<? extends TMCLocation>> caches = new ArrayList<LocationCache<? extends TMCLocation>>();
+		caches.add(LOCATIONS);
+		caches.add(AREAS);
+		caches.add(ROADS);
+		caches.add(SEGMENTS);
+		caches.add(POINTS);
+		final Set<Long> changed = new HashSet<Long>();
+		List<Long> pending = new ArrayList<Long>();
+		for (int lcd : lcds)
+			pending.add(LocationCache.key(cid, tabcd, lcd));
+		Map<Long, List<Long>> referrers = new HashMap<Long, List<Long>>();
+		for (LocationCache<? extends TMCLocation> cache : caches)
+			for (TMCLocation location : cache.values()) {
+				if (location.cid != cid)
+					continue;
+				long key = LocationCache.key(cid, location.tabcd, location.lcd);
+				if (location.refersTo(nids))
+					pending.add(key);
+				for (int lcd : location.getReferences())
+					if (lcd != -1) {
+						long ref = LocationCache.key(cid, location.tabcd, lcd);
+						List<Long> list = referrers.get(ref);
+						if (list == null)
+							referrers.put(ref, list = new ArrayList<Long>());
+						list.add(key);
+					}
+			}
+		while (!pending.isEmpty()) {
+			long key = pending.remove(pending.size() - 1);
+			if (changed.add(key) && referrers.containsKey(key))
+				pending.addAll(referrers.get(key));
+		}
+		LocationCache.Filter<Object> filter = new LocationCache.Filter<Object>() {
+			public boolean accept(long key, Object value) {
+				return changed.contains(key);
+			}
+		};
+		for (LocationCache<? extends TMCLocation> cache : caches)
+			cache.removeAll(filter);
+		
+		if (!lcds.isEmpty()) {
+			final long prefix = LocationCache.key(cid, tabcd, 0) >>> 32;
+			LocationCache.Filter<Object> dataSetFilter = new LocationCache.Filter<Object>() {
+				public boolean accept(long key, Object value) {
+					return (key >>> 32) == prefix;
+				}
+			};
+			for (LocationCache<?> cache : Arrays.asList(FIRST_SEGMENTS, LAST_SEGMENTS, FIRST_POINTS, LAST_POINTS))
+				cache.removeAll(dataSetFilter);
+			long key = LocationCache.key(cid, tabcd, 0);
+			synchronized (getDataSetLock(key)) {
+				SEGMENT_CHAINS.remove(key);
+				POINT_CHAINS.remove(key);
+				POINT_GRIDS.remove(key);
+			}
+		}
+	}
+	
+	/**
+	 * @brief Sets the number of records which are inserted at once when importing location tables.
+	 * 
+	 * @param batchSize The maximum number of records per JDBC batch
+	 */
+	public static void setImportBatchSize(int batchSize) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+		importBatchSize = batchSize;
+	}
+	
+	/**
+	 * @brief Sets the number of threads which parse location table files during an import.
+	 * 
+	 * By default, one thread is used per processor.
+	 * 
+	 * @param threads The number of threads
+	 */
+	public static void setImportThreads(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("Number of threads must be positive: " + threads);
+		importThreads = threads;
 	}
 	
 	/**
@@ -809,6 +1775,11 @@ public class TMC {
 
 	/**
 	 * @brief Reads location data sets from the given path and its immediate subfolders.
+	 * 
+	 * Data sets which are already in the database are updated in place: only records which have
+	 * been added, changed or removed are written, and only the cached data which depends on them
+	 * is discarded. Hence location tables can be updated while messages are being decoded.
+	 * 
 	 * @param path
 	 */
 	public static void readLocationTables(File path) {
@@ -816,23 +1787,23 @@ public class TMC {
 		if (!isDbInMemory())
 			initDb();
 		
-		readLocationTablesFromDir(path);
+		List<File> paths = new ArrayList<File>();
+		paths.add(path);
 		for (File file: path.listFiles())
 			if (file.isDirectory())
-				readLocationTablesFromDir(file);
+				paths.add(file);
+		importDataSets(paths);
 		
 		if (!isDbInMemory()) {
-			// if database is not an in-memory DB, close database to compact files on disk, then reopen it
+			// if database is not an in-memory DB, write changes to the database files
 			try {
-				PreparedStatement stmt = dbConnection.prepareStatement("shutdown compact;");
+				PreparedStatement stmt = dbConnection.prepareStatement("checkpoint;");
 				stmt.execute();
+				stmt.close();
 				dbConnection.commit();
 			} catch (SQLException e) {
 				e.printStackTrace(System.err);
-				return;
-			}	
-			String url = getDbUrl();
-			setDbUrl(url);
+			}
 		}
 	}
 	
@@ -907,256 +1878,117 @@ public class TMC {
 	}
 	
 	/**
-	 * @brief Determines if the location data set at {@code path} needs to be imported in the database,
-	 * and removes older versions of the data set.
+	 * @brief How a location data set is imported, see {@link TMC#checkDataSetUpdate(File)}.
+	 */
+	static enum DataSetUpdate {
+		/** The data set is not imported. */
+		SKIP,
+		/** The data set is not in the database yet, its records are inserted. */
+		INSERT,
+		/** The database holds the same or an older version of the data set, which is updated. */
+		UPDATE
+	}
+	
+	/**
+	 * @brief Reads the CID, TABCD and version of the location data set at {@code path}.
 	 * 
-	 * A location data set will be imported into the database if the database does not yet contain a
-	 * data set with the same CID and TABCD, or if it contains an older version. In the latter case,
-	 * this method will delete all data associated with the older version.
+	 * @param path The path to the folder which holds the files of the data set
+	 * @return The CID, TABCD and version, in this order.
+	 * @throws IOException if {@code LOCATIONDATASETS.DAT} cannot be read
+	 * @throws IllegalArgumentException if the file does not hold a valid data set record
+	 */
+	static String[] readDataSetRecord(File path) throws IOException {
+		File file = new File(path.getAbsolutePath() + File.separator + "LOCATIONDATASETS.DAT");
+		BufferedReader br = openLTFile(file);
+		try {
+			String line = br.readLine();
+			String[] fields = getFields(line);
+			line = br.readLine();
+			String[] values = TMC.colonPattern.split(line);
+			String[] ret = new String[3];
+			for (int i = 0; i < fields.length; i++) {
+				if (fields[i].equals("CID"))
+					ret[0] = values[i];
+				else if (fields[i].equals("TABCD"))
+					ret[1] = values[i];
+				else if (fields[i].equals("VERSION"))
+					ret[2] = values[i];
+			}
+			if ((ret[0] == null) || (ret[1] == null))
+				throw new IllegalArgumentException();
+			Integer.parseInt(ret[0]);
+			Integer.parseInt(ret[1]);
+			return ret;
+		} finally {
+			br.close();
+		}
+	}
+	
+	/**
+	 * @brief Determines if and how the location data set at {@code path} needs to be imported in
+	 * the database.
+	 * 
+	 * A location data set will be inserted into the database if the database does not yet contain
+	 * a data set with the same CID and TABCD. It will be updated if the database contains the same
+	 * or an older version.
 	 * 
 	 * If the folder at {@code path} does not hold a valid location data set (specifically, if its
-	 * {@code LOCATIONDATASETS.DAT} file is not found), the result will be {@code false}. 
+	 * {@code LOCATIONDATASETS.DAT} file is not found), the data set is skipped.
 	 * 
 	 * @param path The path to the folder which holds the files of the new data set
-	 * @return {@code true} if an import is needed, {@code false} if not.
+	 * @return How the data set is imported
 	 */
-	public static boolean prepareDataSetUpdate(File path) {
-		boolean ret = false;
-		String version = null;
+	static DataSetUpdate checkDataSetUpdate(File path) {
 		File file = new File(path.getAbsolutePath() + File.separator + "LOCATIONDATASETS.DAT");
-		PreparedStatement stmt = null;
-		int cid = -1;
-		int tabcd = -1;
-		if (file.exists()) {
+		if (!file.exists()) {
+			System.out.println(String.format("No LOCATIONDATASETS.DAT in %s, skipping", path.getAbsolutePath()));
+			return DataSetUpdate.SKIP;
+		}
+		try {
+			String[] record = readDataSetRecord(path);
+			PreparedStatement stmt = dbConnection.prepareStatement("select * from LocationDataSets where CID = ? and TABCD = ?;");
 			try {
-				BufferedReader br = openLTFile(file);
-				String line = br.readLine();
-				String[] fields = getFields(line);
-				line = br.readLine();
-				String[] values = TMC.colonPattern.split(line);
-				for (int i = 0; i < fields.length; i++) {
-					if (fields[i].equals("CID"))
-						cid = Integer.parseInt(values[i]);
-					else if (fields[i].equals("TABCD"))
-						tabcd = Integer.parseInt(values[i]);
-					else if (fields[i].equals("VERSION"))
-						version = values[i];
-				}
-				if ((cid == -1) || (tabcd == -1))
-					throw new IllegalArgumentException();
-				stmt = dbConnection.prepareStatement("select * from LocationDataSets where CID = ? and TABCD = ?;");
-				stmt.setInt(1, cid);
-				stmt.setInt(2, tabcd);
+				stmt.setInt(1, Integer.parseInt(record[0]));
+				stmt.setInt(2, Integer.parseInt(record[1]));
 				ResultSet rset = stmt.executeQuery();
 				if (!rset.next()) {
 					System.out.println(String.format("Location data set in %s is not in DB yet, importing", path.getAbsolutePath()));
-					ret = true;
-				} else if (isSameOrNewerVersion(version, rset.getString("VERSION"))) {
-					System.out.println(String.format("Location data set in %s is newer than DB or same age, importing", path.getAbsolutePath()));
-					ret = true;
+					return DataSetUpdate.INSERT;
+				} else if (isSameOrNewerVersion(record[2], rset.getString("VERSION"))) {
+					System.out.println(String.format("Location data set in %s is newer than DB or same age, updating", path.getAbsolutePath()));
+					return DataSetUpdate.UPDATE;
 				} else {
 					System.out.println(String.format("Location data set in %s is older than DB, skipping", path.getAbsolutePath()));
-					return false;
+					return DataSetUpdate.SKIP;
 				}
-
-				if (ret) {
-					stmt = dbConnection.prepareStatement("delete from LocationDataSets where CID = ? and TABCD = ?;");
-					stmt.setInt(1, cid);
-					stmt.setInt(2, tabcd);
-					stmt.executeUpdate();
-					dbConnection.commit();
-				}
-				return ret;
-			} catch (Exception e) {
-				System.out.println(String.format("File %s is invalid, skipping", file.getAbsolutePath()));
-				return false;
+			} finally {
+				stmt.close();
 			}
-		} else {
-			System.out.println(String.format("No LOCATIONDATASETS.DAT in %s, skipping", path.getAbsolutePath()));
-			return false;
+		} catch (Exception e) {
+			System.out.println(String.format("File %s is invalid, skipping", file.getAbsolutePath()));
+			return DataSetUpdate.SKIP;
 		}
 	}
-
+	
 	/**
 	 * @brief Reads a single location data set from the given path.
 	 * 
 	 * @param path The folder in which the files for the location data set are located.
 	 */
 	public static void readLocationTablesFromDir(File path) {
-		File file;
-		
-		if (!prepareDataSetUpdate(path)) {
-			return;
-		}
-		
-		// 1 - COUNTRIES.DAT;
-		file = new File(path.getAbsolutePath() + File.separator + "COUNTRIES.DAT");
-		importTable("Countries", file);
-
-		// 2 - LOCATIONDATASETS.DAT;
-		file = new File(path.getAbsolutePath() + File.separator + "LOCATIONDATASETS.DAT");
-		importTable("LocationDataSets", file);
-		
-		// 3 - LOCATIONCODES.DAT; skipped for now
-		// 4 - CLASSES.DAT; skipped for now
-		// 5 - TYPES.DAT; skipped for now
-		// 6 - SUBTYPES.DAT; skipped for now
-		// 7 - LANGUAGES.DAT; skipped for now
-		// 8 - EUROROADNO-DAT; skipped for now;
-
-		// 9 - NAMES.DAT;
-		file = new File(path.getAbsolutePath() + File.separator + "NAMES.DAT");
-		importTable("Names", file);
-		
-		// 10 - NAMETRANSLATIONS.DAT; skipped for now
-		// 11 - SUBTYPETRANSLATIONS.DAT; skipped for now
-		// 12 - ERNO_BELONGS_TO_CO.DAT; skipped for now
-
-		// 13 - ADMINISTRATIVEAREA.DAT;
-		file = new File(path.getAbsolutePath() + File.separator + "ADMINISTRATIVEAREA.DAT");
-		importTable("AdministrativeAreas", file);
-
-		// 14 - OTHERAREAS.DAT;
-		file = new File(path.getAbsolutePath() + File.separator + "OTHERAREAS.DAT");
-		importTable("OtherAreas", file);
-
-		// 15 - ROADS.DAT;
-		file = new File(path.getAbsolutePath() + File.separator + "ROADS.DAT");
-		importTable("Roads", file);
-		
-		// 16 - ROAD_NETWORK_LEVEL_TYPES.DAT; skipped for now
-
-		// 17 - SEGMENTS.DAT;
-		file = new File(path.getAbsolutePath() + File.separator + "SEGMENTS.DAT");
-		importTable("Segments", file);
-
-		// 18 - SOFFSETS.DAT
-		file = new File(path.getAbsolutePath() + File.separator + "SOFFSETS.DAT");
-		importTable("Soffsets", file);
-		
-		// 19 - SEG_HAS_ERNO.DAT; skipped for now
-
-		// 20 - POINTS.DAT;
-		file = new File(path.getAbsolutePath() + File.separator + "POINTS.DAT");
-		importTable("Points", file);
-		
-		// 21 - POFFSETS.DAT
-		file = new File(path.getAbsolutePath() + File.separator + "POFFSETS.DAT");
-		importTable("Poffsets", file);
-		
-		// 22 - INTERSECTIONS.DAT; skipped for now
+		importDataSets(Collections.singletonList(path));
 	}
 	
 	/**
-	 * @brief Returns the SQL types for the specified columns of the specified table.
-	 * 
-	 * @param table The table name for which to return column types
-	 * @param fields An array containing the field names
-	 * @return An array of {@link java.sql.Types} constants representing the SQL types. The order
-	 * matches that of {@code fields}. If one of the values in {@code fields} does not correspond
-	 * to a column of the table specified by {@code table}, its type is {@link java.sql.Types.NULL}.
-	 * @throws SQLException
-	 */
-	static int[] getColumnTypes(String table, String[] fields) throws SQLException {
-		int[] res = new int[fields.length];
-		PreparedStatement stmt = dbConnection.prepareStatement(String.format("select * from %s limit 1;", table));
-		ResultSet rs = stmt.executeQuery();
-		for (int i = 0; i < fields.length; i++) {
-			try {
-				res[i] = rs.getMetaData().getColumnType(rs.findColumn(fields[i]));
-			} catch (SQLException e) {
-				System.err.println(String.format("Could not determine type for column %s:", fields[i]));
-				e.printStackTrace(System.err);
-				res[i] = Types.NULL;
-			}
-		}
-		return res;
-	}
-	
-	/** @brief Imports a new location table file into the database.
+	 * @brief Imports location data sets, each from its own folder.
 	 * 
-	 * @param table The table in which the record will be stored
-	 * @param file The file to import (a file from a LT in exchange format)
+	 * @see LocationTableImport
 	 */
-	static void importTable(String table, File file) {
-		PreparedStatement stmt = null;
-		Boolean hasConstraintViolations = false;
-		System.out.println(String.format("Processing table %s from file %s", table, file.getAbsolutePath()));
-		if (file.exists()) {
-			try {
-				BufferedReader br = openLTFile(file);
-				String line = br.readLine();
-				String[] fields = getFields(line);
-				int[] types = getColumnTypes(table, fields);
-				String[] values;
-				StringBuilder stmtBuilder = new StringBuilder("insert into ");
-				stmtBuilder.append(table);
-				stmtBuilder.append(" (");
-				for (int i = 0; i < fields.length; i++) {
-					if (stmtBuilder.charAt(stmtBuilder.length() - 1) != '(')
-						stmtBuilder.append(", ");
-					stmtBuilder.append(fields[i]);
-				}
-				stmtBuilder.append(") VALUES (");
-				for (int i = 0; i < fields.length; i++) {
-					if (stmtBuilder.charAt(stmtBuilder.length() - 1) != '(')
-						stmtBuilder.append(", ");
-					stmtBuilder.append("?");
-				}
-				stmtBuilder.append(");");
-				stmt = dbConnection.prepareStatement(stmtBuilder.toString());
-				while((line = br.readLine()) != null)
-					if (line.length() > 0) {
-						stmt.clearParameters();
-						values = TMC.colonPattern.split(line);
-						for (int i = 0; i < fields.length; i++) {
-							if ((i >= values.length) || values[i].isEmpty())
-								stmt.setNull(i + 1, types[i]);
-							else
-								switch (types[i]) {
-									case Types.BOOLEAN:
-										stmt.setBoolean(i + 1, Boolean.parseBoolean(values[i]));
-										break;
-									case Types.DECIMAL:
-										/* Special case: this is the only type which requires conversion.
-										 * DECIMAL is currently used only for two columns, Points.XCOORD and Points.YCOORD.
-										 * Both are represented as 1/100000s of a degree in the source files and are
-										 * converted to degrees on import.
-										 * If further DECIMAL columns are introduced in the DB at a later stage, extra
-										 * logic may be needed here.
-										 */
-										stmt.setFloat(i + 1, Integer.parseInt(values[i]) / 100000.0f);
-										break;
-									case Types.INTEGER:
-										stmt.setInt(i + 1, Integer.parseInt(values[i]));
-										break;
-									case Types.VARCHAR:
-										stmt.setString(i + 1, values[i]);
-										break;
-									default:
-										System.err.println(String.format("Unknown type for parameter %d (%s.%s), type %d", i, table, fields[i], types[i]));
-										stmt.setNull(i + 1, types[i]);
-								}
-						}
-						
-						try {
-							stmt.executeUpdate();
-						} catch (SQLIntegrityConstraintViolationException e) {
-							hasConstraintViolations = true;
-						}
-					}
-				dbConnection.commit();
-			} catch (IOException e) {
-				e.printStackTrace(System.err);
-				return;
-			} catch (SQLException e) {
-				if (stmt != null)
-					System.err.println(String.format("Error executing: %s", stmt.toString()));
-				e.printStackTrace(System.err);
-				return;
-			}
-			if (hasConstraintViolations)
-				System.err.println(String.format("Some records from %s were skipped due to integrity constraint violations.", file.getAbsolutePath()));
+	private static void importDataSets(List<File> paths) {
+		try {
+			new LocationTableImport(dbConnection, importBatchSize, importThreads).importDataSets(paths);
+		} catch (SQLException e) {
+			e.printStackTrace(System.err);
 		}
 	}
 }
@@ -36,6 +36,30 @@ public class TMCArea extends TMCLocation {
 		}
 	}
 	
+	/**
+	 * @brief Creates a new {@code TMCArea} from a row of a location snapshot.
+	 * 
+	 * The result is the same as for a {@code TMCArea} created from the record in the database
+	 * from which the snapshot was made.
+	 * 
+	 * @param snapshot The snapshot
+	 * @param row The row, as returned by {@link LocationSnapshot#find(int)}
+	 */
+	TMCArea(LocationSnapshot snapshot, int row) {
+		this.cid = snapshot.cid;
+		this.tabcd = snapshot.tabcd;
+		this.lcd = snapshot.getLcd(row);
+		this.category = snapshot.getCategory(row);
+		this.tcd = snapshot.getTcd(row);
+		this.stcd = snapshot.getStcd(row);
+		this.n1id = snapshot.getN1id(row);
+		if (this.n1id != -1)
+			this.name1 = TMC.getName(this.cid, this.n1id);
+		this.polLcd = snapshot.getPolLcd(row);
+		if (this.polLcd != -1)
+			this.area = TMC.getArea(this.cid, this.tabcd, this.polLcd);
+	}
+	
 	@Override
 	public String toString() {
 		StringBuilder res = new StringBuilder("");
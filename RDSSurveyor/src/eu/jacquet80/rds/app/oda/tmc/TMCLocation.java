@@ -1,5 +1,9 @@
 package eu.jacquet80.rds.app.oda.tmc;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
 /** Abstract base class for TMC locations. */
 public abstract class TMCLocation {
 	/** The country ID used in TMC messages. */
@@ -237,6 +241,22 @@ public abstract class TMCLocation {
 		return this;
 	}
 	
+	/**
+	 * @brief Returns all locations from the current one up to the location at the given offset.
+	 *
+	 * This is a dummy implementation which can be used for all subclasses for which extents have
+	 * no meaning. It will simply return a list holding the same location.
+	 * 
+	 * @param extent The extent (i.e. number of steps) as indicated in the TMC message.
+	 * @param direction The direction as indicated in the TMC message (0 = positive, 1 = negative).
+	 * 
+	 * @return The locations, starting with this one and ending with the result of
+	 * {@link #getOffset(int, int)}.
+	 */
+	public List<? extends TMCLocation> getOffsets(int extent, int direction) {
+		return Collections.singletonList(this);
+	}
+	
 	/**
 	 * @brief Returns the road number for the location, if any.
 	 * 
@@ -340,4 +360,21 @@ public abstract class TMCLocation {
 		return res.toString();			
 	}
 	
+	/**
+	 * @brief Returns the location codes of the locations to which this location refers.
+	 * 
+	 * Offsets are only included once they have been looked up. The result may contain -1.
+	 */
+	int[] getReferences() {
+		return new int[] {polLcd};
+	}
+	
+	/**
+	 * @brief Whether this location refers to any of the given names.
+	 * 
+	 * @param nids Name IDs of the same country
+	 */
+	boolean refersTo(Set<Integer> nids) {
+		return nids.contains(rnid) || nids.contains(n1id) || nids.contains(n2id);
+	}
 }
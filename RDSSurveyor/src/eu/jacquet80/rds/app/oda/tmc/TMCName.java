@@ -35,4 +35,20 @@ public class TMCName {
 		if (rset.wasNull())
 			this.nameComment = "";
 	}
+	
+	/**
+	 * @brief Creates a new {@code TMCName} from a row of a location snapshot.
+	 * 
+	 * @param snapshot The snapshot
+	 * @param row The row, as returned by {@link LocationSnapshot#findName(int)}
+	 */
+	TMCName(LocationSnapshot snapshot, int row) {
+		this.cid = snapshot.cid;
+		this.lid = snapshot.getNameLid(row);
+		this.nid = snapshot.getNameNid(row);
+		this.name = snapshot.getName(row);
+		this.nameComment = snapshot.getNameComment(row);
+		if (this.nameComment == null)
+			this.nameComment = "";
+	}
 }
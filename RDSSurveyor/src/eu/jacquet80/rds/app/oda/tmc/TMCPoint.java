@@ -2,6 +2,8 @@ package eu.jacquet80.rds.app.oda.tmc;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 
 /** Describes a TMC POINT location. */
 public class TMCPoint extends TMCLocation {
@@ -165,6 +167,57 @@ public class TMCPoint extends TMCLocation {
 			}
 	}
 	
+	/**
+	 * @brief Creates a new {@code TMCPoint} from a row of a location snapshot.
+	 * 
+	 * The result is the same as for a {@code TMCPoint} created from the records in the database
+	 * from which the snapshot was made.
+	 * 
+	 * @param snapshot The snapshot
+	 * @param row The row, as returned by {@link LocationSnapshot#find(int)}
+	 */
+	TMCPoint(LocationSnapshot snapshot, int row) {
+		this.cid = snapshot.cid;
+		this.tabcd = snapshot.tabcd;
+		this.lcd = snapshot.getLcd(row);
+		this.category = snapshot.getCategory(row);
+		this.tcd = snapshot.getTcd(row);
+		this.stcd = snapshot.getStcd(row);
+		this.junctionNumber = snapshot.getNumber(row);
+		this.rnid = snapshot.getRnid(row);
+		if (this.rnid != -1)
+			this.roadName = TMC.getName(this.cid, this.rnid);
+		this.n1id = snapshot.getN1id(row);
+		if (this.n1id != -1)
+			this.name1 = TMC.getName(this.cid, this.n1id);
+		this.n2id = snapshot.getN2id(row);
+		if (this.n2id != -1)
+			this.name2 = TMC.getName(this.cid, this.n2id);
+		this.polLcd = snapshot.getPolLcd(row);
+		if (this.polLcd != -1)
+			this.area = TMC.getArea(this.cid, this.tabcd, this.polLcd);
+		this.othLcd = snapshot.getOthLcd(row);
+		if (this.othLcd != -1)
+			this.othArea = TMC.getArea(this.cid, this.tabcd, this.othLcd);
+		this.roaLcd = snapshot.getRoaLcd(row);
+		if (this.roaLcd != -1)
+			this.road = TMC.getRoad(this.cid, this.tabcd, this.roaLcd);
+		this.segLcd = snapshot.getSegLcd(row);
+		if (this.segLcd != -1)
+			this.segment = TMC.getSegment(this.cid, this.tabcd, this.segLcd);
+		this.diversionPos = snapshot.getDiversionPos(row);
+		this.diversionNeg = snapshot.getDiversionNeg(row);
+		this.xCoord = snapshot.getXCoord(row);
+		this.yCoord = snapshot.getYCoord(row);
+		this.interruptsRoad = snapshot.getInterruptsRoad(row);
+		this.urban = snapshot.isUrban(row);
+		
+		if (snapshot.hasOffsets(row)) {
+			this.negOffLcd = snapshot.getNegOffLcd(row);
+			this.posOffLcd = snapshot.getPosOffLcd(row);
+		}
+	}
+	
 	@Override
 	public String getDetailedDisplayName(TMCLocation secondary, String format1, String format2) {
 		String fmt1 = format1;
@@ -254,12 +307,25 @@ public class TMCPoint extends TMCLocation {
 	 * the respective direction. The extent of a valid TMC message will never exceed the boundaries
 	 * of the list. If this method is nonetheless called with an invalid extent, the last location
 	 * in the linked list is returned to ensure that this method always returns a valid location.
+	 * 
+	 * The location is looked up in the offset chains of the location table, so that only the
+	 * result is loaded rather than every location in between. Locations whose offsets do not form
+	 * a consistent chain are handled by following the list.
 	 *
 	 * @param extent The extent (i.e. number of steps) as indicated in the TMC message.
 	 * @param direction The direction as indicated in the TMC message (0 = positive, 1 = negative).
 	 */
 	@Override
 	public TMCPoint getOffset(int extent, int direction) {
+		OffsetChains chains = TMC.getPointChains(this.cid, this.tabcd);
+		int offLcd = (chains == null) ? -1 : chains.getOffset(this.lcd, extent, direction);
+		if (offLcd == this.lcd)
+			return this;
+		if (offLcd != -1) {
+			TMCPoint ret = TMC.getPoint(this.cid, this.tabcd, offLcd);
+			if (ret != null)
+				return ret;
+		}
 		TMCPoint ret = this;
 		for (int i = 1; i <= extent; i++)
 			if ((direction == 0) && (ret.getPosOffset() != null))
@@ -269,6 +335,49 @@ public class TMCPoint extends TMCLocation {
 		return ret;
 	}
 	
+	/**
+	 * @brief Returns all locations from the current one up to the location at the given offset.
+	 * 
+	 * All locations are loaded at once where possible.
+	 * 
+	 * @param extent The extent (i.e. number of steps) as indicated in the TMC message.
+	 * @param direction The direction as indicated in the TMC message (0 = positive, 1 = negative).
+	 * 
+	 * @return The locations, starting with this one and ending with the result of
+	 * {@link #getOffset(int, int)}.
+	 */
+	@Override
+	public List<TMCPoint> getOffsets(int extent, int direction) {
+		List<TMCPoint> ret = new ArrayList<TMCPoint>();
+		OffsetChains chains = TMC.getPointChains(this.cid, this.tabcd);
+		int[] offLcds = (chains == null) ? null : chains.getOffsets(this.lcd, extent, direction);
+		if (offLcds != null) {
+			List<Integer> lcds = new ArrayList<Integer>(offLcds.length);
+			for (int offLcd : offLcds)
+				lcds.add(offLcd);
+			TMC.prefetchLocations(this.cid, this.tabcd, lcds);
+			ret.add(this);
+			for (int i = 1; i < offLcds.length; i++) {
+				TMCPoint location = TMC.getPoint(this.cid, this.tabcd, offLcds[i]);
+				if (location == null)
+					break;
+				ret.add(location);
+			}
+			if (ret.size() == offLcds.length)
+				return ret;
+			ret.clear();
+		}
+		TMCPoint location = this;
+		ret.add(location);
+		for (int i = 1; i <= extent; i++) {
+			location = (direction == 0) ? location.getPosOffset() : location.getNegOffset();
+			if (location == null)
+				break;
+			ret.add(location);
+		}
+		return ret;
+	}
+	
 	/**
 	 * @brief Returns a label for the junction.
 	 * 
@@ -365,4 +474,10 @@ public class TMCPoint extends TMCLocation {
 		
 		return res.toString();
 	}
+	
+	@Override
+	int[] getReferences() {
+		return new int[] {polLcd, othLcd, roaLcd, segLcd,
+				(negOffset != null) ? negOffLcd : -1, (posOffset != null) ? posOffLcd : -1};
+	}
 }
@@ -0,0 +1,415 @@
+/*
+ RDS Surveyor -- RDS decoder, analyzer and monitor tool and library.
+ For more information see
+   http://www.jacquet80.eu/
+   http://rds-surveyor.sourceforge.net/
+
+ Copyright (c) 2016 the RDS Surveyor contributors
+
+ This file is part of RDS Surveyor.
+
+ RDS Surveyor is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ RDS Surveyor is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser Public License for more details.
+
+ You should have received a copy of the GNU Lesser Public License
+ along with RDS Surveyor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package eu.jacquet80.rds.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import eu.jacquet80.rds.input.GroupReader;
+import eu.jacquet80.rds.input.GroupReader.EndOfStream;
+import eu.jacquet80.rds.input.StationChangeDetector;
+import eu.jacquet80.rds.input.TunerGroupReader;
+import eu.jacquet80.rds.log.DefaultLogMessageVisitor;
+import eu.jacquet80.rds.log.GroupReceived;
+import eu.jacquet80.rds.log.Log;
+
+/**
+ * Surveys the FM band with one or more tuners.
+ *
+ * The signal strength is first measured on all channels. Channels are then visited in order of
+ * decreasing signal strength. The scanner leaves a channel as soon as the station is confirmed,
+ * that is when its PI has been received several times, its PS is complete, and no new group type
+ * has appeared for a while. Channels on which no group is received shortly after tuning are
+ * given up. Channels on which RDS is received but the station could not be confirmed in time are
+ * marginal; they are visited again, with a longer dwell time, once all channels have been
+ * visited.
+ *
+ * When several tuners are available, the channels are spread across them.
+ */
+public class BandScanner {
+	/** Lowest frequency of the band, in kHz */
+	public static final int FIRST_FREQUENCY = 87500;
+
+	/** Number of channels in the band */
+	public static final int CHANNEL_COUNT = 206;
+
+	/** Channel spacing, in kHz */
+	public static final int CHANNEL_SPACING = 100;
+
+	/** Default maximum time spent on a channel, in ms */
+	public static final long DEFAULT_DWELL = 5000;
+
+	/** Maximum time spent on a marginal channel when it is visited again, in ms */
+	public static final long REVISIT_DWELL = 15000;
+
+	/** Time after which a channel on which no group has been received is given up, in ms */
+	public static final long NO_SYNC_TIMEOUT = 600;
+
+	/** Number of groups with the same PI needed to confirm a station */
+	private static final int MIN_PI_COUNT = 4;
+
+	/** Number of groups without a new group type after which the group mix is considered known */
+	private static final int MIX_STABLE_GROUPS = 16;
+
+	public static enum Status {
+		/** No RDS was received */
+		NONE,
+		/** RDS was received, but the station could not be confirmed */
+		MARGINAL,
+		/** The station was confirmed */
+		CONFIRMED
+	}
+
+	/**
+	 * The result of visiting a channel.
+	 */
+	public static class Result {
+		public final int frequency;
+		public final int rssi;
+		public final Status status;
+
+		/** PI, or -1 if unknown */
+		public final int pi;
+
+		/** Station name, or null if unknown */
+		public final String ps;
+
+		/** Group statistics, or null if unknown */
+		public final String groupStats;
+
+		/** Time spent on the channel, in ms */
+		public final long dwell;
+
+		public Result(int frequency, int rssi, Status status, int pi, String ps, String groupStats, long dwell) {
+			this.frequency = frequency;
+			this.rssi = rssi;
+			this.status = status;
+			this.pi = pi;
+			this.ps = ps;
+			this.groupStats = groupStats;
+			this.dwell = dwell;
+		}
+
+		@Override
+		public String toString() {
+			if(status == Status.NONE) return String.format("%3.1f\t %d\t --", frequency / 1000f, rssi);
+			return String.format("%3.1f\t %d\t %4s   %8s  %s%s", frequency / 1000f, rssi,
+					pi < 0 ? "----" : String.format("%04X", pi),
+					ps == null ? "" : ps, groupStats == null ? "" : groupStats,
+					status == Status.MARGINAL ? " (?)" : "");
+		}
+	}
+
+	/**
+	 * Receives the progress of a scan. Methods may be called from several threads at once.
+	 */
+	public static interface Listener {
+		public void signalMeasured(int frequency, int rssi);
+		public void channelScanned(Result result);
+	}
+
+	/**
+	 * Watches the output of a decoder while it is tuned to a channel, and tells when the station
+	 * is confirmed.
+	 */
+	public static class Probe extends DefaultLogMessageVisitor {
+		private final Log log;
+		private final GroupLevelDecoder decoder;
+
+		/* Statistics since the last restart; guarded by this */
+		private int groups = 0;
+		private int lastPI = -1;
+		private int piCount = 0;
+		private int typeMask = 0;
+		private int groupsSinceNewType = 0;
+
+		/**
+		 * @param log The log to which the decoder writes
+		 * @param decoder The decoder of the groups received by the tuner
+		 */
+		public Probe(Log log, GroupLevelDecoder decoder) {
+			this.log = log;
+			this.decoder = decoder;
+			log.addNewMessageListener(this);
+		}
+
+		public void detach() {
+			log.removeNewMessageListener(this);
+		}
+
+		@Override
+		public synchronized void visit(GroupReceived groupReceived) {
+			groups++;
+			int pi = groupReceived.getBlocks()[0];
+			if(pi >= 0) {
+				if(pi == lastPI) piCount++;
+				else {
+					lastPI = pi;
+					piCount = 1;
+				}
+			}
+			int type = groupReceived.getGroupType();
+			if(type >= 0 && (typeMask & (1 << type)) == 0) {
+				typeMask |= 1 << type;
+				groupsSinceNewType = 0;
+			} else {
+				groupsSinceNewType++;
+			}
+			notifyAll();
+		}
+
+		/**
+		 * @brief Forgets what was received so far. To be called right after tuning.
+		 */
+		public synchronized void restart() {
+			groups = 0;
+			lastPI = -1;
+			piCount = 0;
+			typeMask = 0;
+			groupsSinceNewType = 0;
+		}
+
+		/**
+		 * @brief Waits until the station is confirmed, until it is clear that there is no RDS, or
+		 * until the maximum dwell time has elapsed, whichever comes first.
+		 */
+		public synchronized Result dwell(int frequency, int rssi, long maxDwell) throws InterruptedException {
+			long start = System.currentTimeMillis();
+			while(true) {
+				long elapsed = System.currentTimeMillis() - start;
+				TunedStation station = decoder.getTunedStation();
+				if(isConfirmed(station)) return result(frequency, rssi, Status.CONFIRMED, station, elapsed);
+				if(groups == 0 && elapsed >= NO_SYNC_TIMEOUT) return result(frequency, rssi, Status.NONE, null, elapsed);
+				if(elapsed >= maxDwell)
+					return result(frequency, rssi, groups == 0 ? Status.NONE : Status.MARGINAL, station, elapsed);
+
+				long timeout = maxDwell - elapsed;
+				if(groups == 0) timeout = Math.min(timeout, NO_SYNC_TIMEOUT - elapsed);
+				wait(Math.max(timeout, 1));
+			}
+		}
+
+		private boolean isConfirmed(TunedStation station) {
+			return station != null
+					&& piCount >= MIN_PI_COUNT && station.getPI() == lastPI
+					&& station.getPS().isComplete()
+					&& groupsSinceNewType >= MIX_STABLE_GROUPS;
+		}
+
+		private Result result(int frequency, int rssi, Status status, TunedStation station, long elapsed) {
+			if(station == null || status == Status.NONE || station.getPI() == 0)
+				return new Result(frequency, rssi, status, -1, null, null, elapsed);
+			return new Result(frequency, rssi, status, station.getPI(), station.getStationName(),
+					station.getCompactGroupStats(), elapsed);
+		}
+	}
+
+	/**
+	 * A tuner, and the probe which watches its decoder.
+	 */
+	private static class Tuner {
+		final TunerGroupReader reader;
+		final GroupLevelDecoder decoder;
+		final Probe probe;
+
+		Tuner(TunerGroupReader reader, Log log, GroupLevelDecoder decoder) {
+			this.reader = reader;
+			this.decoder = decoder;
+			this.probe = new Probe(log, decoder);
+		}
+
+		/**
+		 * Measures the signal strength on a channel.
+		 */
+		void measure(int frequency, Map<Integer, Integer> rssi, Listener listener) {
+			reader.setFrequency(frequency);
+			int s = reader.getSignalStrength();
+			synchronized(rssi) {
+				rssi.put(frequency, s);
+			}
+			if(listener != null) listener.signalMeasured(frequency, s);
+		}
+
+		/**
+		 * Tunes to a channel and waits until the station is known.
+		 */
+		Result visit(int frequency, int rssi, long maxDwell) throws InterruptedException {
+			reader.setFrequency(frequency);
+			decoder.reset();
+			probe.restart();
+			return probe.dwell(frequency, rssi, maxDwell);
+		}
+	}
+
+	private final List<Tuner> tuners = new ArrayList<Tuner>();
+	private long dwell = DEFAULT_DWELL;
+
+	/**
+	 * @brief Adds a tuner whose groups are already being decoded, e.g. by the {@link DecoderShell}.
+	 *
+	 * @param reader The tuner
+	 * @param log The log of the decoder
+	 * @param decoder The decoder of the groups received by the tuner
+	 */
+	public void addTuner(TunerGroupReader reader, Log log, GroupLevelDecoder decoder) {
+		tuners.add(new Tuner(reader, log, decoder));
+	}
+
+	/**
+	 * @brief Adds a tuner, and starts decoding its groups.
+	 */
+	public void addTuner(final TunerGroupReader reader) {
+		Log log = new Log();
+		final GroupLevelDecoder decoder = new GroupLevelDecoder(log);
+		tuners.add(new Tuner(reader, log, decoder));
+
+		Thread t = new Thread("Scanner decoder " + reader.getDeviceName()) {
+			@Override
+			public void run() {
+				GroupReader r = new StationChangeDetector(reader);
+				try {
+					while(true) decoder.processOneGroup(r.getGroup());
+				} catch(EndOfStream e) {
+					// the tuner was closed
+				} catch(IOException e) {
+					System.err.println("Scanner: " + e);
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * @brief Sets the maximum time spent on a channel during the first pass.
+	 */
+	public void setDwell(long dwell) {
+		this.dwell = dwell;
+	}
+
+	/**
+	 * @brief Surveys the band.
+	 *
+	 * @param listener Receives the progress of the scan, may be null
+	 * @return The result for each channel, by increasing frequency
+	 */
+	public List<Result> scan(final Listener listener) throws InterruptedException {
+		if(tuners.isEmpty()) throw new IllegalStateException("No tuner");
+		ExecutorService pool = Executors.newFixedThreadPool(tuners.size());
+		try {
+			// measure the signal strength, spreading the channels across the tuners
+			final Map<Integer, Integer> rssi = new TreeMap<Integer, Integer>();
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for(int i=0; i<tuners.size(); i++) {
+				final Tuner tuner = tuners.get(i);
+				final int first = i;
+				tasks.add(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for(int c=first; c<CHANNEL_COUNT; c+=tuners.size())
+							tuner.measure(FIRST_FREQUENCY + c * CHANNEL_SPACING, rssi, listener);
+						return null;
+					}
+				});
+			}
+			runAll(pool, tasks);
+
+			// strongest channels first
+			List<Map.Entry<Integer, Integer>> order = new ArrayList<Map.Entry<Integer, Integer>>(rssi.entrySet());
+			Collections.sort(order, new Comparator<Map.Entry<Integer, Integer>>() {
+				@Override
+				public int compare(Map.Entry<Integer, Integer> o1, Map.Entry<Integer, Integer> o2) {
+					return o2.getValue().compareTo(o1.getValue());
+				}
+			});
+			ConcurrentLinkedQueue<Map.Entry<Integer, Integer>> channels =
+					new ConcurrentLinkedQueue<Map.Entry<Integer, Integer>>(order);
+
+			final Map<Integer, Result> results = new TreeMap<Integer, Result>();
+			ConcurrentLinkedQueue<Map.Entry<Integer, Integer>> marginal =
+					visitAll(pool, channels, dwell, results, listener);
+			visitAll(pool, marginal, REVISIT_DWELL, results, listener);
+
+			return new ArrayList<Result>(results.values());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Visits channels until none is left, on all tuners in parallel.
+	 *
+	 * @return The channels which turned out to be marginal
+	 */
+	private ConcurrentLinkedQueue<Map.Entry<Integer, Integer>> visitAll(ExecutorService pool,
+			final ConcurrentLinkedQueue<Map.Entry<Integer, Integer>> channels, final long maxDwell,
+			final Map<Integer, Result> results, final Listener listener) throws InterruptedException {
+		final ConcurrentLinkedQueue<Map.Entry<Integer, Integer>> marginal =
+				new ConcurrentLinkedQueue<Map.Entry<Integer, Integer>>();
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for(final Tuner tuner : tuners) {
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws InterruptedException {
+					Map.Entry<Integer, Integer> c;
+					while((c = channels.poll()) != null) {
+						Result r = tuner.visit(c.getKey(), c.getValue(), maxDwell);
+						synchronized(results) {
+							results.put(r.frequency, r);
+						}
+						if(r.status == Status.MARGINAL) marginal.add(c);
+						if(listener != null) listener.channelScanned(r);
+					}
+					return null;
+				}
+			});
+		}
+		runAll(pool, tasks);
+		return marginal;
+	}
+
+	private static void runAll(ExecutorService pool, List<Callable<Void>> tasks) throws InterruptedException {
+		for(Future<Void> f : pool.invokeAll(tasks)) {
+			try {
+				f.get();
+			} catch(ExecutionException e) {
+				if(e.getCause() instanceof InterruptedException) throw (InterruptedException) e.getCause();
+				throw new RuntimeException(e.getCause());
+			}
+		}
+	}
+}
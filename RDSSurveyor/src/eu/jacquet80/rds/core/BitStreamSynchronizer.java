@@ -42,6 +42,7 @@ public class BitStreamSynchronizer extends GroupReader {
 	private final static int SYNC_THRESHOLD = 2;  // need 2 blocks after initial block to confirm synchronization
 	private final static int SYNC_CONFIRM_DURATION = 5;  // 3 blocks in 5 groups
 	private final static int SYNC_LOSS_DURATION = 10;    // lose synchronization if 10 groups without a good syndrome
+	private final static int BIT_BUFFER_SIZE = 26;       // bits read at once; one block, so that live sources add little delay
 
 	private final PrintStream console;
 	//private final Log log;
@@ -59,6 +60,9 @@ public class BitStreamSynchronizer extends GroupReader {
 	private int groupCount = 0;
 	private int bitTime = 0;
 	private boolean negativePolarity = false;
+	private final boolean[] bits = new boolean[BIT_BUFFER_SIZE];   // bits read from the reader, valid from bitPos to bitLen
+	private int bitPos = 0;
+	private int bitLen = 0;
 	private @SuppressWarnings("unchecked") LinkedList<Integer> nbSyncAtOffset[][][] = new LinkedList[26][4][2];
 	
 	private List<StatusChangeListener> statusChangeListeners = new ArrayList<StatusChangeListener>();
@@ -84,12 +88,15 @@ public class BitStreamSynchronizer extends GroupReader {
 	public GroupReaderEvent getGroup() throws IOException, EndOfStream {
 		while(true) {
 			// read bit and add it to stream
-			boolean bit = false;
-			try {
-				bit = reader.getBit();
-			} catch(EOFException e) {
-				throw new EndOfStream();
+			if(bitPos == bitLen) {
+				try {
+					bitLen = reader.getBits(bits, 0, bits.length);
+				} catch(EOFException e) {
+					throw new EndOfStream();
+				}
+				bitPos = 0;
 			}
+			boolean bit = bits[bitPos++];
 			block = (block << 1) & 0x3FFFFFF;
 			if(bit) block |= 1;
 			bitCount++;
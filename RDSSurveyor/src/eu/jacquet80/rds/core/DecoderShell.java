@@ -26,6 +26,9 @@ public class DecoderShell {
 	
 	// concurrent accesses to reader must be synchronized on DecoderShell's monitor
 	private GroupReader reader;
+	
+	// the group logger of the current stream, if any
+	private TeeGroupReader tee = null;
 	private final GroupLevelDecoder groupDecoder = new GroupLevelDecoder(log);
 	
 	private final Semaphore groupReady = new Semaphore(0);
@@ -108,6 +111,16 @@ public class DecoderShell {
 
 		this.reader = aReader;
 		
+		// the group log of the previous stream is complete
+		if(tee != null) {
+			try {
+				tee.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			tee = null;
+		}
+		
 		// output file?
 		if(outFile) {
 			System.out.print("Using default group output file. ");
@@ -115,7 +128,8 @@ public class DecoderShell {
 
 			System.out.println("Hex group output file is " + outGroupFile.getAbsoluteFile());
 			try {
-				this.reader = new TeeGroupReader(this.reader, outGroupFile);
+				tee = new TeeGroupReader(this.reader, outGroupFile);
+				this.reader = tee;
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
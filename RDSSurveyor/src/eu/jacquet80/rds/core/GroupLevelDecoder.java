@@ -718,7 +718,7 @@ public class GroupLevelDecoder {
 	 * {@code true} otherwise
 	 * @throws IOException
 	 */
-	public void processOneGroup(GroupReaderEvent evt) throws IOException {
+	public synchronized void processOneGroup(GroupReaderEvent evt) throws IOException {
 		evt.accept(readerEventVisitor);
 
 
@@ -763,7 +763,11 @@ public class GroupLevelDecoder {
 		return c >= 32 && c < 128 ? c : '.';
 	}
 	
-	public void reset() {
+	/**
+	 * Forgets the current station. May be called from any thread, e.g. after tuning to another
+	 * frequency, without disrupting the processing of a group.
+	 */
+	public synchronized void reset() {
 		station = null;
 	}
 }
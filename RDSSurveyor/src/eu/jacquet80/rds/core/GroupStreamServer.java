@@ -0,0 +1,506 @@
+/*
+ RDS Surveyor -- RDS decoder, analyzer and monitor tool and library.
+ For more information see
+   http://www.jacquet80.eu/
+   http://rds-surveyor.sourceforge.net/
+
+ Copyright (c) 2016 the RDS Surveyor contributors
+
+ This file is part of RDS Surveyor.
+
+ RDS Surveyor is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ RDS Surveyor is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser Public License for more details.
+
+ You should have received a copy of the GNU Lesser Public License
+ along with RDS Surveyor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package eu.jacquet80.rds.core;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import eu.jacquet80.rds.log.DefaultLogMessageVisitor;
+import eu.jacquet80.rds.log.EndOfStream;
+import eu.jacquet80.rds.log.GroupReceived;
+import eu.jacquet80.rds.log.Log;
+import eu.jacquet80.rds.log.LogMessageVisitor;
+import eu.jacquet80.rds.log.RDSTime;
+import eu.jacquet80.rds.log.StationLost;
+import eu.jacquet80.rds.log.StationTuned;
+
+/**
+ * Serves the output of a decoder to any number of TCP clients.
+ *
+ * Two kinds of lines are sent, one per line:
+ * <ul>
+ * <li>groups, in the group-level hex format read by {@link eu.jacquet80.rds.input.TCPTunerGroupReader}
+ * and the hex file readers: four blocks ({@code ----} for a missing block), then {@code @} and
+ * the time,</li>
+ * <li>station state changes, as comment lines which the hex readers ignore:
+ * {@code % Station <key>=<value>}, where the key is one of {@code PI}, {@code PS}, {@code PTY},
+ * {@code PTYN}, {@code TP}, {@code TA}, {@code RT}, {@code ECC}, {@code AF} and {@code Time}.
+ * A line {@code % Station tuned} starts a new station, {@code % Station lost} ends it, and
+ * {@code % End} marks the end of the stream.</li>
+ * </ul>
+ *
+ * A client receives both by default. It may restrict them by sending {@code SUBSCRIBE GROUPS},
+ * {@code SUBSCRIBE STATE} or {@code SUBSCRIBE ALL}. On connection, and after each
+ * {@code SUBSCRIBE}, the client receives the complete state of the current station, so that
+ * subsequent changes can be applied to it.
+ *
+ * Lines are formatted once and queued for each client. The queues are bounded: a client which
+ * does not read fast enough to keep up is disconnected rather than allowed to hold back the
+ * decoder or use up memory.
+ */
+public class GroupStreamServer {
+	/** Default port, the same as the one of the tuner server */
+	public static final int DEFAULT_PORT = 8750;
+
+	/** Default number of lines queued for a client before it is disconnected */
+	public static final int DEFAULT_QUEUE_SIZE = 8192;
+
+	/** Size of the send buffer of each client, in bytes */
+	private static final int WRITE_BUFFER_SIZE = 16384;
+
+	/** Maximum length of a command line received from a client */
+	private static final int MAX_COMMAND = 256;
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private final ServerSocketChannel serverChannel;
+	private final Selector selector;
+	private final Thread thread;
+	private final int queueSize;
+	private volatile boolean running = true;
+
+	/* All connected clients; guarded by stateLock, so that a new client either receives a change
+	 * as part of its initial state or as a delta, never both or neither */
+	private final List<Client> clients = new ArrayList<Client>();
+	private final Object stateLock = new Object();
+
+	/* State of the current station, as last sent; guarded by stateLock */
+	private final Map<String, String> state = new LinkedHashMap<String, String>();
+	private TunedStation station = null;
+
+	/* Clients which have new lines to send, or are to be dropped */
+	private final ConcurrentLinkedQueue<Client> pendingWrites = new ConcurrentLinkedQueue<Client>();
+
+	private volatile long evictions = 0;
+
+	/**
+	 * @param port The port to listen on
+	 * @param queueSize The number of lines which can be queued for a client
+	 */
+	public GroupStreamServer(int port, int queueSize) throws IOException {
+		this.queueSize = queueSize;
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.configureBlocking(false);
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(new InetSocketAddress(port));
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+		thread = new Thread("Group stream server") {
+			@Override
+			public void run() {
+				selectLoop();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public GroupStreamServer(int port) throws IOException {
+		this(port, DEFAULT_QUEUE_SIZE);
+	}
+
+	/**
+	 * @brief Starts serving the messages posted to the given log.
+	 *
+	 * The log must be fed by a single decoder, whose thread is the one which formats and queues
+	 * the lines.
+	 */
+	public void attach(Log log) {
+		log.addNewMessageListener(logListener);
+	}
+
+	public void detach(Log log) {
+		log.removeNewMessageListener(logListener);
+	}
+
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	public int getClientCount() {
+		synchronized(stateLock) {
+			return clients.size();
+		}
+	}
+
+	/**
+	 * @brief Returns the number of clients disconnected because they did not keep up.
+	 */
+	public long getEvictionCount() {
+		return evictions;
+	}
+
+	/**
+	 * @brief Disconnects all clients and stops listening.
+	 */
+	public void close() {
+		running = false;
+		selector.wakeup();
+		try {
+			thread.join();
+		} catch(InterruptedException e) {
+			// the thread will terminate anyway
+		}
+	}
+
+	private final LogMessageVisitor logListener = new DefaultLogMessageVisitor() {
+		@Override
+		public void visit(StationTuned stationTuned) {
+			synchronized(stateLock) {
+				station = stationTuned.getStation();
+				state.clear();
+				publish(Client.STATE, "% Station tuned");
+			}
+		}
+
+		@Override
+		public void visit(StationLost stationLost) {
+			synchronized(stateLock) {
+				if(stationLost.getStation() != station) return;
+				station = null;
+				state.clear();
+				publish(Client.STATE, "% Station lost");
+			}
+		}
+
+		@Override
+		public void visit(EndOfStream endOfStream) {
+			synchronized(stateLock) {
+				station = null;
+				state.clear();
+				publish(Client.STATE, "% End");
+			}
+		}
+
+		@Override
+		public void visit(GroupReceived groupReceived) {
+			synchronized(stateLock) {
+				// Nothing is formatted for nobody. The state is left as last sent when no client
+				// follows it; a client which subscribes later receives it as a whole, and the
+				// differences with the current state on the next group.
+				if(isSubscribed(Client.GROUPS))
+					publish(Client.GROUPS, formatGroup(groupReceived.getBlocks(), groupReceived.getTime()));
+				if(isSubscribed(Client.STATE))
+					updateState();
+			}
+		}
+	};
+
+	private static String formatGroup(int[] blocks, RDSTime time) {
+		StringBuilder sb = new StringBuilder(48);
+		for(int i=0; i<4; i++) {
+			int v = blocks[i];
+			if(v < 0) sb.append("----");
+			else {
+				if(v > 0xFFFF) sb.append(Integer.toHexString(v >>> 16).toUpperCase());
+				sb.append(HEX[(v >> 12) & 0xF]).append(HEX[(v >> 8) & 0xF])
+					.append(HEX[(v >> 4) & 0xF]).append(HEX[v & 0xF]);
+			}
+			sb.append(' ');
+		}
+		sb.append('@').append(time.toLongString());
+		return sb.toString();
+	}
+
+	/**
+	 * Compares the current state of the station with the state last sent, and sends the
+	 * differences. Must be called with stateLock held.
+	 */
+	private void updateState() {
+		if(station == null) return;
+		int pi = station.getPI();
+		if(pi == 0) return;
+
+		update("PI", String.format("%04X", pi));
+		update("PS", station.getPS().toString());
+		update("PTY", Integer.toString(station.getPTY()));
+		update("PTYN", station.getPTYN().toString());
+		update("TP", station.getTP() ? "1" : "0");
+		update("TA", station.getTA() ? "1" : "0");
+		update("RT", station.getRT().toString());
+		int ecc = station.getECC();
+		if(ecc != 0) update("ECC", String.format("%02X", ecc));
+		update("AF", station.afsToString().replace("\n", "; "));
+		String dateTime = station.getDateTime();
+		if(dateTime != null) update("Time", dateTime);
+	}
+
+	private void update(String key, String value) {
+		if(value == null) return;   // empty text
+		value = value.replace('\n', ' ').replace('\r', ' ');
+		if(value.equals(state.get(key))) return;
+		state.put(key, value);
+		publish(Client.STATE, "% Station " + key + "=" + value);
+	}
+
+	/**
+	 * Tells whether any client subscribed to a kind of lines. Must be called with stateLock held.
+	 */
+	private boolean isSubscribed(int kind) {
+		for(Client c : clients)
+			if((c.subscription & kind) != 0) return true;
+		return false;
+	}
+
+	/**
+	 * Queues a line for all clients which subscribed to its kind. Must be called with stateLock
+	 * held.
+	 */
+	private void publish(int kind, String line) {
+		if(clients.isEmpty()) return;
+		byte[] bytes = toBytes(line);
+		for(Client c : clients) {
+			if((c.subscription & kind) == 0) continue;
+			c.enqueue(bytes);
+		}
+	}
+
+	private static byte[] toBytes(String line) {
+		byte[] bytes = new byte[line.length() + 1];
+		for(int i=0; i<line.length(); i++) {
+			char c = line.charAt(i);
+			bytes[i] = (byte) (c < 0x80 ? c : '?');
+		}
+		bytes[line.length()] = '\n';
+		return bytes;
+	}
+
+	/**
+	 * Queues the complete state for a client. Must be called with stateLock held.
+	 */
+	private void sendState(Client c) {
+		if((c.subscription & Client.STATE) == 0) return;
+		if(station != null) {
+			c.enqueue(toBytes("% Station tuned"));
+			for(Map.Entry<String, String> e : state.entrySet())
+				c.enqueue(toBytes("% Station " + e.getKey() + "=" + e.getValue()));
+		}
+	}
+
+	private void selectLoop() {
+		try {
+			while(running) {
+				Client c;
+				while((c = pendingWrites.poll()) != null) {
+					if(c.evicted) drop(c);
+					else if(c.key.isValid()) c.key.interestOps(c.key.interestOps() | SelectionKey.OP_WRITE);
+				}
+
+				selector.select();
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if(! key.isValid()) continue;
+					if(key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					c = (Client) key.attachment();
+					try {
+						if(key.isReadable()) read(c);
+						if(key.isValid() && key.isWritable()) write(c);
+					} catch(IOException e) {
+						drop(c);
+					}
+				}
+			}
+		} catch(IOException e) {
+			System.err.println("Group stream server: " + e);
+		} finally {
+			synchronized(stateLock) {
+				clients.clear();
+			}
+			for(SelectionKey key : selector.keys()) {
+				try {
+					key.channel().close();
+				} catch(IOException e) {
+					// ignore
+				}
+			}
+			try {
+				selector.close();
+			} catch(IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if(channel == null) return;
+		channel.configureBlocking(false);
+		Client c = new Client(channel);
+		c.key = channel.register(selector, SelectionKey.OP_READ, c);
+		synchronized(stateLock) {
+			sendState(c);
+			clients.add(c);
+		}
+	}
+
+	private void drop(Client c) {
+		synchronized(stateLock) {
+			clients.remove(c);
+		}
+		c.key.cancel();
+		try {
+			c.channel.close();
+		} catch(IOException e) {
+			// ignore
+		}
+	}
+
+	private void read(Client c) throws IOException {
+		ByteBuffer in = c.in;
+		int n = c.channel.read(in);
+		if(n < 0) throw new IOException("Connection closed by client");
+		in.flip();
+		int start = 0;
+		for(int i=0; i<in.limit(); i++) {
+			byte b = in.get(i);
+			if(b == '\n' || b == '\r') {
+				StringBuilder sb = new StringBuilder(i - start);
+				for(int j=start; j<i; j++) sb.append((char) in.get(j));
+				command(c, sb.toString().trim());
+				start = i + 1;
+			}
+		}
+		in.position(start);
+		in.compact();
+		// overlong commands are discarded
+		if(! in.hasRemaining()) in.clear();
+	}
+
+	private void command(Client c, String command) {
+		int subscription;
+		if("SUBSCRIBE GROUPS".equalsIgnoreCase(command)) subscription = Client.GROUPS;
+		else if("SUBSCRIBE STATE".equalsIgnoreCase(command)) subscription = Client.STATE;
+		else if("SUBSCRIBE ALL".equalsIgnoreCase(command)) subscription = Client.GROUPS | Client.STATE;
+		else return;   // tuner commands and unknown commands are ignored
+
+		synchronized(stateLock) {
+			c.subscription = subscription;
+			sendState(c);
+		}
+	}
+
+	private void write(Client c) throws IOException {
+		ByteBuffer out = c.out;
+		while(true) {
+			// fill the send buffer with as many queued lines as fit
+			byte[] line;
+			while(out.hasRemaining() && (line = c.current != null ? c.current : c.queue.poll()) != null) {
+				int len = Math.min(out.remaining(), line.length - c.currentPos);
+				out.put(line, c.currentPos, len);
+				c.currentPos += len;
+				if(c.currentPos == line.length) {
+					c.current = null;
+					c.currentPos = 0;
+				} else {
+					c.current = line;
+				}
+			}
+
+			out.flip();
+			if(! out.hasRemaining()) {
+				out.clear();
+				break;
+			}
+			c.channel.write(out);
+			boolean blocked = out.hasRemaining();
+			out.compact();
+			if(blocked) return;   // the socket is full, wait for OP_WRITE
+		}
+
+		// everything has been sent
+		c.writePending.set(false);
+		if(c.queue.isEmpty()) {
+			c.key.interestOps(c.key.interestOps() & ~SelectionKey.OP_WRITE);
+		} else {
+			// lines were added in the meantime
+			c.writePending.set(true);
+		}
+	}
+
+	private class Client {
+		static final int GROUPS = 1;
+		static final int STATE = 2;
+
+		final SocketChannel channel;
+		SelectionKey key;
+		final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(queueSize);
+		final AtomicBoolean writePending = new AtomicBoolean(false);
+		volatile boolean evicted = false;
+
+		/* Guarded by stateLock */
+		int subscription = GROUPS | STATE;
+
+		/* Selector thread only */
+		final ByteBuffer in = ByteBuffer.allocate(MAX_COMMAND);
+		final ByteBuffer out = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+		byte[] current = null;
+		int currentPos = 0;
+
+		Client(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Queues a line, or marks the client for eviction if its queue is full.
+		 */
+		void enqueue(byte[] line) {
+			if(evicted) return;
+			if(! queue.offer(line)) {
+				evicted = true;
+				evictions++;
+				queue.clear();
+				pendingWrites.add(this);
+				selector.wakeup();
+				return;
+			}
+			if(writePending.compareAndSet(false, true)) {
+				pendingWrites.add(this);
+				selector.wakeup();
+			}
+		}
+	}
+}
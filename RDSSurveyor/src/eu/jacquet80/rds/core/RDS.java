@@ -41,6 +41,12 @@ public class RDS {
 		0x0FC, 0x198, 0x168, 0x1B4
 	};
 	
+	/** Offset word for block C' (block 3 of version B groups) */
+	public final static int OFFSET_C_PRIME = 0x350;
+	
+	/** Generator polynomial of the RDS block code: x^10 + x^8 + x^7 + x^5 + x^4 + x^3 + 1 */
+	private final static int GENERATOR = 0x5B9;
+	
 	public final static String[][] languages = {
 		{"Unknown", "??"},
 		{"Albanian", "sq"},
@@ -238,6 +244,21 @@ public class RDS {
 		return synd;
 	}
 	
+	/**
+	 * @brief Computes a 26-bit block from 16 information bits.
+	 * 
+	 * @param info The information word
+	 * @param offsetWord The offset word of the block, see {@link #offsetWords}
+	 * @return The information word followed by its checkword
+	 */
+	public final static int encodeBlock(int info, int offsetWord) {
+		int reg = (info & 0xFFFF) << 10;
+		for(int i=25; i>=10; i--) {
+			if((reg & (1 << i)) != 0) reg ^= GENERATOR << (i - 10);
+		}
+		return ((info & 0xFFFF) << 10) | ((reg ^ offsetWord) & 0x3FF);
+	}
+	
 	/*
 	private static int poids(int codeword) {
 		int poids = 0;
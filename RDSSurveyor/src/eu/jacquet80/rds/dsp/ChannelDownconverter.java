@@ -0,0 +1,119 @@
+/*
+ RDS Surveyor -- RDS decoder, analyzer and monitor tool and library.
+ For more information see
+   http://www.jacquet80.eu/
+   http://rds-surveyor.sourceforge.net/
+ 
+ Copyright (c) 2016 the RDS Surveyor contributors
+
+ This file is part of RDS Surveyor.
+
+ RDS Surveyor is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ RDS Surveyor is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser Public License for more details.
+
+ You should have received a copy of the GNU Lesser Public License
+ along with RDS Surveyor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package eu.jacquet80.rds.dsp;
+
+/**
+ * Extracts one channel from a wideband complex signal.
+ * 
+ * The input is shifted in frequency by a numerically controlled oscillator so that the channel
+ * ends up at DC, then low-pass filtered and decimated. The oscillator is a rotating phasor which
+ * is renormalized after each block, which avoids evaluating {@code sin}/{@code cos} per sample.
+ */
+public class ChannelDownconverter {
+	private final int factor;
+	private final float[] taps;
+	
+	/* Oscillator phasor and per-sample rotation */
+	private double oscRe = 1, oscIm = 0;
+	private final double rotRe, rotIm;
+	
+	/* Delay lines for I and Q, each sample stored at pos and pos + taps.length */
+	private final float[] lineI;
+	private final float[] lineQ;
+	private int pos = 0;
+	private int phase = 0;
+	
+	/**
+	 * @param offset Frequency of the channel relative to the center of the input, in Hz
+	 * @param sampleRate Input sample rate
+	 * @param factor Decimation factor
+	 * @param numTaps Number of taps of the channel filter
+	 * @param cutoff Cutoff frequency of the channel filter, in Hz
+	 */
+	public ChannelDownconverter(double offset, int sampleRate, int factor, int numTaps, double cutoff) {
+		this.factor = factor;
+		this.taps = FirDecimator.lowpassTaps(numTaps, cutoff / sampleRate);
+		this.lineI = new float[2 * numTaps];
+		this.lineQ = new float[2 * numTaps];
+		double w = -2 * Math.PI * offset / sampleRate;
+		rotRe = Math.cos(w);
+		rotIm = Math.sin(w);
+	}
+	
+	public int getFactor() {
+		return factor;
+	}
+	
+	/**
+	 * @brief Processes a block of samples.
+	 * 
+	 * @param iq Interleaved input I/Q samples
+	 * @param len Number of complex input samples
+	 * @param out Array receiving interleaved output I/Q samples, must have room for at least
+	 * {@code 2 * (len / factor + 1)} values
+	 * @return The number of complex output samples
+	 */
+	public int process(float[] iq, int len, float[] out) {
+		final int n = taps.length;
+		double or = oscRe, oi = oscIm;
+		int count = 0;
+		for (int k = 0; k < len; k++) {
+			float i = iq[2 * k];
+			float q = iq[2 * k + 1];
+			float mi = (float) (i * or - q * oi);
+			float mq = (float) (i * oi + q * or);
+			double t = or * rotRe - oi * rotIm;
+			oi = or * rotIm + oi * rotRe;
+			or = t;
+			
+			lineI[pos] = mi;
+			lineI[pos + n] = mi;
+			lineQ[pos] = mq;
+			lineQ[pos + n] = mq;
+			pos++;
+			if (pos == n) pos = 0;
+			
+			if (phase == 0) {
+				float accI = 0, accQ = 0;
+				for (int m = 0; m < n; m++) {
+					accI += taps[m] * lineI[pos + m];
+					accQ += taps[m] * lineQ[pos + m];
+				}
+				out[2 * count] = accI;
+				out[2 * count + 1] = accQ;
+				count++;
+				phase = factor;
+			}
+			phase--;
+		}
+		
+		/* keep the phasor on the unit circle */
+		double mag = Math.sqrt(or * or + oi * oi);
+		oscRe = or / mag;
+		oscIm = oi / mag;
+		return count;
+	}
+}
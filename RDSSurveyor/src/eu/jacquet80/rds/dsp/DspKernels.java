@@ -0,0 +1,128 @@
+/*
+ RDS Surveyor -- RDS decoder, analyzer and monitor tool and library.
+ For more information see
+   http://www.jacquet80.eu/
+   http://rds-surveyor.sourceforge.net/
+
+ Copyright (c) 2016 the RDS Surveyor contributors
+
+ This file is part of RDS Surveyor.
+
+ RDS Surveyor is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ RDS Surveyor is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser Public License for more details.
+
+ You should have received a copy of the GNU Lesser Public License
+ along with RDS Surveyor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package eu.jacquet80.rds.dsp;
+
+/**
+ * Block-oriented kernels for the RDS demodulator.
+ *
+ * All kernels operate on whole blocks of samples held in primitive arrays, with unit stride and
+ * no calls inside the inner loop, so that the JIT compiler can unroll and vectorize them.
+ */
+public final class DspKernels {
+	private DspKernels() {
+	}
+
+	/**
+	 * @brief Mixes a block of samples down with a local oscillator.
+	 *
+	 * The oscillator advances by {@code step} before each sample, i.e. the first sample is mixed
+	 * with {@code phase + step}. The oscillator is generated by a phasor recurrence, which costs
+	 * one complex multiplication per sample instead of a sine and a cosine. The phasor is seeded
+	 * afresh on each call, so rounding errors do not accumulate beyond one block.
+	 *
+	 * @param in The input samples
+	 * @param off The offset of the first sample in {@code in}
+	 * @param len The number of samples to process
+	 * @param scale The factor by which input samples are multiplied
+	 * @param phase The oscillator phase before the first sample, in radians
+	 * @param step The phase increment per sample, in radians
+	 * @param outI Receives the in-phase component (input multiplied by the cosine)
+	 * @param outQ Receives the quadrature component (input multiplied by the sine)
+	 * @return The oscillator phase after the last sample
+	 */
+	public static double mix(short[] in, int off, int len, double scale, double phase, double step,
+			double[] outI, double[] outQ) {
+		double c = Math.cos(phase);
+		double s = Math.sin(phase);
+		double dc = Math.cos(step);
+		double ds = Math.sin(step);
+		for (int i = 0; i < len; i++) {
+			double nc = c * dc - s * ds;
+			s = s * dc + c * ds;
+			c = nc;
+			double x = in[off + i] * scale;
+			outI[i] = x * c;
+			outQ[i] = x * s;
+		}
+		return phase + len * step;
+	}
+
+	/**
+	 * @brief Multiplies two blocks element by element.
+	 */
+	public static void multiply(double[] a, double[] b, double[] out, int len) {
+		for (int i = 0; i < len; i++)
+			out[i] = a[i] * b[i];
+	}
+
+	/**
+	 * @brief Returns the sum of the first {@code len} elements of a block.
+	 */
+	public static double sum(double[] a, int len) {
+		double ret = 0;
+		for (int i = 0; i < len; i++)
+			ret += a[i];
+		return ret;
+	}
+
+	/**
+	 * @brief Integrates a signal against a reference clock and dumps the result on each clock edge.
+	 *
+	 * Each sample of {@code x} is multiplied by the corresponding sample of {@code clock} and
+	 * added to the accumulator. Whenever the sign of the clock changes, the accumulator (including
+	 * the sample at which the edge occurs) is written to {@code dumps} and cleared.
+	 *
+	 * The accumulator and the last clock sample are kept in {@code state}, which must hold two
+	 * elements and is carried over from one block to the next.
+	 *
+	 * @param x The signal
+	 * @param clock The reference clock, with values of +1 or -1
+	 * @param len The number of samples to process
+	 * @param state The accumulator and the previous clock sample
+	 * @param dumps Receives the accumulator values, must be large enough for all clock edges in the block
+	 * @param trace If not null, receives the accumulator value after each sample
+	 * @return The number of values written to {@code dumps}
+	 */
+	public static int integrateAndDump(double[] x, double[] clock, int len, double[] state,
+			double[] dumps, double[] trace) {
+		double acc = state[0];
+		double prev = state[1];
+		int count = 0;
+		for (int i = 0; i < len; i++) {
+			acc += x[i] * clock[i];
+			if (trace != null)
+				trace[i] = acc;
+			if ((clock[i] >= 0) != (prev >= 0)) {
+				dumps[count++] = acc;
+				acc = 0;
+			}
+			prev = clock[i];
+		}
+		state[0] = acc;
+		state[1] = prev;
+		return count;
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ RDS Surveyor -- RDS decoder, analyzer and monitor tool and library.
+ For more information see
+   http://www.jacquet80.eu/
+   http://rds-surveyor.sourceforge.net/
+ 
+ Copyright (c) 2016 the RDS Surveyor contributors
+
+ This file is part of RDS Surveyor.
+
+ RDS Surveyor is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ RDS Surveyor is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser Public License for more details.
+
+ You should have received a copy of the GNU Lesser Public License
+ along with RDS Surveyor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package eu.jacquet80.rds.dsp;
+
+/**
+ * An in-place radix-2 complex FFT.
+ * 
+ * Twiddle factors and the bit-reversal permutation are precomputed, so that one instance can
+ * transform any number of blocks of the same size without allocating memory.
+ */
+public class Fft {
+	private final int size;
+	private final int[] reversed;
+	private final float[] cos;
+	private final float[] sin;
+	
+	/**
+	 * @param size The transform size, must be a power of two
+	 */
+	public Fft(int size) {
+		if (size < 2 || Integer.bitCount(size) != 1)
+			throw new IllegalArgumentException("FFT size must be a power of two: " + size);
+		this.size = size;
+		
+		int bits = Integer.numberOfTrailingZeros(size);
+		reversed = new int[size];
+		for (int i = 0; i < size; i++)
+			reversed[i] = Integer.reverse(i) >>> (32 - bits);
+		
+		cos = new float[size / 2];
+		sin = new float[size / 2];
+		for (int i = 0; i < size / 2; i++) {
+			cos[i] = (float) Math.cos(-2 * Math.PI * i / size);
+			sin[i] = (float) Math.sin(-2 * Math.PI * i / size);
+		}
+	}
+	
+	public int getSize() {
+		return size;
+	}
+	
+	/**
+	 * @brief Performs a forward transform.
+	 * 
+	 * @param re Real parts, replaced with the real parts of the spectrum
+	 * @param im Imaginary parts, replaced with the imaginary parts of the spectrum
+	 */
+	public void transform(float[] re, float[] im) {
+		for (int i = 0; i < size; i++) {
+			int j = reversed[i];
+			if (j > i) {
+				float t = re[i]; re[i] = re[j]; re[j] = t;
+				t = im[i]; im[i] = im[j]; im[j] = t;
+			}
+		}
+		
+		for (int len = 2; len <= size; len <<= 1) {
+			int half = len >> 1;
+			int step = size / len;
+			for (int i = 0; i < size; i += len) {
+				for (int k = 0; k < half; k++) {
+					float wr = cos[k * step];
+					float wi = sin[k * step];
+					int a = i + k;
+					int b = a + half;
+					float xr = re[b] * wr - im[b] * wi;
+					float xi = re[b] * wi + im[b] * wr;
+					re[b] = re[a] - xr;
+					im[b] = im[a] - xi;
+					re[a] += xr;
+					im[a] += xi;
+				}
+			}
+		}
+	}
+}
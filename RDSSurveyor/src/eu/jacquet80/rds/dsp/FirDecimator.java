@@ -0,0 +1,124 @@
+/*
+ RDS Surveyor -- RDS decoder, analyzer and monitor tool and library.
+ For more information see
+   http://www.jacquet80.eu/
+   http://rds-surveyor.sourceforge.net/
+ 
+ Copyright (c) 2016 the RDS Surveyor contributors
+
+ This file is part of RDS Surveyor.
+
+ RDS Surveyor is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ RDS Surveyor is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser Public License for more details.
+
+ You should have received a copy of the GNU Lesser Public License
+ along with RDS Surveyor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package eu.jacquet80.rds.dsp;
+
+/**
+ * A low-pass FIR filter combined with a decimator.
+ * 
+ * Only every {@code factor}-th output sample is computed, so the cost per input sample is
+ * {@code taps / factor} multiply-accumulate operations. The delay line is stored twice in a
+ * row, which allows the convolution to run over a contiguous array slice without wrapping.
+ */
+public class FirDecimator {
+	private final float[] taps;
+	private final int factor;
+	
+	/* Delay line, holding each sample at pos and pos + taps.length */
+	private final float[] line;
+	private int pos = 0;
+	
+	/* Number of input samples to skip before the next output sample is computed */
+	private int phase = 0;
+	
+	public FirDecimator(float[] taps, int factor) {
+		if (factor < 1)
+			throw new IllegalArgumentException("Decimation factor must be at least 1");
+		this.taps = taps.clone();
+		this.factor = factor;
+		this.line = new float[2 * taps.length];
+	}
+	
+	/**
+	 * @brief Creates a decimator with a Hamming-windowed sinc low-pass filter.
+	 * 
+	 * @param factor The decimation factor
+	 * @param numTaps The number of filter taps
+	 * @param cutoff The cutoff frequency, as a fraction of the input sample rate (0 to 0.5)
+	 */
+	public static FirDecimator lowpass(int factor, int numTaps, double cutoff) {
+		return new FirDecimator(lowpassTaps(numTaps, cutoff), factor);
+	}
+	
+	/**
+	 * @brief Designs a Hamming-windowed sinc low-pass filter with unity gain at DC.
+	 * 
+	 * @param numTaps The number of filter taps
+	 * @param cutoff The cutoff frequency, as a fraction of the sample rate (0 to 0.5)
+	 */
+	public static float[] lowpassTaps(int numTaps, double cutoff) {
+		double[] h = new double[numTaps];
+		double sum = 0;
+		double m = (numTaps - 1) / 2.0;
+		for (int n = 0; n < numTaps; n++) {
+			double x = n - m;
+			double sinc = (x == 0) ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * x) / (Math.PI * x);
+			double window = (numTaps > 1) ? 0.54 - 0.46 * Math.cos(2 * Math.PI * n / (numTaps - 1)) : 1;
+			h[n] = sinc * window;
+			sum += h[n];
+		}
+		float[] res = new float[numTaps];
+		for (int n = 0; n < numTaps; n++)
+			res[n] = (float) (h[n] / sum);
+		return res;
+	}
+	
+	public int getFactor() {
+		return factor;
+	}
+	
+	/**
+	 * @brief Filters and decimates a block of samples.
+	 * 
+	 * @param in Input samples
+	 * @param off Index of the first input sample
+	 * @param len Number of input samples
+	 * @param out Array receiving the output samples, must have room for at least
+	 * {@code len / factor + 1} samples
+	 * @param outOff Index of the first output sample
+	 * @return The number of output samples written
+	 */
+	public int process(float[] in, int off, int len, float[] out, int outOff) {
+		final int n = taps.length;
+		int count = 0;
+		for (int k = off; k < off + len; k++) {
+			line[pos] = in[k];
+			line[pos + n] = in[k];
+			pos++;
+			if (pos == n) pos = 0;
+			
+			if (phase == 0) {
+				/* line[pos .. pos+n-1] holds the last n samples, oldest first */
+				float acc = 0;
+				for (int t = 0; t < n; t++)
+					acc += taps[t] * line[pos + t];
+				out[outOff + count++] = acc;
+				phase = factor;
+			}
+			phase--;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ RDS Surveyor -- RDS decoder, analyzer and monitor tool and library.
+ For more information see
+   http://www.jacquet80.eu/
+   http://rds-surveyor.sourceforge.net/
+ 
+ Copyright (c) 2016 the RDS Surveyor contributors
+
+ This file is part of RDS Surveyor.
+
+ RDS Surveyor is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ RDS Surveyor is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser Public License for more details.
+
+ You should have received a copy of the GNU Lesser Public License
+ along with RDS Surveyor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package eu.jacquet80.rds.dsp;
+
+/**
+ * A polar FM discriminator.
+ * 
+ * The instantaneous frequency is obtained as the argument of z[n] * conj(z[n-1]), which is
+ * evaluated with a polynomial approximation of atan2 instead of {@link Math#atan2(double, double)}.
+ * The approximation error is below 1e-5 rad, which is far below the noise floor of any real
+ * recording.
+ * 
+ * Output values are expressed in radians per sample, i.e. a frequency deviation of {@code df}
+ * at sample rate {@code fs} yields {@code 2 * PI * df / fs}.
+ */
+public class FmDiscriminator {
+	private static final float PI = (float) Math.PI;
+	private static final float PI_2 = (float) (Math.PI / 2);
+
+	/* Previous complex sample */
+	private float prevI = 0;
+	private float prevQ = 0;
+	
+	/**
+	 * @brief Demodulates a block of interleaved I/Q samples.
+	 * 
+	 * @param iq Interleaved I/Q samples (I at even, Q at odd indices)
+	 * @param off Index of the first I value in {@code iq}
+	 * @param len Number of complex samples to process
+	 * @param out Array receiving one demodulated sample per complex input sample
+	 * @param outOff Index of the first output sample in {@code out}
+	 */
+	public void demodulate(float[] iq, int off, int len, float[] out, int outOff) {
+		float pi = prevI;
+		float pq = prevQ;
+		int end = off + 2 * len;
+		for (int k = off; k < end; k += 2) {
+			float i = iq[k];
+			float q = iq[k + 1];
+			/* z[n] * conj(z[n-1]) */
+			float re = i * pi + q * pq;
+			float im = q * pi - i * pq;
+			out[outOff++] = atan2(im, re);
+			pi = i;
+			pq = q;
+		}
+		prevI = pi;
+		prevQ = pq;
+	}
+	
+	/**
+	 * @brief Fast approximation of {@link Math#atan2(double, double)}.
+	 */
+	public static float atan2(float y, float x) {
+		float ax = Math.abs(x);
+		float ay = Math.abs(y);
+		float max = Math.max(ax, ay);
+		if (max == 0)
+			return 0;
+		float a = Math.min(ax, ay) / max;
+		float s = a * a;
+		float r = ((-0.0464964749f * s + 0.15931422f) * s - 0.327622764f) * s * a + a;
+		if (ay > ax) r = PI_2 - r;
+		if (x < 0) r = PI - r;
+		if (y < 0) r = -r;
+		return r;
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ RDS Surveyor -- RDS decoder, analyzer and monitor tool and library.
+ For more information see
+   http://www.jacquet80.eu/
+   http://rds-surveyor.sourceforge.net/
+
+ Copyright (c) 2016 the RDS Surveyor contributors
+
+ This file is part of RDS Surveyor.
+
+ RDS Surveyor is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ RDS Surveyor is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser Public License for more details.
+
+ You should have received a copy of the GNU Lesser Public License
+ along with RDS Surveyor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package eu.jacquet80.rds.dsp;
+
+import java.util.Arrays;
+
+import biz.source_code.dsp.filter.IirFilterCoefficients;
+
+/**
+ * An IIR filter which processes whole blocks of samples.
+ *
+ * The filter is implemented in direct form I, like {@link biz.source_code.dsp.filter.IirFilter},
+ * and produces the same output. Input and output history are stored in front of the current
+ * block in two work arrays, so that both the feed-forward and the feedback sums run over
+ * contiguous memory. The feed-forward part has no dependency between output samples and is
+ * computed for the whole block in one pass; only the feedback part remains sequential.
+ *
+ * After each block, the last samples are moved to the front of the work arrays, which is all
+ * the state needed to continue with the next block.
+ */
+public class IirBlockFilter {
+	/* Feed-forward coefficients, normalized to a[0] */
+	private final double[] b;
+
+	/* Feedback coefficients, normalized to a[0] (a[0] itself is unused) */
+	private final double[] a;
+
+	/* Number of history samples kept in front of the work arrays */
+	private final int hist;
+
+	/* Input history followed by the current block */
+	private double[] x;
+
+	/* Output history followed by the current block */
+	private double[] y;
+
+	public IirBlockFilter(IirFilterCoefficients coeffs) {
+		this(coeffs.b, coeffs.a);
+	}
+
+	/**
+	 * @param b The feed-forward coefficients
+	 * @param a The feedback coefficients, {@code a[0]} must not be zero
+	 */
+	public IirBlockFilter(double[] b, double[] a) {
+		if ((a.length == 0) || (a[0] == 0))
+			throw new IllegalArgumentException("a[0] must not be zero");
+		this.b = new double[b.length];
+		this.a = new double[a.length];
+		for (int i = 0; i < b.length; i++)
+			this.b[i] = b[i] / a[0];
+		for (int i = 1; i < a.length; i++)
+			this.a[i] = a[i] / a[0];
+		this.hist = Math.max(Math.max(b.length, a.length) - 1, 0);
+		this.x = new double[hist];
+		this.y = new double[hist];
+	}
+
+	/**
+	 * @brief Filters a block of samples.
+	 *
+	 * {@code in} and {@code out} may refer to the same array.
+	 *
+	 * @param in The input samples
+	 * @param inOff The offset of the first input sample
+	 * @param out Receives the filtered samples
+	 * @param outOff The offset at which to store the first output sample
+	 * @param len The number of samples to process
+	 */
+	public void process(double[] in, int inOff, double[] out, int outOff, int len) {
+		ensureCapacity(len);
+		System.arraycopy(in, inOff, x, hist, len);
+
+		/* Feed-forward part, independent for each output sample */
+		for (int i = 0; i < len; i++) {
+			double acc = 0;
+			int n = hist + i;
+			for (int k = 0; k < b.length; k++)
+				acc += b[k] * x[n - k];
+			y[n] = acc;
+		}
+
+		/* Feedback part */
+		for (int i = 0; i < len; i++) {
+			int n = hist + i;
+			double acc = y[n];
+			for (int k = 1; k < a.length; k++)
+				acc -= a[k] * y[n - k];
+			y[n] = acc;
+		}
+
+		System.arraycopy(y, hist, out, outOff, len);
+
+		/* Keep the last samples as history for the next block */
+		System.arraycopy(x, len, x, 0, hist);
+		System.arraycopy(y, len, y, 0, hist);
+	}
+
+	/**
+	 * @brief Resets the filter to its initial state.
+	 */
+	public void reset() {
+		Arrays.fill(x, 0);
+		Arrays.fill(y, 0);
+	}
+
+	private void ensureCapacity(int len) {
+		if (x.length >= hist + len)
+			return;
+		double[] nx = new double[hist + len];
+		double[] ny = new double[hist + len];
+		System.arraycopy(x, 0, nx, 0, hist);
+		System.arraycopy(y, 0, ny, 0, hist);
+		x = nx;
+		y = ny;
+	}
+}
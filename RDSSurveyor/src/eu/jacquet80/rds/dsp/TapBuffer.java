@@ -0,0 +1,209 @@
+/*
+ RDS Surveyor -- RDS decoder, analyzer and monitor tool and library.
+ For more information see
+   http://www.jacquet80.eu/
+   http://rds-surveyor.sourceforge.net/
+
+ Copyright (c) 2016 the RDS Surveyor contributors
+
+ This file is part of RDS Surveyor.
+
+ RDS Surveyor is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ RDS Surveyor is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser Public License for more details.
+
+ You should have received a copy of the GNU Lesser Public License
+ along with RDS Surveyor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package eu.jacquet80.rds.dsp;
+
+/**
+ * A ring buffer which receives diagnostic samples from a tap point in a signal processing chain.
+ *
+ * Each entry in the buffer is a frame of one or more channels. All storage is allocated when the
+ * buffer is created. The buffer has exactly one producer (the signal processing thread) and one
+ * consumer, and neither of them ever blocks: if the consumer falls behind and the buffer is full,
+ * new frames are dropped and counted as overruns, so that diagnostics can never slow down the
+ * signal processing chain.
+ */
+public class TapBuffer {
+	private final int channels;
+	private final int capacity;
+	private final float[] data;
+
+	/* Total number of frames written and read; only the producer and the consumer, respectively, update them */
+	private volatile long writePos = 0;
+	private volatile long readPos = 0;
+
+	private volatile long overruns = 0;
+
+	/**
+	 * @param channels The number of channels per frame
+	 * @param capacity The number of frames the buffer can hold
+	 */
+	public TapBuffer(int channels, int capacity) {
+		if ((channels < 1) || (capacity < 1))
+			throw new IllegalArgumentException("Channels and capacity must be at least 1");
+		this.channels = channels;
+		this.capacity = capacity;
+		this.data = new float[channels * capacity];
+	}
+
+	public int getChannels() {
+		return channels;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @brief Returns the number of frames which were dropped because the buffer was full.
+	 */
+	public long getOverruns() {
+		return overruns;
+	}
+
+	/**
+	 * @brief Returns the number of frames which can currently be read.
+	 */
+	public int available() {
+		return (int) (writePos - readPos);
+	}
+
+	/**
+	 * @brief Reserves room for a number of frames.
+	 *
+	 * @return The array index at which to store the first frame, or -1 if the frames do not fit
+	 */
+	private int reserve(int frames) {
+		long w = writePos;
+		if (w + frames - readPos > capacity) {
+			overruns += frames;
+			return -1;
+		}
+		return (int) (w % capacity) * channels;
+	}
+
+	/**
+	 * @brief Stores a frame of one channel.
+	 */
+	public void put(double v) {
+		int i = reserve(1);
+		if (i < 0)
+			return;
+		data[i] = (float) v;
+		writePos++;
+	}
+
+	/**
+	 * @brief Stores a frame of two channels.
+	 */
+	public void put(double v0, double v1) {
+		int i = reserve(1);
+		if (i < 0)
+			return;
+		data[i] = (float) v0;
+		data[i + 1] = (float) v1;
+		writePos++;
+	}
+
+	/**
+	 * @brief Stores a frame with as many values as the buffer has channels.
+	 */
+	public void put(double[] frame) {
+		int i = reserve(1);
+		if (i < 0)
+			return;
+		for (int c = 0; c < channels; c++)
+			data[i + c] = (float) frame[c];
+		writePos++;
+	}
+
+	/**
+	 * @brief Stores a block of single-channel frames.
+	 *
+	 * If the block is longer than the buffer, only its last {@link #getCapacity()} samples are
+	 * kept. If the block does not fit into the free space of the buffer, it is dropped as a whole.
+	 *
+	 * @param buf The samples
+	 * @param off The offset of the first sample in {@code buf}
+	 * @param len The number of samples
+	 * @param scale The factor by which samples are multiplied before they are stored
+	 */
+	public void put(short[] buf, int off, int len, float scale) {
+		if (len > capacity) {
+			overruns += len - capacity;
+			off += len - capacity;
+			len = capacity;
+		}
+		if (reserve(len) < 0)
+			return;
+		int pos = (int) (writePos % capacity);
+		for (int i = 0; i < len; i++) {
+			data[pos] = buf[off + i] * scale;
+			if (++pos == capacity)
+				pos = 0;
+		}
+		writePos += len;
+	}
+
+	/**
+	 * @brief Stores a block of frames of one channel.
+	 *
+	 * If the block is longer than the buffer, only its last {@link #getCapacity()} frames are
+	 * kept. If the block does not fit into the free space of the buffer, it is dropped as a whole.
+	 */
+	public void put(double[] buf, int off, int len) {
+		if (len > capacity) {
+			overruns += len - capacity;
+			off += len - capacity;
+			len = capacity;
+		}
+		if (reserve(len) < 0)
+			return;
+		int pos = (int) (writePos % capacity);
+		for (int i = 0; i < len; i++) {
+			data[pos] = (float) buf[off + i];
+			if (++pos == capacity)
+				pos = 0;
+		}
+		writePos += len;
+	}
+
+	/**
+	 * @brief Retrieves frames from the buffer.
+	 *
+	 * Channels are interleaved in {@code dst}. This method does not block.
+	 *
+	 * @param dst The array which receives the frames
+	 * @param off The offset in {@code dst} at which to store the first value
+	 * @param maxFrames The maximum number of frames to retrieve
+	 * @return The number of frames retrieved
+	 */
+	public int read(float[] dst, int off, int maxFrames) {
+		long r = readPos;
+		int frames = (int) Math.min(maxFrames, writePos - r);
+		for (int f = 0; f < frames; f++) {
+			int src = (int) ((r + f) % capacity) * channels;
+			System.arraycopy(data, src, dst, off + f * channels, channels);
+		}
+		readPos = r + frames;
+		return frames;
+	}
+
+	/**
+	 * @brief Discards all frames currently in the buffer.
+	 */
+	public void clear() {
+		readPos = writePos;
+	}
+}
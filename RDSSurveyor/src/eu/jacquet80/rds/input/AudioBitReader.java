@@ -29,24 +29,58 @@ package eu.jacquet80.rds.input;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
-import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
-import java.io.PrintStream;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+import eu.jacquet80.rds.dsp.DspKernels;
+import eu.jacquet80.rds.dsp.IirBlockFilter;
+import eu.jacquet80.rds.dsp.TapBuffer;
 import eu.jacquet80.rds.util.MathUtil;
 import biz.source_code.dsp.filter.FilterCharacteristicsType;
 import biz.source_code.dsp.filter.FilterPassType;
-import biz.source_code.dsp.filter.IirFilter;
 import biz.source_code.dsp.filter.IirFilterCoefficients;
 import biz.source_code.dsp.filter.IirFilterDesignFisher;
 
 public class AudioBitReader extends BitReader {
-	private static final boolean DEBUG = false; // set to true to enable debug output
+	/**
+	 * Points in the demodulator at which diagnostic signals can be tapped.
+	 * 
+	 * @see AudioBitReader#attachTap(TapPoint, int)
+	 */
+	public static enum TapPoint {
+		/** Input samples, scaled to the range -1 to 1 */
+		RAW(1),
+		/** Baseband signal (I and Q) after downmixing and low-pass filtering, decimated */
+		IQ(2),
+		/** Subcarrier phase error, decimated */
+		PLL_ERROR(1),
+		/** Recovered 1187.5 Hz clock (+1 or -1), decimated */
+		CLOCK(1),
+		/** Biphase symbol accumulator, decimated */
+		ACCUMULATOR(1),
+		/** Decoded data bits (+1 or -1), one frame per bit */
+		BIT(1),
+		/** Subcarrier frequency, phase error, I, Q and clock offset, at a fraction of the decimated rate */
+		STATS(5);
+		
+		private final int channels;
+		
+		private TapPoint(int channels) {
+			this.channels = channels;
+		}
+		
+		/**
+		 * @brief Returns the number of channels in each frame this tap point delivers.
+		 */
+		public int getChannels() {
+			return channels;
+		}
+	}
 	
 	/** RDS carrier frequency */
 	private static final double FC_0 = 57000.0;
@@ -64,8 +98,14 @@ public class AudioBitReader extends BitReader {
 	/** Output buffer length for decoded data bits */
 	private static final int OBUFLEN = 128;
 	
-	/** The input stream */
-	private final DataInputStream in;
+	/** Interval at which the stats tap point is fed, in decimated samples */
+	private static final int STATS_INTERVAL = 16;
+	
+	/** Interval at which {@link #getBit()} checks for the end of the input stream, in ms */
+	private static final long EOS_POLL_INTERVAL = 100;
+	
+	/** The source of input samples */
+	private final SampleSource in;
 	
 	/** A stream from which other applications can retrieve audio data */
 	private PipedInputStream audioMirrorSource;
@@ -95,6 +135,9 @@ public class AudioBitReader extends BitReader {
 	
 	/** A queue for the bits decoded from the audio stream. */
 	private final ArrayBlockingQueue<Boolean> bits = new ArrayBlockingQueue<Boolean>(OBUFLEN);
+	
+	/** Set by the decoder thread once all input samples have been processed */
+	private volatile boolean endOfStream = false;
 
 	/** Demodulated sample from RDS data stream (NRZ-M encoded) */
 	private int dbit = 0;
@@ -105,16 +148,30 @@ public class AudioBitReader extends BitReader {
 	private int reading_frame = 0;
 	private int tot_errs[] = new int[] {0, 0};
 
-	/* Decoded data bit from RDS stream, for debugging only */
-	private int sbit;
+	/** Tap points, indexed by {@link TapPoint#ordinal()}; null elements are detached */
+	private final AtomicReferenceArray<TapBuffer> taps = new AtomicReferenceArray<TapBuffer>(TapPoint.values().length);
+	
+	/* Tap for decoded bits, refreshed by the decoder thread for each input buffer */
+	private TapBuffer bitTap = null;
 
 	/**
 	 * Creates a new AudioBitReader and starts decoding RDS date from it.
 	 * 
+	 * @param stream A stream of 16-bit little-endian samples
 	 * @param srate
 	 */
 	public AudioBitReader(DataInputStream stream, int srate) {
-		this.in = stream;
+		this(new StreamSampleSource(stream), srate);
+	}
+	
+	/**
+	 * Creates a new AudioBitReader and starts decoding RDS date from it.
+	 * 
+	 * @param source The source of input samples
+	 * @param srate
+	 */
+	public AudioBitReader(SampleSource source, int srate) {
+		this.in = source;
 		this.sampleRate = srate;
 		this.decimate = this.sampleRate / 7125;
 		this.audioMirrorSource = new PipedInputStream();
@@ -134,34 +191,47 @@ public class AudioBitReader extends BitReader {
 				/* Subcarrier phase */
 				double subcarr_phi    = 0;
 				
-				double subcarr_bb[]   = new double[] {0, 0};
-				
 				/* Clock phase offset */
 				double clock_offset   = 0;
 				
 				/* Clock phase */
 				double clock_phi      = 0;
 				
-				double lo_clock       = 0;
-				double prevclock      = 0;
 				double prev_bb        = 0;
 				
-				/* Subcarrier phase error */
+				/* Subcarrier phase error, summed over one block */
 				double d_phi_sc       = 0;
 
 				/* Clock phase error */
 				double d_cphi         = 0;
 				
-				double acc            = 0;
-				
 				double pll_beta       = 50;
 
 				/* Number of samples (NOT bytes) read */
 				int bytesread;
 
+				/* Number of samples since the last decimated sample */
 				int numsamples = 0;
+				int blocklen = 0;
 				int i;
 				
+				/* Baseband I/Q and PLL error for one block */
+				double bbI[]          = new double[decimate];
+				double bbQ[]          = new double[decimate];
+				double pllErr[]       = new double[decimate];
+				
+				/* Decimated signals for one input buffer */
+				int declen            = IBUFLEN / decimate + 1;
+				double decPhi[]       = new double[declen];
+				double decI[]         = new double[declen];
+				double decQ[]         = new double[declen];
+				double decErr[]       = new double[declen];
+				double decClock[]     = new double[declen];
+				
+				/* Integrate & dump: accumulator and previous clock sample, dumped values */
+				double iadState[]     = new double[] {0, 0};
+				double dumps[]        = new double[declen];
+				
 				calculateResampleRatio();
 			
 				IirFilterCoefficients lp2400Coeffs = IirFilterDesignFisher.design(FilterPassType.lowpass,
@@ -170,241 +240,184 @@ public class AudioBitReader extends BitReader {
 				IirFilterCoefficients lpPllCoeffs = IirFilterDesignFisher.design(FilterPassType.lowpass,
 						FilterCharacteristicsType.butterworth, 1, 0, 2200.0 / sampleRate, 2200.0 / sampleRate);
 
-				IirFilter lp2400iFilter = new IirFilter(lp2400Coeffs);
-				IirFilter lp2400qFilter = new IirFilter(lp2400Coeffs);
-				IirFilter lpPllFilter = new IirFilter(lpPllCoeffs);
-				
-				// for debugging only
-				double t = 0;
-				short outbuf;
-				Process pU;
-				Process pIQ;
-				Process pRaw;
-				String tempPath = "/tmp";
-				String pathSep ="/";
-				try {
-					tempPath = System.getProperty("java.io.tmpdir", tempPath);
-				} catch (Exception e) {
-					// NOP
-				}
-				try {
-					pathSep = System.getProperty("file.separator", pathSep);
-				} catch (Exception e) {
-					// NOP
-				}
-				String[] cmdU = {"sox", "-c", "5", "-r", Integer.toString(sampleRate), "-t", ".s16", "-", tempPath + pathSep + "dbg-out.wav"};
-				String[] cmdIQ = {"sox", "-c", "2", "-r", Integer.toString(sampleRate), "-t", ".s16", "-", tempPath + pathSep + "dbg-out-iq.wav"};
-				String[] cmdRaw = {"sox", "-c", "1", "-r", Integer.toString(sampleRate), "-t", ".s16", "-", tempPath + pathSep + "dbg-out-raw.wav"};
-				DataOutputStream outU = null;
-				DataOutputStream outIQ = null;
-				DataOutputStream outRaw = null;
-				PrintStream stats = null;
+				IirBlockFilter lp2400iFilter = new IirBlockFilter(lp2400Coeffs);
+				IirBlockFilter lp2400qFilter = new IirBlockFilter(lp2400Coeffs);
+				IirBlockFilter lpPllFilter = new IirBlockFilter(lpPllCoeffs);
 				
-				if (DEBUG) {
-					sbit = 0;
-					dbit = 0;
-
-					try {
-						pU = new ProcessBuilder()
-							.command(cmdU)
-							.redirectErrorStream(true)
-							.start();
-						outU = new DataOutputStream(pU.getOutputStream());
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-					
-					try {
-						pIQ = new ProcessBuilder()
-							.command(cmdIQ)
-							.redirectErrorStream(true)
-							.start();
-						outIQ = new DataOutputStream(pIQ.getOutputStream());
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-					
-					try {
-						pRaw = new ProcessBuilder()
-							.command(cmdRaw)
-							.redirectErrorStream(true)
-							.start();
-						outRaw = new DataOutputStream(pRaw.getOutputStream());
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-					
-					try {
-						stats = new PrintStream(new File(tempPath, "stats.csv"));
-						stats.print("t,fsc,d_phi_sc,subcarr_bb_re,subcarr_bb_im,clock_offset\n");
-					} catch (FileNotFoundException e) {
-						e.printStackTrace();
-						stats = null;
-					}
-				}
+				/* Values for tap points */
+				double accTrace[]     = new double[declen];
+				double decFsc[]       = new double[declen];
+				double statsFrame[]   = new double[5];
+				int numstats          = 0;
 
-				while (true) {
-					bytesread = 0;
-					while (bytesread < IBUFLEN) {
+				try {
+					while (true) {
 						try {
-							sample[bytesread] = Short.reverseBytes(in.readShort());
-							bytesread++;
-						} catch (EOFException e) {
-							break;
+							bytesread = in.read(sample, 0, IBUFLEN);
 						} catch (IOException e) {
 							System.err.println("IOException.");
-							break;
+							bytesread = -1;
 						}
-					}
-					
-					if (bytesread < 1) break;
-
-					/* Reset audio counters periodically to prevent overflow */
-					inCount %= inRatio;
-					outCount %= outRatio;
-					
-					for (i = 0; i < bytesread; i++) {
+
+						if (bytesread < 1) break;
+
+						TapBuffer rawTap = taps.get(TapPoint.RAW.ordinal());
+						if (rawTap != null)
+							rawTap.put(sample, 0, bytesread, 1 / 32768.0f);
+
+						/* Reset audio counters periodically to prevent overflow */
+						inCount %= inRatio;
+						outCount %= outRatio;
+
 						if (isPlaying && (audioMirrorSink != null))
-							try {
-								/* resample */
-								inCount++;
-								/* 
-								 * if the downsampling ratio has not been exceeded yet
-								 * (outCount * inRatio <= outRatio * inCount
-								 * is just an integer-friendly and div-by-zero-proof representation of 
-								 * outCount/inCount <= outRatio/inRatio)
-								 */
-								if (outCount * inRatio <= outRatio * inCount) {
-									audioMirrorSink.writeShort(Short.reverseBytes(sample[i]));
-									outCount++;
+							for (i = 0; i < bytesread; i++)
+								try {
+									/* resample */
+									inCount++;
+									/* 
+									 * if the downsampling ratio has not been exceeded yet
+									 * (outCount * inRatio <= outRatio * inCount
+									 * is just an integer-friendly and div-by-zero-proof representation of 
+									 * outCount/inCount <= outRatio/inRatio)
+									 */
+									if (outCount * inRatio <= outRatio * inCount) {
+										audioMirrorSink.writeShort(Short.reverseBytes(sample[i]));
+										outCount++;
+									}
+								} catch (IOException e) {
+									e.printStackTrace();
 								}
-							} catch (IOException e) {
-								e.printStackTrace();
-							}
 
-						/* Subcarrier downmix & phase recovery */
+						/*
+						 * Subcarrier downmix & phase recovery, in blocks of one decimation period.
+						 * The PLL correction is applied at the end of each block.
+						 */
+						int numdec = 0;
+						for (int pos = 0; pos < bytesread; pos += blocklen) {
+							blocklen = Math.min(decimate - numsamples % decimate, bytesread - pos);
+							double step = 2 * Math.PI * fsc / (double) sampleRate;
+							double phi0 = subcarr_phi;
+
+							subcarr_phi = DspKernels.mix(sample, pos, blocklen, 1 / 32768.0, subcarr_phi, step, bbI, bbQ);
+							lp2400iFilter.process(bbI, 0, bbI, 0, blocklen);
+							lp2400qFilter.process(bbQ, 0, bbQ, 0, blocklen);
+							DspKernels.multiply(bbI, bbQ, pllErr, blocklen);
+							lpPllFilter.process(pllErr, 0, pllErr, 0, blocklen);
+
+							/* Keep the decimated sample, which is always the first one of a block */
+							if (numsamples % decimate == 0) {
+								decPhi[numdec] = phi0 + step;
+								decI[numdec] = bbI[0];
+								decQ[numdec] = bbQ[0];
+								decErr[numdec] = pllErr[0];
+								decFsc[numdec] = fsc;
+								numdec++;
+							}
 
-						subcarr_phi    += 2 * Math.PI * fsc / (double) sampleRate;
-						subcarr_bb[0]  = lp2400iFilter.step(sample[i] / 32768.0 * Math.cos(subcarr_phi));
-						subcarr_bb[1]  = lp2400qFilter.step(sample[i] / 32768.0 * Math.sin(subcarr_phi));
+							d_phi_sc = DspKernels.sum(pllErr, blocklen);
+							subcarr_phi -= pll_beta * d_phi_sc;
+							fsc         -= 0.5 * pll_beta * d_phi_sc;
 
-						d_phi_sc = lpPllFilter.step(subcarr_bb[1] * subcarr_bb[0]);
-						subcarr_phi -= pll_beta * d_phi_sc;
-						fsc         -= 0.5 * pll_beta * d_phi_sc;
-						
-						/* Decimate band-limited signal */
-						if (numsamples % decimate == 0) {
 							/* Reset subcarrier frequency if it is outside tolerance range */
 							if ((fsc > FC_0 + FC_TOLERANCE) || (fsc < FC_0 - FC_TOLERANCE)) {
 								fsc = FC_0;
 							}
 
-							/* 1187.5 Hz clock */
-
-							clock_phi = subcarr_phi / 48.0 + clock_offset;
-							lo_clock  = ((clock_phi % (2 * Math.PI)) < Math.PI ? 1 : -1);
+							numsamples = (numsamples + blocklen) % decimate;
+						}
 
-							/* Clock phase recovery */
+						/* 1187.5 Hz clock and clock phase recovery on the decimated signal */
+						TapBuffer statsTap = taps.get(TapPoint.STATS.ordinal());
+						for (i = 0; i < numdec; i++) {
+							clock_phi = decPhi[i] / 48.0 + clock_offset;
+							decClock[i] = ((clock_phi % (2 * Math.PI)) < Math.PI ? 1 : -1);
 
-							if (sign(prev_bb) != sign(subcarr_bb[0])) {
+							if (sign(prev_bb) != sign(decI[i])) {
 								d_cphi = clock_phi % Math.PI;
 								if (d_cphi >= (Math.PI / 2)) d_cphi -= Math.PI;
 								clock_offset -= 0.005 * d_cphi;
 							}
-
-							/* biphase symbol integrate & dump */
-							acc += subcarr_bb[0] * lo_clock;
-
-							if (sign(lo_clock) != sign(prevclock)) {
-								biphase(acc);
-								acc = 0;
-							}
-
-							prevclock = lo_clock;
-							prev_bb = subcarr_bb[0];
-
-							if (DEBUG) {
-								if (outRaw != null)
-									try {
-										outRaw.writeShort(Short.reverseBytes(sample[i]));
-									} catch (IOException e) {
-										e.printStackTrace();
-									}
-								/* dbg-out.wav channel 1: d_phi_sc */
-								outbuf = (short) (d_phi_sc * 6000);
-								if (outU != null)
-									try {
-										outU.writeShort(Short.reverseBytes(outbuf));
-									} catch (IOException e) {
-										e.printStackTrace();
-									}
-
-								/* dbg-out.wav channel 2: 1187.5 Hz clock */
-								outbuf = (short) (lo_clock * 16000);
-								if (outU != null)
-									try {
-										outU.writeShort(Short.reverseBytes(outbuf));
-									} catch (IOException e) {
-										e.printStackTrace();
-									}
-
-								/* dbg-out-iq.wav channel 1 */
-								outbuf = (short) (subcarr_bb[0] * 32000);
-								if (outIQ != null)
-									try {
-										outIQ.writeShort(Short.reverseBytes(outbuf));
-									} catch (IOException e) {
-										e.printStackTrace();
-									}
-
-								/* dbg-out-iq.wav channel 2 */
-								outbuf = (short) (subcarr_bb[1] * 32000);
-								if (outIQ != null)
-									try {
-										outIQ.writeShort(Short.reverseBytes(outbuf));
-									} catch (IOException e) {
-										e.printStackTrace();
-									}
-								/* dbg-out.wav channel 3: acc */
-								outbuf = (short) (acc * 800);
-								if (outU != null)
-									try {
-										outU.writeShort(Short.reverseBytes(outbuf));
-									} catch (IOException e) {
-										e.printStackTrace();
-									}
-								/* dbg-out.wav channel 4: dbit (demodulated RDS stream) */
-								outbuf = (short) (dbit * 16000);
-								if (outU != null)
-									try {
-										outU.writeShort(Short.reverseBytes(outbuf));
-									} catch (IOException e) {
-										e.printStackTrace();
-									}
-
-								/* dbg-out.wav channel 5: sbit (decoded RDS data stream) */
-								outbuf = (short) (sbit * 16000);
-								if (outU != null)
-									try {
-										outU.writeShort(Short.reverseBytes(outbuf));
-									} catch (IOException e) {
-										e.printStackTrace();
-									}
-
-								t += 1.0/sampleRate;
-								if ((stats != null) && (numsamples % (decimate * 16) == 0))
-									// qua (quality) is not implemented so far
-									stats.printf("%f,%f,%f,%f,%f,%f\n", t, fsc, d_phi_sc, subcarr_bb[0], subcarr_bb[1], clock_offset);
+							prev_bb = decI[i];
+
+							if ((statsTap != null) && (numstats++ % STATS_INTERVAL == 0)) {
+								statsFrame[0] = decFsc[i];
+								statsFrame[1] = decErr[i];
+								statsFrame[2] = decI[i];
+								statsFrame[3] = decQ[i];
+								statsFrame[4] = clock_offset;
+								statsTap.put(statsFrame);
 							}
 						}
-						
-						numsamples++;
+
+						/* biphase symbol integrate & dump */
+						TapBuffer accTap = taps.get(TapPoint.ACCUMULATOR.ordinal());
+						int numdumps = DspKernels.integrateAndDump(decI, decClock, numdec, iadState, dumps,
+								(accTap != null) ? accTrace : null);
+						bitTap = taps.get(TapPoint.BIT.ordinal());
+						for (i = 0; i < numdumps; i++)
+							biphase(dumps[i]);
+
+						if (accTap != null)
+							accTap.put(accTrace, 0, numdec);
+						TapBuffer tap = taps.get(TapPoint.IQ.ordinal());
+						if (tap != null)
+							for (i = 0; i < numdec; i++)
+								tap.put(decI[i], decQ[i]);
+						tap = taps.get(TapPoint.PLL_ERROR.ordinal());
+						if (tap != null)
+							tap.put(decErr, 0, numdec);
+						tap = taps.get(TapPoint.CLOCK.ordinal());
+						if (tap != null)
+							tap.put(decClock, 0, numdec);
 					}
+				} finally {
+					endOfStream = true;
 				}
 			}
 		}.start();
 	}
 	
+	/**
+	 * @brief Attaches a ring buffer to a tap point.
+	 * 
+	 * From then on, the demodulator writes the signal at the tap point to the buffer, dropping
+	 * data if the buffer is full. Any buffer previously attached to the same tap point is
+	 * replaced. Tap points can be attached and detached while the demodulator is running; a
+	 * detached tap point costs no more than checking for it once per input buffer.
+	 * 
+	 * @param point The tap point
+	 * @param capacity The capacity of the buffer, in frames
+	 * @return The buffer from which the consumer can read the tapped signal
+	 */
+	public TapBuffer attachTap(TapPoint point, int capacity) {
+		TapBuffer buffer = new TapBuffer(point.getChannels(), capacity);
+		taps.set(point.ordinal(), buffer);
+		return buffer;
+	}
+	
+	/**
+	 * @brief Detaches the buffer from a tap point.
+	 */
+	public void detachTap(TapPoint point) {
+		taps.set(point.ordinal(), null);
+	}
+	
+	/**
+	 * @brief Returns the rate at which a tap point delivers frames, in frames per second.
+	 */
+	public double getTapSampleRate(TapPoint point) {
+		switch (point) {
+		case RAW:
+			return sampleRate;
+		case BIT:
+			return 1187.5;
+		case STATS:
+			return sampleRate / (double) decimate / STATS_INTERVAL;
+		default:
+			return sampleRate / (double) decimate;
+		}
+	}
+	
 	/**
 	 * @brief Returns a stream on which audio output is mirrored as it is processed.
 	 * 
@@ -425,11 +438,19 @@ public class AudioBitReader extends BitReader {
 
 	@Override
 	public boolean getBit() throws IOException {
-		boolean ret;
+		Boolean ret;
 		while (true) {
 			try {
-				ret = bits.take();
-				return ret;
+				ret = bits.poll(EOS_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				if (ret != null)
+					return ret;
+				if (endOfStream) {
+					/* the decoder thread may have queued its last bits just before finishing */
+					ret = bits.poll();
+					if (ret != null)
+						return ret;
+					throw new EOFException();
+				}
 			} catch (InterruptedException e) {
 				System.err.println("InterruptedException.");
 			}
@@ -484,9 +505,8 @@ public class AudioBitReader extends BitReader {
 	 * stored, else 0 is stored.
 	 */
 	private void storeValue(int b) {
-		if (DEBUG) {
-			sbit = (((b ^ dbit) != 0) ? 1 : -1);
-		}
+		if (bitTap != null)
+			bitTap.put(((b ^ dbit) != 0) ? 1 : -1);
 		try {
 			bits.put((b ^ dbit) != 0);
 		} catch (InterruptedException e) {
@@ -527,4 +547,33 @@ public class AudioBitReader extends BitReader {
 		
 		System.out.println(String.format("AudioBitReader: audio downsampling ratio set to %d:%d", inRatio, outRatio));
 	}
+	
+	/**
+	 * Reads 16-bit little-endian samples from a stream.
+	 */
+	private static class StreamSampleSource implements SampleSource {
+		private final DataInputStream stream;
+		
+		public StreamSampleSource(DataInputStream stream) {
+			this.stream = stream;
+		}
+		
+		@Override
+		public int read(short[] buf, int off, int len) throws IOException {
+			int count = 0;
+			while (count < len) {
+				try {
+					buf[off + count] = Short.reverseBytes(stream.readShort());
+					count++;
+				} catch (EOFException e) {
+					break;
+				} catch (IOException e) {
+					if (count == 0)
+						throw e;
+					break;
+				}
+			}
+			return (count == 0) ? -1 : count;
+		}
+	}
 }
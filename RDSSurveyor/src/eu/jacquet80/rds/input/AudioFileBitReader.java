@@ -25,6 +25,7 @@
 
 package eu.jacquet80.rds.input;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 
@@ -33,12 +34,27 @@ import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.UnsupportedAudioFileException;
 
+/**
+ * Reads bits from an audio file with two 16-bit little-endian channels, data and clock.
+ * 
+ * A bit is taken from the data channel whenever the clock channel goes from non-negative to
+ * negative. The file is read in large blocks into a buffer which is reused throughout.
+ */
 public class AudioFileBitReader extends BitReader {
-	//private int pos = 0; //, lastPos = 0;
-	//private final long frameLength;
+	/** Size of the read buffer, in frames */
+	private static final int BUFFER_FRAMES = 16384;
+	
 	private final AudioInputStream ais;
 	private final int frameSize;
-	private int prevClock = 0;
+	private int prevClock = -1;   // no edge on the first frame
+	
+	/* Read buffer, with valid data from bufPos to bufLen */
+	private final byte[] buffer;
+	private int bufPos = 0;
+	private int bufLen = 0;
+	
+	/* Used by getBit() */
+	private final boolean[] singleBit = new boolean[1];
 	
 	public AudioFileBitReader(File file) throws IOException {
 		try {
@@ -52,39 +68,68 @@ public class AudioFileBitReader extends BitReader {
 		
 		System.out.println("length = " + ais.getFrameLength() + " samples, format: " + format);
 		
-		//frameLength = ais.getFrameLength();
-
 		frameSize = format.getFrameSize();
+		if(frameSize < 4)
+			throw new IOException("Audio file must have a 16-bit data and a 16-bit clock channel");
 		
-		/*
-		byte[] smpl = new byte[frameSize];
-
-		for(; pos < frameLength; pos++) {
-			ais.read(smpl, 0, frameSize);
-			int data = (0xFF & (int)smpl[0]) + ((int)smpl[1]) * 256;
-			int clock = (0xFF & (int)smpl[2]) + ((int)smpl[3]) * 256;
-			System.out.print(clock + "|" + data + "/ ");
-		}
-		*/
+		buffer = new byte[BUFFER_FRAMES * frameSize];
 	}
 	
 	
 	public boolean getBit() throws IOException {
-		//if(pos >= frameLength) throw new IOException("End of audio file.");
-
-		byte[] smpl = new byte[frameSize];
-
-		int data, clock = -1;
-		do {
-			prevClock = clock;
-			ais.read(smpl, 0, frameSize);
-			data = (0xFF & (int)smpl[0]) + ((int)smpl[1]) * 256;
-			clock = (0xFF & (int)smpl[2]) + ((int)smpl[3]) * 256;
-			//pos++;
-		} while(! (prevClock >= 0 && clock < 0) );
-		//System.out.print("(" + (pos - lastPos) + ")");
-		//lastPos = pos;
-		return data > 0;
+		getBits(singleBit, 0, 1);
+		return singleBit[0];
+	}
+	
+	@Override
+	public int getBits(boolean[] bits, int off, int len) throws IOException {
+		final byte[] b = buffer;
+		int count = 0;
+		
+		while(count < len) {
+			if(bufLen - bufPos < frameSize && !fill()) break;
+			
+			int p = bufPos;
+			int last = bufLen - frameSize;
+			int prev = prevClock;
+			while(p <= last) {
+				int clock = (0xFF & b[p+2]) | (b[p+3] << 8);
+				if(prev >= 0 && clock < 0) {
+					int data = (0xFF & b[p]) | (b[p+1] << 8);
+					bits[off + count++] = data > 0;
+					prev = clock;
+					p += frameSize;
+					if(count == len) break;
+				} else {
+					prev = clock;
+					p += frameSize;
+				}
+			}
+			bufPos = p;
+			prevClock = prev;
+		}
+		
+		if(count == 0 && len > 0) throw new EOFException();
+		return count;
+	}
+	
+	/**
+	 * Refills the buffer, keeping any incomplete frame which is left in it.
+	 * 
+	 * @return false if the end of the file has been reached before a complete frame could be read
+	 */
+	private boolean fill() throws IOException {
+		int remaining = bufLen - bufPos;
+		System.arraycopy(buffer, bufPos, buffer, 0, remaining);
+		bufPos = 0;
+		bufLen = remaining;
+		
+		// the audio stream may return fewer bytes than requested, and not always whole frames
+		while(bufLen < frameSize) {
+			int n = ais.read(buffer, bufLen, buffer.length - bufLen);
+			if(n < 0) return false;
+			bufLen += n;
+		}
+		return true;
 	}
-
 }
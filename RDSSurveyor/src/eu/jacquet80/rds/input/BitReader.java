@@ -24,9 +24,35 @@
 */
 
 package eu.jacquet80.rds.input;
+import java.io.EOFException;
 import java.io.IOException;
 
 
 public abstract class BitReader extends RDSReader {
 	public abstract boolean getBit() throws IOException;
+	
+	/**
+	 * @brief Reads several bits at once.
+	 * 
+	 * Fewer than {@code len} bits are returned only if the end of the stream is reached. The
+	 * default implementation calls {@link #getBit()} repeatedly; subclasses which can decode
+	 * bits in bulk should override it.
+	 * 
+	 * @param bits The array which receives the bits
+	 * @param off The offset in {@code bits} at which to store the first bit
+	 * @param len The maximum number of bits to read
+	 * @return The number of bits read
+	 * @throws EOFException if the end of the stream is reached before any bit could be read
+	 */
+	public int getBits(boolean[] bits, int off, int len) throws IOException {
+		for(int i=0; i<len; i++) {
+			try {
+				bits[off + i] = getBit();
+			} catch(EOFException e) {
+				if(i == 0) throw e;
+				return i;
+			}
+		}
+		return len;
+	}
 }
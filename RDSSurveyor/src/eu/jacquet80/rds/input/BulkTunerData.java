@@ -0,0 +1,144 @@
+/*
+ RDS Surveyor -- RDS decoder, analyzer and monitor tool and library.
+ For more information see
+   http://www.jacquet80.eu/
+   http://rds-surveyor.sourceforge.net/
+
+ Copyright (c) 2016 the RDS Surveyor contributors
+
+ This file is part of RDS Surveyor.
+
+ RDS Surveyor is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ RDS Surveyor is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser Public License for more details.
+
+ You should have received a copy of the GNU Lesser Public License
+ along with RDS Surveyor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package eu.jacquet80.rds.input;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Tuner data transferred in bulk from a native tuner driver.
+ *
+ * Instead of being asked for one group at a time, the driver fills {@link #buffer} with
+ * everything it has received since the previous call, so that a single JNI call returns many
+ * groups. The buffer is a direct buffer in native byte order, laid out as follows:
+ *
+ * <pre>
+ * offset  size  contents
+ *      0     4  frequency in kHz
+ *      4     4  RSSI, 0..65535
+ *      8     4  flags: FLAG_STEREO, FLAG_SYNCHRONIZED
+ *     12   4*n  n block records
+ * </pre>
+ *
+ * Each block record is made of the 16-bit block value, the block offset (0 to 3 for A to D,
+ * 4 for C') and an error byte, which is 0 for a correct block. The driver returns n.
+ *
+ * Blocks are assembled into groups here, and the groups are kept in a packed array until they
+ * are read with {@link #nextGroup()}.
+ */
+class BulkTunerData {
+	public static final int HEADER_SIZE = 12;
+	public static final int RECORD_SIZE = 4;
+
+	public static final int FLAG_STEREO = 1;
+	public static final int FLAG_SYNCHRONIZED = 2;
+
+	/** The buffer filled by the native driver */
+	public final ByteBuffer buffer;
+
+	public int frequency;
+	public int rssi;
+	public boolean stereo;
+	public boolean rdsSynchronized;
+
+	/* Complete groups not read yet, 4 blocks each, -1 for an erroneous block */
+	private final int[] groups;
+	private int groupsRead = 0;
+	private int groupsWritten = 0;
+
+	/* Group being assembled; it may span two transfers */
+	private final int[] current = {-1, -1, -1, -1};
+	private int nextBlock = 0;
+
+	/**
+	 * @param maxBlocks The maximum number of blocks the driver may return in one call
+	 */
+	public BulkTunerData(int maxBlocks) {
+		buffer = ByteBuffer.allocateDirect(HEADER_SIZE + RECORD_SIZE * maxBlocks);
+		buffer.order(ByteOrder.nativeOrder());
+		// in the worst case, the transfer completes the pending group and then has 3 blocks left
+		groups = new int[4 * (maxBlocks / 4 + 1)];
+	}
+
+	/**
+	 * @brief Returns true if groups have been decoded but not read yet.
+	 */
+	public boolean hasGroups() {
+		return groupsRead < groupsWritten;
+	}
+
+	/**
+	 * @brief Decodes the buffer after the native driver has filled it.
+	 *
+	 * This must be called only after all pending groups have been read.
+	 *
+	 * @param count The number of block records in the buffer
+	 */
+	public void decode(int count) {
+		frequency = buffer.getInt(0);
+		rssi = buffer.getInt(4);
+		int flags = buffer.getInt(8);
+		stereo = (flags & FLAG_STEREO) != 0;
+		rdsSynchronized = (flags & FLAG_SYNCHRONIZED) != 0;
+
+		groupsRead = groupsWritten = 0;
+		int max = (buffer.capacity() - HEADER_SIZE) / RECORD_SIZE;
+		if(count > max) count = max;
+
+		for(int pos = HEADER_SIZE; pos < HEADER_SIZE + RECORD_SIZE * count; pos += RECORD_SIZE) {
+			int block = buffer.getShort(pos) & 0xFFFF;
+			int offset = buffer.get(pos + 2);
+			int error = buffer.get(pos + 3);
+
+			// special handling of block C'
+			if(offset == 4) offset = 2;
+
+			if(offset != nextBlock) {
+				// lost synchronization: drop the partial group, restart on a block A
+				nextBlock = 0;
+				if(offset != 0) continue;
+			}
+
+			current[offset] = error != 0 ? -1 : block;
+			if(++nextBlock == 4) {
+				System.arraycopy(current, 0, groups, 4 * groupsWritten, 4);
+				groupsWritten++;
+				nextBlock = 0;
+			}
+		}
+	}
+
+	/**
+	 * @brief Returns the next decoded group, or {@code null} if there is none.
+	 */
+	public int[] nextGroup() {
+		if(! hasGroups()) return null;
+		int[] res = new int[4];
+		System.arraycopy(groups, 4 * groupsRead, res, 0, 4);
+		groupsRead++;
+		return res;
+	}
+}
@@ -1,7 +1,6 @@
 package eu.jacquet80.rds.input;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -38,7 +37,7 @@ public class FileFormatGuesser {
 			// grouphexfile
 			System.out.println("Detected a group-level file.");
 			bis.reset();
-			return new HexFileGroupReader(new BufferedReader(new InputStreamReader(bis)));
+			return new HexFileGroupReader(bis);
 		} else if (BINSTR_PATTERN.matcher(guessString).matches()) {
 			// binstrfile
 			System.out.println("Detected a binary string file.");
@@ -64,6 +63,11 @@ public class FileFormatGuesser {
 	}
 	
 	public static GroupReader createReader(File file) throws IOException {
+		if(IqFileBitReader.isIqFile(file)) {
+			// raw I/Q samples cannot be told from a binary file by their contents
+			System.out.println("Detected a raw I/Q file.");
+			return new BitStreamSynchronizer(System.out, new IqFileBitReader(file));
+		}
 		return createReader(new FileInputStream(file));
 	}
 }
@@ -0,0 +1,329 @@
+/*
+ RDS Surveyor -- RDS decoder, analyzer and monitor tool and library.
+ For more information see
+   http://www.jacquet80.eu/
+   http://rds-surveyor.sourceforge.net/
+
+ Copyright (c) 2016 the RDS Surveyor contributors
+
+ This file is part of RDS Surveyor.
+
+ RDS Surveyor is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ RDS Surveyor is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser Public License for more details.
+
+ You should have received a copy of the GNU Lesser Public License
+ along with RDS Surveyor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package eu.jacquet80.rds.input;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+
+import eu.jacquet80.rds.log.RDSTime;
+import eu.jacquet80.rds.log.RealTime;
+
+/**
+ * Writes a group-level hex file from a background thread.
+ *
+ * Lines are formatted directly into a byte buffer by the calling thread, which never waits for
+ * the disk. A writer thread commits the buffer to the file whenever it holds at least
+ * {@link #COMMIT_SIZE} bytes, or when the flush interval has elapsed since the last commit,
+ * whichever comes first. The flush interval thus determines how much data can be lost if the
+ * application terminates abnormally. Optionally, each commit is also forced to the storage
+ * device.
+ *
+ * If the disk cannot keep up, the buffer grows up to {@link #MAX_BUFFER_SIZE}. Beyond that, lines
+ * are dropped rather than stalling the caller, and a comment line reporting the number of dropped
+ * lines is written once the writer has caught up.
+ */
+public class GroupLogWriter {
+	/** Default flush interval, in milliseconds */
+	public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+	/** Amount of data which triggers a commit before the flush interval has elapsed, in bytes */
+	public static final int COMMIT_SIZE = 64 * 1024;
+
+	/** Maximum amount of data waiting to be written, in bytes */
+	public static final int MAX_BUFFER_SIZE = 8 * 1024 * 1024;
+
+	/** Maximum length of a group line, in bytes */
+	private static final int MAX_GROUP_LINE = 128;
+
+	private static final byte[] HEX = {
+		'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+	};
+
+	private static final byte[] NEWLINE = System.getProperty("line.separator", "\n").getBytes();
+
+	private final FileOutputStream out;
+	private final long flushInterval;
+	private final boolean sync;
+	private final Thread writerThread;
+	private final Thread shutdownHook;
+
+	/* Buffer being filled by the caller, and its length; guarded by this */
+	private byte[] filling = new byte[COMMIT_SIZE + MAX_GROUP_LINE];
+	private int fillLen = 0;
+
+	/* Buffer being written by the writer thread; guarded by this while swapping */
+	private byte[] writing = new byte[COMMIT_SIZE + MAX_GROUP_LINE];
+
+	/* Number of lines dropped since the last report; guarded by this */
+	private int dropped = 0;
+
+	private boolean closed = false;
+	private IOException error = null;
+
+	/* Cache for time stamp formatting, used by the calling thread only */
+	private final SimpleDateFormat secondFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss.");
+	private long cachedSecond = Long.MIN_VALUE;
+	private byte[] cachedSecondText;
+
+	/**
+	 * @param file The file to write
+	 * @param flushInterval The maximum time data is held back before it is written, in ms
+	 * @param sync Whether each commit is forced to the storage device
+	 */
+	public GroupLogWriter(File file, long flushInterval, boolean sync) throws IOException {
+		this.out = new FileOutputStream(file);
+		this.flushInterval = Math.max(flushInterval, 1);
+		this.sync = sync;
+
+		writerThread = new Thread("Group log writer") {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		};
+		writerThread.setDaemon(true);
+		writerThread.start();
+
+		// make sure pending data reaches the file if the application exits
+		shutdownHook = new Thread() {
+			@Override
+			public void run() {
+				closeQuietly();
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	public GroupLogWriter(File file) throws IOException {
+		this(file, DEFAULT_FLUSH_INTERVAL, false);
+	}
+
+	/**
+	 * @brief Writes a line of text.
+	 */
+	public synchronized void writeLine(String line) {
+		if(!reserve(line.length() + NEWLINE.length)) return;
+		appendLine(line);
+	}
+
+	/**
+	 * Appends a line of text to the buffer, growing it if needed, even if the writer is closing.
+	 * Must be called with the lock held.
+	 */
+	private void appendLine(String line) {
+		if(fillLen + line.length() + NEWLINE.length > filling.length)
+			filling = Arrays.copyOf(filling, fillLen + line.length() + NEWLINE.length);
+		for(int i=0; i<line.length(); i++) {
+			char c = line.charAt(i);
+			filling[fillLen++] = (byte) (c < 0x80 ? c : '?');
+		}
+		appendNewline();
+	}
+
+	/**
+	 * @brief Writes a group line: four blocks in hex ({@code ----} for a missing block), followed
+	 * by {@code @} and the time.
+	 */
+	public synchronized void writeGroup(int[] blocks, RDSTime time) {
+		byte[] timeText = null;
+		Date date = (time instanceof RealTime) ? time.getRealTime(null, null) : null;
+		if(date == null) timeText = time.toLongString().getBytes();
+
+		if(!reserve(MAX_GROUP_LINE + (timeText == null ? 0 : timeText.length))) return;
+
+		byte[] b = filling;
+		int p = fillLen;
+		for(int i=0; i<4; i++) {
+			int v = blocks[i];
+			if(v < 0) {
+				b[p++] = '-'; b[p++] = '-'; b[p++] = '-'; b[p++] = '-';
+			} else {
+				if(v > 0xFFFF) {
+					for(int shift = 28; shift >= 16; shift -= 4)
+						if((v >>> shift) != 0) b[p++] = HEX[(v >>> shift) & 0xF];
+				}
+				b[p++] = HEX[(v >> 12) & 0xF];
+				b[p++] = HEX[(v >> 8) & 0xF];
+				b[p++] = HEX[(v >> 4) & 0xF];
+				b[p++] = HEX[v & 0xF];
+			}
+			b[p++] = ' ';
+		}
+		b[p++] = '@';
+		if(timeText != null) {
+			System.arraycopy(timeText, 0, b, p, timeText.length);
+			p += timeText.length;
+		} else {
+			p = appendDate(date.getTime(), b, p);
+		}
+		fillLen = p;
+		appendNewline();
+	}
+
+	/**
+	 * Formats a time as {@code yyyy/MM/dd HH:mm:ss.SSS}, like {@link RealTime#toLongString()}.
+	 * The part up to the seconds is formatted only once per second.
+	 */
+	private int appendDate(long millis, byte[] b, int p) {
+		long second = millis / 1000 - ((millis % 1000 < 0) ? 1 : 0);
+		int ms = (int) (millis - second * 1000);
+		if(second != cachedSecond) {
+			cachedSecondText = secondFormat.format(new Date(second * 1000)).getBytes();
+			cachedSecond = second;
+		}
+		System.arraycopy(cachedSecondText, 0, b, p, cachedSecondText.length);
+		p += cachedSecondText.length;
+		b[p++] = (byte) ('0' + ms / 100);
+		b[p++] = (byte) ('0' + (ms / 10) % 10);
+		b[p++] = (byte) ('0' + ms % 10);
+		return p;
+	}
+
+	private void appendNewline() {
+		System.arraycopy(NEWLINE, 0, filling, fillLen, NEWLINE.length);
+		fillLen += NEWLINE.length;
+		if(fillLen >= COMMIT_SIZE) notifyAll();
+	}
+
+	/**
+	 * Makes room for a line in the buffer, growing it if needed. Must be called with the lock held.
+	 *
+	 * @return false if the line must be dropped
+	 */
+	private boolean reserve(int len) {
+		if(closed) return false;
+		if(fillLen + len <= filling.length) return true;
+		if(fillLen + len > MAX_BUFFER_SIZE) {
+			dropped++;
+			return false;
+		}
+		byte[] newBuf = new byte[Math.min(MAX_BUFFER_SIZE, Math.max(2 * filling.length, fillLen + len))];
+		System.arraycopy(filling, 0, newBuf, 0, fillLen);
+		filling = newBuf;
+		return true;
+	}
+
+	private void writeLoop() {
+		try {
+			while(true) {
+				int len;
+				boolean done;
+				synchronized(this) {
+					long deadline = System.currentTimeMillis() + flushInterval;
+					long wait;
+					while(!closed && fillLen < COMMIT_SIZE && (wait = deadline - System.currentTimeMillis()) > 0) {
+						try {
+							wait(wait);
+						} catch(InterruptedException e) {
+							// check again
+						}
+					}
+
+					// swap buffers
+					byte[] tmp = writing;
+					writing = filling;
+					len = fillLen;
+					filling = (tmp.length >= COMMIT_SIZE + MAX_GROUP_LINE) ? tmp : new byte[COMMIT_SIZE + MAX_GROUP_LINE];
+					fillLen = 0;
+
+					// not through writeLine(), which rejects lines once the writer is closing
+					if(dropped > 0) {
+						appendLine("% " + dropped + " lines dropped, disk too slow");
+						dropped = 0;
+					}
+					done = closed;
+				}
+
+				if(len > 0) {
+					out.write(writing, 0, len);
+					if(sync) out.getFD().sync();
+				}
+
+				// give back memory after a backlog
+				if(writing.length > 4 * COMMIT_SIZE) writing = new byte[COMMIT_SIZE + MAX_GROUP_LINE];
+
+				if(done) {
+					synchronized(this) {
+						if(fillLen == 0) break;
+					}
+				}
+			}
+		} catch(IOException e) {
+			synchronized(this) {
+				error = e;
+				closed = true;
+			}
+			System.err.println("Error writing group log: " + e);
+		} finally {
+			try {
+				out.close();
+			} catch(IOException e) {
+				// nothing we can do
+			}
+		}
+	}
+
+	/**
+	 * @brief Writes all pending data and closes the file.
+	 *
+	 * @throws IOException if writing failed at any time
+	 */
+	public void close() throws IOException {
+		synchronized(this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			writerThread.join();
+		} catch(InterruptedException e) {
+			throw new IOException("Interrupted while closing group log");
+		}
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch(IllegalStateException e) {
+			// already shutting down
+		}
+		synchronized(this) {
+			if(error != null) throw error;
+		}
+	}
+
+	private void closeQuietly() {
+		synchronized(this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			writerThread.join();
+		} catch(InterruptedException e) {
+			// give up
+		}
+	}
+}
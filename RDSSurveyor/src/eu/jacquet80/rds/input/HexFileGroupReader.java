@@ -27,103 +27,170 @@ package eu.jacquet80.rds.input;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.Calendar;
-import java.util.GregorianCalendar;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.InputStream;
 
-import eu.jacquet80.rds.input.group.FrequencyChangeEvent;
-import eu.jacquet80.rds.input.group.GroupEvent;
 import eu.jacquet80.rds.input.group.GroupReaderEvent;
 import eu.jacquet80.rds.log.RDSTime;
-import eu.jacquet80.rds.log.RealTime;
 import eu.jacquet80.rds.log.SequentialTime;
 
+/**
+ * Reads groups from a group-level hex file, in RDS Surveyor or RDS Spy format.
+ * 
+ * When constructed from a file or a byte stream, the reader scans large blocks of the input for
+ * line ends and parses each line in place with a {@link HexLineParser}, so that no objects are
+ * created except for the events returned.
+ */
 public class HexFileGroupReader extends GroupReader {
-	private final static Pattern FIRST_NUMBER = Pattern.compile(".*\\D(\\d+)");
-	private final static Pattern RDS_SPY_DATE_FORMAT = 
-			Pattern.compile(".*@(\\d{4})/(\\d{2})/(\\d{2})\\s+(\\d{2}):(\\d{2}):(\\d{2}).(\\d{2,4})$");
+	/** Initial size of the read buffer, in bytes */
+	private static final int BUFFER_SIZE = 65536;
+	
+	private final InputStream in;
 	private final BufferedReader br;
+	private final HexLineParser parser = new HexLineParser();
 	private int groupTime = 0;
-	private static final Pattern SPACE = Pattern.compile("\\s+");
+	
+	/* Read buffer, holding unprocessed data from pos to limit */
+	private byte[] buf = new byte[BUFFER_SIZE];
+	private int pos = 0;
+	private int limit = 0;
+	private boolean eof = false;
+	
+	/* Set after a line ending with CR, so that a subsequent LF is skipped */
+	private boolean skipLf = false;
+	
+	/* The line found by nextLine() */
+	private int lineStart;
+	private int lineEnd;
+	
+	public HexFileGroupReader(InputStream in) {
+		this.in = in;
+		this.br = null;
+	}
 	
 	public HexFileGroupReader(BufferedReader br) {
+		this.in = null;
 		this.br = br;
 	}
 	
-	// TODO: remove?
 	public HexFileGroupReader(File file) throws FileNotFoundException {
-		this(new BufferedReader(new FileReader(file)));
+		this(new FileInputStream(file));
 	}
 	
 	public GroupReaderEvent getGroup() throws IOException, EndOfStream {
-		GroupReaderEvent event;
+		GroupReaderEvent event = null;
 		
 		do {
-			String line = br.readLine();
-			if(line == null) throw new EndOfStream();
-
-			event = parseHexLine(line, new SequentialTime(groupTime));
+			if(! nextLine()) throw new EndOfStream();
+			
+			if(parser.parse(buf, lineStart, lineEnd) != HexLineParser.NONE)
+				event = parser.createEvent(new SequentialTime(groupTime));
 			groupTime++;
 		} while(event == null);
 		
 		return event;
 	}
 	
-	/* package */ static GroupReaderEvent parseHexLine(String line, RDSTime time) throws IOException {
-		line = line.trim();
+	/**
+	 * Finds the next line in the input and stores its bounds in {@code lineStart} and
+	 * {@code lineEnd}. Lines may end with LF, CR or CR LF.
+	 * 
+	 * @return false if the end of the input has been reached
+	 */
+	private boolean nextLine() throws IOException {
+		if(br != null) return readLine();
 		
-		// ignore empty lines
-		if(line.length() == 0) return null;
+		if(skipLf) {
+			if(pos == limit) fill();
+			if(pos < limit && buf[pos] == '\n') pos++;
+			skipLf = false;
+		}
 		
-		if(line.startsWith("%")) {
-			// Lines beginning with % are to be ignored, but may contain metadata
-			if(line.startsWith("% Freq")) {
-				// Frequency indicator metadata
-				Matcher m = FIRST_NUMBER.matcher(line);
-				int f = 0;
-				if(m.matches()) f = Integer.parseInt(m.group(1));
-				return new FrequencyChangeEvent(time, f);
+		int scan = pos;
+		while(true) {
+			while(scan < limit) {
+				byte c = buf[scan];
+				if(c == '\n' || c == '\r') {
+					lineStart = pos;
+					lineEnd = scan;
+					pos = scan + 1;
+					skipLf = (c == '\r');
+					return true;
+				}
+				scan++;
 			}
 			
-		    // ignore other lines beginning with '%'
-			return null;
+			if(eof) {
+				// last line without a line terminator
+				if(pos == limit) return false;
+				lineStart = pos;
+				lineEnd = limit;
+				pos = limit;
+				return true;
+			}
+			
+			scan -= pos;
+			fill();
 		}
-		
-		// lines beginning with < are specific to RDS Spy. Ignore them altogether
-		if(line.startsWith("<")) return null;
-		
-		String[] components = SPACE.split(line);
-		
-		// ignore incorrect lines
-		if(components.length < 4) return null; //throw new IOException("Not enough blocks on line \"" + line + "\"");
-		
-		int[] res = new int[4];
-		
-		for(int i=0; i<4; i++) {
-			String s = components[i];
-			if("----".equals(s)) res[i] = -1;
-			else res[i] = Integer.parseInt(s, 16);
+	}
+	
+	/**
+	 * Moves unprocessed data to the start of the buffer, growing it if necessary, and reads
+	 * more data into it. Sets {@code eof} when the end of the input has been reached.
+	 */
+	private void fill() throws IOException {
+		int remaining = limit - pos;
+		if(remaining == buf.length) {
+			// a line longer than the buffer
+			byte[] newBuf = new byte[2 * buf.length];
+			System.arraycopy(buf, pos, newBuf, 0, remaining);
+			buf = newBuf;
+		} else {
+			System.arraycopy(buf, pos, buf, 0, remaining);
 		}
+		pos = 0;
+		limit = remaining;
 		
+		int n = in.read(buf, limit, buf.length - limit);
+		if(n < 0) eof = true;
+		else limit += n;
+	}
+	
+	/**
+	 * Reads the next line from the {@code BufferedReader} into the buffer.
+	 */
+	private boolean readLine() throws IOException {
+		String line = br.readLine();
+		if(line == null) return false;
 		
-		// attempt to find explicit time code in the line
-		Matcher m = RDS_SPY_DATE_FORMAT.matcher(line);
-		if(m.matches()) {
-			GregorianCalendar c = new GregorianCalendar( 
-					Integer.parseInt(m.group(1)), 
-					Integer.parseInt(m.group(2)) - 1, 
-					Integer.parseInt(m.group(3)), 
-					Integer.parseInt(m.group(4)), 
-					Integer.parseInt(m.group(5)),
-					Integer.parseInt(m.group(6)));
-			c.set(Calendar.MILLISECOND, (int)(Float.parseFloat("0." + m.group(7)) * 1000));
-			time = new RealTime(c.getTime());
+		int len = line.length();
+		if(len > buf.length) buf = new byte[Math.max(len, 2 * buf.length)];
+		for(int i=0; i<len; i++) {
+			char c = line.charAt(i);
+			buf[i] = (byte) (c < 0x80 ? c : '?');
 		}
-
-		return new GroupEvent(time, res, false);
+		lineStart = 0;
+		lineEnd = len;
+		return true;
+	}
+	
+	/**
+	 * @brief Parses a single line of a group-level hex file.
+	 * 
+	 * @param line The line
+	 * @param time The time to use for the event, unless the line carries a time stamp of its own
+	 * @return The event, or {@code null} if the line carries none
+	 */
+	/* package */ static GroupReaderEvent parseHexLine(String line, RDSTime time) throws IOException {
+		byte[] bytes = new byte[line.length()];
+		for(int i=0; i<bytes.length; i++) {
+			char c = line.charAt(i);
+			bytes[i] = (byte) (c < 0x80 ? c : '?');
+		}
+		HexLineParser parser = new HexLineParser();
+		parser.parse(bytes, 0, bytes.length);
+		return parser.createEvent(time);
 	}
 }
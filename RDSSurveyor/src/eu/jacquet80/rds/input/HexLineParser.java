@@ -0,0 +1,271 @@
+/*
+ RDS Surveyor -- RDS decoder, analyzer and monitor tool and library.
+ For more information see
+   http://www.jacquet80.eu/
+   http://rds-surveyor.sourceforge.net/
+
+ Copyright (c) 2016 the RDS Surveyor contributors
+
+ This file is part of RDS Surveyor.
+
+ RDS Surveyor is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ RDS Surveyor is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser Public License for more details.
+
+ You should have received a copy of the GNU Lesser Public License
+ along with RDS Surveyor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package eu.jacquet80.rds.input;
+
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+import eu.jacquet80.rds.input.group.FrequencyChangeEvent;
+import eu.jacquet80.rds.input.group.GroupEvent;
+import eu.jacquet80.rds.input.group.GroupReaderEvent;
+import eu.jacquet80.rds.log.RDSTime;
+import eu.jacquet80.rds.log.RealTime;
+
+/**
+ * Parses lines of group-level hex files (RDS Surveyor and RDS Spy formats) from a byte buffer.
+ *
+ * The parser works directly on the bytes of a line and does not create any objects. The result
+ * of the last call to {@link #parse(byte[], int, int)} is held in the public fields of the parser
+ * until the next call, and can be turned into an event with {@link #createEvent(RDSTime)}.
+ *
+ * Recognized lines are:
+ * <ul>
+ * <li>four blocks of one to four hex digits, or {@code ----} for a missing block, separated by
+ * whitespace and optionally followed by a time stamp {@code @yyyy/MM/dd HH:mm:ss.ff} at the end
+ * of the line (two to four fractional digits),</li>
+ * <li>{@code % Freq} lines, which carry the frequency in kHz as the first number after
+ * {@code Freq},</li>
+ * <li>other lines starting with {@code %}, and RDS Spy lines starting with {@code <}, which are
+ * ignored.</li>
+ * </ul>
+ * Empty and malformed lines are ignored as well.
+ */
+class HexLineParser {
+	/** The line carries no event */
+	public static final int NONE = 0;
+
+	/** The line carries a group */
+	public static final int GROUP = 1;
+
+	/** The line carries a frequency change */
+	public static final int FREQUENCY = 2;
+
+	private static final byte[] FREQ = {'%', ' ', 'F', 'r', 'e', 'q'};
+
+	/** The type of the last line parsed */
+	public int type = NONE;
+
+	/** The blocks of the last group parsed, -1 for a missing block */
+	public int block0, block1, block2, block3;
+
+	/** The frequency of the last frequency change parsed, in kHz (0 if none was given) */
+	public int frequency;
+
+	/** Whether the last group carried a time stamp */
+	public boolean hasTime;
+
+	/** The time stamp of the last group, in milliseconds since the epoch */
+	public long time;
+
+	/* Calendar for time stamp conversion, created on first use, and the last minute converted */
+	private GregorianCalendar calendar = null;
+	private long cachedMinuteKey = -1;
+	private long cachedMinuteMillis;
+
+	/**
+	 * @brief Parses one line.
+	 *
+	 * @param buf The buffer holding the line
+	 * @param start The index of the first character of the line
+	 * @param end The index just past the last character of the line, excluding line terminators
+	 * @return The type of the line, also stored in {@link #type}
+	 */
+	public int parse(byte[] buf, int start, int end) {
+		type = NONE;
+		hasTime = false;
+
+		// trim
+		while((start < end) && (buf[start] <= ' ')) start++;
+		while((end > start) && (buf[end - 1] <= ' ')) end--;
+
+		// ignore empty lines
+		if(start == end) return type;
+
+		if(buf[start] == '%') {
+			// Lines beginning with % are to be ignored, but may contain metadata
+			if(startsWith(buf, start, end, FREQ)) {
+				// Frequency indicator metadata: first number after "Freq"
+				int i = start + FREQ.length;
+				while((i < end) && !isDigit(buf[i])) i++;
+				int f = 0;
+				while((i < end) && isDigit(buf[i]) && (f < 100000000)) f = f * 10 + (buf[i++] - '0');
+				frequency = f;
+				type = FREQUENCY;
+			}
+			return type;
+		}
+
+		// lines beginning with < are specific to RDS Spy. Ignore them altogether
+		if(buf[start] == '<') return type;
+
+		int pos = start;
+		for(int i=0; i<4; i++) {
+			while((pos < end) && (buf[pos] <= ' ')) pos++;
+			int tokenStart = pos;
+			while((pos < end) && (buf[pos] > ' ')) pos++;
+			int value = parseBlock(buf, tokenStart, pos);
+			// ignore incorrect lines
+			if(value == -2) return type;
+			switch(i) {
+			case 0: block0 = value; break;
+			case 1: block1 = value; break;
+			case 2: block2 = value; break;
+			default: block3 = value;
+			}
+		}
+
+		// attempt to find explicit time code at the end of the line
+		int at = end - 1;
+		while((at > pos) && (buf[at] != '@')) at--;
+		if(buf[at] == '@') parseTimeStamp(buf, at + 1, end);
+
+		type = GROUP;
+		return type;
+	}
+
+	/**
+	 * @brief Creates an event for the last line parsed.
+	 *
+	 * @param time The time to use if the line carries no time stamp of its own
+	 * @return The event, or {@code null} if the line carries none
+	 */
+	public GroupReaderEvent createEvent(RDSTime time) {
+		switch(type) {
+		case GROUP:
+			return new GroupEvent(hasTime ? new RealTime(new Date(this.time)) : time,
+					new int[] {block0, block1, block2, block3}, false);
+		case FREQUENCY:
+			return new FrequencyChangeEvent(time, frequency);
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Parses a block of one to four hex digits, or {@code ----}.
+	 *
+	 * @return The block, -1 for {@code ----}, or -2 if the token is not a valid block
+	 */
+	private static int parseBlock(byte[] buf, int start, int end) {
+		int len = end - start;
+		if((len < 1) || (len > 4)) return -2;
+		if((len == 4) && (buf[start] == '-') && (buf[start + 1] == '-') && (buf[start + 2] == '-') && (buf[start + 3] == '-'))
+			return -1;
+		int value = 0;
+		for(int i=start; i<end; i++) {
+			int d = hexValue(buf[i]);
+			if(d < 0) return -2;
+			value = (value << 4) | d;
+		}
+		return value;
+	}
+
+	/**
+	 * Parses a time stamp of the form {@code yyyy/MM/dd HH:mm:ss.ff}, which must extend to the end
+	 * of the line. Any character may separate seconds and fraction, and the fraction has two to
+	 * four digits. Sets {@link #hasTime} and {@link #time} if the time stamp is valid.
+	 */
+	private void parseTimeStamp(byte[] buf, int pos, int end) {
+		if(end - pos < 19 + 3) return;
+		int year = digits(buf, pos, 4);
+		if((year < 0) || (buf[pos + 4] != '/')) return;
+		int month = digits(buf, pos + 5, 2);
+		if((month < 0) || (buf[pos + 7] != '/')) return;
+		int day = digits(buf, pos + 8, 2);
+		if(day < 0) return;
+
+		pos += 10;
+		if(buf[pos] > ' ') return;
+		while((pos < end) && (buf[pos] <= ' ')) pos++;
+
+		if(end - pos < 11) return;
+		int hour = digits(buf, pos, 2);
+		if((hour < 0) || (buf[pos + 2] != ':')) return;
+		int minute = digits(buf, pos + 3, 2);
+		if((minute < 0) || (buf[pos + 5] != ':')) return;
+		int second = digits(buf, pos + 6, 2);
+		if(second < 0) return;
+
+		// buf[pos + 8] separates seconds and fraction
+		pos += 9;
+		int fracLen = end - pos;
+		if((fracLen < 2) || (fracLen > 4)) return;
+		int frac = digits(buf, pos, fracLen);
+		if(frac < 0) return;
+		int millis = (fracLen == 2) ? frac * 10 : (fracLen == 3) ? frac : frac / 10;
+
+		time = minuteMillis(year, month, day, hour, minute) + second * 1000 + millis;
+		hasTime = true;
+	}
+
+	/**
+	 * Returns the start of a minute in local time, in milliseconds since the epoch. The last
+	 * result is cached, as consecutive lines of a file almost always fall into the same minute.
+	 */
+	private long minuteMillis(int year, int month, int day, int hour, int minute) {
+		long key = ((((long) year * 100 + month) * 100 + day) * 100 + hour) * 100 + minute;
+		if(key != cachedMinuteKey) {
+			if(calendar == null) calendar = new GregorianCalendar();
+			calendar.clear();
+			calendar.set(year, month - 1, day, hour, minute, 0);
+			cachedMinuteMillis = calendar.getTimeInMillis();
+			cachedMinuteKey = key;
+		}
+		return cachedMinuteMillis;
+	}
+
+	/**
+	 * Parses a fixed number of decimal digits.
+	 *
+	 * @return The value, or -1 if a character is not a digit
+	 */
+	private static int digits(byte[] buf, int pos, int count) {
+		int value = 0;
+		for(int i=pos; i<pos+count; i++) {
+			if(!isDigit(buf[i])) return -1;
+			value = value * 10 + (buf[i] - '0');
+		}
+		return value;
+	}
+
+	private static boolean isDigit(byte c) {
+		return (c >= '0') && (c <= '9');
+	}
+
+	private static int hexValue(byte c) {
+		if((c >= '0') && (c <= '9')) return c - '0';
+		if((c >= 'A') && (c <= 'F')) return c - 'A' + 10;
+		if((c >= 'a') && (c <= 'f')) return c - 'a' + 10;
+		return -1;
+	}
+
+	private static boolean startsWith(byte[] buf, int start, int end, byte[] prefix) {
+		if(end - start < prefix.length) return false;
+		for(int i=0; i<prefix.length; i++)
+			if(buf[start + i] != prefix[i]) return false;
+		return true;
+	}
+}
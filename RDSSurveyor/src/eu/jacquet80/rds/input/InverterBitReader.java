@@ -45,5 +45,12 @@ public class InverterBitReader extends BitReader {
 	public boolean getBit() throws IOException {
 		return !baseReader.getBit();
 	}
+	
+	@Override
+	public int getBits(boolean[] bits, int off, int len) throws IOException {
+		int count = baseReader.getBits(bits, off, len);
+		for(int i=off; i<off+count; i++) bits[i] = !bits[i];
+		return count;
+	}
 
 }
@@ -0,0 +1,414 @@
+/*
+ RDS Surveyor -- RDS decoder, analyzer and monitor tool and library.
+ For more information see
+   http://www.jacquet80.eu/
+   http://rds-surveyor.sourceforge.net/
+ 
+ Copyright (c) 2016 the RDS Surveyor contributors
+
+ This file is part of RDS Surveyor.
+
+ RDS Surveyor is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ RDS Surveyor is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser Public License for more details.
+
+ You should have received a copy of the GNU Lesser Public License
+ along with RDS Surveyor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package eu.jacquet80.rds.input;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import eu.jacquet80.rds.RDSSurveyor;
+import eu.jacquet80.rds.core.BitStreamSynchronizer;
+import eu.jacquet80.rds.core.GroupLevelDecoder;
+import eu.jacquet80.rds.core.TunedStation;
+import eu.jacquet80.rds.dsp.ChannelDownconverter;
+import eu.jacquet80.rds.dsp.Fft;
+import eu.jacquet80.rds.dsp.FmDiscriminator;
+import eu.jacquet80.rds.input.GroupReader.EndOfStream;
+import eu.jacquet80.rds.input.IqFileBitReader.Format;
+import eu.jacquet80.rds.input.group.GroupEvent;
+import eu.jacquet80.rds.input.group.GroupReaderEvent;
+import eu.jacquet80.rds.log.Log;
+
+/**
+ * Splits a wideband I/Q recording into the FM stations it contains and decodes RDS from all of
+ * them in parallel.
+ * 
+ * Stations are detected on the 100 kHz broadcast raster from an averaged power spectrum. Each
+ * detected station is then extracted by its own {@link ChannelDownconverter}, FM-demodulated
+ * and decoded through an {@link AudioBitReader}/{@link BitStreamSynchronizer} pipeline. Every
+ * channel reads the (memory-mapped) file independently, so channels share the page cache but no
+ * state, and can be distributed over a worker pool.
+ */
+public class IqChannelizer {
+	/** Channel raster, in Hz */
+	private static final int RASTER = 100000;
+	
+	/** Half the bandwidth of an FM broadcast channel, in Hz */
+	private static final int HALF_BANDWIDTH = 110000;
+	
+	/** Minimum sample rate of an extracted channel */
+	private static final int MIN_CHANNEL_RATE = 240000;
+	
+	/** FFT size for station detection */
+	private static final int FFT_SIZE = 2048;
+	
+	/** Number of spectra averaged for station detection */
+	private static final int FFT_AVERAGE = 256;
+	
+	/** Default signal-to-noise ratio above which a channel is considered occupied, in dB */
+	public static final double DEFAULT_MIN_SNR = 10;
+	
+	/** Number of complex samples processed in one go */
+	private static final int BLOCK = 8192;
+	
+	/**
+	 * A station detected in the recording.
+	 */
+	public static class Channel {
+		/** Offset from the center of the recording, in Hz */
+		public final int offset;
+		
+		/** Absolute frequency in kHz, or 0 if the center frequency is unknown */
+		public final int frequency;
+		
+		/** Channel power above the noise floor, in dB */
+		public final double snr;
+		
+		private Channel(int offset, int frequency, double snr) {
+			this.offset = offset;
+			this.frequency = frequency;
+			this.snr = snr;
+		}
+		
+		@Override
+		public String toString() {
+			if (frequency > 0)
+				return String.format("%.1f MHz", frequency / 1000f);
+			return String.format("%+d kHz", offset / 1000);
+		}
+	}
+	
+	/**
+	 * The outcome of decoding one channel.
+	 */
+	public static class Result {
+		public final Channel channel;
+		
+		/** Most frequently received PI code, or -1 if none was received */
+		public final int pi;
+		
+		/** Station name (PS), or {@code null} */
+		public final String ps;
+		
+		/** Number of groups received, and number of groups without block errors */
+		public final int groups, goodGroups;
+		
+		/** File holding the group log, or {@code null} */
+		public final File log;
+		
+		private Result(Channel channel, int pi, String ps, int groups, int goodGroups, File log) {
+			this.channel = channel;
+			this.pi = pi;
+			this.ps = ps;
+			this.groups = groups;
+			this.goodGroups = goodGroups;
+			this.log = log;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("%-10s %4s  %-8s  %6d groups (%d error-free)%s", 
+					channel, pi >= 0 ? String.format("%04X", pi) : "----", ps == null ? "" : ps,
+					groups, goodGroups, log == null ? "" : ", log: " + log.getName());
+		}
+	}
+	
+	private final File file;
+	private final int sampleRate;
+	private final Format format;
+	private final int centerFrequency;
+	private final int factor;
+	private final int channelRate;
+	
+	/**
+	 * @param file The I/Q recording
+	 * @param sampleRate The I/Q sample rate
+	 * @param format The sample format
+	 * @param centerFrequency The frequency the recording is centered on, in kHz, or 0 if unknown
+	 */
+	public IqChannelizer(File file, int sampleRate, Format format, int centerFrequency) {
+		this.file = file;
+		this.sampleRate = sampleRate;
+		this.format = format;
+		this.centerFrequency = centerFrequency;
+		this.factor = Math.max(1, sampleRate / MIN_CHANNEL_RATE);
+		this.channelRate = sampleRate / factor;
+	}
+	
+	/**
+	 * @brief Detects the stations present in the recording.
+	 * 
+	 * An averaged power spectrum is computed over the start of the recording. The power within
+	 * +/-50 kHz of each raster frequency is compared to the median power of the spectrum; raster
+	 * frequencies which exceed it by {@code minSnr} and are local maxima are reported.
+	 * 
+	 * @param minSnr The minimum channel power above the noise floor, in dB
+	 */
+	public List<Channel> detectChannels(double minSnr) throws IOException {
+		Fft fft = new Fft(FFT_SIZE);
+		float[] window = new float[FFT_SIZE];
+		for (int i = 0; i < FFT_SIZE; i++)
+			window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / (FFT_SIZE - 1)));
+		
+		float[] iq = new float[2 * FFT_SIZE];
+		float[] re = new float[FFT_SIZE];
+		float[] im = new float[FFT_SIZE];
+		double[] power = new double[FFT_SIZE];
+		
+		/* spread the spectra over the first few seconds of the recording */
+		IqFileReader reader = new IqFileReader(file, format);
+		long stride = Math.max(FFT_SIZE, Math.min(reader.getSampleCount(), 4L * sampleRate) / FFT_AVERAGE);
+		int count = 0;
+		for (int f = 0; f < FFT_AVERAGE; f++) {
+			reader.seek(f * stride);
+			int n = 0;
+			while (n < FFT_SIZE) {
+				int r = reader.read(iq, FFT_SIZE - n);
+				if (r == 0) break;
+				for (int k = 0; k < r; k++) {
+					re[n + k] = iq[2 * k] * window[n + k];
+					im[n + k] = iq[2 * k + 1] * window[n + k];
+				}
+				n += r;
+			}
+			if (n < FFT_SIZE) break;
+			fft.transform(re, im);
+			for (int b = 0; b < FFT_SIZE; b++)
+				power[b] += re[b] * re[b] + im[b] * im[b];
+			count++;
+		}
+		reader.close();
+		if (count == 0)
+			throw new IOException("I/Q file too short for station detection");
+		
+		/* noise floor: median bin power, leaving out the edges where the tuner filter rolls off */
+		int edge = FFT_SIZE / 10;
+		double[] sorted = new double[FFT_SIZE - 2 * edge];
+		for (int i = 0; i < sorted.length; i++)
+			sorted[i] = power[binOf(edge + i - FFT_SIZE / 2)];
+		Arrays.sort(sorted);
+		double floor = sorted[sorted.length / 2];
+		
+		/* raster frequencies, as offsets from the center */
+		int maxOffset = sampleRate / 2 - HALF_BANDWIDTH;
+		int firstOffset;
+		if (centerFrequency > 0) {
+			long lowest = (long) centerFrequency * 1000 - maxOffset;
+			firstOffset = (int) (((lowest + RASTER - 1) / RASTER) * RASTER - (long) centerFrequency * 1000);
+		} else {
+			firstOffset = -(maxOffset / RASTER) * RASTER;
+		}
+		
+		List<Integer> offsets = new ArrayList<Integer>();
+		for (int o = firstOffset; o <= maxOffset; o += RASTER)
+			offsets.add(o);
+		
+		double[] chanPower = new double[offsets.size()];
+		double binWidth = (double) sampleRate / FFT_SIZE;
+		int halfBins = (int) (RASTER / 2 / binWidth);
+		for (int c = 0; c < chanPower.length; c++) {
+			int center = (int) Math.round(offsets.get(c) / binWidth);
+			double sum = 0;
+			for (int b = center - halfBins; b <= center + halfBins; b++)
+				sum += power[binOf(b)];
+			chanPower[c] = sum / (2 * halfBins + 1);
+		}
+		
+		List<Channel> channels = new ArrayList<Channel>();
+		for (int c = 0; c < chanPower.length; c++) {
+			double snr = 10 * Math.log10(chanPower[c] / floor);
+			if (snr < minSnr) continue;
+			if (c > 0 && chanPower[c - 1] > chanPower[c]) continue;
+			if (c < chanPower.length - 1 && chanPower[c + 1] > chanPower[c]) continue;
+			int offset = offsets.get(c);
+			int frequency = centerFrequency > 0 ? centerFrequency + offset / 1000 : 0;
+			if (centerFrequency > 0 && (frequency < 87500 || frequency > 108000)) continue;
+			channels.add(new Channel(offset, frequency, snr));
+		}
+		return channels;
+	}
+	
+	/* Maps a signed bin number to an index into the FFT output */
+	private static int binOf(int b) {
+		return ((b % FFT_SIZE) + FFT_SIZE) % FFT_SIZE;
+	}
+	
+	/**
+	 * @brief Opens a decoding pipeline for one channel.
+	 * 
+	 * The DSP thread of the pipeline starts immediately.
+	 */
+	public BitStreamSynchronizer openChannel(Channel channel, PrintStream console) throws IOException {
+		return new BitStreamSynchronizer(console, 
+				new AudioBitReader(new ChannelMpxSource(channel.offset), channelRate));
+	}
+	
+	/**
+	 * @brief Decodes the given channels in parallel and writes one group log per channel.
+	 * 
+	 * Group logs are written to {@code outDir}, and named after the recording, the channel
+	 * frequency and the PI code received on the channel.
+	 * 
+	 * @param channels The channels to decode
+	 * @param pool The worker pool on which channels are decoded
+	 * @param outDir The directory in which to write group logs, or {@code null} for none
+	 * @return One result per channel, in the order of {@code channels}
+	 */
+	public List<Result> decode(List<Channel> channels, ExecutorService pool, final File outDir) 
+			throws IOException, InterruptedException {
+		List<Future<Result>> futures = new ArrayList<Future<Result>>();
+		for (final Channel channel : channels) {
+			futures.add(pool.submit(new Callable<Result>() {
+				@Override
+				public Result call() throws Exception {
+					return decodeChannel(channel, outDir);
+				}
+			}));
+		}
+		
+		List<Result> results = new ArrayList<Result>();
+		for (Future<Result> f : futures) {
+			try {
+				results.add(f.get());
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) throw (IOException) cause;
+				throw new IOException(cause);
+			}
+		}
+		return results;
+	}
+	
+	private Result decodeChannel(Channel channel, File outDir) throws IOException {
+		GroupReader reader = openChannel(channel, RDSSurveyor.nullConsole);
+		
+		String baseName = file.getName().replaceFirst("\\.[^.]*$", "") + "_" + 
+				(channel.frequency > 0 ? channel.frequency + "kHz" : (channel.offset / 1000) + "kHz-offset");
+		File tmpLog = null;
+		if (outDir != null) {
+			tmpLog = new File(outDir, baseName + ".rds");
+			reader = new TeeGroupReader(reader, tmpLog);
+		}
+		
+		GroupLevelDecoder decoder = new GroupLevelDecoder(new Log());
+		Map<Integer, Integer> piCount = new HashMap<Integer, Integer>();
+		int groups = 0, goodGroups = 0;
+		
+		try {
+			while (true) {
+				GroupReaderEvent evt = reader.getGroup();
+				if (!(evt instanceof GroupEvent)) continue;
+				int[] blocks = ((GroupEvent) evt).blocks;
+				groups++;
+				if (blocks[0] >= 0 && blocks[1] >= 0 && blocks[2] >= 0 && blocks[3] >= 0) goodGroups++;
+				if (blocks[0] >= 0) {
+					Integer c = piCount.get(blocks[0]);
+					piCount.put(blocks[0], c == null ? 1 : c + 1);
+				}
+				decoder.processOneGroup(evt);
+			}
+		} catch (EndOfStream e) {
+			// done with this channel
+		}
+		
+		int pi = -1, best = 0;
+		for (Map.Entry<Integer, Integer> e : piCount.entrySet()) {
+			if (e.getValue() > best) {
+				best = e.getValue();
+				pi = e.getKey();
+			}
+		}
+		
+		TunedStation station = decoder.getTunedStation();
+		String ps = (station != null && pi >= 0) ? station.getStationName() : null;
+		
+		File log = tmpLog;
+		if (tmpLog != null) {
+			if (groups == 0) {
+				tmpLog.delete();
+				log = null;
+			} else if (pi >= 0) {
+				log = new File(outDir, baseName + String.format("_%04X.rds", pi));
+				if (!tmpLog.renameTo(log)) log = tmpLog;
+			}
+		}
+		
+		return new Result(channel, pi, ps, groups, goodGroups, log);
+	}
+	
+	/**
+	 * Supplies the MPX signal of one channel of the recording.
+	 */
+	private class ChannelMpxSource implements SampleSource {
+		private final IqFileReader iqReader;
+		private final ChannelDownconverter downconverter;
+		private final FmDiscriminator discriminator = new FmDiscriminator();
+		private final float scale;
+		
+		private final float[] iq = new float[2 * BLOCK];
+		private final float[] chan;
+		private final float[] mpx;
+		private int mpxPos = 0;
+		private int mpxLen = 0;
+		
+		public ChannelMpxSource(int offset) throws IOException {
+			this.iqReader = new IqFileReader(file, format);
+			this.downconverter = new ChannelDownconverter(offset, sampleRate, factor, 
+					16 * factor + 1, HALF_BANDWIDTH);
+			this.scale = (float) (32767.0 * channelRate / (2 * Math.PI * IqFileBitReader.FULL_SCALE_DEVIATION));
+			this.chan = new float[2 * (BLOCK / factor + 1)];
+			this.mpx = new float[BLOCK / factor + 1];
+		}
+		
+		@Override
+		public int read(short[] buf, int off, int len) throws IOException {
+			while (mpxPos >= mpxLen) {
+				int n = iqReader.read(iq, BLOCK);
+				if (n <= 0) {
+					iqReader.close();
+					return -1;
+				}
+				mpxLen = downconverter.process(iq, n, chan);
+				discriminator.demodulate(chan, 0, mpxLen, mpx, 0);
+				mpxPos = 0;
+			}
+			
+			int count = Math.min(len, mpxLen - mpxPos);
+			IqFileBitReader.toShorts(mpx, mpxPos, count, scale, buf, off);
+			mpxPos += count;
+			return count;
+		}
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ RDS Surveyor -- RDS decoder, analyzer and monitor tool and library.
+ For more information see
+   http://www.jacquet80.eu/
+   http://rds-surveyor.sourceforge.net/
+ 
+ Copyright (c) 2016 the RDS Surveyor contributors
+
+ This file is part of RDS Surveyor.
+
+ RDS Surveyor is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ RDS Surveyor is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser Public License for more details.
+
+ You should have received a copy of the GNU Lesser Public License
+ along with RDS Surveyor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package eu.jacquet80.rds.input;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import eu.jacquet80.rds.dsp.FirDecimator;
+import eu.jacquet80.rds.dsp.FmDiscriminator;
+
+/**
+ * Reads RDS data from a raw I/Q recording of an FM broadcast signal, such as those produced by
+ * {@code rtl_sdr}.
+ * 
+ * The file is memory-mapped and streamed through an FM discriminator. The resulting MPX signal is
+ * low-pass filtered, decimated to a rate slightly above 200 kHz and handed to an
+ * {@link AudioBitReader}, which recovers the RDS bit stream. No hardware is involved, so
+ * recordings are decoded as fast as the CPU permits.
+ */
+public class IqFileBitReader extends BitReader {
+	/** Sample formats for raw I/Q files */
+	public static enum Format {
+		/** Interleaved unsigned 8-bit samples, as written by {@code rtl_sdr} */
+		U8(2),
+		/** Interleaved signed 16-bit little-endian samples */
+		S16LE(4);
+		
+		/** Size of one complex sample, in bytes */
+		public final int frameSize;
+		
+		private Format(int frameSize) {
+			this.frameSize = frameSize;
+		}
+	}
+	
+	/** Default I/Q sample rate, used if none can be inferred from the file name */
+	public static final int DEFAULT_SAMPLE_RATE = 2400000;
+	
+	/** Lowest MPX sample rate we decimate to (must leave room for the 57 kHz subcarrier) */
+	private static final int MIN_MPX_RATE = 200000;
+	
+	/** Frequency deviation which corresponds to full scale in the MPX output */
+	static final double FULL_SCALE_DEVIATION = 150000.0;
+	
+	/** Number of complex samples processed in one go */
+	private static final int BLOCK = 8192;
+	
+	private static final Pattern RATE_IN_NAME =
+			Pattern.compile("(?i)(\\d+(?:\\.\\d+)?)(k|m)?(sps|s)(?![a-z])");
+	
+	private final AudioBitReader audioReader;
+	private final int mpxRate;
+	
+	/**
+	 * Creates a new reader for the given file.
+	 * 
+	 * @param file The I/Q recording
+	 * @param sampleRate The I/Q sample rate, in samples per second
+	 * @param format The sample format
+	 * @throws IOException if the file cannot be opened, or the sample rate is too low
+	 */
+	public IqFileBitReader(File file, int sampleRate, Format format) throws IOException {
+		if (sampleRate < 2 * (57000 + 2400))
+			throw new IOException("I/Q sample rate too low for RDS: " + sampleRate);
+		
+		int factor = Math.max(1, sampleRate / MIN_MPX_RATE);
+		this.mpxRate = sampleRate / factor;
+		
+		System.out.println(String.format("IqFileBitReader: %s, %s, %d S/s, MPX at %d S/s", 
+				file.getName(), format, sampleRate, mpxRate));
+		
+		this.audioReader = new AudioBitReader(new MpxSource(file, sampleRate, format, factor), mpxRate);
+		setParent(audioReader);
+	}
+	
+	/**
+	 * Creates a new reader for the given file, guessing the sample rate and format from its name.
+	 * 
+	 * @see #guessFormat(File)
+	 * @see #guessSampleRate(File)
+	 */
+	public IqFileBitReader(File file) throws IOException {
+		this(file, guessSampleRate(file), guessFormat(file));
+	}
+
+	@Override
+	public boolean getBit() throws IOException {
+		return audioReader.getBit();
+	}
+	
+	/**
+	 * @brief Returns the sample rate of the MPX signal fed to the RDS demodulator.
+	 */
+	public int getMpxSampleRate() {
+		return mpxRate;
+	}
+	
+	/**
+	 * @brief Whether a file name designates a raw I/Q recording.
+	 * 
+	 * Recognized extensions are {@code .cu8}, {@code .cs16} and {@code .iq}.
+	 */
+	public static boolean isIqFile(File file) {
+		String name = file.getName().toLowerCase(Locale.US);
+		return name.endsWith(".cu8") || name.endsWith(".cs16") || name.endsWith(".iq");
+	}
+	
+	/**
+	 * @brief Guesses the sample format of a file from its extension.
+	 * 
+	 * Files ending in {@code .cs16} are assumed to hold signed 16-bit samples, everything else is
+	 * assumed to be unsigned 8-bit, which is what {@code rtl_sdr} writes.
+	 */
+	public static Format guessFormat(File file) {
+		String name = file.getName().toLowerCase(Locale.US);
+		return name.endsWith(".cs16") ? Format.S16LE : Format.U8;
+	}
+	
+	/**
+	 * @brief Guesses the sample rate of a file from its name.
+	 * 
+	 * File names containing a token such as {@code 2.4Msps}, {@code 2048ks} or {@code 250000sps}
+	 * are recognized. If no such token is found, {@link #DEFAULT_SAMPLE_RATE} is returned.
+	 */
+	public static int guessSampleRate(File file) {
+		Matcher m = RATE_IN_NAME.matcher(file.getName());
+		while (m.find()) {
+			String unit = m.group(2);
+			/* a bare "s" suffix without unit is more likely a duration */
+			if (unit == null && m.group(3).length() == 1) continue;
+			double rate = Double.parseDouble(m.group(1));
+			if ("k".equalsIgnoreCase(unit)) rate *= 1e3;
+			else if ("m".equalsIgnoreCase(unit)) rate *= 1e6;
+			return (int) Math.round(rate);
+		}
+		return DEFAULT_SAMPLE_RATE;
+	}
+	
+	/**
+	 * @brief Scales and converts demodulated samples to 16-bit values, with saturation.
+	 */
+	static void toShorts(float[] in, int off, int len, float scale, short[] out, int outOff) {
+		for (int i = 0; i < len; i++) {
+			float v = in[off + i] * scale;
+			if (v > Short.MAX_VALUE) v = Short.MAX_VALUE;
+			else if (v < Short.MIN_VALUE) v = Short.MIN_VALUE;
+			out[outOff + i] = (short) v;
+		}
+	}
+	
+	/**
+	 * Supplies MPX samples demodulated from a memory-mapped I/Q file.
+	 */
+	private static class MpxSource implements SampleSource {
+		private final IqFileReader iqReader;
+		private final float scale;
+		
+		private final FmDiscriminator discriminator = new FmDiscriminator();
+		private final FirDecimator decimator;
+		
+		private final float[] iq = new float[2 * BLOCK];
+		private final float[] fm = new float[BLOCK];
+		private final float[] mpx;
+		private int mpxPos = 0;
+		private int mpxLen = 0;
+		
+		public MpxSource(File file, int sampleRate, Format format, int factor) throws IOException {
+			this.iqReader = new IqFileReader(file, format);
+			
+			/* radians per sample -> full-scale 16-bit value */
+			this.scale = (float) (32767.0 * sampleRate / (2 * Math.PI * FULL_SCALE_DEVIATION));
+			
+			/* pass the MPX band (up to ~60 kHz), cut off at 45% of the output rate */
+			this.decimator = FirDecimator.lowpass(factor, 8 * factor + 1, 0.45 / factor);
+			this.mpx = new float[BLOCK / factor + 1];
+		}
+		
+		@Override
+		public int read(short[] buf, int off, int len) throws IOException {
+			while (mpxPos >= mpxLen) {
+				int n = iqReader.read(iq, BLOCK);
+				if (n <= 0) {
+					iqReader.close();
+					return -1;
+				}
+				discriminator.demodulate(iq, 0, n, fm, 0);
+				mpxLen = decimator.process(fm, 0, n, mpx, 0);
+				mpxPos = 0;
+			}
+			
+			int count = Math.min(len, mpxLen - mpxPos);
+			toShorts(mpx, mpxPos, count, scale, buf, off);
+			mpxPos += count;
+			return count;
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ RDS Surveyor -- RDS decoder, analyzer and monitor tool and library.
+ For more information see
+   http://www.jacquet80.eu/
+   http://rds-surveyor.sourceforge.net/
+ 
+ Copyright (c) 2016 the RDS Surveyor contributors
+
+ This file is part of RDS Surveyor.
+
+ RDS Surveyor is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ RDS Surveyor is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser Public License for more details.
+
+ You should have received a copy of the GNU Lesser Public License
+ along with RDS Surveyor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package eu.jacquet80.rds.input;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import eu.jacquet80.rds.input.IqFileBitReader.Format;
+
+/**
+ * Reads complex samples from a raw I/Q file through a sliding memory-mapped window.
+ * 
+ * Samples are returned as interleaved {@code float} values centered on zero, in the native
+ * scale of the recording (i.e. +/-127.5 for 8-bit files, +/-32768 for 16-bit files).
+ */
+public class IqFileReader {
+	/** Size of the memory-mapped window into the file, in bytes */
+	private static final int MAP_WINDOW = 16 << 20;
+	
+	private final FileChannel channel;
+	private final long fileSize;
+	private final Format format;
+	
+	private MappedByteBuffer window = null;
+	
+	/** File offset at which the next window is mapped */
+	private long nextWindowStart = 0;
+	
+	public IqFileReader(File file, Format format) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		this.channel = raf.getChannel();
+		this.fileSize = channel.size();
+		this.format = format;
+	}
+	
+	/**
+	 * @brief Returns the number of complex samples in the file.
+	 */
+	public long getSampleCount() {
+		return fileSize / format.frameSize;
+	}
+	
+	/**
+	 * @brief Reads complex samples.
+	 * 
+	 * @param iq Array receiving interleaved I/Q values
+	 * @param maxSamples Maximum number of complex samples to read
+	 * @return The number of complex samples read, 0 at the end of the file
+	 */
+	public int read(float[] iq, int maxSamples) throws IOException {
+		if (window == null || !window.hasRemaining()) {
+			if (!mapNextWindow())
+				return 0;
+		}
+		
+		int n = Math.min(maxSamples, window.remaining() / format.frameSize);
+		
+		if (format == Format.U8) {
+			for (int k = 0; k < 2 * n; k++)
+				iq[k] = (window.get() & 0xFF) - 127.5f;
+		} else {
+			for (int k = 0; k < 2 * n; k++)
+				iq[k] = window.getShort();
+		}
+		return n;
+	}
+	
+	/**
+	 * @brief Repositions the reader.
+	 * 
+	 * @param sample The index of the next complex sample to read
+	 */
+	public void seek(long sample) {
+		nextWindowStart = Math.min(sample * format.frameSize, fileSize);
+		window = null;
+	}
+	
+	public void close() throws IOException {
+		window = null;
+		channel.close();
+	}
+	
+	private boolean mapNextWindow() throws IOException {
+		long remaining = fileSize - nextWindowStart;
+		/* only map whole complex samples */
+		remaining -= remaining % format.frameSize;
+		if (remaining <= 0) {
+			window = null;
+			return false;
+		}
+		int size = (int) Math.min(remaining, MAP_WINDOW - MAP_WINDOW % format.frameSize);
+		window = channel.map(FileChannel.MapMode.READ_ONLY, nextWindowStart, size);
+		window.order(ByteOrder.LITTLE_ENDIAN);
+		nextWindowStart += size;
+		return true;
+	}
+}
@@ -28,6 +28,7 @@ package eu.jacquet80.rds.input;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.concurrent.Semaphore;
 
@@ -51,6 +52,12 @@ public class NativeTunerGroupReader extends TunerGroupReader {
 	private boolean audioCapable = false;
 	private boolean audioPlaying = false;
 	private final Semaphore resumePlaying = new Semaphore(0);
+	
+	/** Maximum number of blocks transferred per call to the native driver */
+	private final static int BULK_BLOCKS = 256;
+	
+	/** Bulk transfer buffer, or null if the driver supports only {@link #readTuner()} */
+	private BulkTunerData bulk = new BulkTunerData(BULK_BLOCKS);
 
 	
 	@Override
@@ -110,6 +117,15 @@ public class NativeTunerGroupReader extends TunerGroupReader {
 
 	@Override
 	public GroupReaderEvent getGroup() throws IOException {
+		if(bulk != null) {
+			try {
+				return getGroupBulk();
+			} catch(UnsatisfiedLinkError e) {
+				System.out.println("Native tuner: no bulk transfer support in driver, reading groups one by one.");
+				bulk = null;
+			}
+		}
+		
 		int oldFreq = data.frequency;
 		
 		readTuner();
@@ -131,6 +147,38 @@ public class NativeTunerGroupReader extends TunerGroupReader {
 		return new GroupEvent(new RealTime(), res, false);
 	}
 	
+	/**
+	 * @brief Reads the next group, fetching all pending groups from the driver in one call
+	 * when none is left from the previous call.
+	 * 
+	 * @throws UnsatisfiedLinkError if the driver does not implement {@link #readGroups(ByteBuffer)}
+	 */
+	private GroupReaderEvent getGroupBulk() {
+		if(! bulk.hasGroups()) {
+			int oldFreq = data.frequency;
+			
+			int count = readGroups(bulk.buffer);
+			if(count < 0) return null;
+			bulk.decode(count);
+			
+			data.frequency = bulk.frequency;
+			data.rssi = bulk.rssi;
+			data.stereo = bulk.stereo;
+			data.rdsSynchronized = bulk.rdsSynchronized;
+			
+			if(data.frequency != oldFreq) {
+				// if frequency has just been changed, must report an event
+				return new FrequencyChangeEvent(new RealTime(), data.frequency);
+			}
+		}
+		
+		int[] res = bulk.nextGroup();
+		if(res == null) return null;
+		
+		newGroups = true;
+		return new GroupEvent(new RealTime(), res, false);
+	}
+	
 	public NativeTunerGroupReader(String filename) throws UnavailableInputMethod {
 		File path = new File(filename);
 		String absoluteLibPath = path.getAbsolutePath();
@@ -161,6 +209,15 @@ public class NativeTunerGroupReader extends TunerGroupReader {
 	
 
 	private native int readTuner();
+	
+	/**
+	 * @brief Fills a buffer with the tuner status and all blocks received since the last call.
+	 * 
+	 * See {@link BulkTunerData} for the layout of the buffer.
+	 * 
+	 * @return The number of blocks, or a negative value in case of error
+	 */
+	private native int readGroups(ByteBuffer buffer);
 	private native boolean open();
 	
 	public static void main(String[] args) throws IOException, UnavailableInputMethod {
@@ -0,0 +1,398 @@
+/*
+ RDS Surveyor -- RDS decoder, analyzer and monitor tool and library.
+ For more information see
+   http://www.jacquet80.eu/
+   http://rds-surveyor.sourceforge.net/
+
+ Copyright (c) 2016 the RDS Surveyor contributors
+
+ This file is part of RDS Surveyor.
+
+ RDS Surveyor is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ RDS Surveyor is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser Public License for more details.
+
+ You should have received a copy of the GNU Lesser Public License
+ along with RDS Surveyor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package eu.jacquet80.rds.input;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import eu.jacquet80.rds.input.group.FrequencyChangeEvent;
+import eu.jacquet80.rds.input.group.GroupEvent;
+import eu.jacquet80.rds.input.group.GroupReaderEvent;
+import eu.jacquet80.rds.log.RealTime;
+import eu.jacquet80.rds.log.SequentialTime;
+
+/**
+ * Reads a group-level hex file, parsing it on several threads.
+ *
+ * A splitter thread reads the file into chunks which end at a line boundary, and hands them to
+ * a pool of workers. Each worker parses its chunk with its own {@link HexLineParser} into
+ * primitive arrays and counts its lines. The chunks are consumed strictly in file order, which
+ * yields the same events, with the same {@link SequentialTime} line numbers, as
+ * {@link HexFileGroupReader}.
+ *
+ * Read-ahead is bounded: the number of chunk buffers is fixed, and the splitter waits while all
+ * of them are in use or waiting to be consumed. Hence a reader which is no longer consumed must be
+ * closed, so that its threads terminate.
+ */
+public class ParallelHexFileGroupReader extends GroupReader {
+	/** Size of a chunk, in bytes */
+	private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+	/** Number of chunks which may be parsed or waiting to be consumed, per worker thread */
+	private static final int CHUNKS_PER_THREAD = 2;
+
+	/** Files smaller than this are better read with {@link HexFileGroupReader} */
+	public static final long MIN_FILE_SIZE = 4 * CHUNK_SIZE;
+
+	/* Marks the end of the file in the queue of parsed chunks */
+	private static final Future<ParsedChunk> END = new EndMarker();
+
+	private final ExecutorService pool;
+
+	private final Thread splitter;
+
+	/* Chunk buffers which are free for the splitter to use */
+	private final BlockingQueue<byte[]> freeBuffers;
+
+	/* Chunks in file order, parsed or being parsed */
+	private final BlockingQueue<Future<ParsedChunk>> chunks;
+
+	/* The chunk being consumed, and the index of the next event in it */
+	private ParsedChunk current = null;
+	private int eventIndex = 0;
+
+	/* Number of lines in all chunks before the current one */
+	private int lineBase = 0;
+
+	private boolean endOfStream = false;
+
+	/* Set by close(), possibly from another thread */
+	private volatile boolean closed = false;
+
+	public ParallelHexFileGroupReader(File file) throws IOException {
+		this(file, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param file The file to read
+	 * @param threads The number of worker threads
+	 */
+	public ParallelHexFileGroupReader(File file, int threads) throws IOException {
+		if(threads < 1) threads = 1;
+		final InputStream in = new FileInputStream(file);
+
+		ThreadFactory daemonFactory = new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Hex parser");
+				t.setDaemon(true);
+				return t;
+			}
+		};
+		pool = Executors.newFixedThreadPool(threads, daemonFactory);
+
+		int numChunks = CHUNKS_PER_THREAD * threads;
+		chunks = new ArrayBlockingQueue<Future<ParsedChunk>>(numChunks);
+		// one more buffer than queue slots, so the splitter can fill one while the queue is full
+		freeBuffers = new ArrayBlockingQueue<byte[]>(numChunks + 1);
+		for(int i=0; i<numChunks+1; i++)
+			freeBuffers.add(new byte[CHUNK_SIZE]);
+
+		splitter = daemonFactory.newThread(new Runnable() {
+			@Override
+			public void run() {
+				split(in);
+			}
+		});
+		splitter.setName("Hex splitter");
+		splitter.start();
+	}
+
+	@Override
+	public GroupReaderEvent getGroup() throws IOException, EndOfStream {
+		while(true) {
+			if(endOfStream || closed) throw new EndOfStream();
+
+			if(current != null && eventIndex < current.count) {
+				int i = eventIndex++;
+				SequentialTime seqTime = new SequentialTime(lineBase + current.lines[i]);
+				if(current.types[i] == HexLineParser.FREQUENCY)
+					return new FrequencyChangeEvent(seqTime, current.blocks[4*i]);
+				long time = current.times[i];
+				return new GroupEvent(time == Long.MIN_VALUE ? seqTime : new RealTime(new Date(time)),
+						new int[] {current.blocks[4*i], current.blocks[4*i+1], current.blocks[4*i+2], current.blocks[4*i+3]},
+						false);
+			}
+
+			if(current != null) lineBase += current.lineCount;
+			current = null;
+			eventIndex = 0;
+
+			Future<ParsedChunk> next;
+			try {
+				next = chunks.take();
+				if(next == END) {
+					endOfStream = true;
+					pool.shutdown();
+					continue;
+				}
+				current = next.get();
+			} catch(InterruptedException e) {
+				throw new IOException("Interrupted while reading hex file");
+			} catch(ExecutionException e) {
+				endOfStream = true;
+				pool.shutdownNow();
+				if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+				throw new IOException(e.getCause().toString());
+			}
+		}
+	}
+
+	/**
+	 * @brief Stops reading the file and terminates the splitter and worker threads.
+	 * 
+	 * Afterwards, {@link #getGroup()} throws {@link EndOfStream}, even if it is currently waiting
+	 * for a chunk on another thread. Calling this method more than once has no effect.
+	 */
+	public void close() {
+		if(closed) return;
+		closed = true;
+		splitter.interrupt();
+		pool.shutdownNow();
+		// wake up a consumer waiting for the next chunk
+		chunks.clear();
+		chunks.offer(END);
+	}
+
+	/**
+	 * Reads the file and submits its chunks for parsing, in order. Runs on the splitter thread.
+	 */
+	private void split(InputStream in) {
+		byte[] carry = new byte[0];
+		int carryLen = 0;
+		try {
+			try {
+				boolean eof = false;
+				while(!eof) {
+					byte[] pooled = freeBuffers.take();
+					byte[] buf = pooled;
+					if(buf.length < carryLen + CHUNK_SIZE / 2) buf = new byte[carryLen + CHUNK_SIZE];
+					System.arraycopy(carry, 0, buf, 0, carryLen);
+					int len = carryLen;
+
+					// fill the buffer, and make it larger as long as it holds no complete line
+					int cut;
+					while(true) {
+						while(len < buf.length) {
+							int n = in.read(buf, len, buf.length - len);
+							if(n < 0) {
+								eof = true;
+								break;
+							}
+							len += n;
+						}
+						cut = eof ? len : findCut(buf, len);
+						if(cut > 0 || eof) break;
+						byte[] newBuf = new byte[2 * buf.length];
+						System.arraycopy(buf, 0, newBuf, 0, len);
+						buf = newBuf;
+					}
+
+					// a buffer enlarged for overlong lines replaces the pooled one for this chunk
+					if(buf != pooled) freeBuffers.offer(pooled);
+
+					carryLen = len - cut;
+					if(carry.length < carryLen) carry = new byte[buf.length];
+					System.arraycopy(buf, cut, carry, 0, carryLen);
+
+					chunks.put(pool.submit(new ChunkParser(buf, cut)));
+				}
+			} finally {
+				in.close();
+			}
+			chunks.put(END);
+		} catch(final IOException e) {
+			if(!closed) putFailure(e);
+		} catch(InterruptedException e) {
+			if(!closed) putFailure(new IOException("Interrupted while reading hex file"));
+		} catch(RejectedExecutionException e) {
+			// the pool has been shut down by close()
+		}
+	}
+
+	private void putFailure(final IOException e) {
+		try {
+			chunks.put(pool.submit(new Callable<ParsedChunk>() {
+				@Override
+				public ParsedChunk call() throws IOException {
+					throw e;
+				}
+			}));
+		} catch(InterruptedException ie) {
+			// nobody is left to report to
+		}
+	}
+
+	/**
+	 * Returns the index just past the last line terminator which is certain to be complete, i.e.
+	 * a LF, or a CR which is not followed by a LF. A CR in the last byte of the buffer could be
+	 * the first half of a CR LF and is therefore never used, whereas a LF there is.
+	 *
+	 * @return The index at which to cut, or 0 if the buffer holds no complete line
+	 */
+	private static int findCut(byte[] buf, int len) {
+		for(int i=len-1; i>=0; i--) {
+			if(buf[i] == '\n') return i + 1;
+			if(buf[i] == '\r' && i + 1 < len && buf[i+1] != '\n') return i + 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * The events of one chunk, in primitive form.
+	 */
+	private static class ParsedChunk {
+		/* Number of events */
+		int count = 0;
+
+		/* Number of lines in the chunk, including those without an event */
+		int lineCount = 0;
+
+		/* For each event: line number within the chunk, type, four blocks (or the frequency
+		 * in the first one), time stamp or Long.MIN_VALUE */
+		int[] lines;
+		byte[] types;
+		int[] blocks;
+		long[] times;
+
+		ParsedChunk(int capacity) {
+			lines = new int[capacity];
+			types = new byte[capacity];
+			blocks = new int[4 * capacity];
+			times = new long[capacity];
+		}
+
+		void add(HexLineParser parser) {
+			if(count == lines.length) grow();
+			lines[count] = lineCount;
+			types[count] = (byte) parser.type;
+			if(parser.type == HexLineParser.FREQUENCY) {
+				blocks[4*count] = parser.frequency;
+			} else {
+				blocks[4*count] = parser.block0;
+				blocks[4*count+1] = parser.block1;
+				blocks[4*count+2] = parser.block2;
+				blocks[4*count+3] = parser.block3;
+			}
+			times[count] = parser.hasTime ? parser.time : Long.MIN_VALUE;
+			count++;
+		}
+
+		private void grow() {
+			int capacity = 2 * lines.length + 16;
+			int[] newLines = new int[capacity];
+			byte[] newTypes = new byte[capacity];
+			int[] newBlocks = new int[4 * capacity];
+			long[] newTimes = new long[capacity];
+			System.arraycopy(lines, 0, newLines, 0, count);
+			System.arraycopy(types, 0, newTypes, 0, count);
+			System.arraycopy(blocks, 0, newBlocks, 0, 4 * count);
+			System.arraycopy(times, 0, newTimes, 0, count);
+			lines = newLines;
+			types = newTypes;
+			blocks = newBlocks;
+			times = newTimes;
+		}
+	}
+
+	/**
+	 * Parses one chunk on a worker thread, and returns its buffer to the pool when done.
+	 */
+	private class ChunkParser implements Callable<ParsedChunk> {
+		private final byte[] buf;
+		private final int len;
+
+		ChunkParser(byte[] buf, int len) {
+			this.buf = buf;
+			this.len = len;
+		}
+
+		@Override
+		public ParsedChunk call() {
+			HexLineParser parser = new HexLineParser();
+			// about 40 bytes per line in typical files
+			ParsedChunk chunk = new ParsedChunk(len / 40 + 16);
+
+			// same line splitting as HexFileGroupReader: LF, CR or CR LF
+			int pos = 0;
+			while(pos < len) {
+				int end = pos;
+				while(end < len && buf[end] != '\n' && buf[end] != '\r') end++;
+				if(parser.parse(buf, pos, end) != HexLineParser.NONE) chunk.add(parser);
+				chunk.lineCount++;
+				if(end < len && buf[end] == '\r' && end + 1 < len && buf[end + 1] == '\n') end++;
+				pos = end + 1;
+			}
+
+			// buffers enlarged for overlong lines are not recycled
+			if(buf.length == CHUNK_SIZE) freeBuffers.offer(buf);
+			return chunk;
+		}
+	}
+
+	/**
+	 * A placeholder which marks the end of the file in the queue of parsed chunks.
+	 */
+	private static class EndMarker implements Future<ParsedChunk> {
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			return true;
+		}
+
+		@Override
+		public ParsedChunk get() {
+			return null;
+		}
+
+		@Override
+		public ParsedChunk get(long timeout, TimeUnit unit) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,386 @@
+/*
+ RDS Surveyor -- RDS decoder, analyzer and monitor tool and library.
+ For more information see
+   http://www.jacquet80.eu/
+   http://rds-surveyor.sourceforge.net/
+ 
+ Copyright (c) 2016 the RDS Surveyor contributors
+
+ This file is part of RDS Surveyor.
+
+ RDS Surveyor is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ RDS Surveyor is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser Public License for more details.
+
+ You should have received a copy of the GNU Lesser Public License
+ along with RDS Surveyor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package eu.jacquet80.rds.input;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import eu.jacquet80.rds.core.RDS;
+import eu.jacquet80.rds.input.group.GroupEvent;
+import eu.jacquet80.rds.input.group.GroupReaderEvent;
+
+/**
+ * Generates an MPX signal carrying RDS data, i.e. the inverse of {@link AudioBitReader}.
+ * 
+ * Groups are taken from a {@link GroupReader}, encoded into blocks with their checkwords,
+ * differentially encoded and biphase-coded, and modulated onto the 57 kHz subcarrier as a
+ * DSB-SC signal. Missing blocks (-1) are sent with a corrupted checkword, so that the receiver
+ * sees a block error at the same place.
+ * 
+ * The signal can be impaired with white Gaussian noise, a subcarrier frequency offset and a clock
+ * drift. As in a real transmitter, the bit clock is derived from the subcarrier, so the clock
+ * drift applies to both, whereas the frequency offset only applies to the subcarrier.
+ * 
+ * The generator is a {@link SampleSource}, so it can be fed to an {@link AudioBitReader} directly.
+ * It can also write its output to a WAV or raw file, see {@link #writeWav(File)} and
+ * {@link #writeRaw(OutputStream)}.
+ */
+public class RDSSignalGenerator implements SampleSource {
+	/** RDS subcarrier frequency */
+	private static final double FC_0 = 57000.0;
+	
+	/** RDS bit rate */
+	private static final double BITRATE = FC_0 / 48;
+	
+	/** Bandwidth in which the signal-to-noise ratio is measured (the RDS band, +/-2.4 kHz) */
+	private static final double NOISE_BANDWIDTH = 4800.0;
+	
+	/** Duration of the noise-only tail appended after the last group, in bits */
+	private static final int TAIL_BITS = 104;
+	
+	private final GroupReader reader;
+	private final int sampleRate;
+	
+	private double amplitude = 1000;
+	private double pilotAmplitude = 0;
+	private double snr = Double.POSITIVE_INFINITY;
+	private double frequencyOffset = 0;
+	private double clockDrift = 0;
+	private final Random random = new Random(0);
+	
+	/* Bits of the current group, MSB first, and the number of bits left to send */
+	private final int[] groupBits = new int[4];
+	private int bitIndex = 104;
+	
+	/* Differentially encoded value of the current bit */
+	private int dbit = 0;
+	
+	/* Position within the current bit, 0..1 */
+	private double bitPhase = 1;
+	
+	private double carrierPhase = 0;
+	private double pilotPhase = 0;
+	private double noiseSigma = 0;
+	private boolean endOfGroups = false;
+	private int tailBits = TAIL_BITS;
+	
+	/**
+	 * @param reader The source of groups to encode
+	 * @param sampleRate The sample rate of the generated signal
+	 */
+	public RDSSignalGenerator(GroupReader reader, int sampleRate) {
+		if (sampleRate < 2 * (FC_0 + 2400))
+			throw new IllegalArgumentException("Sample rate too low for RDS: " + sampleRate);
+		this.reader = reader;
+		this.sampleRate = sampleRate;
+		updateNoise();
+	}
+	
+	public int getSampleRate() {
+		return sampleRate;
+	}
+	
+	/**
+	 * @brief Sets the peak amplitude of the RDS signal.
+	 * 
+	 * The default of 1000 (about 3% of full scale) corresponds to a typical RDS injection
+	 * level. Much higher levels push the subcarrier PLL of {@link AudioBitReader}, whose loop gain
+	 * grows with the square of the amplitude, out of lock.
+	 */
+	public void setAmplitude(double amplitude) {
+		this.amplitude = amplitude;
+		updateNoise();
+	}
+	
+	/**
+	 * @brief Sets the peak amplitude of a 19 kHz stereo pilot tone (default 0, i.e. none).
+	 */
+	public void setPilotAmplitude(double pilotAmplitude) {
+		this.pilotAmplitude = pilotAmplitude;
+	}
+	
+	/**
+	 * @brief Sets the signal-to-noise ratio, in dB.
+	 * 
+	 * The noise power is measured within the RDS band (4.8 kHz); it is spread evenly over the
+	 * whole band up to half the sample rate. Use {@link Double#POSITIVE_INFINITY} for no noise.
+	 */
+	public void setSnr(double snr) {
+		this.snr = snr;
+		updateNoise();
+	}
+	
+	/**
+	 * @brief Sets the subcarrier frequency offset, in Hz.
+	 */
+	public void setFrequencyOffset(double frequencyOffset) {
+		this.frequencyOffset = frequencyOffset;
+	}
+	
+	/**
+	 * @brief Sets the clock drift, in ppm, applied to both the subcarrier and the bit clock.
+	 */
+	public void setClockDrift(double clockDrift) {
+		this.clockDrift = clockDrift;
+	}
+	
+	/**
+	 * @brief Sets the seed of the noise generator, for repeatable runs.
+	 */
+	public void setSeed(long seed) {
+		random.setSeed(seed);
+	}
+	
+	private void updateNoise() {
+		if (Double.isInfinite(snr) && snr > 0) {
+			noiseSigma = 0;
+		} else {
+			/* a DSB-SC signal with a sinusoidal symbol shape has a power of A^2 / 4 */
+			double signalPower = amplitude * amplitude / 4;
+			double bandNoisePower = signalPower / Math.pow(10, snr / 10);
+			noiseSigma = Math.sqrt(bandNoisePower * (sampleRate / 2.0) / NOISE_BANDWIDTH);
+		}
+	}
+	
+	@Override
+	public int read(short[] buf, int off, int len) throws IOException {
+		double drift = 1 + clockDrift * 1e-6;
+		double bitStep = BITRATE * drift / sampleRate;
+		double carrierStep = 2 * Math.PI * (FC_0 * drift + frequencyOffset) / sampleRate;
+		double pilotStep = 2 * Math.PI * (FC_0 / 3) * drift / sampleRate;
+		
+		int count = 0;
+		while (count < len) {
+			double v = 0;
+			
+			if (!endOfGroups || tailBits > 0) {
+				if (bitPhase >= 1) {
+					bitPhase -= 1;
+					if (!nextBit()) {
+						if (count == 0) return -1;
+						break;
+					}
+				}
+				
+				if (!endOfGroups) {
+					/* biphase symbol: one sine period per bit, sign given by the differential bit */
+					double symbol = Math.sin(2 * Math.PI * bitPhase) * (dbit == 1 ? 1 : -1);
+					v = amplitude * symbol * Math.cos(carrierPhase);
+				}
+				
+				bitPhase += bitStep;
+			} else {
+				return (count == 0) ? -1 : count;
+			}
+			
+			if (pilotAmplitude != 0)
+				v += pilotAmplitude * Math.sin(pilotPhase);
+			if (noiseSigma != 0)
+				v += noiseSigma * random.nextGaussian();
+			
+			carrierPhase += carrierStep;
+			if (carrierPhase > 2 * Math.PI) carrierPhase -= 2 * Math.PI;
+			pilotPhase += pilotStep;
+			if (pilotPhase > 2 * Math.PI) pilotPhase -= 2 * Math.PI;
+			
+			if (v > Short.MAX_VALUE) v = Short.MAX_VALUE;
+			else if (v < Short.MIN_VALUE) v = Short.MIN_VALUE;
+			buf[off + count++] = (short) v;
+		}
+		return count;
+	}
+	
+	/**
+	 * @brief Advances to the next bit, fetching a new group if needed.
+	 * 
+	 * @return {@code false} if there are no more bits to send, including the tail
+	 */
+	private boolean nextBit() throws IOException {
+		if (endOfGroups)
+			return tailBits-- > 0;
+		
+		if (bitIndex >= 104) {
+			if (!nextGroup()) {
+				endOfGroups = true;
+				return tailBits-- > 0;
+			}
+			bitIndex = 0;
+		}
+		
+		int block = groupBits[bitIndex / 26];
+		int bit = (block >> (25 - bitIndex % 26)) & 1;
+		dbit ^= bit;
+		bitIndex++;
+		return true;
+	}
+	
+	private boolean nextGroup() throws IOException {
+		GroupReaderEvent evt;
+		do {
+			try {
+				evt = reader.getGroup();
+			} catch (GroupReader.EndOfStream e) {
+				return false;
+			}
+		} while (!(evt instanceof GroupEvent));
+		
+		int[] blocks = ((GroupEvent) evt).blocks;
+		boolean versionB = blocks[1] >= 0 && (blocks[1] & 0x800) != 0;
+		for (int i = 0; i < 4; i++) {
+			int offsetWord = (i == 2 && versionB) ? RDS.OFFSET_C_PRIME : RDS.offsetWords[i];
+			if (blocks[i] >= 0) {
+				groupBits[i] = RDS.encodeBlock(blocks[i], offsetWord);
+			} else {
+				/* flip one checkword bit to produce an uncorrectable-looking error */
+				groupBits[i] = RDS.encodeBlock(0, offsetWord) ^ 1;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @brief Writes the whole signal as raw 16-bit little-endian samples.
+	 */
+	public void writeRaw(OutputStream out) throws IOException {
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+		short[] buf = new short[4096];
+		int n;
+		while ((n = read(buf, 0, buf.length)) > 0) {
+			for (int i = 0; i < n; i++)
+				dos.writeShort(Short.reverseBytes(buf[i]));
+		}
+		dos.flush();
+	}
+	
+	/**
+	 * @brief Writes the whole signal to a mono 16-bit WAV file.
+	 */
+	public void writeWav(File file) throws IOException {
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			/* header with placeholder sizes, fixed once the length is known */
+			fos.write(wavHeader(0));
+			writeRaw(fos);
+		} finally {
+			fos.close();
+		}
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			long dataSize = raf.length() - 44;
+			raf.seek(0);
+			raf.write(wavHeader(dataSize));
+		} finally {
+			raf.close();
+		}
+	}
+	
+	private byte[] wavHeader(long dataSize) {
+		byte[] h = new byte[44];
+		putAscii(h, 0, "RIFF");
+		putInt(h, 4, (int) (dataSize + 36));
+		putAscii(h, 8, "WAVE");
+		putAscii(h, 12, "fmt ");
+		putInt(h, 16, 16);                  // fmt chunk size
+		putShort(h, 20, 1);                 // PCM
+		putShort(h, 22, 1);                 // mono
+		putInt(h, 24, sampleRate);
+		putInt(h, 28, sampleRate * 2);      // byte rate
+		putShort(h, 32, 2);                 // block align
+		putShort(h, 34, 16);                // bits per sample
+		putAscii(h, 36, "data");
+		putInt(h, 40, (int) dataSize);
+		return h;
+	}
+	
+	private static void putAscii(byte[] b, int off, String s) {
+		for (int i = 0; i < s.length(); i++) b[off + i] = (byte) s.charAt(i);
+	}
+	
+	private static void putInt(byte[] b, int off, int v) {
+		for (int i = 0; i < 4; i++) b[off + i] = (byte) (v >> (8 * i));
+	}
+	
+	private static void putShort(byte[] b, int off, int v) {
+		b[off] = (byte) v;
+		b[off + 1] = (byte) (v >> 8);
+	}
+	
+	/**
+	 * Encodes a group file into a WAV or raw MPX file.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: RDSSignalGenerator <groupfile> <out.wav|out.raw> [options]");
+			System.out.println("  -rate <samples/s>   Sample rate (default 228000)");
+			System.out.println("  -snr <dB>           Signal-to-noise ratio in the RDS band (default: no noise)");
+			System.out.println("  -offset <Hz>        Subcarrier frequency offset (default 0)");
+			System.out.println("  -drift <ppm>        Clock drift (default 0)");
+			System.out.println("  -pilot <amplitude>  Add a 19 kHz pilot tone (default: none)");
+			System.exit(1);
+		}
+		
+		int rate = 228000;
+		double snr = Double.POSITIVE_INFINITY, offset = 0, drift = 0, pilot = 0;
+		for (int i = 2; i + 1 < args.length; i += 2) {
+			if ("-rate".equals(args[i])) rate = Integer.parseInt(args[i + 1]);
+			else if ("-snr".equals(args[i])) snr = Double.parseDouble(args[i + 1]);
+			else if ("-offset".equals(args[i])) offset = Double.parseDouble(args[i + 1]);
+			else if ("-drift".equals(args[i])) drift = Double.parseDouble(args[i + 1]);
+			else if ("-pilot".equals(args[i])) pilot = Double.parseDouble(args[i + 1]);
+			else {
+				System.out.println("Unknown argument: " + args[i]);
+				System.exit(1);
+			}
+		}
+		
+		RDSSignalGenerator gen = new RDSSignalGenerator(FileFormatGuesser.createReader(new File(args[0])), rate);
+		gen.setSnr(snr);
+		gen.setFrequencyOffset(offset);
+		gen.setClockDrift(drift);
+		gen.setPilotAmplitude(pilot);
+		
+		File out = new File(args[1]);
+		long start = System.currentTimeMillis();
+		if (out.getName().toLowerCase().endsWith(".wav")) {
+			gen.writeWav(out);
+		} else {
+			FileOutputStream fos = new FileOutputStream(out);
+			try {
+				gen.writeRaw(fos);
+			} finally {
+				fos.close();
+			}
+		}
+		System.out.println("Wrote " + out + " in " + (System.currentTimeMillis() - start) + " ms.");
+	}
+}
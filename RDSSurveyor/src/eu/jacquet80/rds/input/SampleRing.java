@@ -0,0 +1,171 @@
+/*
+ RDS Surveyor -- RDS decoder, analyzer and monitor tool and library.
+ For more information see
+   http://www.jacquet80.eu/
+   http://rds-surveyor.sourceforge.net/
+
+ Copyright (c) 2016 the RDS Surveyor contributors
+
+ This file is part of RDS Surveyor.
+
+ RDS Surveyor is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ RDS Surveyor is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser Public License for more details.
+
+ You should have received a copy of the GNU Lesser Public License
+ along with RDS Surveyor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package eu.jacquet80.rds.input;
+
+import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free ring buffer of samples, which carries samples from one producer thread, typically
+ * a native driver, to one consumer, typically an {@link AudioBitReader}.
+ *
+ * The producer never waits: samples which do not fit into the ring are dropped and counted as
+ * overruns, because a real-time source cannot be held back. The consumer blocks while the ring is
+ * empty, and is woken up by the producer as soon as samples are added.
+ */
+public class SampleRing implements SampleSource {
+	/** Longest time the consumer sleeps before checking the ring again, in ns */
+	private static final long MAX_PARK = 10000000;
+
+	private final short[] buf;
+	private final int mask;
+
+	/* Total number of samples written and read; each is updated by a single thread */
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+
+	private volatile Thread waiter = null;
+	private volatile boolean closed = false;
+	private volatile long overruns = 0;
+
+	/**
+	 * @param capacity The minimum number of samples the ring can hold; rounded up to a power of 2
+	 */
+	public SampleRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		buf = new short[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * @brief Adds samples to the ring. Must be called from the producer thread only.
+	 *
+	 * @return The number of samples added, which is less than {@code len} if the ring was full
+	 */
+	public int write(short[] src, int off, int len) {
+		long h = head.get();
+		int n = reserve(h, len);
+		int pos = (int) (h & mask);
+		int first = Math.min(n, buf.length - pos);
+		System.arraycopy(src, off, buf, pos, first);
+		System.arraycopy(src, off + first, buf, 0, n - first);
+		publish(h + n);
+		return n;
+	}
+
+	/**
+	 * @brief Adds the remaining samples of a buffer, e.g. a view of a direct buffer filled by
+	 * native code, to the ring. Must be called from the producer thread only.
+	 *
+	 * The position of the buffer is advanced past all its samples, including dropped ones.
+	 *
+	 * @return The number of samples added, which is less than the number of samples in the buffer
+	 * if the ring was full
+	 */
+	public int write(ShortBuffer src) {
+		long h = head.get();
+		int len = src.remaining();
+		int n = reserve(h, len);
+		int pos = (int) (h & mask);
+		int first = Math.min(n, buf.length - pos);
+		src.get(buf, pos, first);
+		src.get(buf, 0, n - first);
+		src.position(src.position() + len - n);
+		publish(h + n);
+		return n;
+	}
+
+	/**
+	 * Returns how many of {@code len} samples fit into the ring, and counts the others.
+	 */
+	private int reserve(long h, int len) {
+		int free = buf.length - (int) (h - tail.get());
+		if(len > free) {
+			overruns += len - free;
+			return free;
+		}
+		return len;
+	}
+
+	private void publish(long h) {
+		head.lazySet(h);
+		Thread w = waiter;
+		if(w != null) LockSupport.unpark(w);
+	}
+
+	/**
+	 * @brief Reads samples from the ring, blocking while it is empty. Must be called from the
+	 * consumer thread only.
+	 */
+	@Override
+	public int read(short[] dst, int off, int len) {
+		long t = tail.get();
+		long h;
+		while((h = head.get()) == t) {
+			if(closed) {
+				// samples may have been added right before closing
+				if(head.get() == t) return -1;
+				continue;
+			}
+			waiter = Thread.currentThread();
+			if(head.get() == t && ! closed) LockSupport.parkNanos(this, MAX_PARK);
+			waiter = null;
+		}
+
+		int n = (int) Math.min(len, h - t);
+		int pos = (int) (t & mask);
+		int first = Math.min(n, buf.length - pos);
+		System.arraycopy(buf, pos, dst, off, first);
+		System.arraycopy(buf, 0, dst, off + first, n - first);
+		tail.lazySet(t + n);
+		return n;
+	}
+
+	/**
+	 * @brief Returns the number of samples waiting to be read.
+	 */
+	public int available() {
+		return (int) (head.get() - tail.get());
+	}
+
+	/**
+	 * @brief Returns the number of samples dropped because the ring was full.
+	 */
+	public long getOverruns() {
+		return overruns;
+	}
+
+	/**
+	 * @brief Marks the end of the stream. The consumer reads the remaining samples, then the end
+	 * of the stream.
+	 */
+	public void close() {
+		closed = true;
+		Thread w = waiter;
+		if(w != null) LockSupport.unpark(w);
+	}
+}
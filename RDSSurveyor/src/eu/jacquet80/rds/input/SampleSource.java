@@ -0,0 +1,47 @@
+/*
+ RDS Surveyor -- RDS decoder, analyzer and monitor tool and library.
+ For more information see
+   http://www.jacquet80.eu/
+   http://rds-surveyor.sourceforge.net/
+ 
+ Copyright (c) 2016 the RDS Surveyor contributors
+
+ This file is part of RDS Surveyor.
+
+ RDS Surveyor is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ RDS Surveyor is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser Public License for more details.
+
+ You should have received a copy of the GNU Lesser Public License
+ along with RDS Surveyor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package eu.jacquet80.rds.input;
+
+import java.io.IOException;
+
+/**
+ * A source of 16-bit audio (MPX) samples, as consumed by {@link AudioBitReader}.
+ * 
+ * Implementations may deliver fewer samples than requested, but must block until at least one
+ * sample is available or the end of the stream has been reached.
+ */
+public interface SampleSource {
+	/**
+	 * @brief Reads samples into a buffer.
+	 * 
+	 * @param buf The buffer into which samples are stored
+	 * @param off The index of the first sample to write in {@code buf}
+	 * @param len The maximum number of samples to read
+	 * @return The number of samples read, or -1 if the end of the stream has been reached
+	 * @throws IOException if the underlying input fails
+	 */
+	public int read(short[] buf, int off, int len) throws IOException;
+}
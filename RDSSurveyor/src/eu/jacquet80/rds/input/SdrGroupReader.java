@@ -1,12 +1,13 @@
 package eu.jacquet80.rds.input;
 
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -20,8 +21,21 @@ public class SdrGroupReader extends TunerGroupReader {
 	/** The sample rate at which we receive data from the tuner. */
 	private static final int sampleRate = 250000;
 	
-	private final PipedInputStream syncIn;
-	private final DataOutputStream tunerOut;
+	/** Capacity of the sample ring, about one second of samples */
+	private static final int RING_SIZE = 262144;
+	
+	/* Samples from the native driver, read by the DSP */
+	private final SampleRing ring = new SampleRing(RING_SIZE);
+	
+	/* The direct buffer last passed to onSamples(), and a view of its samples */
+	private ByteBuffer sampleBuffer = null;
+	private ShortBuffer sampleView = null;
+	
+	/* 
+	 * For native drivers which write their samples as bytes to this stream, rather than calling
+	 * onSamples(). The field is looked up by name from native code.
+	 */
+	private final DataOutputStream tunerOut = new DataOutputStream(new RingOutputStream());
 	private final BitStreamSynchronizer synchronizer;
 	private boolean synced = false;
 	private boolean newGroups;
@@ -54,9 +68,7 @@ public class SdrGroupReader extends TunerGroupReader {
 					aFilename + ": cannot load library");
 		}
 
-		syncIn = new PipedInputStream();
-		tunerOut = new DataOutputStream(new PipedOutputStream(syncIn));
-		synchronizer = new BitStreamSynchronizer(console, new AudioBitReader(new DataInputStream(syncIn), sampleRate));
+		synchronizer = new BitStreamSynchronizer(console, new AudioBitReader(ring, sampleRate));
 		
 		synchronizer.addStatusChangeListener(new BitStreamSynchronizer.StatusChangeListener() {
 			@Override
@@ -294,6 +306,72 @@ public class SdrGroupReader extends TunerGroupReader {
 		}
 	}
 	
+	/**
+	 * @brief Called when the native driver has demodulated a block of samples.
+	 * 
+	 * The samples are 16-bit values in native byte order, at the start of a direct buffer which
+	 * the driver owns. They are copied into the sample ring before this method returns, so the
+	 * driver may reuse the buffer afterwards. Drivers should pass the same buffer every time. This
+	 * method must always be called from the same thread.
+	 * 
+	 * @param data A direct buffer holding the samples
+	 * @param count The number of samples
+	 */
+	private void onSamples(ByteBuffer data, int count) {
+		if(data != sampleBuffer) {
+			sampleBuffer = data;
+			sampleView = data.order(ByteOrder.nativeOrder()).asShortBuffer();
+		}
+		sampleView.clear();
+		sampleView.limit(Math.min(count, sampleView.capacity()));
+		ring.write(sampleView);
+	}
+	
+	/**
+	 * @brief Returns the number of samples dropped because the DSP did not keep up.
+	 */
+	public long getOverruns() {
+		return ring.getOverruns();
+	}
+	
+	/**
+	 * Feeds the sample ring from a stream of 16-bit little-endian samples, for native drivers
+	 * which write to {@code tunerOut}.
+	 */
+	private class RingOutputStream extends OutputStream {
+		private final short[] samples = new short[4096];
+		private int pendingByte = -1;
+		
+		@Override
+		public void write(int b) {
+			if(pendingByte < 0) {
+				pendingByte = b & 0xFF;
+			} else {
+				samples[0] = (short) (pendingByte | ((b & 0xFF) << 8));
+				pendingByte = -1;
+				ring.write(samples, 0, 1);
+			}
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) {
+			int end = off + len;
+			while(off < end) {
+				int n = 0;
+				if(pendingByte >= 0) {
+					samples[n++] = (short) ((pendingByte & 0xFF) | (b[off++] << 8));
+					pendingByte = -1;
+				}
+				while(n < samples.length && off + 1 < end) {
+					samples[n++] = (short) ((b[off] & 0xFF) | (b[off + 1] << 8));
+					off += 2;
+				}
+				if(off + 1 == end && n < samples.length) pendingByte = b[off++] & 0xFF;
+				ring.write(samples, 0, n);
+			}
+		}
+	}
+	
 	/**
 	 * @brief Reads data from the tuner and stores it internally.
 	 * 
@@ -0,0 +1,406 @@
+/*
+ RDS Surveyor -- RDS decoder, analyzer and monitor tool and library.
+ For more information see
+   http://www.jacquet80.eu/
+   http://rds-surveyor.sourceforge.net/
+
+ Copyright (c) 2016 the RDS Surveyor contributors
+
+ This file is part of RDS Surveyor.
+
+ RDS Surveyor is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ RDS Surveyor is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser Public License for more details.
+
+ You should have received a copy of the GNU Lesser Public License
+ along with RDS Surveyor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package eu.jacquet80.rds.input;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import eu.jacquet80.rds.input.group.FrequencyChangeEvent;
+import eu.jacquet80.rds.input.group.GroupEvent;
+import eu.jacquet80.rds.input.group.GroupReaderEvent;
+import eu.jacquet80.rds.log.RealTime;
+
+/**
+ * A tuner which receives recorded groups instead of real stations, for testing without radio
+ * hardware.
+ *
+ * The stations are described by a {@link Band}, which maps frequencies to group sequences and
+ * signal strengths. Any number of simulated tuners may share a band: the groups are stored once,
+ * and each tuner only keeps its own position and timing, on the thread which reads it.
+ *
+ * Groups are delivered at the RDS rate (about 11.4 groups per second), or faster if a speed
+ * factor is given. Blocks are erased at random, with a probability which grows as the signal
+ * gets weaker. Retuning takes some time, during which the caller is blocked, and a few groups
+ * are lost after each retune while the decoder regains synchronization. Like a hardware tuner,
+ * the reader reports each frequency change with a {@link FrequencyChangeEvent}.
+ */
+public class SimulatedTunerGroupReader extends TunerGroupReader {
+	/** Duration of a group: 104 bits at 1187.5 bit/s, in ns */
+	private static final long GROUP_DURATION = 104L * 1000000000L * 2 / 2375;
+
+	/** Number of group durations needed to synchronize after a retune */
+	private static final int SYNC_GROUPS = 2;
+
+	/** Default time taken by a retune, in ms */
+	public static final long DEFAULT_RETUNE_LATENCY = 40;
+
+	/** Default time taken by each channel step while seeking, in ms */
+	public static final long DEFAULT_SEEK_STEP_LATENCY = 10;
+
+	/** Signal strength above which seeking stops, on the same scale as Video4Linux tuners */
+	public static final int SEEK_THRESHOLD = 30000;
+
+	/** Signal strength of a channel without any station */
+	public static final int NOISE_FLOOR = 2000;
+
+	/** Signal strength lost per 100 kHz away from a station */
+	private static final int ADJACENT_LOSS = 35000;
+
+	/** Signal strength at and above which all blocks are received correctly */
+	private static final int GOOD_SIGNAL = 40000;
+
+	/** Signal strength at and below which no RDS can be received */
+	private static final int NO_RDS_SIGNAL = 12000;
+
+	private static final int MIN_FREQUENCY = 87500;
+	private static final int MAX_FREQUENCY = 108000;
+	private static final int STEP = 100;
+
+	private static final AtomicInteger tunerCount = new AtomicInteger();
+
+	/**
+	 * A set of simulated stations, which can be shared by several tuners.
+	 */
+	public static class Band {
+		private final Map<Integer, Station> stations = new ConcurrentHashMap<Integer, Station>();
+
+		/**
+		 * @brief Adds a station.
+		 *
+		 * @param frequency The frequency, in kHz
+		 * @param groups The groups transmitted by the station, in a loop; -1 for missing blocks
+		 * @param rssi The signal strength, from 0 to 65535
+		 */
+		public void addStation(int frequency, int[][] groups, int rssi) {
+			if(groups.length == 0) throw new IllegalArgumentException("No groups for " + frequency + " kHz");
+			stations.put(frequency, new Station(groups, rssi));
+		}
+
+		/**
+		 * @brief Adds a station which transmits the groups produced by a reader, e.g. a
+		 * generator. The reader must come to an end.
+		 */
+		public void addStation(int frequency, GroupReader reader, int rssi) throws IOException {
+			List<int[]> groups = new ArrayList<int[]>();
+			try {
+				while(true) {
+					GroupReaderEvent evt = reader.getGroup();
+					if(evt instanceof GroupEvent) groups.add(((GroupEvent) evt).blocks);
+				}
+			} catch(EndOfStream e) {
+				// all groups read
+			}
+			addStation(frequency, groups.toArray(new int[groups.size()][]), rssi);
+		}
+
+		/**
+		 * @brief Adds a station which transmits the groups of a recording, in any format
+		 * supported by {@link FileFormatGuesser}.
+		 */
+		public void addStation(int frequency, File file, int rssi) throws IOException {
+			addStation(frequency, FileFormatGuesser.createReader(file), rssi);
+		}
+
+		/**
+		 * @brief Returns the signal strength on a frequency, which is the strongest of the signals
+		 * of the stations on and around it.
+		 */
+		public int getSignalStrength(int frequency) {
+			int best = NOISE_FLOOR;
+			for(int d = -1; d <= 1; d++) {
+				Station s = stations.get(frequency + d * STEP);
+				if(s != null) best = Math.max(best, s.rssi - Math.abs(d) * ADJACENT_LOSS);
+			}
+			return best;
+		}
+
+		Station getStation(int frequency) {
+			return stations.get(frequency);
+		}
+
+		/**
+		 * @brief Creates a band from a description of the form
+		 * {@code <frequency>[@<rssi>]=<file>,...}.
+		 *
+		 * Frequencies are given in MHz if they contain a decimal point, in kHz otherwise. The
+		 * signal strength defaults to 50000.
+		 */
+		public static Band parse(String spec) throws IOException {
+			Band band = new Band();
+			for(String item : spec.split(",")) {
+				int eq = item.indexOf('=');
+				if(eq < 0) throw new IllegalArgumentException("Malformed station: " + item);
+				String freqText = item.substring(0, eq).trim();
+				int rssi = 50000;
+				int at = freqText.indexOf('@');
+				if(at >= 0) {
+					rssi = Integer.parseInt(freqText.substring(at + 1));
+					freqText = freqText.substring(0, at);
+				}
+				int frequency = freqText.indexOf('.') >= 0 ?
+						(int) Math.round(Double.parseDouble(freqText) * 1000) : Integer.parseInt(freqText);
+				band.addStation(frequency, new File(item.substring(eq + 1).trim()), rssi);
+			}
+			return band;
+		}
+	}
+
+	/**
+	 * A simulated station.
+	 */
+	static class Station {
+		final int[][] groups;
+		final int rssi;
+
+		/** Probability for each block to be erased */
+		final double blockErrorRate;
+
+		Station(int[][] groups, int rssi) {
+			this.groups = groups;
+			this.rssi = rssi;
+			this.blockErrorRate = Math.max(0, Math.min(1,
+					(double) (GOOD_SIGNAL - rssi) / (GOOD_SIGNAL - NO_RDS_SIGNAL)));
+		}
+	}
+
+	private final Band band;
+	private final String name;
+	private final Random random;
+
+	/* Time between groups, in ns, or 0 to deliver groups as fast as possible */
+	private final long groupInterval;
+
+	private volatile long retuneLatency = DEFAULT_RETUNE_LATENCY;
+	private volatile long seekStepLatency = DEFAULT_SEEK_STEP_LATENCY;
+
+	/* Tuner state, guarded by this */
+	private int frequency;
+	private int reportedFrequency = 0;
+	private Station station;
+	private int position;
+	private long nextGroupAt;
+	private long syncAt;
+	private boolean closed = false;
+
+	private volatile boolean newGroups = false;
+
+	/**
+	 * @param band The stations which can be received
+	 * @param frequency The initial frequency, in kHz
+	 * @param speed The rate at which groups are delivered, relative to a real tuner; 0 to deliver
+	 * them as fast as they are read
+	 */
+	public SimulatedTunerGroupReader(Band band, int frequency, double speed) {
+		this.band = band;
+		this.name = "Simulated tuner " + tunerCount.incrementAndGet();
+		this.random = new Random();
+		this.groupInterval = speed > 0 ? (long) (GROUP_DURATION / speed) : 0;
+		synchronized(this) {
+			retune(frequency);
+		}
+	}
+
+	public SimulatedTunerGroupReader(Band band) {
+		this(band, MIN_FREQUENCY, 1);
+	}
+
+	public void setRetuneLatency(long ms) {
+		this.retuneLatency = ms;
+	}
+
+	public void setSeekStepLatency(long ms) {
+		this.seekStepLatency = ms;
+	}
+
+	@Override
+	public synchronized GroupReaderEvent getGroup() throws IOException, EndOfStream {
+		try {
+			while(true) {
+				if(closed) throw new EndOfStream();
+
+				if(frequency != reportedFrequency) {
+					reportedFrequency = frequency;
+					return new FrequencyChangeEvent(new RealTime(), frequency);
+				}
+
+				if(station == null || station.blockErrorRate >= 1) {
+					// nothing to receive until the tuner is moved
+					wait();
+					continue;
+				}
+
+				long now = System.nanoTime();
+				long due = Math.max(nextGroupAt, syncAt);
+				if(now < due) {
+					long ns = due - now;
+					wait(ns / 1000000, (int) (ns % 1000000));
+					continue;
+				}
+				// do not catch up on groups which were not read in time
+				nextGroupAt = Math.max(nextGroupAt, now - groupInterval) + groupInterval;
+
+				int[] source = station.groups[position];
+				position = (position + 1) % station.groups.length;
+
+				int[] blocks = new int[4];
+				for(int i=0; i<4; i++) {
+					blocks[i] = random.nextDouble() < station.blockErrorRate ? -1 : source[i];
+				}
+				newGroups = true;
+				return new GroupEvent(new RealTime(), blocks, false);
+			}
+		} catch(InterruptedException e) {
+			throw new IOException("Interrupted while waiting for groups");
+		}
+	}
+
+	/**
+	 * Moves to a new frequency. Must be called with the lock held.
+	 */
+	private void retune(int freq) {
+		frequency = Math.max(MIN_FREQUENCY, Math.min(MAX_FREQUENCY, freq));
+		station = band.getStation(frequency);
+		// each tuner starts at its own point of the recording
+		if(station != null) position = random.nextInt(station.groups.length);
+		long now = System.nanoTime();
+		nextGroupAt = now;
+		syncAt = now + SYNC_GROUPS * groupInterval;
+		notifyAll();
+	}
+
+	private static void pause(long ms) {
+		if(ms <= 0) return;
+		try {
+			Thread.sleep(ms);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public int setFrequency(int frequency) {
+		pause(retuneLatency);
+		synchronized(this) {
+			retune(frequency);
+			return this.frequency;
+		}
+	}
+
+	@Override
+	public synchronized int getFrequency() {
+		return frequency;
+	}
+
+	@Override
+	public void tune(boolean up) {
+		int freq = getFrequency() + (up ? STEP : -STEP);
+		if(freq > MAX_FREQUENCY) freq = MIN_FREQUENCY;
+		if(freq < MIN_FREQUENCY) freq = MAX_FREQUENCY;
+		setFrequency(freq);
+	}
+
+	@Override
+	public boolean seek(boolean up) {
+		int start = getFrequency();
+		int freq = start;
+		int channels = (MAX_FREQUENCY - MIN_FREQUENCY) / STEP + 1;
+		for(int i=1; i<channels; i++) {
+			freq += up ? STEP : -STEP;
+			if(freq > MAX_FREQUENCY) freq = MIN_FREQUENCY;
+			if(freq < MIN_FREQUENCY) freq = MAX_FREQUENCY;
+			if(band.getSignalStrength(freq) >= SEEK_THRESHOLD) {
+				pause(i * seekStepLatency);
+				setFrequency(freq);
+				return true;
+			}
+		}
+		pause(channels * seekStepLatency);
+		return false;
+	}
+
+	@Override
+	public synchronized int getSignalStrength() {
+		int s = band.getSignalStrength(frequency);
+		// a little fluctuation, like a real tuner
+		return Math.max(0, s + (int) (random.nextGaussian() * 500));
+	}
+
+	@Override
+	public synchronized boolean isSynchronized() {
+		return station != null && station.blockErrorRate < 1 && System.nanoTime() >= syncAt;
+	}
+
+	@Override
+	public synchronized boolean isStereo() {
+		return station != null;
+	}
+
+	@Override
+	public int mute() {
+		return 0;
+	}
+
+	@Override
+	public int unmute() {
+		return 0;
+	}
+
+	@Override
+	public boolean isAudioCapable() {
+		return false;
+	}
+
+	@Override
+	public boolean isPlayingAudio() {
+		return false;
+	}
+
+	@Override
+	public String getDeviceName() {
+		return name;
+	}
+
+	@Override
+	public boolean newGroups() {
+		boolean ng = newGroups;
+		newGroups = false;
+		return ng;
+	}
+
+	/**
+	 * @brief Stops the tuner. Readers receive an {@link GroupReader.EndOfStream}.
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+}
@@ -0,0 +1,629 @@
+/*
+ RDS Surveyor -- RDS decoder, analyzer and monitor tool and library.
+ For more information see
+   http://www.jacquet80.eu/
+   http://rds-surveyor.sourceforge.net/
+
+ Copyright (c) 2016 the RDS Surveyor contributors
+
+ This file is part of RDS Surveyor.
+
+ RDS Surveyor is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ RDS Surveyor is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser Public License for more details.
+
+ You should have received a copy of the GNU Lesser Public License
+ along with RDS Surveyor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package eu.jacquet80.rds.input;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import eu.jacquet80.rds.input.group.FrequencyChangeEvent;
+import eu.jacquet80.rds.input.group.GroupEvent;
+import eu.jacquet80.rds.input.group.GroupReaderEvent;
+import eu.jacquet80.rds.log.RealTime;
+
+/**
+ * Collects groups from many remote tuners over TCP, on a single thread.
+ *
+ * Each remote tuner speaks the same line protocol as {@link TCPTunerGroupReader}: it sends
+ * group-level hex lines and {@code % Freq} lines, and accepts {@code GET_FREQ},
+ * {@code SET_FREQ <kHz>}, {@code UP}, {@code DOWN} and {@code SEEK UP|DOWN} commands.
+ *
+ * All connections are served by one selector thread. Incoming data is read into a direct
+ * buffer per connection and split into lines, which are parsed in place by a
+ * {@link HexLineParser}. Each event is passed, together with its {@link Source}, to the
+ * registered {@link Listener}s and queued on the source, which is a {@link TunerGroupReader} in
+ * its own right and can thus feed a decoder pipeline of its own.
+ *
+ * Commands are queued and sent by the selector thread, so callers never block on the network.
+ * Host names are resolved on a separate thread before each connection attempt, so that a slow
+ * name server does not stall the other connections. Connections which fail, including host
+ * names which cannot be resolved, or which are closed by the remote end are re-established with
+ * exponential backoff.
+ */
+public class TCPGroupAggregator {
+	/** Delay before the first reconnection attempt, in ms */
+	private static final long MIN_BACKOFF = 500;
+
+	/** Maximum delay between reconnection attempts, in ms */
+	private static final long MAX_BACKOFF = 60000;
+
+	/** Size of the receive buffer of each connection, in bytes */
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	/** Maximum length of a line; longer lines are discarded */
+	private static final int MAX_LINE = 4096;
+
+	/** Maximum amount of unsent commands per connection, in bytes */
+	private static final int MAX_PENDING_COMMANDS = 16384;
+
+	/** Default number of events queued on a source before new ones are dropped */
+	public static final int DEFAULT_QUEUE_SIZE = 4096;
+
+	/**
+	 * Receives the events of all sources. Listeners are called on the selector thread and must
+	 * return quickly.
+	 */
+	public static interface Listener {
+		public void eventReceived(Source source, GroupReaderEvent event);
+	}
+
+	private final Selector selector;
+	private final Thread thread;
+	private volatile boolean running = true;
+
+	private final List<Source> sources = new CopyOnWriteArrayList<Source>();
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	/* Requests from other threads, handled by the selector thread */
+	private final ConcurrentLinkedQueue<Source> pendingConnects = new ConcurrentLinkedQueue<Source>();
+	private final ConcurrentLinkedQueue<Source> pendingWrites = new ConcurrentLinkedQueue<Source>();
+	private final ConcurrentLinkedQueue<Source> pendingRemovals = new ConcurrentLinkedQueue<Source>();
+
+	/* Sources whose address has been resolved, and which are ready to connect */
+	private final ConcurrentLinkedQueue<Source> pendingResolved = new ConcurrentLinkedQueue<Source>();
+
+	/* Resolves host names, which may block, off the selector thread */
+	private final ExecutorService resolver = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "TCP group aggregator resolver");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/* Disconnected sources by time of the next connection attempt; selector thread only */
+	private final PriorityQueue<Source> reconnects = new PriorityQueue<Source>();
+
+	/* Used by the selector thread only */
+	private final HexLineParser parser = new HexLineParser();
+	private final Random random = new Random();
+
+	public TCPGroupAggregator() throws IOException {
+		selector = Selector.open();
+		thread = new Thread("TCP group aggregator") {
+			@Override
+			public void run() {
+				selectLoop();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @brief Adds a remote tuner and starts connecting to it.
+	 */
+	public Source addSource(String host, int port) {
+		return addSource(host, port, DEFAULT_QUEUE_SIZE);
+	}
+
+	/**
+	 * @brief Adds a remote tuner and starts connecting to it.
+	 *
+	 * @param host The host name or address of the tuner server
+	 * @param port The port of the tuner server
+	 * @param queueSize The number of events the source can hold until they are read
+	 */
+	public Source addSource(String host, int port, int queueSize) {
+		Source source = new Source(host, port, queueSize);
+		sources.add(source);
+		pendingConnects.add(source);
+		selector.wakeup();
+		return source;
+	}
+
+	/**
+	 * @brief Disconnects from a remote tuner and removes it.
+	 *
+	 * Readers of the source receive an {@link GroupReader.EndOfStream} once its queue is empty.
+	 */
+	public void removeSource(Source source) {
+		source.removed = true;
+		sources.remove(source);
+		pendingRemovals.add(source);
+		selector.wakeup();
+	}
+
+	public List<Source> getSources() {
+		return new ArrayList<Source>(sources);
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * @brief Closes all connections and stops the selector thread.
+	 */
+	public void close() {
+		running = false;
+		for(Source s : sources) s.removed = true;
+		selector.wakeup();
+		resolver.shutdownNow();
+		try {
+			thread.join();
+		} catch(InterruptedException e) {
+			// the thread will terminate anyway
+		}
+	}
+
+	private void selectLoop() {
+		try {
+			while(running) {
+				handleRequests();
+
+				long timeout = 0;
+				if(! reconnects.isEmpty())
+					timeout = Math.max(1, reconnects.peek().reconnectAt - System.currentTimeMillis());
+				selector.select(timeout);
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					Source source = (Source) key.attachment();
+					try {
+						if(! key.isValid()) continue;
+						if(key.isConnectable()) finishConnect(source);
+						if(key.isValid() && key.isReadable()) read(source);
+						if(key.isValid() && key.isWritable()) write(source);
+					} catch(IOException e) {
+						disconnect(source, e.getMessage());
+					}
+				}
+			}
+		} catch(IOException e) {
+			System.err.println("TCP aggregator: " + e);
+		} finally {
+			for(SelectionKey key : selector.keys()) {
+				try {
+					key.channel().close();
+				} catch(IOException e) {
+					// ignore
+				}
+			}
+			try {
+				selector.close();
+			} catch(IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	private void handleRequests() {
+		Source s;
+		while((s = pendingRemovals.poll()) != null) {
+			reconnects.remove(s);
+			closeChannel(s);
+		}
+		while((s = pendingConnects.poll()) != null) {
+			if(! s.removed) resolve(s);
+		}
+		long now = System.currentTimeMillis();
+		while(! reconnects.isEmpty() && reconnects.peek().reconnectAt <= now) {
+			s = reconnects.poll();
+			if(! s.removed) resolve(s);
+		}
+		while((s = pendingResolved.poll()) != null) {
+			if(! s.removed) connect(s);
+		}
+		while((s = pendingWrites.poll()) != null) {
+			if(s.key != null && s.key.isValid() && s.connected)
+				s.key.interestOps(s.key.interestOps() | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Resolves the address of a source on the resolver thread, which then queues the source for
+	 * connection. The host name is resolved again before each attempt, in case it has changed.
+	 */
+	private void resolve(final Source s) {
+		try {
+			resolver.execute(new Runnable() {
+				@Override
+				public void run() {
+					s.address = new InetSocketAddress(s.host, s.port);
+					pendingResolved.add(s);
+					selector.wakeup();
+				}
+			});
+		} catch(RejectedExecutionException e) {
+			// the aggregator is being closed
+		}
+	}
+
+	private void connect(Source s) {
+		InetSocketAddress address = s.address;
+		if(address.isUnresolved()) {
+			disconnect(s, "Unknown host: " + s.host);
+			return;
+		}
+		try {
+			SocketChannel channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			s.channel = channel;
+			if(channel.connect(address)) {
+				s.key = channel.register(selector, SelectionKey.OP_READ, s);
+				connected(s);
+			} else {
+				s.key = channel.register(selector, SelectionKey.OP_CONNECT, s);
+			}
+		} catch(IOException e) {
+			disconnect(s, e.getMessage());
+		} catch(UnresolvedAddressException e) {
+			disconnect(s, "Unknown host: " + s.host);
+		}
+	}
+
+	private void finishConnect(Source s) throws IOException {
+		if(s.channel.finishConnect()) {
+			s.key.interestOps(SelectionKey.OP_READ);
+			connected(s);
+		}
+	}
+
+	private void connected(Source s) {
+		s.connected = true;
+		s.lineLen = 0;
+		s.in.clear();
+		synchronized(s.out) {
+			s.out.clear();
+			// first, try to get the initial frequency, and restore the frequency set by the user
+			s.appendCommand("GET_FREQ");
+			if(s.requestedFrequency > 0) s.appendCommand("SET_FREQ " + s.requestedFrequency);
+		}
+		s.key.interestOps(s.key.interestOps() | SelectionKey.OP_WRITE);
+	}
+
+	private void closeChannel(Source s) {
+		s.connected = false;
+		if(s.key != null) s.key.cancel();
+		s.key = null;
+		if(s.channel != null) {
+			try {
+				s.channel.close();
+			} catch(IOException e) {
+				// ignore
+			}
+		}
+		s.channel = null;
+	}
+
+	/**
+	 * Closes the connection of a source and schedules the next connection attempt.
+	 */
+	private void disconnect(Source s, String reason) {
+		closeChannel(s);
+		if(s.removed) return;
+		s.lastError = reason;
+		// +/- 10% jitter, so that sources which failed together do not retry together
+		long delay = (long) (s.backoff * (0.9 + 0.2 * random.nextDouble()));
+		s.reconnectAt = System.currentTimeMillis() + delay;
+		s.backoff = Math.min(2 * s.backoff, MAX_BACKOFF);
+		reconnects.add(s);
+	}
+
+	private void read(Source s) throws IOException {
+		ByteBuffer in = s.in;
+		int n = s.channel.read(in);
+		if(n < 0) {
+			disconnect(s, "Connection closed by remote end");
+			return;
+		}
+		if(n == 0) return;
+
+		in.flip();
+		while(in.hasRemaining()) {
+			int len = Math.min(in.remaining(), s.line.length - s.lineLen);
+			in.get(s.line, s.lineLen, len);
+			int start = 0;
+			int end = s.lineLen + len;
+			for(int i = s.lineLen; i < end; i++) {
+				byte c = s.line[i];
+				if(c == '\n' || c == '\r') {
+					if(s.discarding) s.discarding = false;
+					else lineReceived(s, start, i);
+					start = i + 1;
+				}
+			}
+			// keep the incomplete line
+			s.lineLen = end - start;
+			System.arraycopy(s.line, start, s.line, 0, s.lineLen);
+			if(s.lineLen == s.line.length) {
+				// overlong line
+				s.lineLen = 0;
+				s.discarding = true;
+			}
+		}
+		in.clear();
+	}
+
+	private void lineReceived(Source s, int start, int end) {
+		if(parser.parse(s.line, start, end) == HexLineParser.NONE) return;
+		GroupReaderEvent event = parser.createEvent(new RealTime());
+
+		s.backoff = MIN_BACKOFF;
+		if(event instanceof GroupEvent) {
+			s.newGroups = true;
+			s.groupCount++;
+		} else if(event instanceof FrequencyChangeEvent) {
+			s.frequency = ((FrequencyChangeEvent) event).frequency;
+		}
+
+		if(! s.events.offer(event)) s.dropped++;
+		for(Listener l : listeners) {
+			try {
+				l.eventReceived(s, event);
+			} catch(RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void write(Source s) throws IOException {
+		synchronized(s.out) {
+			s.out.flip();
+			s.channel.write(s.out);
+			s.out.compact();
+			if(s.out.position() == 0)
+				s.key.interestOps(s.key.interestOps() & ~SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * A remote tuner, and the reader for its events.
+	 */
+	public class Source extends TunerGroupReader implements Comparable<Source> {
+		private final String host;
+		private final int port;
+		private final BlockingQueue<GroupReaderEvent> events;
+
+		/* Set by the resolver thread before the source is queued for connection */
+		private volatile InetSocketAddress address = null;
+
+		/* Selector thread only */
+		private SocketChannel channel = null;
+		private SelectionKey key = null;
+		private final ByteBuffer in = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		private final byte[] line = new byte[MAX_LINE];
+		private int lineLen = 0;
+		private boolean discarding = false;
+		private long backoff = MIN_BACKOFF;
+		private long reconnectAt;
+
+		/* Commands waiting to be sent, guarded by itself */
+		private final ByteBuffer out = ByteBuffer.allocate(MAX_PENDING_COMMANDS);
+
+		private volatile boolean connected = false;
+		private volatile boolean removed = false;
+		private volatile boolean newGroups = false;
+		private volatile int frequency = 0;
+		private volatile int requestedFrequency = 0;
+		private volatile long groupCount = 0;
+		private volatile long dropped = 0;
+		private volatile String lastError = null;
+
+		private Source(String host, int port, int queueSize) {
+			this.host = host;
+			this.port = port;
+			this.events = new ArrayBlockingQueue<GroupReaderEvent>(queueSize);
+		}
+
+		public String getHost() {
+			return host;
+		}
+
+		public int getPort() {
+			return port;
+		}
+
+		public boolean isConnected() {
+			return connected;
+		}
+
+		/**
+		 * @brief Returns the number of groups received from this source.
+		 */
+		public long getGroupCount() {
+			return groupCount;
+		}
+
+		/**
+		 * @brief Returns the number of events dropped because the queue of this source was full.
+		 */
+		public long getDroppedCount() {
+			return dropped;
+		}
+
+		/**
+		 * @brief Returns the reason of the last connection failure, or null.
+		 */
+		public String getLastError() {
+			return lastError;
+		}
+
+		/**
+		 * Queues a command. Must be called with the lock on {@code out} held.
+		 */
+		private boolean appendCommand(String command) {
+			if(out.remaining() < command.length() + 1) return false;
+			for(int i=0; i<command.length(); i++) out.put((byte) command.charAt(i));
+			out.put((byte) '\n');
+			return true;
+		}
+
+		/**
+		 * @brief Sends a command to the remote tuner without waiting for it to be transmitted.
+		 *
+		 * Commands given while the source is not connected are discarded.
+		 *
+		 * @return false if the command could not be queued
+		 */
+		public boolean sendCommand(String command) {
+			if(! connected) return false;
+			synchronized(out) {
+				if(! appendCommand(command)) return false;
+			}
+			pendingWrites.add(this);
+			selector.wakeup();
+			return true;
+		}
+
+		@Override
+		public GroupReaderEvent getGroup() throws IOException, EndOfStream {
+			try {
+				while(true) {
+					GroupReaderEvent event = events.poll(100, TimeUnit.MILLISECONDS);
+					if(event != null) return event;
+					if(removed || ! running) {
+						event = events.poll();
+						if(event != null) return event;
+						throw new EndOfStream();
+					}
+				}
+			} catch(InterruptedException e) {
+				throw new IOException("Interrupted while waiting for groups");
+			}
+		}
+
+		@Override
+		public boolean isStereo() {
+			return false;
+		}
+
+		@Override
+		public boolean isSynchronized() {
+			return true;
+		}
+
+		/**
+		 * @brief Requests a new frequency. The request is repeated if the connection is re-established.
+		 *
+		 * @return The current frequency, as last reported by the remote tuner
+		 */
+		@Override
+		public int setFrequency(int frequency) {
+			requestedFrequency = frequency;
+			sendCommand("SET_FREQ " + frequency);
+			return this.frequency;
+		}
+
+		@Override
+		public int getFrequency() {
+			return frequency;
+		}
+
+		@Override
+		public int mute() {
+			return 0;
+		}
+
+		@Override
+		public int unmute() {
+			return 0;
+		}
+
+		@Override
+		public boolean isAudioCapable() {
+			return false;
+		}
+
+		@Override
+		public boolean isPlayingAudio() {
+			return false;
+		}
+
+		@Override
+		public int getSignalStrength() {
+			return 0;
+		}
+
+		@Override
+		public void tune(boolean up) {
+			sendCommand(up ? "UP" : "DOWN");
+		}
+
+		@Override
+		public boolean seek(boolean up) {
+			return sendCommand("SEEK " + (up ? "UP" : "DOWN"));
+		}
+
+		@Override
+		public String getDeviceName() {
+			return "TCP " + host + ":" + port;
+		}
+
+		@Override
+		public boolean newGroups() {
+			boolean ng = newGroups;
+			newGroups = false;
+			return ng;
+		}
+
+		@Override
+		public int compareTo(Source o) {
+			return (reconnectAt < o.reconnectAt) ? -1 : ((reconnectAt == o.reconnectAt) ? 0 : 1);
+		}
+
+		@Override
+		public String toString() {
+			return host + ":" + port;
+		}
+	}
+}
@@ -28,7 +28,6 @@ package eu.jacquet80.rds.input;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
 
 import eu.jacquet80.rds.input.group.FrequencyChangeEvent;
 import eu.jacquet80.rds.input.group.GroupEvent;
@@ -36,48 +35,72 @@ import eu.jacquet80.rds.input.group.GroupReaderEvent;
 import eu.jacquet80.rds.input.group.GroupReaderEventVisitor;
 import eu.jacquet80.rds.input.group.StationChangeEvent;
 
+/**
+ * Passes on the events of another reader, writing them to a group-level hex file.
+ * 
+ * Writing happens in the background through a {@link GroupLogWriter}, so a slow disk does not
+ * hold up decoding. The file is closed when the underlying reader reaches the end of its stream,
+ * or when {@link #close()} is called.
+ */
 public class TeeGroupReader extends GroupReader {
-	private final PrintWriter writer;
+	private final GroupLogWriter writer;
 	private final GroupReader reader;
 	
 	public TeeGroupReader(GroupReader reader, File of) throws IOException {
+		this(reader, of, GroupLogWriter.DEFAULT_FLUSH_INTERVAL, false);
+	}
+	
+	/**
+	 * @param reader The reader whose events are to be written
+	 * @param of The file to write
+	 * @param flushInterval The maximum time events are held back before they are written, in ms
+	 * @param sync Whether to force data to the storage device each time it is written
+	 */
+	public TeeGroupReader(GroupReader reader, File of, long flushInterval, boolean sync) throws IOException {
 		this.reader = reader;
-		writer = new PrintWriter(of);
-		writer.println("% RDS hexgroups");
+		writer = new GroupLogWriter(of, flushInterval, sync);
+		writer.writeLine("% RDS hexgroups");
 		setParent(reader);
 	}
 	
+	private final GroupReaderEventVisitor eventWriter = new GroupReaderEventVisitor() {
+		@Override
+		public void visit(FrequencyChangeEvent freqChangeEvent) {
+			writer.writeLine("% Freq " + freqChangeEvent.frequency + ", date=" + 
+					freqChangeEvent.getTime().toLongString());
+		}
+		
+		@Override
+		public void visit(GroupEvent groupEvent) {
+			writer.writeGroup(groupEvent.blocks, groupEvent.getTime());
+		}
+
+		@Override
+		public void visit(StationChangeEvent stationChangeEvent) {
+			writer.writeLine("");
+		}
+	};
+	
 	@Override
 	public GroupReaderEvent getGroup() throws IOException, EndOfStream {
-		GroupReaderEvent event = reader.getGroup();
+		GroupReaderEvent event;
+		try {
+			event = reader.getGroup();
+		} catch(EndOfStream e) {
+			close();
+			throw e;
+		}
 		if(event == null) return null;		// propagate null event
 		
-		event.accept(new GroupReaderEventVisitor() {
-			@Override
-			public void visit(FrequencyChangeEvent freqChangeEvent) {
-				writer.print("% Freq " + freqChangeEvent.frequency + ", date=" + 
-						freqChangeEvent.getTime().toLongString());
-			}
-			
-			@Override
-			public void visit(GroupEvent groupEvent) {
-				for(int i=0; i<4; i++) {
-					if(groupEvent.blocks[i]>=0) writer.printf("%04X ", groupEvent.blocks[i]);
-					else writer.print("---- ");
-				}
-				writer.print("@" + groupEvent.getTime().toLongString());
-			}
-
-			@Override
-			public void visit(StationChangeEvent stationChangeEvent) {
-				// do nothing
-			}
-		});
-
-		writer.println();
-		writer.flush();
+		event.accept(eventWriter);
 		
 		return event;
 	}
-
+	
+	/**
+	 * @brief Writes all pending events and closes the file.
+	 */
+	public void close() throws IOException {
+		writer.close();
+	}
 }
@@ -28,6 +28,7 @@
 package eu.jacquet80.rds.input;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import eu.jacquet80.rds.input.group.FrequencyChangeEvent;
 import eu.jacquet80.rds.input.group.GroupEvent;
@@ -41,6 +42,12 @@ public class V4LTunerGroupReader extends TunerGroupReader {
 	private boolean newGroups;
 	private int oldFreq = 0;	// if !=0, means that the frequency has just been adjusted
 	
+	/** Maximum number of blocks transferred per call to the native driver */
+	private final static int BULK_BLOCKS = 256;
+	
+	/** Bulk transfer buffer, or null if the library supports only {@link #getRDSData()} */
+	private BulkTunerData bulk = new BulkTunerData(BULK_BLOCKS);
+	
 	public V4LTunerGroupReader(String device) {
 		int res = open(device);
 		if(res != 1) throw new RuntimeException("Device " + device + " failed to open: " +res);
@@ -58,10 +65,30 @@ public class V4LTunerGroupReader extends TunerGroupReader {
     private native synchronized int close();
     private native synchronized boolean hasRDS();
     private native byte[] getRDSData();
+    
+    /**
+     * @brief Fills a buffer with the tuner status and all RDS blocks available.
+     * 
+     * Waits for RDS data in the same way as {@link #getRDSData()}. See {@link BulkTunerData}
+     * for the layout of the buffer.
+     * 
+     * @return The number of blocks, or a negative value in case of error
+     */
+    private native int readGroups(ByteBuffer buffer);
 
 	
 	@Override
 	public GroupReaderEvent getGroup() throws IOException {
+		if(bulk != null) {
+			try {
+				return getGroupBulk();
+			} catch(UnsatisfiedLinkError e) {
+				System.out.println("V4L: no bulk transfer support in " + System.mapLibraryName(LIB_NAME) 
+						+ ", reading blocks one by one.");
+				bulk = null;
+			}
+		}
+		
 		int newFreq = getFrequency();
 		if(newFreq != oldFreq) {
 			// if frequency has just been changed, must report an event
@@ -97,6 +124,32 @@ public class V4LTunerGroupReader extends TunerGroupReader {
 		newGroups = true;
 		return new GroupEvent(new RealTime(), res, false);
 	}
+	
+	/**
+	 * @brief Reads the next group, fetching all pending blocks from the driver in one call
+	 * when no group is left from the previous call.
+	 * 
+	 * @throws UnsatisfiedLinkError if the library does not implement {@link #readGroups(ByteBuffer)}
+	 */
+	private GroupReaderEvent getGroupBulk() {
+		if(! bulk.hasGroups()) {
+			int count = readGroups(bulk.buffer);
+			if(count < 0) return null;
+			bulk.decode(count);
+			
+			if(bulk.frequency != oldFreq) {
+				// if frequency has just been changed, must report an event
+				oldFreq = bulk.frequency;
+				return new FrequencyChangeEvent(new RealTime(), oldFreq);
+			}
+		}
+		
+		int[] res = bulk.nextGroup();
+		if(res == null) return null;
+		
+		newGroups = true;
+		return new GroupEvent(new RealTime(), res, false);
+	}
 
 	static {
 		try {
@@ -0,0 +1,270 @@
+/*
+ RDS Surveyor -- RDS decoder, analyzer and monitor tool and library.
+ For more information see
+   http://www.jacquet80.eu/
+   http://rds-surveyor.sourceforge.net/
+
+ Copyright (c) 2016 the RDS Surveyor contributors
+
+ This file is part of RDS Surveyor.
+
+ RDS Surveyor is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ RDS Surveyor is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser Public License for more details.
+
+ You should have received a copy of the GNU Lesser Public License
+ along with RDS Surveyor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package eu.jacquet80.rds.tests;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Random;
+
+import biz.source_code.dsp.filter.FilterCharacteristicsType;
+import biz.source_code.dsp.filter.FilterPassType;
+import biz.source_code.dsp.filter.IirFilter;
+import biz.source_code.dsp.filter.IirFilterCoefficients;
+import biz.source_code.dsp.filter.IirFilterDesignFisher;
+
+import eu.jacquet80.rds.dsp.ChannelDownconverter;
+import eu.jacquet80.rds.dsp.DspKernels;
+import eu.jacquet80.rds.dsp.FirDecimator;
+import eu.jacquet80.rds.dsp.FmDiscriminator;
+import eu.jacquet80.rds.dsp.IirBlockFilter;
+import eu.jacquet80.rds.input.AudioBitReader;
+import eu.jacquet80.rds.input.GroupReader;
+import eu.jacquet80.rds.input.RDSSignalGenerator;
+import eu.jacquet80.rds.input.SampleSource;
+import eu.jacquet80.rds.input.group.GroupEvent;
+import eu.jacquet80.rds.input.group.GroupReaderEvent;
+import eu.jacquet80.rds.log.SequentialTime;
+
+/**
+ * Measures the throughput of the DSP kernels used by the demodulators, in samples per second.
+ *
+ * Usage: {@code DspBenchmark [seconds per kernel]}
+ */
+public class DspBenchmark {
+	private static final int MPX_RATE = 228000;
+	private static final int IQ_RATE = 2400000;
+	private static final int BLOCK = 4096;
+
+	private final long duration;
+
+	public DspBenchmark(long duration) {
+		this.duration = duration;
+	}
+
+	/**
+	 * A kernel to be measured.
+	 */
+	private static abstract class Kernel {
+		private final String name;
+
+		public Kernel(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @brief Processes one block of input.
+		 *
+		 * @return The number of input samples processed
+		 */
+		public abstract int run();
+	}
+
+	private void measure(Kernel kernel) {
+		/* warm up, so that the JIT compiler has done its work before we measure */
+		long end = System.nanoTime() + duration / 4;
+		while (System.nanoTime() < end)
+			kernel.run();
+
+		long samples = 0;
+		long start = System.nanoTime();
+		long now;
+		do {
+			samples += kernel.run();
+			now = System.nanoTime();
+		} while (now - start < duration);
+
+		double rate = samples * 1e9 / (now - start);
+		System.out.println(String.format("%-32s %10.2f Msamples/s  (%6.1f x realtime at %d Hz)",
+				kernel.name, rate / 1e6, rate / MPX_RATE, MPX_RATE));
+	}
+
+	private static IirFilterCoefficients lowpass(int order, double cutoff) {
+		return IirFilterDesignFisher.design(FilterPassType.lowpass,
+				FilterCharacteristicsType.butterworth, order, 0, cutoff, cutoff);
+	}
+
+	public void run() throws IOException {
+		final Random random = new Random(1);
+
+		final short[] mpx = new short[BLOCK];
+		for (int i = 0; i < BLOCK; i++)
+			mpx[i] = (short) (random.nextGaussian() * 4000);
+
+		final double[] in = new double[BLOCK];
+		for (int i = 0; i < BLOCK; i++)
+			in[i] = mpx[i] / 32768.0;
+
+		final float[] real = new float[BLOCK];
+		for (int i = 0; i < BLOCK; i++)
+			real[i] = mpx[i] / 32768.0f;
+
+		final float[] iq = new float[2 * BLOCK];
+		for (int i = 0; i < iq.length; i++)
+			iq[i] = (float) random.nextGaussian();
+
+		final double[] outI = new double[BLOCK];
+		final double[] outQ = new double[BLOCK];
+		final float[] fout = new float[2 * BLOCK];
+
+		measure(new Kernel("mix") {
+			double phase = 0;
+
+			public int run() {
+				phase = DspKernels.mix(mpx, 0, BLOCK, 1 / 32768.0, phase, 2 * Math.PI * 57000 / MPX_RATE, outI, outQ);
+				phase %= 2 * Math.PI;
+				return BLOCK;
+			}
+		});
+
+		final IirFilterCoefficients lp5 = lowpass(5, 2000.0 / MPX_RATE);
+
+		measure(new Kernel("IIR 5th order (IirFilter.step)") {
+			final IirFilter filter = new IirFilter(lp5);
+
+			public int run() {
+				for (int i = 0; i < BLOCK; i++)
+					outI[i] = filter.step(in[i]);
+				return BLOCK;
+			}
+		});
+
+		measure(new Kernel("IIR 5th order (IirBlockFilter)") {
+			final IirBlockFilter filter = new IirBlockFilter(lp5);
+
+			public int run() {
+				filter.process(in, 0, outI, 0, BLOCK);
+				return BLOCK;
+			}
+		});
+
+		measure(new Kernel("IIR 5th order, 32-sample blocks") {
+			final IirBlockFilter filter = new IirBlockFilter(lp5);
+
+			public int run() {
+				for (int i = 0; i < BLOCK; i += 32)
+					filter.process(in, i, outI, i, 32);
+				return BLOCK;
+			}
+		});
+
+		measure(new Kernel("integrate & dump") {
+			final double[] clock = new double[BLOCK];
+			final double[] state = new double[2];
+			final double[] dumps = new double[BLOCK];
+
+			{
+				for (int i = 0; i < BLOCK; i++)
+					clock[i] = ((i / 3) % 2 == 0) ? 1 : -1;
+			}
+
+			public int run() {
+				DspKernels.integrateAndDump(in, clock, BLOCK, state, dumps, null);
+				return BLOCK;
+			}
+		});
+
+		measure(new Kernel("FIR decimator (81 taps, /10)") {
+			final FirDecimator fir = FirDecimator.lowpass(10, 81, 0.045);
+
+			public int run() {
+				fir.process(real, 0, BLOCK, fout, 0);
+				return BLOCK;
+			}
+		});
+
+		measure(new Kernel("FM discriminator") {
+			final FmDiscriminator disc = new FmDiscriminator();
+
+			public int run() {
+				disc.demodulate(iq, 0, BLOCK, fout, 0);
+				return BLOCK;
+			}
+		});
+
+		measure(new Kernel("channel downconverter (/10)") {
+			final ChannelDownconverter conv = new ChannelDownconverter(300000, IQ_RATE, 10, 161, 110000);
+
+			public int run() {
+				conv.process(iq, BLOCK, fout);
+				return BLOCK;
+			}
+		});
+
+		/* Complete demodulator, on a pre-rendered RDS signal */
+		final short[] signal = new short[10 * MPX_RATE];
+		RDSSignalGenerator gen = new RDSSignalGenerator(new RepeatingGroupReader(), MPX_RATE);
+		gen.setSnr(10);
+		for (int pos = 0; pos < signal.length; )
+			pos += gen.read(signal, pos, signal.length - pos);
+
+		measure(new Kernel("AudioBitReader") {
+			public int run() {
+				AudioBitReader reader = new AudioBitReader(new SampleSource() {
+					int pos = 0;
+
+					@Override
+					public int read(short[] buf, int off, int len) {
+						if (pos >= signal.length)
+							return -1;
+						len = Math.min(len, signal.length - pos);
+						System.arraycopy(signal, pos, buf, off, len);
+						pos += len;
+						return len;
+					}
+				}, MPX_RATE);
+				try {
+					while (true)
+						reader.getBit();
+				} catch (EOFException e) {
+					// expected
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				return signal.length;
+			}
+		});
+	}
+
+	/**
+	 * Supplies the same 0A group over and over.
+	 */
+	private static class RepeatingGroupReader extends GroupReader {
+		private int count = 0;
+
+		@Override
+		public GroupReaderEvent getGroup() {
+			int seg = count % 4;
+			return new GroupEvent(new SequentialTime(count++),
+					new int[] {0xF201, 0x0540 | seg, 0xE0CD, 0x2020}, false);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		long seconds = (args.length > 0) ? Long.parseLong(args[0]) : 2;
+		new DspBenchmark(seconds * 1000000000L).run();
+		System.exit(0);
+	}
+}
@@ -1,77 +1,58 @@
 package eu.jacquet80.rds.ui;
 
 import java.io.PrintStream;
-import java.util.Arrays;
 
+import eu.jacquet80.rds.core.BandScanner;
 import eu.jacquet80.rds.core.DecoderShell;
-import eu.jacquet80.rds.core.GroupLevelDecoder;
-import eu.jacquet80.rds.core.TunedStation;
 import eu.jacquet80.rds.input.TunerGroupReader;
 
 public class Overviewer extends Thread {
-	private final TunerGroupReader tgr;
+	private final BandScanner scanner = new BandScanner();
 	private PrintStream console;
 	
 	
 	public Overviewer(TunerGroupReader tgr, PrintStream console) {
-		this.tgr = tgr;
+		// the tuner is decoded by the decoder shell
+		scanner.addTuner(tgr, DecoderShell.instance.getLog(), DecoderShell.instance.getGroupReader());
 		this.console = console;
 	}
 	
+	/**
+	 * @brief Adds another tuner, so that the band is surveyed faster.
+	 */
+	public void addTuner(TunerGroupReader tgr) {
+		scanner.addTuner(tgr);
+	}
+	
 	public void run() {
-		GroupLevelDecoder groupDecoder = DecoderShell.instance.getGroupReader();
-		
 		console.println("Measuring signal strength");
-		MeasuredSignal[] strength = new MeasuredSignal[206];
-		for(int i=0; i<strength.length; i++) {
-			int freq = 87500 + i * 100;
-			tgr.setFrequency(freq);
-			int s = tgr.getSignalStrength();
-			strength[i] = new MeasuredSignal(freq, s);
-			
-			if(freq % 1000 == 0) {
-				console.printf("%3.1f  ", freq / 1000f);
-			}
-			
-			//console.printf("%3.1f   %d\n", freq / 1000f, s);
-		}
-		console.println();
-		console.println();
-		
-		Arrays.sort(strength);
+		long start = System.currentTimeMillis();
 		
-		for(int i=strength.length-1; i>=0; i--) {
-			MeasuredSignal s = strength[i];
-			tgr.setFrequency(s.frequency);
-			console.printf("%3.1f\t %d\t ", s.frequency / 1000f, s.rssi);
-			groupDecoder.reset();
-			
-			try {
-				sleep(5000);
-			} catch (InterruptedException e) {}
-			
-			TunedStation station = groupDecoder.getTunedStation();
-			if(station != null) {
-				console.printf("%04X   %8s  %s\n", station.getPI(), station.getStationName(), station.getCompactGroupStats());
-			} else {
-				console.printf("--\n");
-			}
+		try {
+			scanner.scan(new BandScanner.Listener() {
+				private boolean measuring = true;
+				
+				@Override
+				public synchronized void signalMeasured(int frequency, int rssi) {
+					if(frequency % 1000 == 0) {
+						console.printf("%3.1f  ", frequency / 1000f);
+					}
+				}
+				
+				@Override
+				public synchronized void channelScanned(BandScanner.Result result) {
+					if(measuring) {
+						console.println();
+						console.println();
+						measuring = false;
+					}
+					console.println(result);
+				}
+			});
+		} catch (InterruptedException e) {
+			return;
 		}
+		
+		console.printf("Band surveyed in %d s\n", (System.currentTimeMillis() - start) / 1000);
 	}
 }
-
-
-class MeasuredSignal implements Comparable<MeasuredSignal> {
-	public final int frequency;
-	public final int rssi;
-	
-	public MeasuredSignal(int frequency, int rssi) {
-		this.frequency = frequency;
-		this.rssi = rssi;
-	}
-
-	@Override
-	public int compareTo(MeasuredSignal o) {
-		return rssi - o.rssi;
-	}
-}
\ No newline at end of file
@@ -35,6 +35,8 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.List;
 
 import javax.swing.Box;
 import javax.swing.JButton;
@@ -64,6 +66,8 @@ import eu.jacquet80.rds.ui.Util;
 @SuppressWarnings("serial")
 public class AlertCPanel extends AppPanel {
 	private AlertC app;
+	/** The messages shown, as of the last change notification. */
+	private volatile List<Message> messages = Collections.emptyList();
 	private final MessageTableModel model = new MessageTableModel();
 	private final JTable tblList;
 	private boolean freezeDetails = false;
@@ -151,8 +155,9 @@ public class AlertCPanel extends AppPanel {
 				if (freezeDetails)
 					return;
 				int row = tblList.getSelectedRow();
-				if(row >= 0) {
-					Message msg = app.getMessages().get(row);
+				List<Message> messages = AlertCPanel.this.messages;
+				if(row >= 0 && row < messages.size()) {
+					Message msg = messages.get(row);
 					latestSelectedLocation = msg.lcid;
 					txtDetails.setText(msg.html());
 				} else {
@@ -200,7 +205,8 @@ public class AlertCPanel extends AppPanel {
 		lblAFI.setText(app.getAFI() >= 0 ? Integer.toString(app.getAFI()) : "");
 		lblMode.setText(Integer.toString(app.getMode()));
 		lblSID.setText(app.getSID() >= 0 ? Integer.toString(app.getSID()) : "");
-		lblMessageCount.setText(Integer.toString(app.getMessages().size()));
+		messages = app.getMessages();
+		lblMessageCount.setText(Integer.toString(messages.size()));
 
 		freezeDetails = true;
 		model.fireTableDataChanged();
@@ -237,7 +243,9 @@ public class AlertCPanel extends AppPanel {
 		
 		@Override
 		public Object getValueAt(int row, int column) {
-			AlertC.Message msg = app.getMessages().get(row);
+			List<Message> messages = AlertCPanel.this.messages;
+			if(row >= messages.size()) return null;
+			AlertC.Message msg = messages.get(row);
 			if(msg == null) return null;
 			
 			switch(column) {
@@ -260,12 +268,12 @@ public class AlertCPanel extends AppPanel {
 		
 		@Override
 		public int getRowCount() {
-			return app.getMessages().size();
+			return messages.size();
 		}
 		
 		private int getRowForLocation(int location) {
 			int row = 0;
-			for(AlertC.Message m : app.getMessages()) {
+			for(AlertC.Message m : messages) {
 				if(m.lcid == location) {
 					return row;
 				}
@@ -0,0 +1,267 @@
+package eu.jacquet80.rds.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * @brief A uniform grid of geographic positions, which finds the items in a bounding box or the
+ * item nearest to a position.
+ *
+ * Positions are given as longitude (x) and latitude (y) in degrees. The grid divides them into
+ * square cells of a fixed size, and only cells which hold at least one position are stored. A
+ * bounding box query examines the cells overlapping the box, or all stored cells if there are
+ * fewer, so that its cost depends on the number of results rather than the size of the box.
+ *
+ * An item may be added at several positions, e.g. all points covered by a traffic message. It
+ * is returned only once by each query.
+ *
+ * Items are compared with {@link Object#equals(Object)}, thus boxed values such as location codes
+ * may be used as items. This class is not thread-safe.
+ *
+ * @param <T> The type of the items
+ */
+public class SpatialGrid<T> {
+	private static class Entry<T> {
+		private final T item;
+		private final float x;
+		private final float y;
+
+		private Entry(T item, float x, float y) {
+			this.item = item;
+			this.x = x;
+			this.y = y;
+		}
+	}
+
+	/** The nearest entry found so far by {@link SpatialGrid#nearest(float, float)}. */
+	private static class Nearest<T> {
+		private final float x;
+		private final float y;
+		/** Factor for differences in longitude. */
+		private final double scale;
+		private T item = null;
+		/** The squared distance of {@link #item}. */
+		private double dist = Double.MAX_VALUE;
+
+		private Nearest(float x, float y, double scale) {
+			this.x = x;
+			this.y = y;
+			this.scale = scale;
+		}
+
+		private void offer(List<Entry<T>> cell) {
+			if (cell == null)
+				return;
+			for (Entry<T> entry : cell) {
+				double dx = (entry.x - x) * scale;
+				double dy = entry.y - y;
+				double d = dx * dx + dy * dy;
+				if (d < dist) {
+					dist = d;
+					item = entry.item;
+				}
+			}
+		}
+	}
+
+	/** The size of a cell in degrees. */
+	private final float cellSize;
+	/** The entries in each cell which holds any, by {@link #key(int, int)}. */
+	private final Map<Long, List<Entry<T>>> cells = new HashMap<Long, List<Entry<T>>>();
+	/** The keys of the cells holding the positions of each item. */
+	private final Map<T, long[]> items = new HashMap<T, long[]>();
+	/** Column and row ranges of all cells which have ever held an entry. */
+	private int minCol = Integer.MAX_VALUE, maxCol = Integer.MIN_VALUE;
+	private int minRow = Integer.MAX_VALUE, maxRow = Integer.MIN_VALUE;
+
+	/**
+	 * @brief Creates a new grid.
+	 *
+	 * @param cellSize The size of a cell in degrees. Bounding box queries are fastest if the
+	 * cells are small enough to hold only a few positions, but large enough for a typical box to
+	 * span only a few cells.
+	 */
+	public SpatialGrid(float cellSize) {
+		if (!(cellSize > 0))
+			throw new IllegalArgumentException("Cell size must be positive: " + cellSize);
+		this.cellSize = cellSize;
+	}
+
+	/**
+	 * @brief Adds an item at the given positions.
+	 *
+	 * If the item is already in the grid, its previous positions are replaced.
+	 *
+	 * @param item The item
+	 * @param coords The positions, as longitude and latitude pairs. Pairs with a NaN value are
+	 * ignored.
+	 */
+	public void add(T item, float[] coords) {
+		remove(item);
+		long[] keys = new long[coords.length / 2];
+		int count = 0;
+		for (int i = 0; i + 1 < coords.length; i += 2) {
+			float x = coords[i];
+			float y = coords[i + 1];
+			if (Float.isNaN(x) || Float.isNaN(y))
+				continue;
+			int col = cell(x);
+			int row = cell(y);
+			minCol = Math.min(minCol, col);
+			maxCol = Math.max(maxCol, col);
+			minRow = Math.min(minRow, row);
+			maxRow = Math.max(maxRow, row);
+			long key = key(col, row);
+			List<Entry<T>> cell = cells.get(key);
+			if (cell == null) {
+				cell = new ArrayList<Entry<T>>(2);
+				cells.put(key, cell);
+			}
+			cell.add(new Entry<T>(item, x, y));
+			keys[count++] = key;
+		}
+		if (count > 0)
+			items.put(item, (count == keys.length) ? keys : Arrays.copyOf(keys, count));
+	}
+
+	/**
+	 * @brief Adds an item at a single position.
+	 *
+	 * @see #add(Object, float[])
+	 */
+	public void add(T item, float x, float y) {
+		add(item, new float[] {x, y});
+	}
+
+	/**
+	 * @brief Removes an item from all of its positions.
+	 *
+	 * @return True if the item was in the grid, false if not.
+	 */
+	public boolean remove(T item) {
+		long[] keys = items.remove(item);
+		if (keys == null)
+			return false;
+		for (long key : keys) {
+			List<Entry<T>> cell = cells.get(key);
+			if (cell == null)
+				continue;
+			for (int i = cell.size() - 1; i >= 0; i--)
+				if (cell.get(i).item.equals(item))
+					cell.remove(i);
+			if (cell.isEmpty())
+				cells.remove(key);
+		}
+		return true;
+	}
+
+	/**
+	 * @brief Returns all items with at least one position inside a bounding box.
+	 *
+	 * The bounds are inclusive. The order of the result is unspecified.
+	 *
+	 * @param minX The western bound
+	 * @param minY The southern bound
+	 * @param maxX The eastern bound
+	 * @param maxY The northern bound
+	 * @return The items, each of them once, or an empty list if there are none.
+	 */
+	public List<T> query(float minX, float minY, float maxX, float maxY) {
+		List<T> res = new ArrayList<T>();
+		if (cells.isEmpty() || (minX > maxX) || (minY > maxY))
+			return res;
+		int col0 = Math.max(cell(minX), minCol);
+		int col1 = Math.min(cell(maxX), maxCol);
+		int row0 = Math.max(cell(minY), minRow);
+		int row1 = Math.min(cell(maxY), maxRow);
+		if ((col0 > col1) || (row0 > row1))
+			return res;
+		Set<T> seen = new HashSet<T>();
+		if ((long) (col1 - col0 + 1) * (row1 - row0 + 1) > cells.size()) {
+			for (List<Entry<T>> cell : cells.values())
+				collect(cell, minX, minY, maxX, maxY, seen, res);
+		} else {
+			for (int col = col0; col <= col1; col++)
+				for (int row = row0; row <= row1; row++) {
+					List<Entry<T>> cell = cells.get(key(col, row));
+					if (cell != null)
+						collect(cell, minX, minY, maxX, maxY, seen, res);
+				}
+		}
+		return res;
+	}
+
+	/**
+	 * @brief Returns the item with the position nearest to the given one.
+	 *
+	 * Distances are measured on an equirectangular projection, i.e. differences in longitude
+	 * are scaled by the cosine of the latitude. This is accurate enough to pick the nearest of
+	 * several locations within a country.
+	 *
+	 * @param x The longitude
+	 * @param y The latitude
+	 * @return The item, or {@code null} if the grid is empty.
+	 */
+	public T nearest(float x, float y) {
+		if (cells.isEmpty())
+			return null;
+		double scale = Math.max(Math.cos(Math.toRadians(y)), 0.01);
+		int col = cell(x);
+		int row = cell(y);
+		/* rings closer than the first one overlapping any stored cell are empty */
+		int firstRing = Math.max(Math.max(0, Math.max(minCol - col, col - maxCol)),
+				Math.max(minRow - row, row - maxRow));
+		int lastRing = Math.max(Math.max(Math.abs(col - minCol), Math.abs(col - maxCol)),
+				Math.max(Math.abs(row - minRow), Math.abs(row - maxRow)));
+		Nearest<T> best = new Nearest<T>(x, y, scale);
+		for (int ring = firstRing; ring <= lastRing; ring++) {
+			/*
+			 * Any position outside the rings examined so far is at least this far away. The
+			 * first ring may hold positions close to the edge of the center cell.
+			 */
+			double bound = Math.max(ring - 1, 0) * cellSize * scale;
+			if ((best.item != null) && (best.dist <= bound * bound))
+				break;
+			for (int c = Math.max(col - ring, minCol); c <= Math.min(col + ring, maxCol); c++) {
+				if ((c == col - ring) || (c == col + ring)) {
+					for (int r = Math.max(row - ring, minRow); r <= Math.min(row + ring, maxRow); r++)
+						best.offer(cells.get(key(c, r)));
+				} else {
+					if (row - ring >= minRow)
+						best.offer(cells.get(key(c, row - ring)));
+					if (row + ring <= maxRow)
+						best.offer(cells.get(key(c, row + ring)));
+				}
+			}
+		}
+		return best.item;
+	}
+
+	/**
+	 * @brief Returns the number of items in the grid.
+	 */
+	public int size() {
+		return items.size();
+	}
+
+	private void collect(List<Entry<T>> cell, float minX, float minY, float maxX, float maxY,
+			Set<T> seen, List<T> res) {
+		for (Entry<T> entry : cell)
+			if ((entry.x >= minX) && (entry.x <= maxX) && (entry.y >= minY) && (entry.y <= maxY)
+					&& seen.add(entry.item))
+				res.add(entry.item);
+	}
+
+	private int cell(float coord) {
+		return (int) Math.floor(coord / cellSize);
+	}
+
+	private static long key(int col, int row) {
+		return ((long) col << 32) | (row & 0xFFFFFFFFL);
+	}
+}
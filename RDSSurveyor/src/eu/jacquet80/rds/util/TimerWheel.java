@@ -0,0 +1,264 @@
+package eu.jacquet80.rds.util;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @brief A hierarchical timer wheel, which keeps track of items expiring at a given time.
+ *
+ * Times are measured in milliseconds and rounded up to the resolution of the wheel. The wheel has
+ * {@link #LEVELS} levels of {@link #SLOTS} slots each. Level 0 has one slot per tick, each slot
+ * of level 1 spans {@code SLOTS} ticks, and so on. Items are placed in the slot for their
+ * expiration time on the lowest level which covers it, and are moved to lower levels as the
+ * wheel advances. Items expiring beyond the range of the top level are kept in a separate list.
+ *
+ * Scheduling and cancelling an item takes constant time, and each item is moved at most once per
+ * level, thus expiration takes constant amortized time per item.
+ *
+ * The wheel does not depend on the system clock: its time is whatever is passed to
+ * {@link #advance(long)}, which may be the system time or the time of a recording. If the time
+ * jumps back, or forward beyond the range of the wheel, all items are rescheduled.
+ *
+ * Items are compared by identity. This class is not thread-safe.
+ *
+ * @param <T> The type of the items
+ */
+public class TimerWheel<T> {
+	/** Bits of the tick number covered by each level. */
+	private static final int BITS = 6;
+	/** Number of slots per level. */
+	public static final int SLOTS = 1 << BITS;
+	/** Number of levels. */
+	public static final int LEVELS = 4;
+
+	private static final int MASK = SLOTS - 1;
+	/** Number of ticks covered by all levels. */
+	private static final long SPAN = 1L << (BITS * LEVELS);
+
+	private static class Node<T> {
+		private final T item;
+		private long tick;
+		/** The level of the slot holding the node, {@link #LEVELS} for overflow, -1 for due. */
+		private int level;
+		private Node<T> prev = this;
+		private Node<T> next = this;
+
+		private Node(T item) {
+			this.item = item;
+		}
+	}
+
+	/** Milliseconds per tick. */
+	private final long resolution;
+	/** List heads for each slot, by level and slot. */
+	private final Node<T>[][] slots;
+	/** List head for items beyond the range of the top level. */
+	private final Node<T> overflow = new Node<T>(null);
+	/** List head for items which were already due when they were scheduled. */
+	private final Node<T> due = new Node<T>(null);
+	/** The nodes of all scheduled items. */
+	private final Map<T, Node<T>> nodes = new IdentityHashMap<T, Node<T>>();
+	/** Number of nodes on each level, the last element is for overflow. */
+	private final int[] counts = new int[LEVELS + 1];
+	/** The current tick, i.e. all slots up to and including this tick have been processed. */
+	private long current = 0;
+	/** Whether the current tick has been set by {@link #advance(long)}. */
+	private boolean started = false;
+
+	/**
+	 * @brief Creates a new timer wheel.
+	 *
+	 * @param resolution The duration of a tick in milliseconds. Items may expire up to one tick
+	 * late.
+	 */
+	public TimerWheel(long resolution) {
+		if (resolution < 1)
+			throw new IllegalArgumentException("Resolution must be at least 1 ms");
+		this.resolution = resolution;
+		this.slots = newSlots();
+		for (int level = 0; level < LEVELS; level++)
+			for (int slot = 0; slot < SLOTS; slot++)
+				slots[level][slot] = new Node<T>(null);
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static <T> Node<T>[][] newSlots() {
+		return new Node[LEVELS][SLOTS];
+	}
+
+	/**
+	 * @brief Advances the wheel and returns all items which have expired.
+	 *
+	 * Expired items are removed from the wheel.
+	 *
+	 * @param time The current time, which must not be negative. The first call sets the time of
+	 * the wheel.
+	 * @return The items whose expiration time is less than or equal to {@code time}, or an empty
+	 * list if there are none.
+	 */
+	public List<T> advance(long time) {
+		List<T> res = new ArrayList<T>();
+		long target = time / resolution;
+		if (!started || (target < current) || (target - current >= SPAN)) {
+			started = true;
+			reschedule(target);
+		}
+		while (current < target) {
+			/* skip ahead to the next tick at which a non-empty level needs to be processed */
+			int empty = 0;
+			while ((empty <= LEVELS) && (counts[empty] == 0))
+				empty++;
+			if (empty > LEVELS) {
+				current = target;
+				break;
+			} else if (empty > 0)
+				current = Math.min(target - 1, (current | ((1L << (BITS * empty)) - 1)));
+			current++;
+			if ((current & (SPAN - 1)) == 0)
+				cascade(overflow);
+			for (int level = LEVELS - 1; level > 0; level--)
+				if ((current & ((1L << (BITS * level)) - 1)) == 0)
+					cascade(slots[level][(int) (current >>> (BITS * level)) & MASK]);
+			drain(slots[0][(int) current & MASK], res);
+		}
+		drain(due, res);
+		return res;
+	}
+
+	/**
+	 * @brief Removes an item from the wheel.
+	 *
+	 * @param item The item
+	 * @return True if the item was scheduled, false if not.
+	 */
+	public boolean cancel(T item) {
+		Node<T> node = nodes.remove(item);
+		if (node == null)
+			return false;
+		unlink(node);
+		return true;
+	}
+
+	/**
+	 * @brief Schedules an item for expiration at the given time.
+	 *
+	 * If the item is already scheduled, its expiration time is changed.
+	 *
+	 * @param item The item
+	 * @param time The expiration time
+	 */
+	public void schedule(T item, long time) {
+		Node<T> node = nodes.get(item);
+		if (node == null) {
+			node = new Node<T>(item);
+			nodes.put(item, node);
+		} else
+			unlink(node);
+		node.tick = (time + resolution - 1) / resolution;
+		insert(node);
+	}
+
+	/**
+	 * @brief Returns the number of scheduled items.
+	 */
+	public int size() {
+		return nodes.size();
+	}
+
+	/**
+	 * @brief Inserts a node into the slot for its tick.
+	 */
+	private void insert(Node<T> node) {
+		Node<T> head;
+		long delta = node.tick - current;
+		if (!started || (delta <= 0)) {
+			node.level = -1;
+			head = due;
+		} else if (delta >= SPAN) {
+			node.level = LEVELS;
+			head = overflow;
+		} else {
+			int level = 0;
+			while (delta >= (1L << (BITS * (level + 1))))
+				level++;
+			node.level = level;
+			head = slots[level][(int) (node.tick >>> (BITS * level)) & MASK];
+		}
+		if (node.level >= 0)
+			counts[node.level]++;
+		node.prev = head.prev;
+		node.next = head;
+		head.prev.next = node;
+		head.prev = node;
+	}
+
+	/**
+	 * @brief Removes a node from its list.
+	 */
+	private void unlink(Node<T> node) {
+		if (node.level >= 0)
+			counts[node.level]--;
+		node.prev.next = node.next;
+		node.next.prev = node.prev;
+		node.prev = node;
+		node.next = node;
+	}
+
+	/**
+	 * @brief Removes all nodes from a list and returns the first one.
+	 *
+	 * The nodes remain chained through their {@code next} fields, the last one pointing to
+	 * {@code head}. The caller must not modify the nodes until it has retrieved their successor.
+	 */
+	private Node<T> detach(Node<T> head) {
+		Node<T> first = head.next;
+		for (Node<T> node = first; node != head; node = node.next)
+			if (node.level >= 0)
+				counts[node.level]--;
+		head.prev = head;
+		head.next = head;
+		return first;
+	}
+
+	/**
+	 * @brief Reinserts all nodes of a list, which moves them to the slot for their tick.
+	 */
+	private void cascade(Node<T> head) {
+		Node<T> node = detach(head);
+		while (node != head) {
+			Node<T> next = node.next;
+			insert(node);
+			node = next;
+		}
+	}
+
+	/**
+	 * @brief Removes all nodes of a list and adds their items to {@code expired}.
+	 */
+	private void drain(Node<T> head, List<T> expired) {
+		Node<T> node = detach(head);
+		while (node != head) {
+			Node<T> next = node.next;
+			node.prev = node;
+			node.next = node;
+			nodes.remove(node.item);
+			expired.add(node.item);
+			node = next;
+		}
+	}
+
+	/**
+	 * @brief Sets the current tick and reinserts all nodes.
+	 *
+	 * This is used when the time jumps back or too far ahead to advance tick by tick.
+	 */
+	private void reschedule(long tick) {
+		current = tick;
+		for (Node<T> node : nodes.values()) {
+			unlink(node);
+			insert(node);
+		}
+	}
+}